@@ -10,6 +10,8 @@
 
 package org.obiba.opal.core.domain;
 
+import org.obiba.magma.Timestamps;
+
 import java.util.Date;
 import java.util.List;
 
@@ -21,12 +23,18 @@ public class ProjectMetrics implements HasUniqueProperties, Comparable<ProjectMe
 
   private int tableCount = -1;
 
+  private int viewCount = -1;
+
   private int variableCount = -1;
 
+  private int derivedVariableCount = -1;
+
   private int entityCount = -1;
 
   private int resourceCount = -1;
 
+  private Timestamps tablesTimestamps;
+
   public String getName() {
     return name;
   }
@@ -35,6 +43,14 @@ public class ProjectMetrics implements HasUniqueProperties, Comparable<ProjectMe
     this.name = name;
   }
 
+  public Date getTimestamp() {
+    return timestamp;
+  }
+
+  public void setTimestamp(Date timestamp) {
+    this.timestamp = timestamp;
+  }
+
   public int getTableCount() {
     return tableCount;
   }
@@ -43,6 +59,14 @@ public class ProjectMetrics implements HasUniqueProperties, Comparable<ProjectMe
     this.tableCount = tableCount;
   }
 
+  public int getViewCount() {
+    return viewCount;
+  }
+
+  public void setViewCount(int viewCount) {
+    this.viewCount = viewCount;
+  }
+
   public int getVariableCount() {
     return variableCount;
   }
@@ -51,6 +75,14 @@ public class ProjectMetrics implements HasUniqueProperties, Comparable<ProjectMe
     this.variableCount = variableCount;
   }
 
+  public int getDerivedVariableCount() {
+    return derivedVariableCount;
+  }
+
+  public void setDerivedVariableCount(int derivedVariableCount) {
+    this.derivedVariableCount = derivedVariableCount;
+  }
+
   public int getEntityCount() {
     return entityCount;
   }
@@ -67,6 +99,23 @@ public class ProjectMetrics implements HasUniqueProperties, Comparable<ProjectMe
     this.resourceCount = resourceCount;
   }
 
+  public boolean hasTablesTimestamps() {
+    return tablesTimestamps != null;
+  }
+
+  /**
+   * Union of the timestamps of the tables.
+   *
+   * @return null if there are no tables
+   */
+  public Timestamps getTablesTimestamps() {
+    return tablesTimestamps;
+  }
+
+  public void setTablesTimestamps(Timestamps tablesTimestamps) {
+    this.tablesTimestamps = tablesTimestamps;
+  }
+
   @Override
   public int compareTo(ProjectMetrics projectMetrics) {
     return timestamp.compareTo(projectMetrics.timestamp);
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.core.domain;
+
+import org.obiba.magma.Timestamped;
+import org.obiba.magma.Timestamps;
+import org.obiba.magma.Value;
+import org.obiba.magma.type.DateTimeType;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Snapshot of the variable count and timestamps of a table.
+ */
+public class TableMetrics implements Timestamped {
+
+  private final String name;
+
+  private final boolean view;
+
+  private final int variableCount;
+
+  private final Value created;
+
+  private final Value lastUpdate;
+
+  public TableMetrics(String name, boolean view, int variableCount, Value created, Value lastUpdate) {
+    this.name = name;
+    this.view = view;
+    this.variableCount = variableCount;
+    this.created = created == null ? DateTimeType.get().nullValue() : created;
+    this.lastUpdate = lastUpdate == null ? DateTimeType.get().nullValue() : lastUpdate;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public boolean isView() {
+    return view;
+  }
+
+  public int getVariableCount() {
+    return variableCount;
+  }
+
+  @Nonnull
+  @Override
+  public Timestamps getTimestamps() {
+    return new Timestamps() {
+      @Nonnull
+      @Override
+      public Value getLastUpdate() {
+        return lastUpdate;
+      }
+
+      @Nonnull
+      @Override
+      public Value getCreated() {
+        return created;
+      }
+    };
+  }
+}
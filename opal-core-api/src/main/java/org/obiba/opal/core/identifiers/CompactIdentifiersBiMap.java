@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.opal.core.identifiers;
+
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+import javax.validation.constraints.NotNull;
+
+/**
+ * Bidirectional map of system to private identifiers, designed for millions of entries: each pair is stored once as
+ * two identifier references in parallel arrays, and both directions are open-addressing tables of primitive entry
+ * numbers (no entry objects, no boxing).
+ * <p/>
+ * Lookups do not lock nor allocate: they read a snapshot of the arrays, the visibility of the entries being
+ * guaranteed by the volatile size. Writes are serialized; a mapping can be replaced but never removed.
+ */
+public class CompactIdentifiersBiMap {
+
+  private static final int DEFAULT_CAPACITY = 1024;
+
+  private volatile Table table;
+
+  public CompactIdentifiersBiMap() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public CompactIdentifiersBiMap(int expectedSize) {
+    table = new Table(Math.max(expectedSize, 16));
+  }
+
+  @Nullable
+  public String getPrivate(@NotNull String systemIdentifier) {
+    Table t = table;
+    int entry = t.find(t.systemSlots, t.systemIds, t.size, systemIdentifier);
+    return entry < 0 ? null : t.privateIds[entry];
+  }
+
+  @Nullable
+  public String getSystem(@NotNull String privateIdentifier) {
+    Table t = table;
+    int entry = t.find(t.privateSlots, t.privateIds, t.size, privateIdentifier);
+    return entry < 0 ? null : t.systemIds[entry];
+  }
+
+  public boolean containsSystem(@NotNull String systemIdentifier) {
+    return getPrivate(systemIdentifier) != null;
+  }
+
+  public boolean containsPrivate(@NotNull String privateIdentifier) {
+    return getSystem(privateIdentifier) != null;
+  }
+
+  public int size() {
+    return table.size;
+  }
+
+  /**
+   * Map the system identifier to the private one, replacing any previous private identifier of the system identifier.
+   *
+   * @param systemIdentifier
+   * @param privateIdentifier
+   * @throws IllegalArgumentException if the private identifier is already mapped to another system identifier
+   */
+  public synchronized void put(@NotNull String systemIdentifier, @NotNull String privateIdentifier) {
+    String system = getSystem(privateIdentifier);
+    if(system != null) {
+      if(system.equals(systemIdentifier)) return;
+      throw new IllegalArgumentException(
+          "Private identifier '" + privateIdentifier + "' is already mapped to '" + system + "'");
+    }
+    doPut(systemIdentifier, privateIdentifier);
+  }
+
+  /**
+   * Add the mapping only if the private identifier is not mapped yet.
+   *
+   * @param systemIdentifier
+   * @param privateIdentifier
+   * @return false if the private identifier is already mapped
+   */
+  public synchronized boolean putIfPrivateAbsent(@NotNull String systemIdentifier, @NotNull String privateIdentifier) {
+    if(containsPrivate(privateIdentifier)) return false;
+    doPut(systemIdentifier, privateIdentifier);
+    return true;
+  }
+
+  /**
+   * Add the mappings found at the given positions of the identifiers arrays, in one pass, skipping the ones which
+   * private identifier is already mapped (including by a previous position of the batch).
+   *
+   * @param systemIdentifiers
+   * @param privateIdentifiers
+   * @param positions
+   * @return the positions that were skipped
+   */
+  public synchronized int[] putAllIfPrivateAbsent(@NotNull String[] systemIdentifiers,
+      @NotNull String[] privateIdentifiers, @NotNull int[] positions) {
+    int[] rejected = new int[positions.length];
+    int rejectedCount = 0;
+    for(int position : positions) {
+      if(containsPrivate(privateIdentifiers[position])) {
+        rejected[rejectedCount++] = position;
+      } else {
+        doPut(systemIdentifiers[position], privateIdentifiers[position]);
+      }
+    }
+    return Arrays.copyOf(rejected, rejectedCount);
+  }
+
+  /**
+   * Add the mapping only if the system identifier is not mapped yet and the private identifier is not mapped either.
+   *
+   * @param systemIdentifier
+   * @param privateIdentifier
+   * @return false if any of the identifiers is already mapped
+   */
+  public synchronized boolean putIfSystemAbsent(@NotNull String systemIdentifier, @NotNull String privateIdentifier) {
+    if(containsSystem(systemIdentifier) || containsPrivate(privateIdentifier)) return false;
+    doPut(systemIdentifier, privateIdentifier);
+    return true;
+  }
+
+  //
+  // Private methods
+  //
+
+  private void doPut(String systemIdentifier, String privateIdentifier) {
+    Table t = table;
+    int entry = t.find(t.systemSlots, t.systemIds, t.size, systemIdentifier);
+    if(entry >= 0) {
+      // replace: the private slot of the previous identifier becomes a dead link, as its entry does not match anymore
+      t.privateIds[entry] = privateIdentifier;
+      t.link(t.privateSlots, privateIdentifier, entry);
+      t.size = t.size; // publish
+      if(++t.deadLinks > t.systemIds.length / 4) table = t.copy(t.systemIds.length);
+      return;
+    }
+    if(t.size == t.systemIds.length) {
+      t = t.copy(t.systemIds.length * 2);
+      table = t;
+    }
+    entry = t.size;
+    t.systemIds[entry] = systemIdentifier;
+    t.privateIds[entry] = privateIdentifier;
+    t.link(t.systemSlots, systemIdentifier, entry);
+    t.link(t.privateSlots, privateIdentifier, entry);
+    t.size = entry + 1; // publish
+  }
+
+  /**
+   * Entries and their hash slots. Slots hold the entry number plus one, zero meaning empty.
+   */
+  private static class Table {
+
+    private final String[] systemIds;
+
+    private final String[] privateIds;
+
+    private final int[] systemSlots;
+
+    private final int[] privateSlots;
+
+    private volatile int size;
+
+    /**
+     * Count of private slots that point to an entry which private identifier was replaced.
+     */
+    private int deadLinks;
+
+    private Table(int capacity) {
+      systemIds = new String[capacity];
+      privateIds = new String[capacity];
+      // keep load factor below 0.5
+      int slots = Integer.highestOneBit(capacity - 1) << 2;
+      systemSlots = new int[slots];
+      privateSlots = new int[slots];
+    }
+
+    private int find(int[] slots, String[] ids, int limit, String identifier) {
+      int mask = slots.length - 1;
+      int idx = spread(identifier.hashCode()) & mask;
+      int slot;
+      while((slot = slots[idx]) != 0) {
+        int entry = slot - 1;
+        // entries beyond the size read are not published yet
+        if(entry < limit && identifier.equals(ids[entry])) return entry;
+        idx = (idx + 1) & mask;
+      }
+      return -1;
+    }
+
+    private void link(int[] slots, String identifier, int entry) {
+      int mask = slots.length - 1;
+      int idx = spread(identifier.hashCode()) & mask;
+      while(slots[idx] != 0) {
+        idx = (idx + 1) & mask;
+      }
+      slots[idx] = entry + 1;
+    }
+
+    private Table copy(int capacity) {
+      Table grown = new Table(capacity);
+      System.arraycopy(systemIds, 0, grown.systemIds, 0, size);
+      System.arraycopy(privateIds, 0, grown.privateIds, 0, size);
+      for(int entry = 0; entry < size; entry++) {
+        grown.link(grown.systemSlots, grown.systemIds[entry], entry);
+        grown.link(grown.privateSlots, grown.privateIds[entry], entry);
+      }
+      grown.size = size;
+      return grown;
+    }
+
+    private static int spread(int h) {
+      int x = h * 0x9E3779B9;
+      return x ^ (x >>> 16);
+    }
+  }
+
+}
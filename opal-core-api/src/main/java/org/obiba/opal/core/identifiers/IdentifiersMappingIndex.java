@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.opal.core.identifiers;
+
+import java.util.Iterator;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.validation.constraints.NotNull;
+
+import org.obiba.magma.Value;
+import org.obiba.magma.ValueSet;
+import org.obiba.magma.ValueSource;
+import org.obiba.magma.ValueTable;
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.VariableValueSource;
+import org.obiba.magma.VectorSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+
+/**
+ * In-memory index of the system (public) to private identifiers of an identifiers mapping, for a given entity type.
+ * The index is built once from the identifiers table and is then kept up to date by the writers of new mappings,
+ * so that it can be shared by all the consumers of the same identifiers mapping. Identifiers are stored in a
+ * {@link CompactIdentifiersBiMap}, lookups do not contend with each other nor with the writers.
+ */
+public class IdentifiersMappingIndex {
+
+  private static final Logger log = LoggerFactory.getLogger(IdentifiersMappingIndex.class);
+
+  private final String entityType;
+
+  private final String idMapping;
+
+  private final CompactIdentifiersBiMap systemToPrivate = new CompactIdentifiersBiMap();
+
+  private volatile boolean stale = false;
+
+  public IdentifiersMappingIndex(@NotNull String entityType, @NotNull String idMapping) {
+    this.entityType = entityType;
+    this.idMapping = idMapping;
+  }
+
+  /**
+   * Build the index by reading all the values of the identifiers mapping variable in the identifiers table.
+   *
+   * @param identifiersTable
+   * @param idMapping
+   * @return
+   */
+  public static IdentifiersMappingIndex build(@NotNull ValueTable identifiersTable, @NotNull String idMapping) {
+    IdentifiersMappingIndex index = new IdentifiersMappingIndex(identifiersTable.getEntityType(), idMapping);
+    index.load(identifiersTable);
+    return index;
+  }
+
+  public String getEntityType() {
+    return entityType;
+  }
+
+  public String getIdMapping() {
+    return idMapping;
+  }
+
+  @Nullable
+  public String getPrivateIdentifier(@NotNull String systemIdentifier) {
+    return systemToPrivate.getPrivate(systemIdentifier);
+  }
+
+  @Nullable
+  public String getSystemIdentifier(@NotNull String privateIdentifier) {
+    return systemToPrivate.getSystem(privateIdentifier);
+  }
+
+  public boolean hasSystemIdentifier(@NotNull String systemIdentifier) {
+    return systemToPrivate.containsSystem(systemIdentifier);
+  }
+
+  public boolean hasPrivateIdentifier(@NotNull String privateIdentifier) {
+    return systemToPrivate.containsPrivate(privateIdentifier);
+  }
+
+  /**
+   * Add a mapping, unless the private identifier is already mapped to another system identifier.
+   *
+   * @param systemIdentifier
+   * @param privateIdentifier
+   * @return false if the private identifier was already mapped
+   */
+  public boolean putIfPrivateAbsent(@NotNull String systemIdentifier, @NotNull String privateIdentifier) {
+    return systemToPrivate.putIfPrivateAbsent(systemIdentifier, privateIdentifier);
+  }
+
+  /**
+   * Add a batch of mappings, skipping the ones which private identifier is already mapped.
+   *
+   * @param systemIdentifiers
+   * @param privateIdentifiers
+   * @param positions the positions in the identifiers arrays to be considered
+   * @return the positions that were skipped
+   */
+  public int[] putAllIfPrivateAbsent(@NotNull String[] systemIdentifiers, @NotNull String[] privateIdentifiers,
+      @NotNull int[] positions) {
+    return systemToPrivate.putAllIfPrivateAbsent(systemIdentifiers, privateIdentifiers, positions);
+  }
+
+  /**
+   * Add a mapping, unless the system identifier or the private identifier are already mapped.
+   *
+   * @param systemIdentifier
+   * @param privateIdentifier
+   * @return false if any of the identifiers was already mapped
+   */
+  public boolean putIfSystemAbsent(@NotNull String systemIdentifier, @NotNull String privateIdentifier) {
+    return systemToPrivate.putIfSystemAbsent(systemIdentifier, privateIdentifier);
+  }
+
+  public int size() {
+    return systemToPrivate.size();
+  }
+
+  /**
+   * Flag this index as not reflecting the identifiers table anymore (e.g. when a transaction that added mappings
+   * was rolled back). A stale index is to be rebuilt by its owner.
+   */
+  public void invalidate() {
+    stale = true;
+  }
+
+  public boolean isStale() {
+    return stale;
+  }
+
+  private void load(@NotNull ValueTable identifiersTable) {
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    log.info("Building identifiers mapping index for {}:{}", entityType, idMapping);
+    VariableValueSource mappingSource = identifiersTable.getVariableValueSource(idMapping);
+    if(mappingSource.supportVectorSource()) {
+      loadFromVector(identifiersTable, mappingSource.asVectorSource());
+    } else {
+      loadFromTable(identifiersTable, mappingSource);
+    }
+    log.info("Identifiers mapping index for {}:{} built with {} entries in {}", entityType, idMapping, size(),
+        stopwatch.stop());
+  }
+
+  private void loadFromTable(@NotNull ValueTable identifiersTable, @NotNull ValueSource mappingSource) {
+    for(ValueSet valueSet : identifiersTable.getValueSets()) {
+      // OPAL-619: the value could be null, in which case the entity has no private identifier for this mapping
+      Value value = mappingSource.getValue(valueSet);
+      if(!value.isNull()) {
+        systemToPrivate.put(valueSet.getVariableEntity().getIdentifier(), value.toString());
+      }
+    }
+  }
+
+  private void loadFromVector(@NotNull ValueTable identifiersTable, @NotNull VectorSource vs) {
+    List<VariableEntity> entities = identifiersTable.getVariableEntities();
+    Iterator<Value> values = vs.getValues(entities).iterator();
+    for(VariableEntity entity : entities) {
+      Value value = values.next();
+      if(!value.isNull()) {
+        systemToPrivate.put(entity.getIdentifier(), value.toString());
+      }
+    }
+  }
+
+}
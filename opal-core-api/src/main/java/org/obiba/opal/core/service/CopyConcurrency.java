@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.opal.core.service;
+
+import java.util.Set;
+
+import javax.annotation.Nullable;
+import javax.validation.constraints.NotNull;
+
+import org.obiba.magma.Datasource;
+import org.obiba.magma.ValueTable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Parallelism settings of a copy of tables: how many tables are copied at the same time, how many value set readers
+ * per table and how many value sets can be read ahead of the writer (back-pressure). Settings that are not specified
+ * are sized according to the type of the source and destination datasources.
+ */
+public class CopyConcurrency {
+
+  private static final Logger log = LoggerFactory.getLogger(CopyConcurrency.class);
+
+  /**
+   * Destinations that support concurrent writers in different tables.
+   */
+  private static final Set<String> CONCURRENT_WRITE_TYPES = ImmutableSet.of("jdbc", "mongodb", "hibernate");
+
+  /**
+   * Sources that support concurrent value set readers.
+   */
+  private static final Set<String> CONCURRENT_READ_TYPES = ImmutableSet.of("jdbc", "mongodb", "hibernate");
+
+  private static final int MAX_CONCURRENT_TABLES = 4;
+
+  private static final int DEFAULT_READERS = 8;
+
+  private static final int DEFAULT_QUEUE_SIZE = 100;
+
+  private final Integer tables;
+
+  private final Integer readers;
+
+  private final Integer queueSize;
+
+  private CopyConcurrency(@Nullable Integer tables, @Nullable Integer readers, @Nullable Integer queueSize) {
+    this.tables = positiveOrNull(tables);
+    this.readers = positiveOrNull(readers);
+    this.queueSize = positiveOrNull(queueSize);
+  }
+
+  /**
+   * All settings are sized according to the datasources.
+   *
+   * @return
+   */
+  public static CopyConcurrency auto() {
+    return new CopyConcurrency(null, null, null);
+  }
+
+  /**
+   * Explicit settings, null or non-positive values meaning that the setting is to be sized according to the
+   * datasources.
+   *
+   * @param tables count of tables copied concurrently
+   * @param readers count of value set readers per table
+   * @param queueSize count of value sets that can be read ahead of the writer, per table
+   * @return
+   */
+  public static CopyConcurrency of(@Nullable Integer tables, @Nullable Integer readers, @Nullable Integer queueSize) {
+    return new CopyConcurrency(tables, readers, queueSize);
+  }
+
+  /**
+   * Count of tables to be copied concurrently in the destination datasource. Destinations that do not support
+   * concurrent writers (files) are always written one table at a time, whatever the requested concurrency.
+   *
+   * @param destination
+   * @param tableCount count of tables to copy
+   * @return
+   */
+  public int getTables(@NotNull Datasource destination, int tableCount) {
+    int concurrency;
+    if(!CONCURRENT_WRITE_TYPES.contains(destination.getType())) {
+      if(tables != null && tables > 1)
+        log.warn("Datasource {} of type {} does not support concurrent writes, tables are copied one at a time " +
+            "instead of {}", destination.getName(), destination.getType(), tables);
+      concurrency = 1;
+    } else {
+      concurrency = tables == null
+          ? Math.min(MAX_CONCURRENT_TABLES, Math.max(1, Runtime.getRuntime().availableProcessors() / 2))
+          : tables;
+    }
+    return Math.max(1, Math.min(concurrency, tableCount));
+  }
+
+  /**
+   * Count of value set readers of the source table.
+   *
+   * @param source
+   * @return
+   */
+  public int getReaders(@NotNull ValueTable source) {
+    if(readers != null) return readers;
+    return CONCURRENT_READ_TYPES.contains(source.getDatasource().getType())
+        ? DEFAULT_READERS
+        : Math.min(DEFAULT_READERS, Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+  }
+
+  /**
+   * Count of value sets that can be read ahead of the writer.
+   *
+   * @return
+   */
+  public int getQueueSize() {
+    return queueSize == null ? DEFAULT_QUEUE_SIZE : queueSize;
+  }
+
+  @Override
+  public String toString() {
+    return "tables=" + (tables == null ? "auto" : tables) + ", readers=" + (readers == null ? "auto" : readers) +
+        ", queueSize=" + getQueueSize();
+  }
+
+  private static Integer positiveOrNull(@Nullable Integer value) {
+    return value == null || value < 1 ? null : value;
+  }
+
+}
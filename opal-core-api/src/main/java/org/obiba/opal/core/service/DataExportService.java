@@ -51,4 +51,23 @@ public interface DataExportService {
       @NotNull Datasource destinationDatasource, @NotNull DatasourceCopier.Builder datasourceCopier,
       boolean incremental, @Nullable DatasourceCopierProgressListener progressListener) throws InterruptedException;
 
+  /**
+   * Same as {@link #exportTablesToDatasource(String, Set, Datasource, DatasourceCopier.Builder, boolean,
+   * DatasourceCopierProgressListener)} with explicit parallelism settings: independent tables can be copied
+   * concurrently, each of them in its own transaction.
+   *
+   * @param idMapping the variable name in the identifiers table
+   * @param sourceTables tables to export.
+   * @param destinationDatasource tables will be copied to this existing Datasource.
+   * @param datasourceCopier copier used to perform the copy.
+   * @param incremental if <code>true</code> the tables are exported incrementally (updates only)
+   * @param progressListener
+   * @param concurrency tables, readers and queue size settings
+   * @throws InterruptedException if the current thread was interrupted
+   */
+  void exportTablesToDatasource(@Nullable String idMapping, @NotNull Set<ValueTable> sourceTables,
+      @NotNull Datasource destinationDatasource, @NotNull DatasourceCopier.Builder datasourceCopier,
+      boolean incremental, @Nullable DatasourceCopierProgressListener progressListener,
+      @NotNull CopyConcurrency concurrency) throws InterruptedException;
+
 }
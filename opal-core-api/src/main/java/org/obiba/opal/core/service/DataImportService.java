@@ -35,6 +35,7 @@ public interface DataImportService {
    * @param idMapping
    * @param allowIdentifierGeneration unknown participant will be created at importation time
    * @param ignoreUnknownIdentifier
+   * @param resume when importing by chunks, start from the checkpoints of a previous import
    * @param progressListener
    * @throws NoSuchIdentifiersMappingException
    * @throws NonExistentVariableEntitiesException if unitName is null and the source entities do not exist as public
@@ -43,7 +44,7 @@ public interface DataImportService {
    * @throws InterruptedException if the current thread was interrupted
    */
   void importData(String sourceDatasourceName, String destinationDatasourceName, String idMapping, boolean allowIdentifierGeneration,
-      boolean ignoreUnknownIdentifier, @Nullable DatasourceCopierProgressListener progressListener)
+      boolean ignoreUnknownIdentifier, boolean resume, @Nullable DatasourceCopierProgressListener progressListener)
       throws NoSuchIdentifiersMappingException, NoSuchDatasourceException, NoSuchValueTableException,
       NonExistentVariableEntitiesException, IOException, InterruptedException;
 
@@ -55,6 +56,7 @@ public interface DataImportService {
    * @param idMapping
    * @param allowIdentifierGeneration
    * @param ignoreUnknownIdentifier
+   * @param resume
    * @param progressListener
    * @throws NoSuchIdentifiersMappingException
    * @throws NonExistentVariableEntitiesException
@@ -62,7 +64,7 @@ public interface DataImportService {
    * @throws InterruptedException
    */
   void importData(List<String> sourceTableNames, String destinationDatasourceName, String idMapping, boolean allowIdentifierGeneration,
-      boolean ignoreUnknownIdentifier, @Nullable DatasourceCopierProgressListener progressListener)
+      boolean ignoreUnknownIdentifier, boolean resume, @Nullable DatasourceCopierProgressListener progressListener)
       throws NoSuchIdentifiersMappingException, NoSuchDatasourceException, NoSuchValueTableException,
       NonExistentVariableEntitiesException, IOException, InterruptedException;
 
@@ -18,6 +18,7 @@ import org.obiba.magma.ValueTable;
 import org.obiba.magma.ValueTableWriter;
 import org.obiba.magma.Variable;
 import org.obiba.opal.core.identifiers.IdentifiersMapping;
+import org.obiba.opal.core.identifiers.IdentifiersMappingIndex;
 
 /**
  *
@@ -109,6 +110,27 @@ public interface IdentifiersTableService extends SystemService {
   @Nullable
   String getSelectScript(@NotNull String entityType, @NotNull String idMapping);
 
+  /**
+   * Get the index of the system to private identifiers for the given entity type and identifiers mapping name. The
+   * index is built on first access and then shared: writers of new mappings are expected to update it.
+   *
+   * @param entityType
+   * @param idMapping
+   * @return
+   * @throws NoSuchValueTableException
+   */
+  @NotNull
+  IdentifiersMappingIndex getIdentifiersMappingIndex(@NotNull String entityType, @NotNull String idMapping)
+      throws NoSuchValueTableException;
+
+  /**
+   * Discard the identifiers mapping indices of the given entity type, they will be rebuilt on next access. To be
+   * called whenever the identifiers table is modified by other means than the identifiers mapping index writers.
+   *
+   * @param entityType
+   */
+  void invalidateIdentifiersMappingIndex(@NotNull String entityType);
+
   /**
    * Get the table reference as specified by property <code>org.obiba.opal.keys.tableReference</code>.
    *
@@ -131,4 +153,12 @@ public interface IdentifiersTableService extends SystemService {
    */
   boolean hasEntities();
 
+  /**
+   * Get the count of identifiers mappings written at once when identifiers are generated, as specified by property
+   * <code>org.obiba.opal.identifiers.batchSize</code>.
+   *
+   * @return
+   */
+  int getIdentifiersBatchSize();
+
 }
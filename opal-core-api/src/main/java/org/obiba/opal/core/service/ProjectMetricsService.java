@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.core.service;
+
+import org.obiba.magma.ValueTable;
+import org.obiba.opal.core.domain.Project;
+import org.obiba.opal.core.domain.ProjectMetrics;
+import org.obiba.opal.core.domain.TableMetrics;
+
+/**
+ * Catalog of the metrics of the projects' tables, kept in memory and updated when the tables are modified.
+ */
+public interface ProjectMetricsService {
+
+  /**
+   * Sum up the metrics of all the project's tables, regardless of the permissions of the current user.
+   *
+   * @param project
+   * @return
+   */
+  ProjectMetrics getProjectMetrics(Project project);
+
+  /**
+   * Get the metrics of a table, read from the table if they are not in the catalog.
+   *
+   * @param table
+   * @return
+   */
+  TableMetrics getTableMetrics(ValueTable table);
+
+}
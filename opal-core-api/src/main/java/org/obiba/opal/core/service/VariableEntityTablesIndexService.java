@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.core.service;
+
+import org.obiba.magma.ValueTable;
+import org.obiba.magma.VariableEntity;
+
+/**
+ * Index of the entities of each table, for finding the tables in which an entity has values without probing them.
+ */
+public interface VariableEntityTablesIndexService {
+
+  /**
+   * Check whether the table has a value set for the entity. The table's entities are read and indexed on first
+   * lookup, or when the table has changed since it was indexed.
+   *
+   * @param table
+   * @param entity
+   * @return
+   */
+  boolean hasValueSet(ValueTable table, VariableEntity entity);
+
+}
@@ -11,6 +11,8 @@ package org.obiba.opal.core.service;
 
 import javax.validation.constraints.NotNull;
 
+import org.obiba.magma.ValueTable;
+import org.obiba.magma.Variable;
 import org.obiba.magma.math.summary.VariableSummary;
 import org.obiba.magma.math.summary.VariableSummaryFactory;
 import org.obiba.opal.spi.search.VariableSummaryHandler;
@@ -29,4 +31,14 @@ public interface VariableSummaryService extends VariableSummaryHandler {
       TVariableSummaryFactory extends VariableSummaryFactory<TVariableSummary>> boolean isSummaryCached(
       @NotNull VariableSummaryFactory<TVariableSummary> summaryFactory);
 
+  /**
+   * Compute and cache the default summaries of the variables in one scan of the table. Concurrent requests for the
+   * same table and variables share the same scan. The summaries cannot be computed by parts and merged (the summary
+   * builders are not mergeable): after the table is updated, the scan is done again over all its value sets.
+   *
+   * @param table
+   * @param variables
+   */
+  void computeSummaries(@NotNull ValueTable table, @NotNull Iterable<Variable> variables);
+
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.opal.core.identifiers;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class CompactIdentifiersBiMapTest {
+
+  @Test
+  public void test_put_lookupsInBothDirections() {
+    CompactIdentifiersBiMap map = new CompactIdentifiersBiMap();
+    map.put("1", "private-1");
+    assertThat(map.getPrivate("1")).isEqualTo("private-1");
+    assertThat(map.getSystem("private-1")).isEqualTo("1");
+    assertThat(map.getPrivate("2")).isNull();
+    assertThat(map.getSystem("private-2")).isNull();
+    assertThat(map.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void test_put_growsBeyondInitialCapacity() {
+    CompactIdentifiersBiMap map = new CompactIdentifiersBiMap(16);
+    for(int i = 0; i < 10000; i++) {
+      map.put("" + i, "private-" + i);
+    }
+    assertThat(map.size()).isEqualTo(10000);
+    for(int i = 0; i < 10000; i++) {
+      assertThat(map.getPrivate("" + i)).isEqualTo("private-" + i);
+      assertThat(map.getSystem("private-" + i)).isEqualTo("" + i);
+    }
+  }
+
+  @Test
+  public void test_put_replacesPrivateIdentifier() {
+    CompactIdentifiersBiMap map = new CompactIdentifiersBiMap(16);
+    map.put("1", "private-1");
+    // enough replacements to trigger the cleanup of the dead links
+    for(int i = 0; i < 100; i++) {
+      map.put("1", "private-1-" + i);
+    }
+    assertThat(map.size()).isEqualTo(1);
+    assertThat(map.getPrivate("1")).isEqualTo("private-1-99");
+    assertThat(map.getSystem("private-1-99")).isEqualTo("1");
+    assertThat(map.containsPrivate("private-1")).isFalse();
+    assertThat(map.containsPrivate("private-1-50")).isFalse();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_put_rejectsPrivateIdentifierOfAnotherSystemIdentifier() {
+    CompactIdentifiersBiMap map = new CompactIdentifiersBiMap();
+    map.put("1", "private-1");
+    map.put("2", "private-1");
+  }
+
+  @Test
+  public void test_putIfAbsent() {
+    CompactIdentifiersBiMap map = new CompactIdentifiersBiMap();
+    assertThat(map.putIfPrivateAbsent("1", "private-1")).isTrue();
+    assertThat(map.putIfPrivateAbsent("2", "private-1")).isFalse();
+    assertThat(map.putIfSystemAbsent("1", "private-2")).isFalse();
+    assertThat(map.putIfSystemAbsent("2", "private-1")).isFalse();
+    assertThat(map.putIfSystemAbsent("2", "private-2")).isTrue();
+    assertThat(map.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void test_putAllIfPrivateAbsent_returnsCollisions() {
+    CompactIdentifiersBiMap map = new CompactIdentifiersBiMap();
+    map.put("0", "private-x");
+    String[] systemIdentifiers = { "1", "2", "3", "4" };
+    String[] privateIdentifiers = { "private-x", "private-2", "private-2", "private-4" };
+    int[] rejected = map.putAllIfPrivateAbsent(systemIdentifiers, privateIdentifiers, new int[] { 0, 1, 2, 3 });
+    assertThat(rejected).isEqualTo(new int[] { 0, 2 });
+    assertThat(map.getPrivate("2")).isEqualTo("private-2");
+    assertThat(map.getPrivate("4")).isEqualTo("private-4");
+    assertThat(map.containsSystem("3")).isFalse();
+    assertThat(map.size()).isEqualTo(3);
+  }
+
+  @Test
+  public void test_concurrentReadsDuringWrites() throws InterruptedException {
+    CompactIdentifiersBiMap map = new CompactIdentifiersBiMap(16);
+    Thread writer = new Thread(() -> {
+      for(int i = 0; i < 50000; i++) {
+        map.put("" + i, "private-" + i);
+      }
+    });
+    writer.start();
+    int found = 0;
+    while(writer.isAlive() || found < 50000) {
+      found = map.size();
+      for(int i = 0; i < found; i++) {
+        // whatever the snapshot, a published entry is always found
+        assertThat(map.getPrivate("" + i)).isEqualTo("private-" + i);
+      }
+      if(found == 50000) break;
+    }
+    writer.join();
+    assertThat(map.size()).isEqualTo(50000);
+  }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.opal.core.identifiers;
+
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.obiba.magma.Datasource;
+import org.obiba.magma.MagmaEngine;
+import org.obiba.magma.support.StaticValueTable;
+import org.obiba.magma.type.TextType;
+
+import com.google.common.collect.ImmutableSet;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class IdentifiersMappingIndexTest {
+
+  private StaticValueTable keysTable;
+
+  @Before
+  public void setupKeysTable() {
+    MagmaEngine.get();
+
+    // id,keys-variable
+    // 1,private-1
+    // 2,private-2
+    // 3,
+    keysTable = new StaticValueTable(EasyMock.createMock(Datasource.class), "keys-table",
+        ImmutableSet.of("1", "2", "3"));
+    keysTable.addVariables(TextType.get(), "keys-variable");
+    for(int i = 1; i < 3; i++) {
+      keysTable.addValues("" + i, "keys-variable", "private-" + i);
+    }
+  }
+
+  @After
+  public void stopYourEngine() {
+    MagmaEngine.get().shutdown();
+  }
+
+  @Test
+  public void test_build_skipsNullPrivateIdentifiers() {
+    IdentifiersMappingIndex index = IdentifiersMappingIndex.build(keysTable, "keys-variable");
+    assertThat(index.size()).isEqualTo(2);
+    assertThat(index.getPrivateIdentifier("1")).isEqualTo("private-1");
+    assertThat(index.getSystemIdentifier("private-2")).isEqualTo("2");
+    assertThat(index.hasSystemIdentifier("3")).isFalse();
+  }
+
+  @Test
+  public void test_putIfPrivateAbsent_rejectsMappedPrivateIdentifier() {
+    IdentifiersMappingIndex index = IdentifiersMappingIndex.build(keysTable, "keys-variable");
+    assertThat(index.putIfPrivateAbsent("3", "private-1")).isFalse();
+    assertThat(index.putIfPrivateAbsent("3", "private-3")).isTrue();
+    assertThat(index.getSystemIdentifier("private-3")).isEqualTo("3");
+  }
+
+  @Test
+  public void test_putIfSystemAbsent_rejectsMappedSystemIdentifier() {
+    IdentifiersMappingIndex index = IdentifiersMappingIndex.build(keysTable, "keys-variable");
+    assertThat(index.putIfSystemAbsent("1", "private-x")).isFalse();
+    assertThat(index.putIfSystemAbsent("4", "private-4")).isTrue();
+    assertThat(index.getPrivateIdentifier("4")).isEqualTo("private-4");
+  }
+
+  @Test
+  public void test_invalidate_flagsIndexAsStale() {
+    IdentifiersMappingIndex index = IdentifiersMappingIndex.build(keysTable, "keys-variable");
+    assertThat(index.isStale()).isFalse();
+    index.invalidate();
+    assertThat(index.isStale()).isTrue();
+  }
+
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.opal.core.service;
+
+import org.junit.Test;
+import org.obiba.magma.Datasource;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class CopyConcurrencyTest {
+
+  @Test
+  public void test_tables_fileDestinationIsNotConcurrent() {
+    for(String type : new String[] { "csv", "excel", "fs", "spss" }) {
+      assertThat(CopyConcurrency.auto().getTables(datasource(type), 10)).isEqualTo(1);
+      assertThat(CopyConcurrency.of(4, null, null).getTables(datasource(type), 10)).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void test_tables_databaseDestination() {
+    assertThat(CopyConcurrency.of(4, null, null).getTables(datasource("jdbc"), 10)).isEqualTo(4);
+    assertThat(CopyConcurrency.of(4, null, null).getTables(datasource("mongodb"), 2)).isEqualTo(2);
+    assertThat(CopyConcurrency.of(0, null, null).getTables(datasource("hibernate"), 10)).isGreaterThanOrEqualTo(1);
+    assertThat(CopyConcurrency.auto().getTables(datasource("jdbc"), 10)).isLessThanOrEqualTo(4);
+  }
+
+  @Test
+  public void test_tables_noTable() {
+    assertThat(CopyConcurrency.of(4, null, null).getTables(datasource("jdbc"), 0)).isEqualTo(1);
+  }
+
+  private static Datasource datasource(String type) {
+    Datasource datasource = createNiceMock(Datasource.class);
+    expect(datasource.getType()).andStubReturn(type);
+    expect(datasource.getName()).andStubReturn("ds");
+    replay(datasource);
+    return datasource;
+  }
+
+}
@@ -58,8 +58,10 @@ public class FilesPermissionConverter extends OpalPermissionConverter {
       Iterable<String> convert(String node) {
         String[] args = args(node, "/files/(.+)");
         return args.length == 0
-            ? Lists.newArrayList(toRest("/files", "GET:GET/*"), toRest("/files", "POST:GET/*"))
-            : Lists.newArrayList(toRest("/files/{0}", "GET:GET/*", args), toRest("/files/{0}", "POST:GET/*", args));
+            ? Lists.newArrayList(toRest("/files", "GET:GET/*"), toRest("/files", "HEAD:GET/*"),
+            toRest("/files", "POST:GET/*"), toRest("/files", "PUT:GET/*"))
+            : Lists.newArrayList(toRest("/files/{0}", "GET:GET/*", args), toRest("/files/{0}", "HEAD:GET/*", args),
+            toRest("/files/{0}", "POST:GET/*", args), toRest("/files/{0}", "PUT:GET/*", args));
       }
     },
     /**
@@ -70,8 +72,8 @@ public class FilesPermissionConverter extends OpalPermissionConverter {
       Iterable<String> convert(String node) {
         String[] args = args(node, "/files/(.+)");
         return args.length == 0
-            ? Lists.newArrayList(toRest("/files", "GET:GET/GET"))
-            : Lists.newArrayList(toRest("/files/{0}", "GET:GET/GET", args));
+            ? Lists.newArrayList(toRest("/files", "GET:GET/GET"), toRest("/files", "HEAD:GET/GET"))
+            : Lists.newArrayList(toRest("/files/{0}", "GET:GET/GET", args), toRest("/files/{0}", "HEAD:GET/GET", args));
       }
 
     };
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.opal.web;
+
+import com.google.common.base.Strings;
+
+import javax.annotation.Nullable;
+
+/**
+ * A single range of bytes, as expressed by the HTTP headers Range (download) and Content-Range (upload).
+ */
+class ByteRange {
+
+  static final String BYTES_UNIT = "bytes";
+
+  private final long start;
+
+  private final long end;
+
+  private final long total;
+
+  private ByteRange(long start, long end, long total) {
+    this.start = start;
+    this.end = end;
+    this.total = total;
+  }
+
+  /**
+   * Parse a Range header value, for instance "bytes=0-499", "bytes=500-" or "bytes=-500" (the last 500 bytes).
+   *
+   * @param header
+   * @param length length of the content
+   * @return null if the header is missing, malformed or requires several ranges: the whole content is to be sent
+   */
+  @Nullable
+  static ByteRange parseRange(@Nullable String header, long length) {
+    if (Strings.isNullOrEmpty(header) || !header.startsWith(BYTES_UNIT + "=") || length == 0) return null;
+    String spec = header.substring(BYTES_UNIT.length() + 1).trim();
+    if (spec.contains(",")) return null;
+    int sep = spec.indexOf('-');
+    if (sep < 0) return null;
+    try {
+      String first = spec.substring(0, sep).trim();
+      String last = spec.substring(sep + 1).trim();
+      if (first.isEmpty()) {
+        // suffix range
+        if (last.isEmpty()) return null;
+        long suffix = Long.parseLong(last);
+        if (suffix <= 0) return new ByteRange(length, length - 1, length);
+        return new ByteRange(Math.max(0, length - suffix), length - 1, length);
+      }
+      long start = Long.parseLong(first);
+      long end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+      if (end < start && start < length) return null;
+      return new ByteRange(start, end, length);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Parse a Content-Range header value, for instance "bytes 0-999/5000" or "bytes 0-999/*" when the total length
+   * is not known yet.
+   *
+   * @param header
+   * @return null if the header is missing
+   * @throws IllegalArgumentException if the header is malformed
+   */
+  @Nullable
+  static ByteRange parseContentRange(@Nullable String header) {
+    if (Strings.isNullOrEmpty(header)) return null;
+    if (!header.startsWith(BYTES_UNIT + " ")) throw new IllegalArgumentException("Unsupported content range unit: " + header);
+    String spec = header.substring(BYTES_UNIT.length() + 1).trim();
+    int sep = spec.indexOf('-');
+    int slash = spec.indexOf('/');
+    if (sep < 0 || slash < sep) throw new IllegalArgumentException("Malformed content range: " + header);
+    try {
+      long start = Long.parseLong(spec.substring(0, sep).trim());
+      long end = Long.parseLong(spec.substring(sep + 1, slash).trim());
+      String totalStr = spec.substring(slash + 1).trim();
+      long total = "*".equals(totalStr) ? -1 : Long.parseLong(totalStr);
+      if (start < 0 || end < start || (total >= 0 && end >= total))
+        throw new IllegalArgumentException("Invalid content range: " + header);
+      return new ByteRange(start, end, total);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Malformed content range: " + header);
+    }
+  }
+
+  long getStart() {
+    return start;
+  }
+
+  long getEnd() {
+    return end;
+  }
+
+  /**
+   * @return total length of the content, negative if not known
+   */
+  long getTotal() {
+    return total;
+  }
+
+  long getLength() {
+    return end - start + 1;
+  }
+
+  /**
+   * Whether the range overlaps the content.
+   *
+   * @return
+   */
+  boolean isSatisfiable() {
+    return start < total && end >= start;
+  }
+
+  /**
+   * @return the Content-Range header value of the range
+   */
+  String toContentRange() {
+    return BYTES_UNIT + " " + start + "-" + end + "/" + (total < 0 ? "*" : total);
+  }
+
+  /**
+   * @param length
+   * @return the Content-Range header value of a response to an unsatisfiable range
+   */
+  static String toUnsatisfiedContentRange(long length) {
+    return BYTES_UNIT + " */" + length;
+  }
+
+}
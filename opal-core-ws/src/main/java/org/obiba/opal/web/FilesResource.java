@@ -11,6 +11,12 @@ package org.obiba.opal.web;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import net.lingala.zip4j.io.outputstream.ZipOutputStream;
+import net.lingala.zip4j.model.ZipParameters;
+import net.lingala.zip4j.model.enums.AesKeyStrength;
+import net.lingala.zip4j.model.enums.CompressionMethod;
+import net.lingala.zip4j.model.enums.EncryptionMethod;
 import org.apache.commons.fileupload.FileItem;
 import org.apache.commons.fileupload.FileItemFactory;
 import org.apache.commons.fileupload.FileUploadException;
@@ -20,7 +26,7 @@ import org.apache.commons.vfs2.*;
 import org.apache.shiro.SecurityUtils;
 import org.codehaus.jettison.json.JSONArray;
 import org.jboss.resteasy.annotations.cache.Cache;
-import org.obiba.core.util.StreamUtil;
+import org.jboss.resteasy.util.DateUtil;
 import org.obiba.opal.core.domain.security.SubjectAcl;
 import org.obiba.opal.core.runtime.OpalRuntime;
 import org.obiba.opal.core.security.OpalPermissions;
@@ -40,16 +46,23 @@ import javax.annotation.Nullable;
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
 import java.io.*;
 import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
-import java.text.SimpleDateFormat;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 @Component
@@ -62,9 +75,17 @@ public class FilesResource {
 
   private SubjectAclService subjectAclService;
 
-  private final MimetypesFileTypeMap mimeTypes = new MimetypesFileTypeMap();
+  private PartialUploadService partialUploadService;
+
+  private static final String ACCEPT_RANGES = "Accept-Ranges";
+
+  private static final String CONTENT_RANGE = "Content-Range";
+
+  private static final String UPLOAD_OFFSET = "Upload-Offset";
 
-  private final SimpleDateFormat dateTimeFormatter = new SimpleDateFormat("yyyyMMdd_HHmmss");
+  private static final int REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+
+  private final MimetypesFileTypeMap mimeTypes = new MimetypesFileTypeMap();
 
   @Autowired
   public void setOpalRuntime(OpalRuntime opalRuntime) {
@@ -76,6 +97,11 @@ public class FilesResource {
     this.subjectAclService = subjectAclService;
   }
 
+  @Autowired
+  public void setPartialUploadService(PartialUploadService partialUploadService) {
+    this.partialUploadService = partialUploadService;
+  }
+
   @GET
   @Path("/_meta")
   @NoAuthorization
@@ -97,7 +123,7 @@ public class FilesResource {
   @Path("/")
   @AuthenticatedByCookie
   public Response getFileSystemRoot(@HeaderParam("X-File-Key") String password) throws IOException {
-    return getFile("/", null, password);
+    return getFile("/", null, password, null, null);
   }
 
 
@@ -106,24 +132,59 @@ public class FilesResource {
   @AuthenticatedByCookie
   public Response getFileFromForm(@PathParam("path") String path, @QueryParam("file") List<String> children,
                                   @Nullable @FormParam("key") String fileKey) throws IOException {
-    return getFileInternal(path, children, fileKey);
+    return getFileInternal(path, children, fileKey, null, null);
   }
 
   @GET
   @Path("/{path:.*}")
   @AuthenticatedByCookie
-  public Response getFile(@PathParam("path") String path, @QueryParam("file") List<String> children, @HeaderParam("X-File-Key") String fileKey)
+  public Response getFile(@PathParam("path") String path, @QueryParam("file") List<String> children, @HeaderParam("X-File-Key") String fileKey,
+                          @Context Request request, @Context HttpHeaders headers)
       throws IOException {
-    return getFileInternal(path, children, fileKey);
+    return getFileInternal(path, children, fileKey, request, headers);
+  }
+
+  /**
+   * Get the validators of a file (ETag, Last-Modified, Content-Length) and the count of bytes already received by a
+   * resumable upload to this path, if any.
+   *
+   * @param path
+   * @return
+   * @throws IOException
+   */
+  @HEAD
+  @Path("/{path:.*}")
+  @AuthenticatedByCookie
+  public Response getFileHead(@PathParam("path") String path) throws IOException {
+    FileObject file = resolveFileInFileSystem(path);
+    long received = partialUploadService.getReceivedSize(file);
+    Response.ResponseBuilder builder;
+    if (file.exists()) {
+      builder = Response.ok();
+      if (file.getType() == FileType.FILE) {
+        File localFile = opalRuntime.getFileSystem().getLocalFile(file);
+        builder.header(ACCEPT_RANGES, ByteRange.BYTES_UNIT)
+            .header(HttpHeaders.CONTENT_LENGTH, localFile.length())
+            .lastModified(getLastModified(localFile))
+            .tag(getEntityTag(localFile));
+      }
+    } else if (received >= 0) {
+      builder = Response.noContent();
+    } else {
+      return getPathNotExistResponse(path);
+    }
+    if (received >= 0) builder.header(UPLOAD_OFFSET, received);
+    return builder.build();
   }
 
-  private Response getFileInternal(String path, List<String> children, String fileKey) throws IOException {
+  private Response getFileInternal(String path, List<String> children, String fileKey, @Nullable Request request,
+                                   @Nullable HttpHeaders headers) throws IOException {
     if (!Strings.isNullOrEmpty(fileKey) && fileKey.length() < 8) {
       return Response.status(Status.BAD_REQUEST).entity("The file key is too short (minimum 8 characters).").build();
     }
     FileObject file = resolveFileInFileSystem(path);
     return file.exists()
-        ? file.getType() == FileType.FILE ? getFile(file, fileKey) : getFolder(file, children, fileKey)
+        ? file.getType() == FileType.FILE ? getFile(file, fileKey, request, headers) : getFolder(file, children, fileKey)
         : getPathNotExistResponse(path);
   }
 
@@ -319,6 +380,83 @@ public class FilesResource {
     return doUploadFiles(folderPath, folder, uploadedFiles, uriInfo);
   }
 
+  /**
+   * Resumable upload of a file, chunk by chunk. Each chunk is the body of a request with a Content-Range header
+   * (for instance "bytes 0-8388607/1073741824") and must start where the previous one ended: the count of bytes
+   * already received is returned in the Upload-Offset header of the response, and can be queried with a HEAD request
+   * to resume an interrupted upload. The file is moved to its destination when its last chunk is received. A request
+   * without Content-Range is a single chunk upload of the whole file. A chunk starting at 0 discards any upload to this
+   * path that was not completed, and so does a DELETE request.
+   *
+   * @param path         path of the file to write
+   * @param contentRange
+   * @param body
+   * @param uriInfo
+   * @return
+   * @throws IOException
+   */
+  @PUT
+  @Path("/{path:.*}")
+  @Consumes(MediaType.APPLICATION_OCTET_STREAM)
+  @AuthenticatedByCookie
+  public Response uploadFileChunk(@PathParam("path") String path, @HeaderParam("Content-Range") String contentRange,
+                                  InputStream body, @Context UriInfo uriInfo) throws IOException {
+    ByteRange range;
+    try {
+      range = ByteRange.parseContentRange(contentRange);
+    } catch (IllegalArgumentException e) {
+      return Response.status(Status.BAD_REQUEST).entity(e.getMessage()).build();
+    }
+
+    FileObject file = resolveFileInFileSystem(path);
+    FileObject folder = file.getParent();
+    String fileName = file.getName().getBaseName();
+    // #3275 make sure file name is valid
+    if (folder == null || Strings.isNullOrEmpty(fileName) || path.endsWith("/"))
+      return Response.status(Status.BAD_REQUEST).entity("Not a valid file name.").build();
+    Response folderResponse = validateFolder(folder, folder.getName().getPath());
+    if (folderResponse != null) return folderResponse;
+    if (file.exists() && file.getType() != FileType.FILE)
+      return Response.status(Status.BAD_REQUEST).entity("Not a file: " + path).build();
+    if (file.exists() ? !file.isWriteable() : !folder.isWriteable())
+      return Response.status(Status.FORBIDDEN).entity("File is not writable: " + path).build();
+
+    if (!partialUploadService.acquire(file))
+      return Response.status(Status.CONFLICT).entity("File is being uploaded: " + path).build();
+    long received;
+    boolean overwrite;
+    try {
+      FileObject partial = partialUploadService.getPartialUpload(file);
+      long offset = range == null ? 0 : range.getStart();
+      // a new upload discards the one that was not completed, chunks must be contiguous
+      long size = partial.exists() ? partial.getContent().getSize() : 0;
+      if (offset != 0 && offset != size)
+        return Response.status(Status.CONFLICT).header(UPLOAD_OFFSET, size).build();
+      long count = range == null ? Long.MAX_VALUE : range.getLength();
+      long written;
+      try (OutputStream out = partial.getContent().getOutputStream(offset != 0)) {
+        written = ByteStreams.copy(ByteStreams.limit(body, count), out);
+      }
+      received = offset + written;
+      if (range != null && written != count)
+        return Response.status(Status.BAD_REQUEST).header(UPLOAD_OFFSET, received)
+            .entity("Incomplete chunk: " + written + " bytes received out of " + count).build();
+      if (range != null && (range.getTotal() < 0 || received < range.getTotal()))
+        return Response.status(Status.ACCEPTED).header(UPLOAD_OFFSET, received).build();
+
+      overwrite = file.exists();
+      partial.moveTo(file);
+    } finally {
+      partialUploadService.release(file);
+    }
+    log.info("The following file was uploaded to Opal file system : {}", file.getURL());
+    if (!overwrite) {
+      URI fileUri = uriInfo.getBaseUriBuilder().path(FilesResource.class).path(path).build();
+      addFilePermissions(fileUri);
+    }
+    return Response.ok().header(UPLOAD_OFFSET, received).build();
+  }
+
   private Response doUploadFiles(String folderPath, FileObject folder, List<FileItem> uploadedFiles, UriInfo uriInfo)
       throws FileSystemException {
 
@@ -340,16 +478,20 @@ public class FilesResource {
 
       if (!overwrite) {
         URI fileUri = uriInfo.getBaseUriBuilder().path(FilesResource.class).path(folderPath).path(fileName).build();
-        OpalPermissions perms = new OpalPermissions(fileUri, AclAction.FILES_ALL);
-        subjectAclService.addSubjectPermission(perms.getDomain(), perms.getNode(),
-            SubjectAcl.SubjectType.USER.subjectFor(SecurityUtils.getSubject().getPrincipal().toString()),
-            AclAction.FILES_ALL.name());
+        addFilePermissions(fileUri);
       }
     }
 
     return Response.ok().build();
   }
 
+  private void addFilePermissions(URI fileUri) {
+    OpalPermissions perms = new OpalPermissions(fileUri, AclAction.FILES_ALL);
+    subjectAclService.addSubjectPermission(perms.getDomain(), perms.getNode(),
+        SubjectAcl.SubjectType.USER.subjectFor(SecurityUtils.getSubject().getPrincipal().toString()),
+        AclAction.FILES_ALL.name());
+  }
+
   @POST
   @Path("/")
   @Consumes("text/plain")
@@ -423,8 +565,11 @@ public class FilesResource {
   public Response deleteFile(@PathParam("path") String path) throws IOException {
     FileObject file = resolveFileInFileSystem(path);
 
-    // File or folder does not exist.
+    // File or folder does not exist, an upload to this path can be cancelled.
     if (!file.exists()) {
+      if (partialUploadService.discard(file)) {
+        return Response.ok("The following upload has been cancelled : " + path).build();
+      }
       return getPathNotExistResponse(path);
     }
 
@@ -438,6 +583,7 @@ public class FilesResource {
         deleteFolder(file);
       } else {
         file.delete();
+        partialUploadService.discard(file);
       }
       subjectAclService.deleteNodePermissions("/files/" + path);
       return Response.ok("The following file or folder has been deleted : " + path).build();
@@ -531,61 +677,180 @@ public class FilesResource {
     return root.resolveFile(path);
   }
 
-  private Response getFile(FileObject file, String key) throws IOException {
+  private Response getFile(FileObject file, String key, @Nullable Request request, @Nullable HttpHeaders headers)
+      throws IOException {
     final File localFile = opalRuntime.getFileSystem().getLocalFile(file);
     String fileName = Strings.isNullOrEmpty(key) ? localFile.getName() : localFile.getName() + ".zip";
     String mimeType = mimeTypes.getContentType(fileName);
 
+    if (!Strings.isNullOrEmpty(key)) {
+      // if file key is provided, file is encrypted in a zip, written on the fly
+      StreamingOutput stream = os -> {
+        try (ZipOutputStream zos = new ZipOutputStream(os, key.toCharArray())) {
+          putZipEntry(zos, localFile, localFile.getName(), key);
+        }
+      };
+      return Response.ok(stream, mimeType)
+          .header("Content-Disposition", getContentDispositionOfAttachment(fileName)).build();
+    }
+
+    long length = localFile.length();
+    Date lastModified = getLastModified(localFile);
+    EntityTag eTag = getEntityTag(localFile);
+    if (request != null) {
+      Response.ResponseBuilder builder = request.evaluatePreconditions(lastModified, eTag);
+      if (builder != null) return builder.tag(eTag).lastModified(lastModified).build();
+    }
+
+    ByteRange range = null;
+    if (headers != null && isIfRangeSatisfied(headers.getHeaderString("If-Range"), lastModified, eTag))
+      range = ByteRange.parseRange(headers.getHeaderString("Range"), length);
+    if (range != null && !range.isSatisfiable()) {
+      return Response.status(REQUESTED_RANGE_NOT_SATISFIABLE)
+          .header(CONTENT_RANGE, ByteRange.toUnsatisfiedContentRange(length)).build();
+    }
+
+    long start = range == null ? 0 : range.getStart();
+    long count = range == null ? length : range.getLength();
     StreamingOutput stream = os -> {
-      File output = localFile;
-      // if file key is provided, file is encrypted in a zip
-      if (!Strings.isNullOrEmpty(key)) {
-        File tmpDir = new File(System.getProperty("java.io.tmpdir"), "opal-" + dateTimeFormatter.format(System.currentTimeMillis()));
-        tmpDir.mkdirs();
-        output = org.obiba.core.util.FileUtil.zip(localFile, new File(tmpDir, localFile.getName() + ".zip"), key);
-      }
-      Files.copy(output.toPath(), os);
-      if (!Strings.isNullOrEmpty(key)) {
-        output.getParentFile().delete();
+      try (FileChannel channel = FileChannel.open(localFile.toPath(), StandardOpenOption.READ)) {
+        WritableByteChannel target = Channels.newChannel(os);
+        long position = start;
+        long remaining = count;
+        while (remaining > 0) {
+          long transferred = channel.transferTo(position, remaining, target);
+          if (transferred <= 0) break;
+          position += transferred;
+          remaining -= transferred;
+        }
       }
     };
 
-    return Response.ok(stream, mimeType)
+    Response.ResponseBuilder builder = range == null ? Response.ok(stream, mimeType)
+        : Response.status(Status.PARTIAL_CONTENT).entity(stream).type(mimeType)
+        .header(CONTENT_RANGE, range.toContentRange());
+    return builder.header(ACCEPT_RANGES, ByteRange.BYTES_UNIT)
+        .header(HttpHeaders.CONTENT_LENGTH, count)
+        .lastModified(lastModified)
+        .tag(eTag)
         .header("Content-Disposition", getContentDispositionOfAttachment(fileName)).build();
   }
 
+  /**
+   * HTTP dates are precise to the second.
+   *
+   * @param localFile
+   * @return
+   */
+  private Date getLastModified(File localFile) {
+    return new Date(localFile.lastModified() / 1000 * 1000);
+  }
+
+  private EntityTag getEntityTag(File localFile) {
+    return new EntityTag(Long.toHexString(localFile.lastModified()) + "-" + Long.toHexString(localFile.length()));
+  }
+
+  /**
+   * A range is to be sent only if the client's copy of the file is still the current one.
+   *
+   * @param ifRange
+   * @param lastModified
+   * @param eTag
+   * @return
+   */
+  private boolean isIfRangeSatisfied(@Nullable String ifRange, Date lastModified, EntityTag eTag) {
+    if (Strings.isNullOrEmpty(ifRange)) return true;
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) return ifRange.equals(eTag.toString());
+    try {
+      return lastModified.equals(DateUtil.parseDate(ifRange));
+    } catch (DateUtil.DateParseException e) {
+      return false;
+    }
+  }
+
   private Response getFolder(FileObject folder, Collection<String> children, String key) throws IOException {
     final File localFolder = opalRuntime.getFileSystem().getLocalFile(folder);
     final String fileName = localFolder.getName() + ".zip";
     String mimeType = mimeTypes.getContentType(fileName);
 
+    FileFilter filter = pathname -> {
+      // check read access
+      try {
+        FileObject fileObject = resolveFileInFileSystem(pathname);
+        if (!fileObject.isReadable()) return false;
+      } catch (FileSystemException e) {
+        return false;
+      }
+      // check first level filter
+      if (children == null || children.isEmpty()) return true;
+      if (pathname.getParentFile().equals(localFolder)) {
+        return children.contains(pathname.getName());
+      }
+      // anything else is ok
+      return true;
+    };
+
+    // the zip is written on the fly in the response, (encrypted) entry by entry
     StreamingOutput stream = os -> {
-      File tmpDir = new File(System.getProperty("java.io.tmpdir"), "opal-" + dateTimeFormatter.format(System.currentTimeMillis()));
-      tmpDir.mkdirs();
-      File output = org.obiba.core.util.FileUtil.zip(localFolder, pathname -> {
-        // check read access
-        try {
-          FileObject fileObject = resolveFileInFileSystem(pathname);
-          if (!fileObject.isReadable()) return false;
-        } catch (FileSystemException e) {
-          return false;
-        }
-        // check first level filter
-        if (children == null || children.isEmpty()) return true;
-        if (pathname.getParentFile().equals(localFolder)) {
-          return children.contains(pathname.getName());
-        }
-        // anything else is ok
-        return true;
-      }, new File(tmpDir, fileName), key);
-      Files.copy(output.toPath(), os);
-      tmpDir.delete();
+      try (ZipOutputStream zos = new ZipOutputStream(os, Strings.isNullOrEmpty(key) ? null : key.toCharArray())) {
+        zipFolder(zos, localFolder, localFolder.getName() + "/", filter, key);
+      }
     };
 
     return Response.ok(stream, mimeType)
         .header("Content-Disposition", getContentDispositionOfAttachment(fileName)).build();
   }
 
+  /**
+   * Write the readable files of a folder and of its sub-folders in the zip stream.
+   *
+   * @param zos
+   * @param folder
+   * @param prefix path of the folder in the zip
+   * @param filter
+   * @param key    encryption key, optional
+   * @throws IOException
+   */
+  private void zipFolder(ZipOutputStream zos, File folder, String prefix, FileFilter filter, String key)
+      throws IOException {
+    File[] files = folder.listFiles(filter);
+    if (files == null) return;
+    Arrays.sort(files);
+    if (files.length == 0) {
+      // keep empty folders
+      zos.putNextEntry(newZipParameters(prefix, null));
+      zos.closeEntry();
+      return;
+    }
+    for (File file : files) {
+      if (file.isDirectory()) {
+        zipFolder(zos, file, prefix + file.getName() + "/", filter, key);
+      } else {
+        putZipEntry(zos, file, prefix + file.getName(), key);
+      }
+    }
+  }
+
+  private void putZipEntry(ZipOutputStream zos, File file, String entryName, String key) throws IOException {
+    ZipParameters parameters = newZipParameters(entryName, key);
+    parameters.setLastModifiedFileTime(file.lastModified());
+    zos.putNextEntry(parameters);
+    Files.copy(file.toPath(), zos);
+    zos.closeEntry();
+  }
+
+  private ZipParameters newZipParameters(String entryName, @Nullable String key) {
+    ZipParameters parameters = new ZipParameters();
+    parameters.setFileNameInZip(entryName);
+    parameters.setCompressionMethod(CompressionMethod.DEFLATE);
+    if (!Strings.isNullOrEmpty(key)) {
+      parameters.setEncryptFiles(true);
+      parameters.setEncryptionMethod(EncryptionMethod.AES);
+      parameters.setAesKeyStrength(AesKeyStrength.KEY_STRENGTH_256);
+    }
+    return parameters;
+  }
+
   private Response getFileDetails(FileObject file) throws FileSystemException {
     Opal.FileDto.Builder fileBuilder;
 
@@ -690,20 +955,10 @@ public class FilesResource {
 
   private void writeUploadedFileToFileSystem(FileItem uploadedFile, FileObject fileToWriteTo) {
 
-    // OPAL-919: We need to wrap the OutputStream returned by commons-vfs into another OutputStream
-    // to force a call to flush() on every call to write() in order to prevent the system from running out of memory
-    // when copying large files.
-    try (OutputStream localFileStream = new BufferedOutputStream(fileToWriteTo.getContent().getOutputStream()) {
-      @Override
-      public synchronized void write(byte[] b, int off, int len) throws IOException {
-        flush();
-        super.write(b, off, len);
-      }
-
-    };
-         InputStream uploadedFileStream = uploadedFile.getInputStream()) {
-
-      StreamUtil.copy(uploadedFileStream, localFileStream);
+    // OPAL-919: large files are not buffered in memory, they are streamed to the file content
+    try (InputStream uploadedFileStream = uploadedFile.getInputStream();
+         OutputStream localFileStream = fileToWriteTo.getContent().getOutputStream()) {
+      ByteStreams.copy(uploadedFileStream, localFileStream);
     } catch (IOException couldNotWriteUploadedFile) {
       throw new RuntimeException("Could not write uploaded file to Opal file system", couldNotWriteUploadedFile);
     }
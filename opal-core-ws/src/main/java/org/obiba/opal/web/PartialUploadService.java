@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.web;
+
+import com.google.common.collect.Sets;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSelectInfo;
+import org.apache.commons.vfs2.FileSelector;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.FileType;
+import org.obiba.opal.core.runtime.OpalRuntime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nullable;
+import java.util.Set;
+
+/**
+ * The content received by a resumable upload is kept in a hidden file next to its destination, until the upload is
+ * completed. Uploads that were not resumed for a day are discarded.
+ */
+@Component
+public class PartialUploadService {
+
+  private static final Logger log = LoggerFactory.getLogger(PartialUploadService.class);
+
+  private static final String PARTIAL_UPLOAD_SUFFIX = ".part";
+
+  private static final long PARTIAL_UPLOAD_TTL = 24 * 60 * 60 * 1000;
+
+  private final OpalRuntime opalRuntime;
+
+  /**
+   * Paths of the files which chunks are being written.
+   */
+  private final Set<String> uploading = Sets.newConcurrentHashSet();
+
+  @Autowired
+  public PartialUploadService(OpalRuntime opalRuntime) {
+    this.opalRuntime = opalRuntime;
+  }
+
+  /**
+   * Get the partial content of a resumable upload to the file.
+   *
+   * @param file
+   * @return null if the file has no parent folder
+   * @throws FileSystemException
+   */
+  @Nullable
+  public FileObject getPartialUpload(FileObject file) throws FileSystemException {
+    FileObject folder = file.getParent();
+    if (folder == null) return null;
+    return folder.resolveFile("." + file.getName().getBaseName() + PARTIAL_UPLOAD_SUFFIX);
+  }
+
+  /**
+   * Get the count of bytes received by the resumable upload to the file.
+   *
+   * @param file
+   * @return -1 if there is no upload in progress
+   * @throws FileSystemException
+   */
+  public long getReceivedSize(FileObject file) throws FileSystemException {
+    FileObject partial = getPartialUpload(file);
+    return partial != null && partial.exists() ? partial.getContent().getSize() : -1;
+  }
+
+  /**
+   * Reserve the file for writing a chunk, to be released once written.
+   *
+   * @param file
+   * @return false if a chunk is already being written to this file
+   */
+  public boolean acquire(FileObject file) {
+    return uploading.add(file.getName().getPath());
+  }
+
+  public void release(FileObject file) {
+    uploading.remove(file.getName().getPath());
+  }
+
+  /**
+   * Discard the content received by the resumable upload to the file, if any.
+   *
+   * @param file
+   * @return true if an upload was discarded
+   * @throws FileSystemException
+   */
+  public boolean discard(FileObject file) throws FileSystemException {
+    FileObject partial = getPartialUpload(file);
+    return partial != null && partial.exists() && partial.delete();
+  }
+
+  /**
+   * Discard the uploads that were not resumed for a day.
+   */
+  @Scheduled(initialDelay = 60 * 60 * 1000, fixedDelay = 60 * 60 * 1000)
+  public void purgePartialUploads() {
+    long expiry = System.currentTimeMillis() - PARTIAL_UPLOAD_TTL;
+    try {
+      FileObject[] expired = opalRuntime.getFileSystem().getRoot().findFiles(new FileSelector() {
+        @Override
+        public boolean includeFile(FileSelectInfo fileInfo) throws Exception {
+          FileObject file = fileInfo.getFile();
+          String name = file.getName().getBaseName();
+          return file.getType() == FileType.FILE && name.startsWith(".") && name.endsWith(PARTIAL_UPLOAD_SUFFIX)
+              && !uploading.contains(file.getParent().getName().getPath() + "/" + getFileName(name))
+              && file.getContent().getLastModifiedTime() < expiry;
+        }
+
+        @Override
+        public boolean traverseDescendents(FileSelectInfo fileInfo) {
+          return true;
+        }
+      });
+      if (expired == null) return;
+      for (FileObject partial : expired) {
+        log.info("Discarding the upload that was not completed: {}", partial.getName().getPath());
+        partial.delete();
+      }
+    } catch (Exception e) {
+      log.warn("Unable to purge the uploads that were not completed: {}", e.getMessage());
+    }
+  }
+
+  //
+  // Private methods
+  //
+
+  private static String getFileName(String partialUploadName) {
+    return partialUploadName.substring(1, partialUploadName.length() - PARTIAL_UPLOAD_SUFFIX.length());
+  }
+
+}
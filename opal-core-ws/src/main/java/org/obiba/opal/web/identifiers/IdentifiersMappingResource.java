@@ -114,8 +114,9 @@ public class IdentifiersMappingResource extends AbstractIdentifiersResource {
     try(ValueTableWriter tableWriter = table.getDatasource().createWriter(table.getName(), table.getEntityType());
         ValueTableWriter.VariableWriter variableWriter = tableWriter.writeVariables()) {
       variableWriter.removeVariable(v);
-      return Response.ok().build();
     }
+    identifiersTableService.invalidateIdentifiersMappingIndex(entityType);
+    return Response.ok().build();
   }
 
   @GET
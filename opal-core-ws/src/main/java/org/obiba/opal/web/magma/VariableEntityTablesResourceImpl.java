@@ -13,11 +13,13 @@ import org.apache.shiro.SecurityUtils;
 import org.obiba.magma.ValueTable;
 import org.obiba.magma.VariableEntity;
 import org.obiba.magma.support.VariableEntityBean;
+import org.obiba.opal.core.service.VariableEntityTablesIndexService;
 import org.obiba.opal.search.finder.*;
 import org.obiba.opal.web.model.Magma;
 import org.obiba.opal.web.ws.security.NoAuthorization;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.config.ConfigurableBeanFactory;
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
@@ -36,6 +38,9 @@ public class VariableEntityTablesResourceImpl implements AbstractTablesResource,
 
   private static final Logger log = LoggerFactory.getLogger(VariableEntityTablesResourceImpl.class);
 
+  @Autowired
+  private VariableEntityTablesIndexService variableEntityTablesIndexService;
+
   private VariableEntityBean variableEntity;
 
   @Override
@@ -97,12 +102,18 @@ public class VariableEntityTablesResourceImpl implements AbstractTablesResource,
   private static class EntityTablesMagmaFinder
       extends AbstractMagmaFinder<VariableEntityTablesQuery, FinderResult<List<Magma.TableDto>>> {
 
+    private final VariableEntityTablesIndexService indexService;
+
+    private EntityTablesMagmaFinder(VariableEntityTablesIndexService indexService) {
+      this.indexService = indexService;
+    }
+
     @Override
     public void executeQuery(VariableEntityTablesQuery query, FinderResult<List<Magma.TableDto>> result) {
 
       for(ValueTable valueTable : query.getTableFilter()) {
 
-        if(valueTable.hasValueSet(query.getEntity())) {
+        if(indexService.hasValueSet(valueTable, query.getEntity())) {
           Magma.TableDto tableDto = Dtos.asDto(valueTable, false).build();
           result.getValue().add(tableDto);
 
@@ -120,7 +131,7 @@ public class VariableEntityTablesResourceImpl implements AbstractTablesResource,
     @Override
     public void find(VariableEntityTablesQuery query, FinderResult<List<Magma.TableDto>> result) {
       nextFinder(new EntityTablesFinder()) //
-          .nextFinder(new EntityTablesMagmaFinder().withLimit(getLimit()));
+          .nextFinder(new EntityTablesMagmaFinder(variableEntityTablesIndexService).withLimit(getLimit()));
       next(query, result);
     }
   }
@@ -53,6 +53,19 @@ public interface VariablesResource {
   @AuthorizeResource
   Response getExcelDictionary(@Context Request request) throws MagmaRuntimeException, IOException;
 
+  /**
+   * Compute the summaries of the variables (all if none is specified) in one scan of the table, so that the following
+   * variable summary requests are served from the cache. The variable summary requests made during the scan wait for
+   * it instead of reading the variable values again. The ones that are not cached, or that have specific parameters
+   * (nature, distribution, intervals etc.), are still computed one variable at a time.
+   *
+   * @param variables
+   * @return
+   */
+  @POST
+  @Path("/_summaries")
+  Response computeSummaries(@QueryParam("variable") List<String> variables);
+
   @PUT
   @Path("/_order")
   Response setVariableOrder(@QueryParam("variable") List<String> variables);
@@ -23,10 +23,12 @@ import org.obiba.magma.support.Disposables;
 import org.obiba.opal.core.ValueTableUpdateListener;
 import org.obiba.opal.core.event.VariableDeletedEvent;
 import org.obiba.opal.core.event.VariablesUpdatedEvent;
+import org.obiba.opal.core.service.VariableSummaryService;
 import org.obiba.opal.web.model.Magma.LinkDto;
 import org.obiba.opal.web.model.Magma.VariableDto;
 import org.obiba.opal.web.model.Ws.ClientErrorDto;
 import org.obiba.opal.web.support.InvalidRequestException;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.config.ConfigurableBeanFactory;
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
@@ -48,6 +50,9 @@ import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
 @Transactional
 public class VariablesResourceImpl extends AbstractValueTableResource implements VariablesResource {
 
+  @Autowired
+  private VariableSummaryService variableSummaryService;
+
   @Override
   public Iterable<VariableDto> getVariables(Request request, UriInfo uriInfo, String script, Integer offset,
                                             @Nullable Integer limit) {
@@ -90,6 +95,13 @@ public class VariablesResourceImpl extends AbstractValueTableResource implements
         .header("Content-Disposition", "attachment; filename=\"" + destinationName + ".xlsx\"").build();
   }
 
+  @Override
+  public Response computeSummaries(List<String> variables) {
+    ValueTable table = getValueTable();
+    variableSummaryService.computeSummaries(table, getVariables(table, variables));
+    return Response.ok().build();
+  }
+
   @Override
   public Response setVariableOrder(List<String> variables) {
     List<VariableDto> orderedVariables = Lists.newArrayListWithExpectedSize(variables != null ? variables.size() : 0);
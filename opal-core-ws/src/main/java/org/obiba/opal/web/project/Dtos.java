@@ -14,6 +14,7 @@ import com.google.common.collect.Sets;
 import org.obiba.magma.*;
 import org.obiba.magma.datasource.nil.NullDatasource;
 import org.obiba.opal.core.domain.*;
+import org.obiba.opal.core.service.ProjectMetricsService;
 import org.obiba.opal.core.service.ProjectService;
 import org.obiba.opal.spi.analysis.AnalysisResultItem;
 import org.obiba.opal.spi.resource.Resource;
@@ -141,31 +142,19 @@ public class Dtos {
   }
 
   @SuppressWarnings("StaticMethodOnlyUsedInOneClass")
-  public static Projects.ProjectSummaryDto asSummaryDto(Project project, ProjectService projectService) {
+  public static Projects.ProjectSummaryDto asSummaryDto(Project project, ProjectService projectService,
+                                                        ProjectMetricsService projectMetricsService) {
     Projects.ProjectSummaryDto.Builder builder = Projects.ProjectSummaryDto.newBuilder();
     builder.setName(project.getName());
 
-    // TODO get counts from elasticsearch
-    int tableCount = 0;
-    int viewCount = 0;
-    int variableCount = 0;
-    int derivedVariableCount = 0;
+    ProjectMetrics metrics = null;
     if (!"LOADING".equals(projectService.getProjectState(project))) {
-      for (ValueTable table : project.getDatasource().getValueTables()) {
-        tableCount++;
-        int tableVariableCount = table.getVariableCount();
-        variableCount = variableCount + tableVariableCount;
-        if (table.isView()) {
-          viewCount++;
-          derivedVariableCount = derivedVariableCount + tableVariableCount;
-        }
-        table.getVariableEntityCount();
-      }
+      metrics = projectMetricsService.getProjectMetrics(project);
     }
-    builder.setTableCount(tableCount);
-    builder.setViewCount(viewCount);
-    builder.setVariableCount(variableCount);
-    builder.setDerivedVariableCount(derivedVariableCount);
+    builder.setTableCount(metrics == null ? 0 : metrics.getTableCount());
+    builder.setViewCount(metrics == null ? 0 : metrics.getViewCount());
+    builder.setVariableCount(metrics == null ? 0 : metrics.getVariableCount());
+    builder.setDerivedVariableCount(metrics == null ? 0 : metrics.getDerivedVariableCount());
     builder.setEntityCount(-1);
     builder.setResourceCount(projectService.getResourceReferences(project).size());
     if (project.hasDatabase()) {
@@ -174,7 +163,10 @@ public class Dtos {
       builder.setDatasourceStatus(Projects.ProjectDatasourceStatusDto.NONE);
     }
 
-    builder.setTimestamps(asTimestampsDto(project, project.getDatasource()));
+    if (metrics != null && metrics.hasTablesTimestamps())
+      builder.setTimestamps(asTimestampsDto(metrics.getTablesTimestamps()));
+    else
+      builder.setTimestamps(asTimestampsDto(project));
 
     return builder.build();
   }
@@ -296,7 +288,10 @@ public class Dtos {
   }
 
   private static Magma.TimestampsDto asTimestampsDto(Timestamped timestamped) {
-    Timestamps ts = timestamped.getTimestamps();
+    return asTimestampsDto(timestamped.getTimestamps());
+  }
+
+  private static Magma.TimestampsDto asTimestampsDto(Timestamps ts) {
     Magma.TimestampsDto.Builder builder = Magma.TimestampsDto.newBuilder();
     Value created = ts.getCreated();
     if (!created.isNull()) builder.setCreated(created.toString());
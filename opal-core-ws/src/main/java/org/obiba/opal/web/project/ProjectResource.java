@@ -68,6 +68,8 @@ public class ProjectResource {
 
   private final SubjectProfileService subjectProfileService;
 
+  private final ProjectMetricsService projectMetricsService;
+
   @Autowired
   public ProjectResource(
       OpalRuntime opalRuntime,
@@ -77,6 +79,7 @@ public class ProjectResource {
       ApplicationContext applicationContext,
       VCFSamplesMappingService vcfSamplesMappingService,
       SubjectProfileService subjectProfileService,
+      ProjectMetricsService projectMetricsService,
       ProjectsState projectsState) {
     this.opalRuntime = opalRuntime;
     this.projectService = projectService;
@@ -85,6 +88,7 @@ public class ProjectResource {
     this.applicationContext = applicationContext;
     this.vcfSamplesMappingService = vcfSamplesMappingService;
     this.subjectProfileService = subjectProfileService;
+    this.projectMetricsService = projectMetricsService;
   }
 
   @GET
@@ -99,7 +103,7 @@ public class ProjectResource {
   @Transactional(readOnly = true)
   public Projects.ProjectSummaryDto getSummary(@Context Request request, @PathParam("name") String name) {
     Project project = getProject(name);
-    return Dtos.asSummaryDto(project, projectService);
+    return Dtos.asSummaryDto(project, projectService, projectMetricsService);
   }
 
   @PUT
@@ -30,10 +30,24 @@ public class FilesPermissionConverterTest extends OpalPermissionConverterTest<Fi
   public void testFilesShare() {
     testConversion("/files", FilesPermissionConverter.Permission.FILES_SHARE,
         "rest:/files:GET:GET/*",
-        "rest:/files:POST:GET/*");
+        "rest:/files:HEAD:GET/*",
+        "rest:/files:POST:GET/*",
+        "rest:/files:PUT:GET/*");
     testConversion("/files/patate", FilesPermissionConverter.Permission.FILES_SHARE,
         "rest:/files/patate:GET:GET/*",
-        "rest:/files/patate:POST:GET/*");
+        "rest:/files/patate:HEAD:GET/*",
+        "rest:/files/patate:POST:GET/*",
+        "rest:/files/patate:PUT:GET/*");
+  }
+
+  @Test
+  public void testFilesRead() {
+    testConversion("/files", FilesPermissionConverter.Permission.FILES_READ,
+        "rest:/files:GET:GET/GET",
+        "rest:/files:HEAD:GET/GET");
+    testConversion("/files/patate", FilesPermissionConverter.Permission.FILES_READ,
+        "rest:/files/patate:GET:GET/GET",
+        "rest:/files/patate:HEAD:GET/GET");
   }
 
   @Override
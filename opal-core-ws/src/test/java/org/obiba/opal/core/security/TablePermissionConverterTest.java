@@ -104,6 +104,7 @@ public class TablePermissionConverterTest extends OpalPermissionConverterTest<Ta
   public void testTableValuesEdit() {
     testConversion("/datasource/patate/table/pwel", TablePermissionConverter.Permission.TABLE_VALUES_EDIT,
         "rest:/datasource/patate/table/pwel/valueSet:GET:GET/GET",
+        "rest:/datasource/patate/table/pwel/variables/_summaries:POST",
         "rest:/datasource/patate/table/pwel/entities:GET",
         "rest:/datasource/patate/table/pwel/index:GET:GET/GET",
         "rest:/datasource/patate/table/pwel/index/_search:GET",
@@ -184,6 +185,7 @@ public class TablePermissionConverterTest extends OpalPermissionConverterTest<Ta
   public void testTableValuesOnView() {
     testConversion("/datasource/patate/view/pwel", TablePermissionConverter.Permission.TABLE_VALUES,
         "rest:/datasource/patate/table/pwel/valueSet:GET:GET/GET",
+        "rest:/datasource/patate/table/pwel/variables/_summaries:POST",
         "rest:/datasource/patate/table/pwel/entities:GET",
         "rest:/datasource/patate/table/pwel/index:GET:GET/GET",
         "rest:/datasource/patate/table/pwel/index/_search:GET",
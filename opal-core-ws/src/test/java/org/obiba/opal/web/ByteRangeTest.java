@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.opal.web;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ByteRangeTest {
+
+  @Test
+  public void test_range() {
+    ByteRange range = ByteRange.parseRange("bytes=0-499", 1000);
+    assertThat(range).isNotNull();
+    assertThat(range.getStart()).isEqualTo(0);
+    assertThat(range.getEnd()).isEqualTo(499);
+    assertThat(range.getLength()).isEqualTo(500);
+    assertThat(range.isSatisfiable()).isTrue();
+    assertThat(range.toContentRange()).isEqualTo("bytes 0-499/1000");
+  }
+
+  @Test
+  public void test_open_and_suffix_ranges() {
+    ByteRange range = ByteRange.parseRange("bytes=900-", 1000);
+    assertThat(range.getStart()).isEqualTo(900);
+    assertThat(range.getEnd()).isEqualTo(999);
+
+    range = ByteRange.parseRange("bytes=-100", 1000);
+    assertThat(range.getStart()).isEqualTo(900);
+    assertThat(range.getEnd()).isEqualTo(999);
+
+    range = ByteRange.parseRange("bytes=500-5000", 1000);
+    assertThat(range.getEnd()).isEqualTo(999);
+  }
+
+  @Test
+  public void test_unsupported_and_unsatisfiable_ranges() {
+    assertThat(ByteRange.parseRange(null, 1000)).isNull();
+    assertThat(ByteRange.parseRange("bytes=0-1,5-6", 1000)).isNull();
+    assertThat(ByteRange.parseRange("bytes=a-b", 1000)).isNull();
+    assertThat(ByteRange.parseRange("items=0-1", 1000)).isNull();
+    assertThat(ByteRange.parseRange("bytes=1000-", 1000).isSatisfiable()).isFalse();
+  }
+
+  @Test
+  public void test_content_range() {
+    ByteRange range = ByteRange.parseContentRange("bytes 0-999/5000");
+    assertThat(range.getStart()).isEqualTo(0);
+    assertThat(range.getLength()).isEqualTo(1000);
+    assertThat(range.getTotal()).isEqualTo(5000);
+
+    range = ByteRange.parseContentRange("bytes 1000-1999/*");
+    assertThat(range.getTotal()).isEqualTo(-1);
+    assertThat(ByteRange.parseContentRange(null)).isNull();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_invalid_content_range() {
+    ByteRange.parseContentRange("bytes 0-999/500");
+  }
+
+}
@@ -10,6 +10,9 @@
 package org.obiba.opal.web;
 
 import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import net.lingala.zip4j.io.inputstream.ZipInputStream;
+import net.lingala.zip4j.model.LocalFileHeader;
 import org.apache.commons.fileupload.FileItem;
 import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.vfs2.*;
@@ -26,15 +29,17 @@ import org.obiba.opal.web.model.Opal.FileDto;
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.util.*;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 import static org.easymock.EasyMock.*;
 import static org.fest.assertions.api.Assertions.assertThat;
@@ -75,6 +80,7 @@ public class FilesResourceTest {
     filesResource = new FilesResource();
     filesResource.setOpalRuntime(opalRuntimeMock);
     filesResource.setSubjectAclService(subjectAclServiceMock);
+    filesResource.setPartialUploadService(new PartialUploadService(opalRuntimeMock));
 
     fileItemMock = createMock(FileItem.class);
     fileObjectMock = createMock(FileObject.class);
@@ -194,52 +200,95 @@ public class FilesResourceTest {
     }
   }
 
-  @Ignore("SecurityManager dependency not satisfied")
   @Test
   public void testGetFile_GetCompressedFolderFromFileSystem() throws IOException {
     expect(opalRuntimeMock.getFileSystem()).andReturn(fileSystem).atLeastOnce();
     replay(opalRuntimeMock);
 
-    checkCompressedFolder("/folder1", "folder1", "folder1/folder11", "folder1/file11.txt", "folder1/folder11/folder111",
-        "folder1/folder11/file111.txt", "folder1/folder11/folder111/file1111.txt",
-        "folder1/folder11/folder111/file1112.txt");
-    checkCompressedFolder("/folder2", "folder2", "folder2/file21.txt");
-    checkCompressedFolder("/folder3", "folder3", "folder3/folder31", "folder3/folder31/file311.txt");
-    checkCompressedFolder("/folder4", "folder4", "folder4/folder41", "folder4/file41.txt", "folder4/file42.txt",
-        "folder4/file43.txt");
-    checkCompressedFolder("/folder5", "folder5", "folder5/file51.txt");
-    checkCompressedFolder("/", "/", "folder1", "folder1/folder11", "folder1/file11.txt", "folder1/folder11/folder111",
-        "folder1/folder11/file111.txt", "folder1/folder11/folder111/file1111.txt",
-        "folder1/folder11/folder111/file1112.txt", "folder2", "folder2/file21.txt", "folder3", "folder3/folder31",
-        "folder3/folder31/file311.txt", "folder4", "folder4/folder41", "folder4/file41.txt", "folder4/file42.txt",
-        "folder4/file43.txt", "folder5", "folder5/file51.txt", "file2.txt");
+    // folders are implied by the path of the files, only the empty ones have their own entry
+    checkCompressedFolder("/folder1", null, "folder1/file11.txt", "folder1/folder11/file111.txt",
+        "folder1/folder11/folder111/file1111.txt", "folder1/folder11/folder111/file1112.txt");
+    checkCompressedFolder("/folder2", null, "folder2/file21.txt");
+    checkCompressedFolder("/folder3", null, "folder3/folder31/file311.txt");
+    checkCompressedFolder("/folder4", null, "folder4/file41.txt", "folder4/file42.txt", "folder4/file43.txt",
+        "folder4/folder41/");
+    checkCompressedFolder("/folder5", null, "folder5/file51.txt");
 
     verify(opalRuntimeMock);
+  }
+
+  @Test
+  public void testGetFile_GetEncryptedFolderFromFileSystem() throws IOException {
+    expect(opalRuntimeMock.getFileSystem()).andReturn(fileSystem).atLeastOnce();
+    replay(opalRuntimeMock);
+
+    checkCompressedFolder("/folder3", "password", "folder3/folder31/file311.txt");
 
+    verify(opalRuntimeMock);
   }
 
-  @SuppressWarnings("unchecked")
-  private void checkCompressedFolder(String folderPath, String... expectedFolderContentArray) throws IOException {
-    Response response = filesResource.getFile(folderPath, null, null);
-    ZipFile zipfile = new ZipFile(((File) response.getEntity()).getPath());
+  @Test
+  public void testGetFile_GetEncryptedFileFromFileSystem() throws IOException {
+    expect(opalRuntimeMock.getFileSystem()).andReturn(fileSystem).atLeastOnce();
+    replay(opalRuntimeMock);
 
-    // Check that all folders and files exist in the compressed archive that represents the folder.
-    for (String anExpectedFolderContentArray : expectedFolderContentArray) {
-      assertThat(zipfile.getEntry(anExpectedFolderContentArray)).isNotNull();
-    }
+    Response response = filesResource.getFile("/folder2/file21.txt", null, "password", null, null);
+    assertThat(response.getStatus()).isEqualTo(Status.OK.getStatusCode());
+    assertThat(response.getHeaderString("Content-Disposition")).contains("file21.txt.zip");
 
-    Enumeration<ZipEntry> zipEnum = (Enumeration<ZipEntry>) zipfile.entries();
-    int count = 0;
+    Map<String, byte[]> entries = readZip(response, "password");
+    assertThat(entries.keySet()).containsOnly("file21.txt");
+    File localFile = fileSystem.getLocalFile(fileSystem.getRoot().resolveFile("/folder2/file21.txt"));
+    assertThat(entries.get("file21.txt")).isEqualTo(Files.readAllBytes(localFile.toPath()));
 
-    while (zipEnum.hasMoreElements()) {
-      zipEnum.nextElement();
-      count++;
-    }
+    verify(opalRuntimeMock);
+  }
+
+  @Test
+  public void testGetFile_FileKeyTooShort() throws IOException {
+    Response response = filesResource.getFile("/folder2/file21.txt", null, "short", null, null);
+    assertThat(response.getStatus()).isEqualTo(Status.BAD_REQUEST.getStatusCode());
+  }
+
+  private void checkCompressedFolder(String folderPath, String key, String... expectedFolderContentArray)
+      throws IOException {
+    Response response = filesResource.getFile(folderPath, null, key, null, null);
+    assertThat(response.getStatus()).isEqualTo(Status.OK.getStatusCode());
 
-    // Make sure that they are no unexpected files in the compressed archive.
-    assertThat(expectedFolderContentArray.length).isEqualTo(count);
+    // Check that all the files, and only them, are in the compressed archive that represents the folder.
+    Map<String, byte[]> entries = readZip(response, key);
+    assertThat(entries.keySet()).containsOnly(expectedFolderContentArray);
+    for (String entryName : expectedFolderContentArray) {
+      if (entryName.endsWith("/")) continue;
+      File localFile = fileSystem.getLocalFile(fileSystem.getRoot().resolveFile("/" + entryName));
+      assertThat(entries.get(entryName)).isEqualTo(Files.readAllBytes(localFile.toPath()));
+    }
+  }
 
-    zipfile.close();
+  /**
+   * Write the streamed zip of the response and read back its entries, checking that they are encrypted when a key
+   * is provided.
+   *
+   * @param response
+   * @param key
+   * @return the content of the entries by name
+   * @throws IOException
+   */
+  private Map<String, byte[]> readZip(Response response, String key) throws IOException {
+    assertThat(response.getEntity()).isInstanceOf(StreamingOutput.class);
+    ByteArrayOutputStream zip = new ByteArrayOutputStream();
+    ((StreamingOutput) response.getEntity()).write(zip);
+
+    Map<String, byte[]> entries = new LinkedHashMap<>();
+    try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip.toByteArray()),
+        key == null ? null : key.toCharArray())) {
+      LocalFileHeader header;
+      while ((header = zis.getNextEntry()) != null) {
+        if (!header.isDirectory()) assertThat(header.isEncrypted()).isEqualTo(key != null);
+        entries.put(header.getFileName(), ByteStreams.toByteArray(zis));
+      }
+    }
+    return entries;
   }
 
   @Test
@@ -394,6 +443,8 @@ public class FilesResourceTest {
     expect(fileObjectMock.exists()).andReturn(true).atLeastOnce();
     expect(fileObjectMock.isWriteable()).andReturn(true).atLeastOnce();
     expect(fileObjectMock.delete()).andReturn(true).atLeastOnce();
+    // no upload to discard
+    expect(fileObjectMock.getParent()).andReturn(null).atLeastOnce();
 
     replay(fileObjectMock);
 
@@ -419,6 +470,62 @@ public class FilesResourceTest {
     verify(fileObjectMock);
   }
 
+  @Test
+  public void testUploadFileChunk_ResumedAtReceivedOffset() throws IOException {
+    expect(opalRuntimeMock.getFileSystem()).andReturn(fileSystem).atLeastOnce();
+    replay(opalRuntimeMock);
+
+    String path = "/folder2/chunked.txt";
+    Response response = filesResource.uploadFileChunk(path, "bytes 0-4/10", chunk("01234"), uriInfoMock);
+    assertThat(response.getStatus()).isEqualTo(Status.ACCEPTED.getStatusCode());
+    assertThat(response.getHeaderString("Upload-Offset")).isEqualTo("5");
+
+    // the partial content is not visible at the destination
+    response = filesResource.getFileHead(path);
+    assertThat(response.getStatus()).isEqualTo(Status.NO_CONTENT.getStatusCode());
+    assertThat(response.getHeaderString("Upload-Offset")).isEqualTo("5");
+    assertThat(fileSystem.getRoot().resolveFile(path).exists()).isFalse();
+
+    // chunks must be contiguous
+    response = filesResource.uploadFileChunk(path, "bytes 6-9/10", chunk("6789"), uriInfoMock);
+    assertThat(response.getStatus()).isEqualTo(Status.CONFLICT.getStatusCode());
+    assertThat(response.getHeaderString("Upload-Offset")).isEqualTo("5");
+
+    response = filesResource.uploadFileChunk(path, "bytes 5-8/10", chunk("5678"), uriInfoMock);
+    assertThat(response.getStatus()).isEqualTo(Status.ACCEPTED.getStatusCode());
+    assertThat(response.getHeaderString("Upload-Offset")).isEqualTo("9");
+
+    // a DELETE cancels the upload
+    response = filesResource.deleteFile(path);
+    assertThat(response.getStatus()).isEqualTo(Status.OK.getStatusCode());
+    try {
+      filesResource.getFileHead(path);
+      assertThat(false).isTrue();
+    } catch (NoSuchFileException e) {
+    }
+
+    verify(opalRuntimeMock);
+  }
+
+  @Test
+  public void testUploadFileChunk_FirstChunkRestartsUpload() throws IOException {
+    expect(opalRuntimeMock.getFileSystem()).andReturn(fileSystem).atLeastOnce();
+    replay(opalRuntimeMock);
+
+    String path = "/folder2/restarted.txt";
+    filesCreatedByTest.add("/folder2/.restarted.txt.part");
+    filesResource.uploadFileChunk(path, "bytes 0-4/10", chunk("01234"), uriInfoMock);
+    Response response = filesResource.uploadFileChunk(path, "bytes 0-2/10", chunk("abc"), uriInfoMock);
+    assertThat(response.getStatus()).isEqualTo(Status.ACCEPTED.getStatusCode());
+    assertThat(response.getHeaderString("Upload-Offset")).isEqualTo("3");
+
+    verify(opalRuntimeMock);
+  }
+
+  private static ByteArrayInputStream chunk(String content) {
+    return new ByteArrayInputStream(content.getBytes());
+  }
+
   private FilesResource getFileResource() {
     FilesResource resource = new FilesResource() {
       @Override
@@ -428,6 +535,7 @@ public class FilesResourceTest {
     };
     resource.setOpalRuntime(opalRuntimeMock);
     resource.setSubjectAclService(subjectAclServiceMock);
+    resource.setPartialUploadService(new PartialUploadService(opalRuntimeMock));
     return resource;
   }
 
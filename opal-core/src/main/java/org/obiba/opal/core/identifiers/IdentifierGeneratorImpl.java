@@ -22,7 +22,8 @@ import org.springframework.stereotype.Component;
 @Component
 public final class IdentifierGeneratorImpl implements IdentifierGenerator {
 
-  private final Random generator = new SecureRandom();
+  // one random generator per thread, so that identifiers can be generated concurrently without contention
+  private final ThreadLocal<Random> generator = ThreadLocal.withInitial(SecureRandom::new);
 
   @Value("${org.obiba.opal.identifiers.length}")
   private int keySize = 10;
@@ -74,6 +75,7 @@ public final class IdentifierGeneratorImpl implements IdentifierGenerator {
       throw new IllegalStateException("keySize must be at least 1: " + keySize);
     }
 
+    Random generator = this.generator.get();
     StringBuilder sb = new StringBuilder(keySize + getPrefixLength());
 
     if(getPrefixLength() > 0) {
@@ -96,6 +98,7 @@ public final class IdentifierGeneratorImpl implements IdentifierGenerator {
       throw new IllegalStateException("keySize must be at least 2: " + keySize);
     }
 
+    Random generator = this.generator.get();
     StringBuilder sb = new StringBuilder(keySize + getPrefixLength());
 
     sb.append(generator.nextInt(9) + 1); // First digit shouldn't be 0
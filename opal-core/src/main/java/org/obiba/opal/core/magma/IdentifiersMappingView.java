@@ -133,13 +133,15 @@ public class IdentifiersMappingView extends View {
 
   private UnitIdentifiersMappingFunction makeMappingFunction(ValueTable identifiersTable, Variable idVariable, IdentifierGenerator identifierGenerator, Policy policy) {
     UnitIdentifiersMappingFunction mappingFunction;
-    PrivateVariableEntityMap entityMap = new OpalPrivateVariableEntityMap(identifiersTable, idVariable,
+    OpalPrivateVariableEntityMap entityMap = new OpalPrivateVariableEntityMap(identifiersTable, idVariable,
         identifierGenerator == null ? new IdentifierGenerator() {
           @Override
           public String generateIdentifier() {
             throw new UnsupportedOperationException("Identifiers generation not permitted");
           }
-        } : identifierGenerator);
+        } : identifierGenerator,
+        () -> identifiersTableService.getIdentifiersMappingIndex(identifiersTable.getEntityType(), idVariable.getName()));
+    entityMap.setWriteBatchSize(identifiersTableService.getIdentifiersBatchSize());
 
     switch (policy) {
       case UNIT_IDENTIFIERS_ARE_PUBLIC:
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.core.magma;
+
+import com.google.common.collect.Sets;
+import org.obiba.magma.ValueTable;
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.support.AbstractValueTableWrapper;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Restricts a table to a subset of its entities, for instance to copy a table by chunks of entities.
+ */
+public class VariableEntitiesValueTable extends AbstractValueTableWrapper {
+
+  private final ValueTable wrapped;
+
+  private final List<VariableEntity> entities;
+
+  private final Set<VariableEntity> entitySet;
+
+  public VariableEntitiesValueTable(ValueTable wrapped, List<VariableEntity> entities) {
+    this.wrapped = wrapped;
+    this.entities = entities;
+    this.entitySet = Sets.newHashSet(entities);
+  }
+
+  @Override
+  public ValueTable getWrappedValueTable() {
+    return wrapped;
+  }
+
+  @Override
+  public List<VariableEntity> getVariableEntities() {
+    return entities;
+  }
+
+  @Override
+  public int getVariableEntityCount() {
+    return entities.size();
+  }
+
+  @Override
+  public boolean hasValueSet(VariableEntity entity) {
+    return entitySet.contains(entity) && super.hasValueSet(entity);
+  }
+
+}
@@ -24,11 +24,21 @@ import org.springframework.transaction.support.TransactionTemplate;
 public abstract class LockingActionTemplate {
 
   public void execute() throws InvocationTargetException {
+    execute(getAction());
+  }
+
+  /**
+   * Execute an action in a transaction, while holding the locks.
+   *
+   * @param action
+   * @throws InvocationTargetException
+   */
+  protected void execute(Action action) throws InvocationTargetException {
     Set<String> lockNames = getLockNames();
 
     try {
       MagmaEngine.get().lock(lockNames);
-      doInTransaction(getAction());
+      doInTransaction(action);
     } catch(ActionRuntimeException ex) {
       throw new InvocationTargetException(ex.getCause());
     } catch(Exception ex) {
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.core.service;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.obiba.magma.VariableEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Progress of the chunked copies of tables into a datasource, saved in the work directory. The entities of a table
+ * being copied in the order of their identifiers, the checkpoint of a table is the identifier of the last entity of
+ * the last committed chunk. A checkpoint only applies to the same source table with the same entities.
+ */
+class CopyCheckpoints {
+
+  private static final Logger log = LoggerFactory.getLogger(CopyCheckpoints.class);
+
+  private static final File CHECKPOINTS_DIR = new File(System.getProperty("OPAL_HOME"),
+      "work" + File.separatorChar + "imports");
+
+  private static final String SOURCE = "source";
+
+  private static final String DIGEST = "digest";
+
+  private static final String ENTITY_COUNT = "entityCount";
+
+  private static final String COPIED = "copied";
+
+  private static final String LAST_IDENTIFIER = "lastIdentifier";
+
+  private final File directory;
+
+  CopyCheckpoints(String destination) {
+    this(new File(CHECKPOINTS_DIR, encode(destination)));
+  }
+
+  CopyCheckpoints(File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Get the checkpoint of a table.
+   *
+   * @param table
+   * @return null if none
+   */
+  Checkpoint get(String table) {
+    File file = getFile(table);
+    if (!file.exists()) return null;
+    Properties properties = new Properties();
+    try (InputStream in = new FileInputStream(file)) {
+      properties.load(in);
+      return new Checkpoint(properties.getProperty(SOURCE), properties.getProperty(DIGEST),
+          Integer.parseInt(properties.getProperty(ENTITY_COUNT)), Integer.parseInt(properties.getProperty(COPIED)),
+          properties.getProperty(LAST_IDENTIFIER));
+    } catch (Exception e) {
+      log.warn("Unable to read copy checkpoint of table {}: {}", table, e.getMessage());
+      return null;
+    }
+  }
+
+  void save(String table, Checkpoint checkpoint) throws IOException {
+    if (!directory.exists() && !directory.mkdirs())
+      throw new IOException("Unable to create copy checkpoints directory: " + directory.getAbsolutePath());
+    Properties properties = new Properties();
+    properties.setProperty(SOURCE, checkpoint.getSource());
+    properties.setProperty(DIGEST, checkpoint.getDigest());
+    properties.setProperty(ENTITY_COUNT, String.valueOf(checkpoint.getEntityCount()));
+    properties.setProperty(COPIED, String.valueOf(checkpoint.getCopied()));
+    properties.setProperty(LAST_IDENTIFIER, checkpoint.getLastIdentifier());
+    File file = getFile(table);
+    File tmp = new File(directory, file.getName() + ".tmp");
+    try (OutputStream out = new FileOutputStream(tmp)) {
+      properties.store(out, null);
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  void delete(String table) {
+    File file = getFile(table);
+    if (file.exists() && !file.delete()) log.warn("Unable to delete copy checkpoint of table {}", table);
+  }
+
+  /**
+   * Get the position of the first entity to copy after the checkpoint of a table.
+   *
+   * @param table
+   * @param source reference of the source table
+   * @param entities entities to copy, sorted by identifier
+   * @return 0 if there is no checkpoint or if the checkpoint applies to another source or other entities
+   */
+  int getResumeIndex(String table, String source, List<VariableEntity> entities) {
+    Checkpoint checkpoint = get(table);
+    if (checkpoint == null) return 0;
+    if (!source.equals(checkpoint.getSource()) || checkpoint.getEntityCount() != entities.size()
+        || !digest(entities).equals(checkpoint.getDigest())) {
+      log.warn("Source or entities of table {} have changed since the previous copy, it is copied from the start", table);
+      return 0;
+    }
+    List<String> identifiers = Lists.transform(entities, VariableEntity::getIdentifier);
+    int index = Collections.binarySearch(identifiers, checkpoint.getLastIdentifier());
+    // first entity after the last copied one
+    return index < 0 ? -index - 1 : index + 1;
+  }
+
+  /**
+   * Digest of the identifiers of the entities, in their order.
+   *
+   * @param entities
+   * @return
+   */
+  static String digest(List<VariableEntity> entities) {
+    Hasher hasher = Hashing.sha256().newHasher();
+    for (VariableEntity entity : entities) {
+      hasher.putString(entity.getIdentifier(), Charsets.UTF_8).putByte((byte) 0);
+    }
+    return hasher.hash().toString();
+  }
+
+  //
+  // Private methods
+  //
+
+  private File getFile(String table) {
+    return new File(directory, encode(table) + ".properties");
+  }
+
+  private static String encode(String name) {
+    try {
+      return URLEncoder.encode(name, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static class Checkpoint {
+
+    private final String source;
+
+    private final String digest;
+
+    private final int entityCount;
+
+    private final int copied;
+
+    private final String lastIdentifier;
+
+    /**
+     * @param source reference of the source table
+     * @param digest digest of the identifiers of the entities to copy
+     * @param entityCount count of entities of the source table
+     * @param copied count of entities copied
+     * @param lastIdentifier identifier of the last entity copied
+     */
+    Checkpoint(String source, String digest, int entityCount, int copied, String lastIdentifier) {
+      this.source = source;
+      this.digest = digest;
+      this.entityCount = entityCount;
+      this.copied = copied;
+      this.lastIdentifier = lastIdentifier;
+    }
+
+    String getSource() {
+      return source;
+    }
+
+    String getDigest() {
+      return digest;
+    }
+
+    int getEntityCount() {
+      return entityCount;
+    }
+
+    int getCopied() {
+      return copied;
+    }
+
+    String getLastIdentifier() {
+      return lastIdentifier;
+    }
+  }
+
+}
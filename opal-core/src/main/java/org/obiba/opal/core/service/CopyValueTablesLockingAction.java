@@ -10,10 +10,12 @@
 package org.obiba.opal.core.service;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
 import org.obiba.magma.DatasourceCopierProgressListener;
 import org.obiba.magma.ValueSet;
 import org.obiba.magma.ValueTable;
 import org.obiba.magma.ValueTableWriter;
+import org.obiba.magma.VariableEntity;
 import org.obiba.magma.support.DatasourceCopier;
 import org.obiba.magma.support.Disposables;
 import org.obiba.magma.support.MultithreadedDatasourceCopier;
@@ -21,6 +23,7 @@ import org.obiba.opal.core.identifiers.IdentifierGenerator;
 import org.obiba.opal.core.identifiers.IdentifiersMapping;
 import org.obiba.opal.core.magma.IdentifiersMappingView;
 import org.obiba.opal.core.magma.PrivateVariableEntityMap;
+import org.obiba.opal.core.magma.VariableEntitiesValueTable;
 import org.obiba.opal.core.magma.concurrent.LockingActionTemplate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,6 +33,9 @@ import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.validation.constraints.NotNull;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ThreadFactory;
@@ -68,6 +74,18 @@ class CopyValueTablesLockingAction extends LockingActionTemplate {
     this.progressListener = progressListener;
   }
 
+  /**
+   * When copying by chunks, each chunk of entities is copied in its own transaction while holding the locks, and a
+   * checkpoint is saved after each chunk.
+   *
+   * @throws InvocationTargetException
+   */
+  @Override
+  public void execute() throws InvocationTargetException {
+    if (copyValueTablesOptions.isChunked()) new ChunkedCopy().execute();
+    else super.execute();
+  }
+
   @Override
   protected Set<String> getLockNames() {
     return getTablesToLock();
@@ -109,92 +127,311 @@ class CopyValueTablesLockingAction extends LockingActionTemplate {
         if (Thread.interrupted()) {
           throw new InterruptedException("Thread interrupted");
         }
+        copy(valueTable, prepareTableToCopy(valueTable), newCopier(), progressListener);
+      }
+    }
+  }
 
-        ValueTable tableToCopy = valueTable;
-        if (!Strings.isNullOrEmpty(copyValueTablesOptions.getIdMapping()) && identifiersTableService.hasIdentifiersTable(valueTable.getEntityType())) {
-          tableToCopy = importUnitIdentifiers(valueTable);
-        }
+  /**
+   * Copy of a table restricted to a chunk of entities.
+   */
+  private class CopyChunkAction implements Action {
+
+    private final ValueTable valueTable;
+
+    private final ValueTable chunk;
+
+    private final boolean copyMetadata;
+
+    private final DatasourceCopierProgressListener chunkProgressListener;
+
+    private CopyChunkAction(ValueTable valueTable, ValueTable chunk, boolean copyMetadata,
+                            DatasourceCopierProgressListener chunkProgressListener) {
+      this.valueTable = valueTable;
+      this.chunk = chunk;
+      this.copyMetadata = copyMetadata;
+      this.chunkProgressListener = chunkProgressListener;
+    }
+
+    @Override
+    public boolean isTransactional() {
+      return copyValueTablesOptions.getDestination().isTransactional();
+    }
+
+    @Override
+    public void execute() throws Exception {
+      // variables are copied with the first chunk only
+      copy(valueTable, chunk, copyMetadata ? newCopier() : newCopier().dontCopyMetadata(), chunkProgressListener);
+    }
+  }
+
+  /**
+   * Preparation of the table to copy, which may persist generated identifiers, and listing of its entities in the order
+   * of their identifiers.
+   */
+  private class PrepareTableAction implements Action {
+
+    private final ValueTable valueTable;
 
-        MultithreadedDatasourceCopier.Builder.newCopier() //
-            .withThreads(new ThreadFactory() {
-              @NotNull
-              @Override
-              public Thread newThread(@NotNull Runnable r) {
-                return new TransactionalThread(r);
-              }
-            }) //
-            .withProgressListener(progressListener) //
-            .withCopier(newCopier()) //
-            .from(tableToCopy) //
-            .to(copyValueTablesOptions.getDestination()).build() //
-            .copy();
+    private ValueTable tableToCopy;
+
+    private List<VariableEntity> entities;
+
+    private PrepareTableAction(ValueTable valueTable) {
+      this.valueTable = valueTable;
+    }
+
+    @Override
+    public boolean isTransactional() {
+      return copyValueTablesOptions.getDestination().isTransactional();
+    }
+
+    @Override
+    public void execute() throws Exception {
+      tableToCopy = prepareTableToCopy(valueTable);
+      entities = Lists.newArrayList(tableToCopy.getVariableEntities());
+      entities.sort(Comparator.comparing(VariableEntity::getIdentifier));
+    }
+  }
+
+  /**
+   * Copy of each table by chunks of entities, in the order of their identifiers. The identifier of the last entity of
+   * each chunk is saved as the checkpoint of the table, so that a failed or interrupted copy can be resumed.
+   */
+  private class ChunkedCopy {
+
+    private final CopyCheckpoints checkpoints = new CopyCheckpoints(copyValueTablesOptions.getDestination().getName());
+
+    private final int chunkSize = copyValueTablesOptions.getChunkSize();
+
+    private void execute() throws InvocationTargetException {
+      for (ValueTable valueTable : copyValueTablesOptions.getSourceTables()) {
+        copyTable(valueTable);
       }
     }
 
-    private class TransactionalThread extends Thread {
+    private void copyTable(ValueTable valueTable) throws InvocationTargetException {
+      checkInterrupted();
+      PrepareTableAction prepare = new PrepareTableAction(valueTable);
+      CopyValueTablesLockingAction.this.execute(prepare);
+      ValueTable tableToCopy = prepare.tableToCopy;
+      List<VariableEntity> entities = prepare.entities;
+
+      String source = valueTable.getDatasource().getName() + "." + valueTable.getName();
+      String digest = CopyCheckpoints.digest(entities);
+      int from = getResumeIndex(valueTable.getName(), source, entities);
+      if (from == 0 && entities.size() <= chunkSize) {
+        // a single chunk
+        CopyValueTablesLockingAction.this.execute(new CopyChunkAction(valueTable, tableToCopy, true, progressListener));
+        checkpoints.delete(valueTable.getName());
+        return;
+      }
 
-      private final Runnable runnable;
+      for (Chunk chunk : Chunk.split(from, entities.size(), chunkSize)) {
+        checkInterrupted();
+        List<VariableEntity> chunkEntities = entities.subList(chunk.getStart(), chunk.getEnd());
+        DatasourceCopierProgressListener chunkProgressListener = progressListener == null
+            ? null : new ChunkProgressListener(progressListener, chunk.getStart(), entities.size());
+        CopyValueTablesLockingAction.this.execute(new CopyChunkAction(valueTable,
+            new VariableEntitiesValueTable(tableToCopy, chunkEntities), chunk.isCopyMetadata(), chunkProgressListener));
+        try {
+          checkpoints.save(valueTable.getName(), new CopyCheckpoints.Checkpoint(source, digest, entities.size(),
+              chunk.getEnd(), chunkEntities.get(chunkEntities.size() - 1).getIdentifier()));
+        } catch (IOException e) {
+          throw new InvocationTargetException(e);
+        }
+        log.debug("Table {} copied up to {}/{} entities", valueTable.getName(), chunk.getEnd(), entities.size());
+      }
+      checkpoints.delete(valueTable.getName());
+    }
 
-      TransactionalThread(Runnable runnable) {
-        this.runnable = runnable;
+    /**
+     * Get the position of the first entity to copy.
+     *
+     * @param tableName
+     * @param source
+     * @param entities entities sorted by identifier
+     * @return
+     */
+    private int getResumeIndex(String tableName, String source, List<VariableEntity> entities) {
+      if (!copyValueTablesOptions.isResume()) {
+        checkpoints.delete(tableName);
+        return 0;
       }
+      int from = checkpoints.getResumeIndex(tableName, source, entities);
+      if (from > 0) log.info("Resuming copy of table {} from entity {}/{}", tableName, from, entities.size());
+      return from;
+    }
 
-      @Override
-      public void run() {
-        getTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
-          @Override
-          protected void doInTransactionWithoutResult(TransactionStatus status) {
-            runnable.run();
-          }
-        });
+    private void checkInterrupted() throws InvocationTargetException {
+      if (Thread.interrupted()) {
+        throw new InvocationTargetException(new InterruptedException("Thread interrupted"));
       }
     }
+  }
+
+  /**
+   * A range of entities copied in one transaction. The variables are copied with the first chunk only.
+   */
+  static class Chunk {
 
-    private ValueTable importUnitIdentifiers(ValueTable table) throws IOException {
-      log.info("Preparing identifiers for mapping [{}]", copyValueTablesOptions.getIdMapping());
-      identifiersTableService.ensureIdentifiersMapping(new IdentifiersMapping(copyValueTablesOptions.getIdMapping(), table.getEntityType()));
+    private final int start;
 
-      IdentifiersMappingView identifiersMappingView = new IdentifiersMappingView(copyValueTablesOptions.getIdMapping(),
-          IdentifiersMappingView.Policy.UNIT_IDENTIFIERS_ARE_PRIVATE,
-          table, identifiersTableService,
-          copyValueTablesOptions.isAllowIdentifierGeneration() ? identifierGenerator : null,
-          copyValueTablesOptions.isIgnoreUnknownIdentifier());
+    private final int end;
+
+    private final boolean copyMetadata;
+
+    private Chunk(int start, int end, boolean copyMetadata) {
+      this.start = start;
+      this.end = end;
+      this.copyMetadata = copyMetadata;
+    }
 
-      if (copyValueTablesOptions.isAllowIdentifierGeneration()) {
-        log.info("Saving generated identifiers");
-        PrivateVariableEntityMap entityMap = identifiersMappingView.getPrivateVariableEntityMap();
-        // force entities listing to both generate and persist missing IDs
-        identifiersMappingView.getVariableEntities();
-        Disposables.dispose(entityMap); // finalize the persistence of the IDs
+    /**
+     * Split the entities to copy in chunks.
+     *
+     * @param from position of the first entity to copy
+     * @param entityCount
+     * @param chunkSize
+     * @return
+     */
+    static List<Chunk> split(int from, int entityCount, int chunkSize) {
+      List<Chunk> chunks = Lists.newArrayList();
+      for (int i = from; i < entityCount; i = i + chunkSize) {
+        chunks.add(new Chunk(i, Math.min(i + chunkSize, entityCount), i == from));
       }
-      return identifiersMappingView;
+      return chunks;
+    }
+
+    int getStart() {
+      return start;
     }
 
     /**
-     * This listener will insert all participant identifiers in the keys datasource prior to copying the valueSet to the
-     * data datasource. It will also generate the public variable entity if it does not exist yet. As such, it must be
-     * executed before the ValueSet is copied to the data datasource otherwise, it will not have an associated entity.
+     * @return position after the last entity of the chunk
      */
-    private DatasourceCopier.DatasourceCopyEventListener createKeysListener(final ValueTable privateView,
-                                                                            final PrivateVariableEntityMap entityMap, final ValueTableWriter keysTableWriter) {
-      return new DatasourceCopier.DatasourceCopyValueSetEventListener() {
-        @Override
-        public void onValueSetCopied(ValueTable source, ValueSet valueSet, @SuppressWarnings(
-            "ParameterHidesMemberVariable") String... destination) {
-        }
+    int getEnd() {
+      return end;
+    }
+
+    boolean isCopyMetadata() {
+      return copyMetadata;
+    }
+  }
+
+  /**
+   * Reports the progress of a chunk as the progress of the whole table.
+   */
+  private static class ChunkProgressListener implements DatasourceCopierProgressListener {
+
+    private final DatasourceCopierProgressListener delegate;
 
+    private final long offset;
+
+    private final long total;
+
+    private ChunkProgressListener(DatasourceCopierProgressListener delegate, long offset, long total) {
+      this.delegate = delegate;
+      this.offset = offset;
+      this.total = total;
+    }
+
+    @Override
+    public void status(String table, long entitiesCopied, long entitiesToCopy, int percentComplete) {
+      long copied = offset + entitiesCopied;
+      delegate.status(table, copied, total, total == 0 ? 100 : (int) (copied * 100 / total));
+    }
+  }
+
+  private ValueTable prepareTableToCopy(ValueTable valueTable) throws IOException {
+    if (!Strings.isNullOrEmpty(copyValueTablesOptions.getIdMapping()) && identifiersTableService.hasIdentifiersTable(valueTable.getEntityType())) {
+      return importUnitIdentifiers(valueTable);
+    }
+    return valueTable;
+  }
+
+  private void copy(ValueTable valueTable, ValueTable tableToCopy, DatasourceCopier.Builder copier,
+                    DatasourceCopierProgressListener listener) throws IOException {
+    MultithreadedDatasourceCopier.Builder.newCopier() //
+        .withThreads(new ThreadFactory() {
+          @NotNull
+          @Override
+          public Thread newThread(@NotNull Runnable r) {
+            return new TransactionalThread(r);
+          }
+        }) //
+        .withProgressListener(listener) //
+        .withReaders(copyValueTablesOptions.getConcurrency().getReaders(valueTable)) //
+        .withQueueSize(copyValueTablesOptions.getConcurrency().getQueueSize()) //
+        .withCopier(copier) //
+        .from(tableToCopy) //
+        .to(copyValueTablesOptions.getDestination()).build() //
+        .copy();
+  }
+
+  private class TransactionalThread extends Thread {
+
+    private final Runnable runnable;
+
+    TransactionalThread(Runnable runnable) {
+      this.runnable = runnable;
+    }
+
+    @Override
+    public void run() {
+      getTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
         @Override
-        public void onValueSetCopy(ValueTable source, ValueSet valueSet) {
-          identifierService
-              .copyParticipantIdentifiers(valueSet.getVariableEntity(), privateView, entityMap, keysTableWriter);
+        protected void doInTransactionWithoutResult(TransactionStatus status) {
+          runnable.run();
         }
-      };
+      });
     }
+  }
 
-    private DatasourceCopier.Builder newCopier() {
-      return DatasourceCopier.Builder.newCopier() //
-          .withLoggingListener() //
-          .withThroughtputListener();
+  private ValueTable importUnitIdentifiers(ValueTable table) throws IOException {
+    log.info("Preparing identifiers for mapping [{}]", copyValueTablesOptions.getIdMapping());
+    identifiersTableService.ensureIdentifiersMapping(new IdentifiersMapping(copyValueTablesOptions.getIdMapping(), table.getEntityType()));
+
+    IdentifiersMappingView identifiersMappingView = new IdentifiersMappingView(copyValueTablesOptions.getIdMapping(),
+        IdentifiersMappingView.Policy.UNIT_IDENTIFIERS_ARE_PRIVATE,
+        table, identifiersTableService,
+        copyValueTablesOptions.isAllowIdentifierGeneration() ? identifierGenerator : null,
+        copyValueTablesOptions.isIgnoreUnknownIdentifier());
+
+    if (copyValueTablesOptions.isAllowIdentifierGeneration()) {
+      log.info("Saving generated identifiers");
+      PrivateVariableEntityMap entityMap = identifiersMappingView.getPrivateVariableEntityMap();
+      // force entities listing to both generate and persist missing IDs
+      identifiersMappingView.getVariableEntities();
+      Disposables.dispose(entityMap); // finalize the persistence of the IDs
     }
+    return identifiersMappingView;
+  }
+
+  /**
+   * This listener will insert all participant identifiers in the keys datasource prior to copying the valueSet to the
+   * data datasource. It will also generate the public variable entity if it does not exist yet. As such, it must be
+   * executed before the ValueSet is copied to the data datasource otherwise, it will not have an associated entity.
+   */
+  private DatasourceCopier.DatasourceCopyEventListener createKeysListener(final ValueTable privateView,
+                                                                          final PrivateVariableEntityMap entityMap, final ValueTableWriter keysTableWriter) {
+    return new DatasourceCopier.DatasourceCopyValueSetEventListener() {
+      @Override
+      public void onValueSetCopied(ValueTable source, ValueSet valueSet, @SuppressWarnings(
+          "ParameterHidesMemberVariable") String... destination) {
+      }
+
+      @Override
+      public void onValueSetCopy(ValueTable source, ValueSet valueSet) {
+        identifierService
+            .copyParticipantIdentifiers(valueSet.getVariableEntity(), privateView, entityMap, keysTableWriter);
+      }
+    };
+  }
+
+  private DatasourceCopier.Builder newCopier() {
+    return DatasourceCopier.Builder.newCopier() //
+        .withLoggingListener() //
+        .withThroughtputListener();
   }
 }
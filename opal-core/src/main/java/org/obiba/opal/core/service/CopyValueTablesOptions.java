@@ -24,13 +24,24 @@ public class CopyValueTablesOptions {
   private final String idMapping;
   private final boolean allowIdentifierGeneration;
   private final boolean ignoreUnknownIdentifier;
+  private final CopyConcurrency concurrency;
+  private final int chunkSize;
+  private final boolean resume;
 
-  CopyValueTablesOptions(Set<ValueTable> sourceTables, Datasource destination, String idMapping, boolean allowIdentifierGeneration, boolean ignoreUnknownIdentifier) {
+  /**
+   * @param chunkSize count of entities copied in a transaction, the whole copy is done in one transaction if not positive
+   * @param resume when copying by chunks, whether to start from the checkpoint of a previous copy
+   */
+  CopyValueTablesOptions(Set<ValueTable> sourceTables, Datasource destination, String idMapping, boolean allowIdentifierGeneration, boolean ignoreUnknownIdentifier, CopyConcurrency concurrency,
+                         int chunkSize, boolean resume) {
     this.sourceTables = Sets.filter(sourceTables, input -> input != null && !Strings.isNullOrEmpty(input.getName()));
     this.destination = destination;
     this.idMapping = idMapping;
     this.allowIdentifierGeneration = allowIdentifierGeneration;
     this.ignoreUnknownIdentifier = ignoreUnknownIdentifier;
+    this.concurrency = concurrency == null ? CopyConcurrency.auto() : concurrency;
+    this.chunkSize = chunkSize;
+    this.resume = resume;
   }
 
   public Set<ValueTable> getSourceTables() {
@@ -52,4 +63,20 @@ public class CopyValueTablesOptions {
   public boolean isIgnoreUnknownIdentifier() {
     return ignoreUnknownIdentifier;
   }
+
+  public CopyConcurrency getConcurrency() {
+    return concurrency;
+  }
+
+  public boolean isChunked() {
+    return chunkSize > 0;
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  public boolean isResume() {
+    return resume;
+  }
 }
@@ -11,9 +11,15 @@ package org.obiba.opal.core.service;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
@@ -30,12 +36,17 @@ import org.obiba.magma.views.WhereClause;
 import org.obiba.opal.core.magma.IdentifiersMappingView;
 import org.obiba.opal.core.magma.IdentifiersMappingView.Policy;
 import org.obiba.opal.core.magma.concurrent.LockingActionTemplate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
 import org.springframework.transaction.support.TransactionTemplate;
 
 import com.google.common.base.Predicate;
 import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 /**
@@ -44,6 +55,8 @@ import com.google.common.collect.Sets;
 @Component
 public class DataExportServiceImpl implements DataExportService {
 
+  private static final Logger log = LoggerFactory.getLogger(DataExportServiceImpl.class);
+
   @NotNull
   private final ThreadFactory threadFactory;
 
@@ -70,6 +83,15 @@ public class DataExportServiceImpl implements DataExportService {
   public void exportTablesToDatasource(@Nullable String idMapping, @NotNull Set<ValueTable> sourceTables,
       @NotNull Datasource destinationDatasource, @NotNull DatasourceCopier.Builder datasourceCopier,
       boolean incremental, @Nullable DatasourceCopierProgressListener progressListener) throws InterruptedException {
+    exportTablesToDatasource(idMapping, sourceTables, destinationDatasource, datasourceCopier, incremental,
+        progressListener, CopyConcurrency.auto());
+  }
+
+  @Override
+  public void exportTablesToDatasource(@Nullable String idMapping, @NotNull Set<ValueTable> sourceTables,
+      @NotNull Datasource destinationDatasource, @NotNull DatasourceCopier.Builder datasourceCopier,
+      boolean incremental, @Nullable DatasourceCopierProgressListener progressListener,
+      @NotNull CopyConcurrency concurrency) throws InterruptedException {
     if(!Strings.isNullOrEmpty(idMapping) && !identifiersTableService.hasIdentifiersMapping(idMapping))
       throw new NoSuchIdentifiersMappingException(idMapping);
 
@@ -77,7 +99,7 @@ public class DataExportServiceImpl implements DataExportService {
 
     try {
       new ExportActionTemplate(sourceTables, destinationDatasource, datasourceCopier, incremental, idMapping,
-          progressListener).execute();
+          progressListener, concurrency).execute();
     } catch(InvocationTargetException ex) {
       if(ex.getCause() instanceof ExportException) {
         throw (ExportException) ex.getCause();
@@ -121,15 +143,19 @@ public class DataExportServiceImpl implements DataExportService {
     @Nullable
     private final DatasourceCopierProgressListener progressListener;
 
+    @NotNull
+    private final CopyConcurrency concurrency;
+
     private ExportActionTemplate(@NotNull Set<ValueTable> sourceTables, @NotNull Datasource destinationDatasource,
         @NotNull Builder datasourceCopier, boolean incremental, @Nullable String idMapping,
-        @Nullable DatasourceCopierProgressListener progressListener) {
+        @Nullable DatasourceCopierProgressListener progressListener, @NotNull CopyConcurrency concurrency) {
       this.sourceTables = Sets.filter(sourceTables, input -> input != null && !Strings.isNullOrEmpty(input.getName()));
       this.destinationDatasource = destinationDatasource;
       this.datasourceCopier = datasourceCopier;
       this.incremental = incremental;
       this.idMapping = idMapping;
       this.progressListener = progressListener;
+      this.concurrency = concurrency;
     }
 
     @NotNull
@@ -161,9 +187,14 @@ public class DataExportServiceImpl implements DataExportService {
 
       @Override
       public void execute() throws Exception {
+        int tablesConcurrency = concurrency.getTables(destinationDatasource, sourceTables.size());
         try {
-          for(ValueTable table : sourceTables) {
-            exportTableToDatasource(table);
+          if(tablesConcurrency > 1) {
+            exportTablesConcurrently(tablesConcurrency);
+          } else {
+            for(ValueTable table : sourceTables) {
+              exportTableToDatasource(table, progressListener);
+            }
           }
         } catch(IOException ex) {
           // When implementing the ExcelDatasource:
@@ -173,7 +204,59 @@ public class DataExportServiceImpl implements DataExportService {
         }
       }
 
-      private void exportTableToDatasource(@NotNull ValueTable table) throws InterruptedException, IOException {
+      /**
+       * Each table is copied in its own transaction, at most tablesConcurrency at a time. The first failure cancels the
+       * copies that are still running, and the method does not return before all of them are done so that the tables
+       * are not unlocked while being written.
+       */
+      private void exportTablesConcurrently(int tablesConcurrency) throws InterruptedException, IOException {
+        log.info("Copying {} tables to {} with {}", sourceTables.size(), destinationDatasource.getName(),
+            concurrency);
+        DatasourceCopierProgressListener listener = progressListener == null
+            ? null
+            : new SynchronizedProgressListener(progressListener);
+        ExecutorService executor = Executors.newFixedThreadPool(tablesConcurrency);
+        try {
+          List<Future<?>> futures = Lists.newArrayList();
+          for(ValueTable table : sourceTables) {
+            futures.add(executor.submit(() -> exportTableInTransaction(table, listener)));
+          }
+          for(Future<?> future : futures) {
+            try {
+              future.get();
+            } catch(ExecutionException e) {
+              Throwable cause = e.getCause();
+              if(cause instanceof TableExportException) cause = cause.getCause();
+              if(cause instanceof IOException) throw (IOException) cause;
+              if(cause instanceof InterruptedException) throw (InterruptedException) cause;
+              if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+              throw new ExportException(cause);
+            }
+          }
+        } finally {
+          executor.shutdownNow();
+          while(!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            log.info("Waiting for the copies to {} to terminate", destinationDatasource.getName());
+          }
+        }
+      }
+
+      private void exportTableInTransaction(@NotNull ValueTable table,
+          @Nullable DatasourceCopierProgressListener listener) {
+        txTemplate.execute(new TransactionCallbackWithoutResult() {
+          @Override
+          protected void doInTransactionWithoutResult(TransactionStatus status) {
+            try {
+              exportTableToDatasource(table, listener);
+            } catch(IOException | InterruptedException e) {
+              throw new TableExportException(e);
+            }
+          }
+        });
+      }
+
+      private void exportTableToDatasource(@NotNull ValueTable table,
+          @Nullable DatasourceCopierProgressListener listener) throws InterruptedException, IOException {
         if(Thread.interrupted()) {
           throw new InterruptedException("Thread interrupted");
         }
@@ -193,7 +276,8 @@ public class DataExportServiceImpl implements DataExportService {
 
         // Go ahead and copy the result to the destination datasource.
         MultithreadedDatasourceCopier.Builder.newCopier().from(tableToCopy).to(destinationDatasource)
-            .withCopier(datasourceCopier).withReaders(8).withProgressListener(progressListener)
+            .withCopier(datasourceCopier).withReaders(concurrency.getReaders(table))
+            .withQueueSize(concurrency.getQueueSize()).withProgressListener(listener)
             .withThreads(threadFactory).build().copy();
       }
 
@@ -204,4 +288,33 @@ public class DataExportServiceImpl implements DataExportService {
       }
     }
   }
+
+  /**
+   * Carries the checked exception of a table copy out of its transaction callback.
+   */
+  private static class TableExportException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private TableExportException(Exception cause) {
+      super(cause);
+    }
+  }
+
+  /**
+   * Progress listeners are usually not designed to be notified from several copies at the same time.
+   */
+  private static class SynchronizedProgressListener implements DatasourceCopierProgressListener {
+
+    private final DatasourceCopierProgressListener delegate;
+
+    private SynchronizedProgressListener(DatasourceCopierProgressListener delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public synchronized void status(String table, long entitiesCopied, long entitiesToCopy, int percentComplete) {
+      delegate.status(table, entitiesCopied, entitiesToCopy, percentComplete);
+    }
+  }
 }
@@ -16,6 +16,7 @@ import org.obiba.opal.core.identifiers.IdentifierGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.Assert;
@@ -46,10 +47,16 @@ public class DataImportServiceImpl implements DataImportService {
   @Autowired
   private IdentifierGenerator identifierGenerator;
 
+  /**
+   * Count of entities imported in a transaction, the whole import is done in one transaction if not positive.
+   */
+  @Value("${org.obiba.opal.import.chunkSize}")
+  private int chunkSize;
+
   @Override
   public void importData(@NotNull String sourceDatasourceName, String destinationDatasourceName,
                          String idMapping, boolean allowIdentifierGeneration, boolean ignoreUnknownIdentifier,
-                         DatasourceCopierProgressListener progressListener)
+                         boolean resume, DatasourceCopierProgressListener progressListener)
       throws NoSuchIdentifiersMappingException, NoSuchDatasourceException, NoSuchValueTableException, IOException,
       InterruptedException {
     Assert.hasText(sourceDatasourceName, "sourceDatasourceName is null or empty");
@@ -57,7 +64,7 @@ public class DataImportServiceImpl implements DataImportService {
     Datasource sourceDatasource = getDatasourceOrTransientDatasource(sourceDatasourceName);
     try {
       importData(sourceDatasource.getValueTables(), destinationDatasourceName, idMapping, allowIdentifierGeneration,
-          ignoreUnknownIdentifier, progressListener);
+          ignoreUnknownIdentifier, resume, progressListener);
     } finally {
       MagmaEngine.get().removeTransientDatasource(sourceDatasource.getName());
     }
@@ -66,7 +73,7 @@ public class DataImportServiceImpl implements DataImportService {
   @Override
   public void importData(@NotNull List<String> sourceTableNames, String destinationDatasourceName,
                          String idMapping, boolean allowIdentifierGeneration, boolean ignoreUnknownIdentifier,
-                         DatasourceCopierProgressListener progressListener)
+                         boolean resume, DatasourceCopierProgressListener progressListener)
       throws NoSuchIdentifiersMappingException, NoSuchDatasourceException, NoSuchValueTableException,
       NonExistentVariableEntitiesException, IOException, InterruptedException {
     Assert.notNull(sourceTableNames, "sourceTableNames is null");
@@ -81,7 +88,7 @@ public class DataImportServiceImpl implements DataImportService {
     Set<ValueTable> sourceTables = builder.build();
     try {
       importData(sourceTables, destinationDatasourceName, idMapping, allowIdentifierGeneration, ignoreUnknownIdentifier,
-          progressListener);
+          resume, progressListener);
     } finally {
       for (ValueTable table : sourceTables) {
         MagmaEngine.get().removeTransientDatasource(table.getDatasource().getName());
@@ -95,18 +102,27 @@ public class DataImportServiceImpl implements DataImportService {
                          DatasourceCopierProgressListener progressListener)
       throws NoSuchIdentifiersMappingException, NonExistentVariableEntitiesException, IOException,
       InterruptedException {
+    importData(sourceTables, destinationDatasourceName, idMapping, allowIdentifierGeneration, ignoreUnknownIdentifier,
+        false, progressListener);
+  }
+
+  //
+  // Private methods
+  //
+
+  private void importData(Set<ValueTable> sourceTables, @NotNull String destinationDatasourceName,
+                          String idMapping, boolean allowIdentifierGeneration, boolean ignoreUnknownIdentifier,
+                          boolean resume, DatasourceCopierProgressListener progressListener)
+      throws NoSuchIdentifiersMappingException, NonExistentVariableEntitiesException, IOException,
+      InterruptedException {
     Assert.hasText(destinationDatasourceName, "destinationDatasourceName is null or empty");
 
     Datasource destinationDatasource = MagmaEngine.get().getDatasource(destinationDatasourceName);
     CopyValueTablesOptions copyValueTableOptions = new CopyValueTablesOptions(sourceTables, destinationDatasource, idMapping,
-        allowIdentifierGeneration, ignoreUnknownIdentifier);
+        allowIdentifierGeneration, ignoreUnknownIdentifier, CopyConcurrency.auto(), chunkSize, resume);
     copyValueTables(copyValueTableOptions, progressListener);
   }
 
-  //
-  // Private methods
-  //
-
   private Datasource getDatasourceOrTransientDatasource(String datasourceName) throws NoSuchDatasourceException {
     return MagmaEngine.get().hasDatasource(datasourceName)
         ? MagmaEngine.get().getDatasource(datasourceName)
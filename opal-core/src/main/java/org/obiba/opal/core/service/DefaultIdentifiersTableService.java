@@ -12,8 +12,13 @@ package org.obiba.opal.core.service;
 import javax.annotation.Nullable;
 import javax.annotation.PreDestroy;
 import javax.validation.constraints.NotNull;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import com.google.common.eventbus.Subscribe;
 import org.obiba.magma.Datasource;
 import org.obiba.magma.DatasourceFactory;
 import org.obiba.magma.NoSuchValueTableException;
@@ -25,7 +30,12 @@ import org.obiba.magma.support.Initialisables;
 import org.obiba.magma.support.MagmaEngineReferenceResolver;
 import org.obiba.magma.support.MagmaEngineTableResolver;
 import org.obiba.magma.type.TextType;
+import org.obiba.opal.core.event.ValueTableDeletedEvent;
+import org.obiba.opal.core.event.ValueTableEvent;
+import org.obiba.opal.core.event.ValueTableUpdatedEvent;
+import org.obiba.opal.core.event.VariableDeletedEvent;
 import org.obiba.opal.core.identifiers.IdentifiersMapping;
+import org.obiba.opal.core.identifiers.IdentifiersMappingIndex;
 import org.obiba.opal.core.service.database.DatabaseRegistry;
 import org.obiba.opal.core.service.database.IdentifiersDatabaseNotFoundException;
 import org.slf4j.Logger;
@@ -54,16 +64,26 @@ public class DefaultIdentifiersTableService implements IdentifiersTableService {
   @Value("${org.obiba.opal.keys.entityType}")
   private String participantEntityType;
 
+  @Value("${org.obiba.opal.identifiers.batchSize}")
+  private int identifiersBatchSize = 10000;
+
   private MagmaEngineReferenceResolver tableResolver;
 
   private Datasource datasource;
 
+  /**
+   * Identifiers mapping indices, shared by all the identifiers mapping views, per entity type and mapping name. An
+   * index is built once by the first thread requesting it, the others wait for the same future.
+   */
+  private final Map<String, CompletableFuture<IdentifiersMappingIndex>> mappingIndices = Maps.newConcurrentMap();
+
   @Override
   public void start() { }
 
   @PreDestroy
   @Override
   public void stop() {
+    mappingIndices.clear();
     if(datasource == null) return;
     try {
       Disposables.dispose(datasource);
@@ -103,6 +123,11 @@ public class DefaultIdentifiersTableService implements IdentifiersTableService {
     return false;
   }
 
+  @Override
+  public int getIdentifiersBatchSize() {
+    return identifiersBatchSize;
+  }
+
   private MagmaEngineReferenceResolver getTableResolver() {
     if(tableResolver == null) {
       tableResolver = MagmaEngineTableResolver.valueOf(tableReference);
@@ -225,4 +250,77 @@ public class DefaultIdentifiersTableService implements IdentifiersTableService {
     }
     return false;
   }
+
+  @NotNull
+  @Override
+  public IdentifiersMappingIndex getIdentifiersMappingIndex(@NotNull String entityType, @NotNull String idMapping) {
+    String key = getMappingIndexKey(entityType, idMapping);
+    while(true) {
+      CompletableFuture<IdentifiersMappingIndex> building = new CompletableFuture<>();
+      CompletableFuture<IdentifiersMappingIndex> future = mappingIndices.computeIfAbsent(key, k -> building);
+      if(future == building) {
+        try {
+          building.complete(IdentifiersMappingIndex.build(getIdentifiersTable(entityType), idMapping));
+        } catch(RuntimeException e) {
+          mappingIndices.remove(key, building);
+          building.completeExceptionally(e);
+          throw e;
+        }
+      }
+      IdentifiersMappingIndex index = getMappingIndex(future);
+      // invalidated while being built or since then
+      if(!index.isStale()) return index;
+      mappingIndices.remove(key, future);
+    }
+  }
+
+  @Override
+  public void invalidateIdentifiersMappingIndex(@NotNull String entityType) {
+    String prefix = getMappingIndexKey(entityType, "");
+    mappingIndices.entrySet().removeIf(entry -> {
+      if(!entry.getKey().startsWith(prefix)) return false;
+      // views still holding it will not see further updates, flag it so that they can notice
+      entry.getValue().thenAccept(IdentifiersMappingIndex::invalidate);
+      return true;
+    });
+  }
+
+  @Subscribe
+  public void onValueTableUpdated(ValueTableUpdatedEvent event) {
+    invalidateIdentifiersMappingIndexOnEvent(event);
+  }
+
+  @Subscribe
+  public void onValueTableDeleted(ValueTableDeletedEvent event) {
+    invalidateIdentifiersMappingIndexOnEvent(event);
+  }
+
+  @Subscribe
+  public void onVariableDeleted(VariableDeletedEvent event) {
+    invalidateIdentifiersMappingIndexOnEvent(event);
+  }
+
+  private void invalidateIdentifiersMappingIndexOnEvent(ValueTableEvent event) {
+    // do not instantiate the identifiers datasource only for checking the event's table
+    if(datasource == null || !event.hasValueTable() || mappingIndices.isEmpty()) return;
+    ValueTable table = event.getValueTable();
+    if(datasource.getName().equals(table.getDatasource().getName())) {
+      log.debug("Identifiers table {} modified, invalidating its identifiers mapping indices", table.getName());
+      invalidateIdentifiersMappingIndex(table.getEntityType());
+    }
+  }
+
+  private IdentifiersMappingIndex getMappingIndex(CompletableFuture<IdentifiersMappingIndex> future) {
+    try {
+      return future.join();
+    } catch(CompletionException e) {
+      // failure of the thread that was building the index
+      if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+      throw e;
+    }
+  }
+
+  private String getMappingIndexKey(@NotNull String entityType, @NotNull String idMapping) {
+    return entityType.toLowerCase() + ":" + idMapping;
+  }
 }
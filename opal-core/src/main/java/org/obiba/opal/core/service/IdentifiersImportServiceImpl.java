@@ -30,7 +30,6 @@ import org.obiba.magma.support.StaticValueTable;
 import org.obiba.opal.core.identifiers.IdentifierGenerator;
 import org.obiba.opal.core.identifiers.IdentifiersMapping;
 import org.obiba.opal.core.identifiers.IdentifiersMaps;
-import org.obiba.opal.core.magma.PrivateVariableEntityMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -64,8 +63,10 @@ public class IdentifiersImportServiceImpl implements IdentifiersImportService {
 
     ValueTable identifiersTable = identifiersTableService.ensureIdentifiersTable(idMapping.getEntityType());
     Variable variable = identifiersTableService.ensureIdentifiersMapping(idMapping);
-    PrivateVariableEntityMap entityMap = new OpalPrivateVariableEntityMap(identifiersTable, variable,
-        localParticipantIdentifier);
+    OpalPrivateVariableEntityMap entityMap = new OpalPrivateVariableEntityMap(identifiersTable, variable,
+        localParticipantIdentifier,
+        () -> identifiersTableService.getIdentifiersMappingIndex(idMapping.getEntityType(), idMapping.getName()));
+    entityMap.setWriteBatchSize(identifiersTableService.getIdentifiersBatchSize());
 
     List<VariableEntity> systemEntities = StreamSupport.stream(new IdentifiersMaps(identifiersTable, idMapping.getName()).spliterator(), false) //
     .filter(unitId -> !unitId.hasPrivateIdentifier()) //
@@ -104,9 +105,11 @@ public class IdentifiersImportServiceImpl implements IdentifiersImportService {
         .createPrivateView(sourceTable.getName(), sourceTable, selectScript);
     Variable identifierVariable = identifierService.createIdentifierVariable(sourceIdentifiersTable, idMapping);
 
-    PrivateVariableEntityMap entityMap = new OpalPrivateVariableEntityMap(
+    OpalPrivateVariableEntityMap entityMap = new OpalPrivateVariableEntityMap(
         identifiersTableService.getIdentifiersTable(idMapping.getEntityType()), identifierVariable,
-        participantIdentifier);
+        participantIdentifier,
+        () -> identifiersTableService.getIdentifiersMappingIndex(idMapping.getEntityType(), idMapping.getName()));
+    entityMap.setWriteBatchSize(identifiersTableService.getIdentifiersBatchSize());
 
     try(ValueTableWriter identifiersTableWriter = identifiersTableService
         .createIdentifiersTableWriter(idMapping.getEntityType())) {
@@ -141,6 +144,7 @@ public class IdentifiersImportServiceImpl implements IdentifiersImportService {
     // Don't copy null values otherwise, we'll delete existing mappings
     DatasourceCopier.Builder.newCopier().dontCopyNullValues().dontCopyMetadata().withLoggingListener().build()
         .copy(sourceIdentifiersTable, identifiersTableService.getDatasource());
+    identifiersTableService.invalidateIdentifiersMappingIndex(identifiersTable.getEntityType());
   }
 
   @Override
@@ -157,5 +161,6 @@ public class IdentifiersImportServiceImpl implements IdentifiersImportService {
     // Don't copy null values otherwise, we'll delete existing mappings
     DatasourceCopier.Builder.newCopier().dontCopyNullValues().dontCopyMetadata().withLoggingListener().build()
         .copy(sourceIdentifiersTable, identifiersTableService.getDatasource());
+    identifiersTableService.invalidateIdentifiersMappingIndex(destinationIdentifiersTable.getEntityType());
   }
 }
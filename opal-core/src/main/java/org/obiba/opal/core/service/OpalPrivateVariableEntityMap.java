@@ -10,34 +10,39 @@
 package org.obiba.opal.core.service;
 
 import com.google.common.base.Stopwatch;
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
-import com.google.common.collect.Maps;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import org.obiba.magma.*;
 import org.obiba.magma.ValueTableWriter.ValueSetWriter;
-import org.obiba.magma.support.Disposables;
 import org.obiba.magma.support.VariableEntityBean;
 import org.obiba.magma.type.TextType;
 import org.obiba.opal.core.identifiers.IdentifierGenerator;
+import org.obiba.opal.core.identifiers.IdentifiersMappingIndex;
 import org.obiba.opal.core.magma.PrivateVariableEntityMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.util.Assert;
 
 import javax.validation.constraints.NotNull;
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
 
 /**
- * An Opal implementation of {@code PrivateVariableEntityMap}, on top of a Magma {@code ValueTable}.
+ * An Opal implementation of {@code PrivateVariableEntityMap}, on top of a Magma {@code ValueTable}. The mapping
+ * lookups are answered by an {@link IdentifiersMappingIndex} which can be shared with other instances, and which is
+ * obtained again once it is stale.
  */
 public class OpalPrivateVariableEntityMap implements PrivateVariableEntityMap {
 
   private static final Logger log = LoggerFactory.getLogger(OpalPrivateVariableEntityMap.class);
 
+  private static final int DEFAULT_WRITE_BATCH_SIZE = 10000;
+
   @NotNull
   private final ValueTable keysValueTable;
 
@@ -48,60 +53,95 @@ public class OpalPrivateVariableEntityMap implements PrivateVariableEntityMap {
   private final IdentifierGenerator participantIdentifier;
 
   @NotNull
-  private final BiMap<VariableEntity, VariableEntity> publicToPrivate = Maps.synchronizedBiMap(HashBiMap.create());
+  private final Supplier<IdentifiersMappingIndex> mappingIndexSupplier;
+
+  @NotNull
+  private volatile IdentifiersMappingIndex mappingIndex;
 
   private ValueTableWriter entitiesValueTableWriter;
 
+  private int writeBatchSize = DEFAULT_WRITE_BATCH_SIZE;
+
+  // count of mappings written with the entities writer since it was opened
+  private int pendingWrites = 0;
+
+  private DatasourceCopierProgressListener progressListener;
+
+  /**
+   * Build a private identifiers mapping index by reading the keys table.
+   *
+   * @param keysValueTable
+   * @param ownerVariable
+   * @param participantIdentifier
+   */
   public OpalPrivateVariableEntityMap(@NotNull ValueTable keysValueTable, @NotNull Variable ownerVariable,
                                       @NotNull IdentifierGenerator participantIdentifier) {
+    this(keysValueTable, ownerVariable, participantIdentifier,
+        () -> IdentifiersMappingIndex.build(keysValueTable, ownerVariable.getName()));
+  }
+
+  /**
+   * Use the supplied identifiers mapping index, which is updated whenever a new mapping is created. The index is
+   * supplied again when it is found stale.
+   *
+   * @param keysValueTable
+   * @param ownerVariable
+   * @param participantIdentifier
+   * @param mappingIndexSupplier
+   */
+  public OpalPrivateVariableEntityMap(@NotNull ValueTable keysValueTable, @NotNull Variable ownerVariable,
+                                      @NotNull IdentifierGenerator participantIdentifier,
+                                      @NotNull Supplier<IdentifiersMappingIndex> mappingIndexSupplier) {
     Assert.notNull(keysValueTable, "keysValueTable cannot be null");
     Assert.notNull(ownerVariable, "ownerVariable cannot be null");
     Assert.notNull(participantIdentifier, "participantIdentifier cannot be null");
+    Assert.notNull(mappingIndexSupplier, "mappingIndexSupplier cannot be null");
 
     this.keysValueTable = keysValueTable;
     this.ownerVariable = ownerVariable;
     this.participantIdentifier = participantIdentifier;
-
-    constructCache();
+    this.mappingIndexSupplier = mappingIndexSupplier;
+    this.mappingIndex = mappingIndexSupplier.get();
   }
 
   @Override
   public VariableEntity publicEntity(@NotNull VariableEntity privateEntity) {
     Assert.notNull(privateEntity, "privateEntity cannot be null");
-    VariableEntity entity = publicToPrivate.inverse().get(privateEntity);
-    log.debug("({}) <--> {}", privateEntity.getIdentifier(), entity == null ? null : entity.getIdentifier());
-    return entity;
+    String identifier = getMappingIndex().getSystemIdentifier(privateEntity.getIdentifier());
+    log.debug("({}) <--> {}", privateEntity.getIdentifier(), identifier);
+    return identifier == null ? null : entityFor(identifier);
   }
 
   @Override
   public VariableEntity privateEntity(@NotNull VariableEntity publicEntity) {
     Assert.notNull(publicEntity, "publicEntity cannot be null");
-    VariableEntity entity = publicToPrivate.get(publicEntity);
-    log.debug("{} <--> ({})", publicEntity.getIdentifier(), entity == null ? null : entity.getIdentifier());
-    return entity;
+    String identifier = getMappingIndex().getPrivateIdentifier(publicEntity.getIdentifier());
+    log.debug("{} <--> ({})", publicEntity.getIdentifier(), identifier);
+    return identifier == null ? null : entityFor(identifier);
   }
 
   @Override
   public boolean hasPrivateEntity(@NotNull VariableEntity privateEntity) {
     Assert.notNull(privateEntity, "privateEntity cannot be null");
-    return publicToPrivate.inverse().containsKey(privateEntity);
+    return getMappingIndex().hasPrivateIdentifier(privateEntity.getIdentifier());
   }
 
   @Override
   public boolean hasPublicEntity(@NotNull VariableEntity publicEntity) {
     Assert.notNull(publicEntity, "publicEntity cannot be null");
-    return publicToPrivate.containsKey(publicEntity);
+    return getMappingIndex().hasSystemIdentifier(publicEntity.getIdentifier());
   }
 
   @Override
   public VariableEntity createPrivateEntity(@NotNull VariableEntity publicEntity) {
     Assert.notNull(publicEntity, "publicEntity cannot be null");
+    IdentifiersMappingIndex index = getMappingIndex();
     for (int i = 0; i < 100; i++) {
       VariableEntity privateEntity = entityFor(participantIdentifier.generateIdentifier());
-      if (!publicToPrivate.inverse().containsKey(privateEntity)) {
-        writeEntities(getEntitiesValueTableWriter(keysValueTable), publicEntity, privateEntity);
+      if (index.putIfPrivateAbsent(publicEntity.getIdentifier(), privateEntity.getIdentifier())) {
+        invalidateIndexOnRollback(index);
+        writeEntity(publicEntity, privateEntity);
         log.debug("{} <--> ({}) added", publicEntity.getIdentifier(), privateEntity.getIdentifier());
-        publicToPrivate.put(entityFor(publicEntity.getIdentifier()), privateEntity);
         return privateEntity;
       }
     }
@@ -110,49 +150,63 @@ public class OpalPrivateVariableEntityMap implements PrivateVariableEntityMap {
             publicEntity.getIdentifier() + "]. One hundred attempts made.");
   }
 
+  /**
+   * Private identifiers are generated concurrently, their uniqueness being checked by batch against the identifiers
+   * mapping index. The new mappings are then written in batches of {@link #setWriteBatchSize(int)} entities. If a
+   * batch cannot be written, the index is invalidated as it holds mappings that were not persisted.
+   *
+   * @param publicEntities
+   * @return
+   */
   @Override
   public List<VariableEntity> createPrivateEntities(@NotNull List<VariableEntity> publicEntities) {
     Assert.notNull(publicEntities, "publicEntity cannot be null");
 
     Stopwatch stopwatch = Stopwatch.createStarted();
-    log.info("IDs generation started for {} entities", publicEntities.size());
-    Map<VariableEntity, VariableEntity> publicPrivateEntities = Maps.newHashMap();
-    publicEntities.forEach(publicEntity -> {
-      boolean generated = false;
-      int i = 0;
-      while (!generated && i < 100) {
-        VariableEntity privateEntity = entityFor(participantIdentifier.generateIdentifier());
-        if (!publicToPrivate.inverse().containsKey(privateEntity)) {
-          publicToPrivate.put(entityFor(publicEntity.getIdentifier()), privateEntity);
-          publicPrivateEntities.put(publicEntity, privateEntity);
-          generated = true;
-        }
-        i++;
-      }
-      if (!generated)
-        throw new IllegalStateException(
-            "Unable to generate a unique private entity for the owner [" + ownerVariable + "] and public entity [" +
-                publicEntity.getIdentifier() + "]. One hundred attempts made.");
-    });
-    log.info("IDs generated for {} entities in {} ms", publicEntities.size(), stopwatch.elapsed(TimeUnit.MILLISECONDS));
+    List<VariableEntity> entities = Lists.newArrayList(Sets.newLinkedHashSet(publicEntities));
+    int count = entities.size();
+    log.info("IDs generation started for {} entities", count);
+    IdentifiersMappingIndex index = getMappingIndex();
+    String[] privateIdentifiers = generatePrivateIdentifiers(index, entities);
+    log.info("IDs generated for {} entities in {} ms", count, stopwatch.elapsed(TimeUnit.MILLISECONDS));
+    invalidateIndexOnRollback(index);
 
     // take advantage of batch writing of the ids datasource
-    ValueTableWriter vtw = keysValueTable.getDatasource().createWriter(keysValueTable.getName(), keysValueTable.getEntityType());
-    publicPrivateEntities.forEach((publicEntity, privateEntity) -> writeEntities(vtw, publicEntity, privateEntity));
-    vtw.close();
+    List<VariableEntity> privateEntities = Lists.newArrayListWithCapacity(count);
+    for (int from = 0; from < count; from += writeBatchSize) {
+      int to = Math.min(from + writeBatchSize, count);
+      try (ValueTableWriter vtw = keysValueTable.getDatasource()
+          .createWriter(keysValueTable.getName(), keysValueTable.getEntityType())) {
+        for (int i = from; i < to; i++) {
+          VariableEntity privateEntity = entityFor(privateIdentifiers[i]);
+          writeEntities(vtw, entities.get(i), privateEntity);
+          privateEntities.add(privateEntity);
+        }
+      } catch (RuntimeException e) {
+        log.warn("Identifiers mapping batch not written, invalidating index {}:{}", index.getEntityType(),
+            index.getIdMapping());
+        index.invalidate();
+        throw e;
+      }
+      long elapsed = Math.max(stopwatch.elapsed(TimeUnit.MILLISECONDS), 1);
+      log.info("IDs written for {}/{} entities ({} IDs/s)", to, count, to * 1000L / elapsed);
+      if (progressListener != null)
+        progressListener.status(keysValueTable.getName(), to, count, (int) (to * 100L / count));
+    }
 
-    log.info("IDs generation done for {} entities in {}", publicEntities.size(), stopwatch.stop());
-    return new ArrayList<>(publicPrivateEntities.values());
+    log.info("IDs generation done for {} entities in {}", count, stopwatch.stop());
+    return privateEntities;
   }
 
   @Override
   public VariableEntity createPublicEntity(@NotNull VariableEntity privateEntity) {
     Assert.notNull(privateEntity, "privateEntity cannot be null");
+    IdentifiersMappingIndex index = getMappingIndex();
     for (int i = 0; i < 100; i++) {
       VariableEntity publicEntity = entityFor(participantIdentifier.generateIdentifier());
-      if (!publicToPrivate.containsKey(publicEntity)) {
-        writeEntities(getEntitiesValueTableWriter(keysValueTable), publicEntity, privateEntity);
-        publicToPrivate.put(publicEntity, entityFor(privateEntity.getIdentifier()));
+      if (index.putIfSystemAbsent(publicEntity.getIdentifier(), privateEntity.getIdentifier())) {
+        invalidateIndexOnRollback(index);
+        writeEntity(publicEntity, privateEntity);
         return publicEntity;
       }
     }
@@ -161,6 +215,29 @@ public class OpalPrivateVariableEntityMap implements PrivateVariableEntityMap {
             privateEntity.getIdentifier() + "]. One hundred attempts made.");
   }
 
+  /**
+   * Write a mapping with the entities writer, which is closed every {@link #setWriteBatchSize(int)} mappings so that
+   * they are not all held until the map is disposed.
+   *
+   * @param publicEntity
+   * @param privateEntity
+   */
+  private void writeEntity(VariableEntity publicEntity, VariableEntity privateEntity) {
+    writeEntities(getEntitiesValueTableWriter(keysValueTable), publicEntity, privateEntity);
+    if (++pendingWrites >= writeBatchSize) {
+      log.debug("IDs written for {} entities", pendingWrites);
+      closeEntitiesValueTableWriter();
+    }
+  }
+
+  private void closeEntitiesValueTableWriter() {
+    if (entitiesValueTableWriter != null) {
+      entitiesValueTableWriter.close();
+      entitiesValueTableWriter = null;
+    }
+    pendingWrites = 0;
+  }
+
   private ValueTableWriter getEntitiesValueTableWriter(ValueTable keyTable) {
     if (entitiesValueTableWriter == null)
       entitiesValueTableWriter = keyTable.getDatasource().createWriter(keyTable.getName(), keyTable.getEntityType());
@@ -178,51 +255,89 @@ public class OpalPrivateVariableEntityMap implements PrivateVariableEntityMap {
     return new VariableEntityBean(keysValueTable.getEntityType(), identifier);
   }
 
-  private void constructCache() {
-    log.info("Constructing participant identifier cache for keysValueTable: {}, ownerVariable: {}",
-        keysValueTable.getName(), ownerVariable.getName());
-    VariableValueSource ownerVariableSource = keysValueTable.getVariableValueSource(ownerVariable.getName());
-    if (ownerVariableSource.supportVectorSource()) {
-      constructCacheFromVector(keysValueTable, ownerVariableSource.asVectorSource());
-    } else {
-      constructCacheFromTable(keysValueTable, ownerVariableSource);
+  public void setWriteBatchSize(int writeBatchSize) {
+    Assert.isTrue(writeBatchSize > 0, "writeBatchSize must be positive");
+    this.writeBatchSize = writeBatchSize;
+  }
+
+  /**
+   * Follow the progress of the identifiers written by {@link #createPrivateEntities(List)}.
+   *
+   * @param progressListener
+   */
+  public void setProgressListener(DatasourceCopierProgressListener progressListener) {
+    this.progressListener = progressListener;
+  }
+
+  /**
+   * Generate candidate private identifiers in parallel and reserve them in the identifiers mapping index, in one
+   * pass; the colliding ones are generated again.
+   *
+   * @param index
+   * @param publicEntities
+   * @return the private identifiers, at the position of their public entity
+   */
+  private String[] generatePrivateIdentifiers(IdentifiersMappingIndex index, List<VariableEntity> publicEntities) {
+    int count = publicEntities.size();
+    String[] publicIdentifiers = new String[count];
+    String[] privateIdentifiers = new String[count];
+    for (int i = 0; i < count; i++) {
+      publicIdentifiers[i] = publicEntities.get(i).getIdentifier();
     }
-    log.debug("Cache constructed: {}", publicToPrivate);
-  }
-
-  private void constructCacheFromTable(@NotNull ValueTable keyTable, @NotNull ValueSource ownerVariableSource) {
-    for (ValueSet valueSet : keyTable.getValueSets()) {
-      Value value = ownerVariableSource.getValue(valueSet);
-      // OPAL-619: The value could be null, in which case don't cache it. Whenever new participant
-      // data are imported, the key variable is written first and its corresponding VariableValueSource
-      // is added *without a value* (see DefaultImportService.createKeyVariable()). The key variable's
-      // value is written afterwards, in the process of copying the participant data to the destination
-      // datasource. Also, more obviously, it is not necessarily the case that all value sets have a value
-      // for all key variables.
-      if (!value.isNull()) {
-        log.debug("{} <--> ({}) cached", valueSet.getVariableEntity().getIdentifier(), value);
-        publicToPrivate.put(entityFor(valueSet.getVariableEntity().getIdentifier()), entityFor(value.toString()));
-      }
+    int[] pending = IntStream.range(0, count).toArray();
+    for (int attempt = 0; attempt < 100 && pending.length > 0; attempt++) {
+      Arrays.stream(pending).parallel()
+          .forEach(i -> privateIdentifiers[i] = participantIdentifier.generateIdentifier());
+      pending = index.putAllIfPrivateAbsent(publicIdentifiers, privateIdentifiers, pending);
+      if (pending.length > 0) log.debug("{} IDs collisions at attempt {}", pending.length, attempt + 1);
     }
+    if (pending.length > 0)
+      throw new IllegalStateException(
+          "Unable to generate a unique private entity for the owner [" + ownerVariable + "] and public entity [" +
+              publicIdentifiers[pending[0]] + "]. One hundred attempts made.");
+    return privateIdentifiers;
   }
 
-  private void constructCacheFromVector(@NotNull ValueTable keyTable, @NotNull VectorSource vs) {
-    List<VariableEntity> entities = keyTable.getVariableEntities();
-    Iterator<Value> values = vs.getValues(entities).iterator();
-    for (VariableEntity opalEntity : entities) {
-      Value value = values.next();
-      if (!value.isNull()) {
-        log.debug("{} <--> ({}) cached", opalEntity.getIdentifier(), value);
-        publicToPrivate.put(entityFor(opalEntity.getIdentifier()), entityFor(value.toString()));
+  /**
+   * The identifiers mapping index is updated before the new mappings are committed: make sure it does not keep
+   * mappings that would have been rolled back.
+   *
+   * @param index
+   */
+  private void invalidateIndexOnRollback(IdentifiersMappingIndex index) {
+    if (!TransactionSynchronizationManager.isSynchronizationActive()
+        || TransactionSynchronizationManager.hasResource(index)) return;
+    // one synchronization per transaction and index
+    TransactionSynchronizationManager.bindResource(index, Boolean.TRUE);
+    TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+      @Override
+      public void afterCompletion(int status) {
+        TransactionSynchronizationManager.unbindResourceIfPossible(index);
+        if (status != STATUS_COMMITTED) {
+          log.warn("Identifiers mapping transaction not committed, invalidating index {}:{}",
+              index.getEntityType(), index.getIdMapping());
+          index.invalidate();
+        }
       }
+    });
+  }
+
+  /**
+   * Get the identifiers mapping index, supplied again if it was invalidated since last access.
+   *
+   * @return
+   */
+  private IdentifiersMappingIndex getMappingIndex() {
+    IdentifiersMappingIndex index = mappingIndex;
+    if (index.isStale()) {
+      index = mappingIndexSupplier.get();
+      mappingIndex = index;
     }
+    return index;
   }
 
   @Override
   public void dispose() {
-    if (entitiesValueTableWriter != null) {
-      entitiesValueTableWriter.close();
-      entitiesValueTableWriter = null;
-    }
+    closeEntitiesValueTableWriter();
   }
 }
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.core.service;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.eventbus.Subscribe;
+import org.obiba.magma.Timestamps;
+import org.obiba.magma.ValueTable;
+import org.obiba.magma.support.UnionTimestamps;
+import org.obiba.opal.core.domain.Project;
+import org.obiba.opal.core.domain.ProjectMetrics;
+import org.obiba.opal.core.domain.TableMetrics;
+import org.obiba.opal.core.event.*;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The metrics of a table are read once and kept until the table is reported as modified. As views can be built on
+ * top of any table, views metrics are also discarded when a table is modified. Not all the writes to a table are
+ * reported, so the metrics are also discarded after a time to live. Entities are not counted: it would require a
+ * scan of each table and the project summary does not report them.
+ */
+@Component
+public class ProjectMetricsServiceImpl implements ProjectMetricsService {
+
+  /**
+   * Time to live of the table metrics, in seconds, no limit if not positive.
+   */
+  @Value("${org.obiba.opal.project.metrics.ttl}")
+  private long ttl;
+
+  /**
+   * Table metrics by table name, by project name.
+   */
+  private final Map<String, Map<String, CatalogEntry>> catalog = Maps.newConcurrentMap();
+
+  /**
+   * Incremented at each modification of a table of the project, so that metrics read before a modification are not
+   * registered after it.
+   */
+  private final Map<String, AtomicLong> generations = Maps.newConcurrentMap();
+
+  /**
+   * Incremented at each modification of any table, as views can be built on top of any table.
+   */
+  private final AtomicLong viewsGeneration = new AtomicLong();
+
+  @Override
+  public ProjectMetrics getProjectMetrics(Project project) {
+    ProjectMetrics metrics = new ProjectMetrics();
+    metrics.setName(project.getName());
+    metrics.setTimestamp(new Date());
+    int tableCount = 0;
+    int viewCount = 0;
+    int variableCount = 0;
+    int derivedVariableCount = 0;
+    List<TableMetrics> tablesMetrics = Lists.newArrayList();
+    for (ValueTable table : project.getDatasource().getValueTables()) {
+      TableMetrics tableMetrics = getTableMetrics(table);
+      tablesMetrics.add(tableMetrics);
+      tableCount++;
+      variableCount = variableCount + tableMetrics.getVariableCount();
+      if (tableMetrics.isView()) {
+        viewCount++;
+        derivedVariableCount = derivedVariableCount + tableMetrics.getVariableCount();
+      }
+    }
+    metrics.setTableCount(tableCount);
+    metrics.setViewCount(viewCount);
+    metrics.setVariableCount(variableCount);
+    metrics.setDerivedVariableCount(derivedVariableCount);
+    if (!tablesMetrics.isEmpty()) metrics.setTablesTimestamps(new UnionTimestamps(tablesMetrics));
+    return metrics;
+  }
+
+  @Override
+  public TableMetrics getTableMetrics(ValueTable table) {
+    Map<String, CatalogEntry> tablesMetrics = catalog.computeIfAbsent(table.getDatasource().getName(), k -> Maps.newConcurrentMap());
+    CatalogEntry entry = tablesMetrics.get(table.getName());
+    if (entry == null || entry.isExpired()) {
+      AtomicLong generation = table.isView() ? viewsGeneration : getGeneration(table.getDatasource().getName());
+      long gen = generation.get();
+      entry = new CatalogEntry(readTableMetrics(table));
+      // do not register metrics that could be outdated
+      if (gen == generation.get()) tablesMetrics.put(table.getName(), entry);
+    }
+    return entry.getMetrics();
+  }
+
+  //
+  // Events
+  //
+
+  @Subscribe
+  public void onValueTableAdded(ValueTableAddedEvent event) {
+    invalidate(event.getDatasourceName(), event.getTableName());
+  }
+
+  @Subscribe
+  public void onValueTableUpdated(ValueTableUpdatedEvent event) {
+    if (event.hasValueTable()) invalidate(event.getValueTable());
+  }
+
+  @Subscribe
+  public void onVariablesUpdated(VariablesUpdatedEvent event) {
+    if (event.hasValueTable()) invalidate(event.getValueTable());
+  }
+
+  @Subscribe
+  public void onVariableDeleted(VariableDeletedEvent event) {
+    if (event.hasValueTable()) invalidate(event.getValueTable());
+  }
+
+  @Subscribe
+  public void onValueTableDeleted(ValueTableDeletedEvent event) {
+    if (event.hasValueTable()) invalidate(event.getValueTable());
+  }
+
+  @Subscribe
+  public void onValueTableRenamed(ValueTableRenamedEvent event) {
+    if (event.hasValueTable()) invalidate(event.getValueTable());
+  }
+
+  @Subscribe
+  public void onDatasourceDeleted(DatasourceDeletedEvent event) {
+    String datasourceName = event.getDatasource().getName();
+    // pending reads hold the removed generation, which is incremented
+    AtomicLong generation = generations.remove(datasourceName);
+    if (generation != null) generation.incrementAndGet();
+    viewsGeneration.incrementAndGet();
+    catalog.remove(datasourceName);
+  }
+
+  //
+  // Private methods
+  //
+
+  private void invalidate(ValueTable table) {
+    invalidate(table.getDatasource().getName(), table.getName());
+  }
+
+  private void invalidate(String datasourceName, String tableName) {
+    getGeneration(datasourceName).incrementAndGet();
+    viewsGeneration.incrementAndGet();
+    Map<String, CatalogEntry> tablesMetrics = catalog.get(datasourceName);
+    if (tablesMetrics != null) tablesMetrics.remove(tableName);
+    catalog.values().forEach(metrics -> metrics.values().removeIf(entry -> entry.getMetrics().isView()));
+  }
+
+  private AtomicLong getGeneration(String datasourceName) {
+    return generations.computeIfAbsent(datasourceName, k -> new AtomicLong());
+  }
+
+  private TableMetrics readTableMetrics(ValueTable table) {
+    Timestamps timestamps = table.getTimestamps();
+    return new TableMetrics(table.getName(), table.isView(), table.getVariableCount(),
+        timestamps.getCreated(), timestamps.getLastUpdate());
+  }
+
+  private class CatalogEntry {
+
+    private final TableMetrics metrics;
+
+    private final long readTime = System.currentTimeMillis();
+
+    private CatalogEntry(TableMetrics metrics) {
+      this.metrics = metrics;
+    }
+
+    private TableMetrics getMetrics() {
+      return metrics;
+    }
+
+    private boolean isExpired() {
+      return ttl > 0 && System.currentTimeMillis() - readTime > ttl * 1000;
+    }
+  }
+
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.core.service;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.eventbus.Subscribe;
+import org.obiba.magma.Value;
+import org.obiba.magma.ValueTable;
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.support.ValueTableReference;
+import org.obiba.magma.support.ValueTableWrapper;
+import org.obiba.magma.views.JoinTable;
+import org.obiba.opal.core.event.*;
+import org.obiba.opal.core.tx.TransactionalThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * For each entity type, the entity identifiers are encoded as integers and the entities of each table are a bit set
+ * of these integers. The index of a table is rebuilt when the table is reported as changed, or when its last update
+ * timestamp differs from the one at the time of indexing. Tables without last update timestamp are not indexed, as
+ * a change could not be detected. The views are indexed with the tables they are built on, so that they are indexed
+ * again when one of these is changed. Tables are indexed in the background, the table itself being queried until its
+ * index is ready. The index is saved in the work directory.
+ */
+@Component
+public class VariableEntityTablesIndexServiceImpl implements VariableEntityTablesIndexService {
+
+  private static final Logger log = LoggerFactory.getLogger(VariableEntityTablesIndexServiceImpl.class);
+
+  private static final int FORMAT_VERSION = 2;
+
+  /**
+   * Count of encoded identifiers of an entity type beyond which the identifiers that are no longer in any indexed
+   * table are discarded, no limit if not positive.
+   */
+  @org.springframework.beans.factory.annotation.Value("${org.obiba.opal.entities.index.maxIdentifiers}")
+  private int maxIdentifiers;
+
+  private final File indexDirectory;
+
+  private final Map<String, EntityTypeIndex> indices = Maps.newConcurrentMap();
+
+  private final AtomicBoolean dirty = new AtomicBoolean(false);
+
+  private final ExecutorService indexingExecutor;
+
+  @Autowired
+  public VariableEntityTablesIndexServiceImpl(TransactionalThreadFactory transactionalThreadFactory) {
+    this(new File(System.getProperty("OPAL_HOME"), "work" + File.separatorChar + "entities-index"),
+        Executors.newSingleThreadExecutor(transactionalThreadFactory));
+  }
+
+  VariableEntityTablesIndexServiceImpl(File indexDirectory, ExecutorService indexingExecutor) {
+    this.indexDirectory = indexDirectory;
+    this.indexingExecutor = indexingExecutor;
+  }
+
+  @PostConstruct
+  public void start() {
+    File[] files = indexDirectory.listFiles((dir, name) -> name.endsWith(".idx"));
+    if (files == null) return;
+    for (File file : files) {
+      try {
+        EntityTypeIndex index = read(file);
+        indices.put(index.entityType, index);
+      } catch (Exception e) {
+        log.warn("Unable to read entities index {}, it will be rebuilt: {}", file.getName(), e.getMessage());
+      }
+    }
+  }
+
+  @PreDestroy
+  public void stop() {
+    indexingExecutor.shutdownNow();
+    save();
+  }
+
+  @Override
+  public boolean hasValueSet(ValueTable table, VariableEntity entity) {
+    if (!table.getEntityType().equals(entity.getType())) return false;
+    String stamp = getStamp(table);
+    if (stamp == null) return table.hasValueSet(entity);
+    EntityTypeIndex index = indices.computeIfAbsent(entity.getType(), EntityTypeIndex::new);
+    String reference = toReference(table);
+    TableEntry entry = index.tables.get(reference);
+    if (entry == null || !stamp.equals(entry.stamp)) {
+      submitIndexing(index, table, reference, stamp);
+      // the indexing could be already done
+      index = indices.get(entity.getType());
+      entry = index == null ? null : index.tables.get(reference);
+      if (entry == null || !stamp.equals(entry.stamp)) return table.hasValueSet(entity);
+    }
+    Integer id = index.identifiers.get(entity.getIdentifier());
+    return id != null && entry.entities.get(id);
+  }
+
+  /**
+   * Save the index if it has changed.
+   */
+  @Scheduled(fixedDelay = 10 * 60 * 1000)
+  public void save() {
+    if (!dirty.compareAndSet(true, false)) return;
+    if (!indexDirectory.exists() && !indexDirectory.mkdirs()) {
+      log.warn("Unable to create entities index directory: {}", indexDirectory.getAbsolutePath());
+      return;
+    }
+    for (EntityTypeIndex index : indices.values()) {
+      try {
+        write(index);
+      } catch (IOException e) {
+        log.warn("Unable to save entities index of type {}: {}", index.entityType, e.getMessage());
+      }
+    }
+  }
+
+  //
+  // Events
+  //
+
+  @Subscribe
+  public void onValueTableAdded(ValueTableAddedEvent event) {
+    invalidate(event.getDatasourceName() + "." + event.getTableName());
+  }
+
+  @Subscribe
+  public void onValueTableUpdated(ValueTableUpdatedEvent event) {
+    if (event.hasValueTable()) invalidate(toReference(event.getValueTable()));
+  }
+
+  @Subscribe
+  public void onValueTableDeleted(ValueTableDeletedEvent event) {
+    if (event.hasValueTable()) invalidate(toReference(event.getValueTable()));
+  }
+
+  @Subscribe
+  public void onValueTableRenamed(ValueTableRenamedEvent event) {
+    if (event.hasValueTable()) invalidate(toReference(event.getValueTable()));
+  }
+
+  @Subscribe
+  public void onDatasourceDeleted(DatasourceDeletedEvent event) {
+    String prefix = event.getDatasource().getName() + ".";
+    for (EntityTypeIndex index : indices.values()) {
+      Set<String> references = Sets.newHashSet();
+      index.tables.keySet().stream().filter(ref -> ref.startsWith(prefix)).forEach(references::add);
+      index.pending.keySet().stream().filter(ref -> ref.startsWith(prefix)).forEach(references::add);
+      invalidate(index, references);
+    }
+    dirty.set(true);
+  }
+
+  //
+  // Private methods
+  //
+
+  /**
+   * Index the table in the background, unless it is already being indexed.
+   *
+   * @param index
+   * @param table
+   * @param reference
+   * @param stamp
+   */
+  private void submitIndexing(EntityTypeIndex index, ValueTable table, String reference, String stamp) {
+    Object token = new Object();
+    if (index.pending.putIfAbsent(reference, token) != null) return;
+    try {
+      indexingExecutor.execute(() -> {
+        try {
+          TableEntry entry = index.indexTable(table, stamp);
+          // do not register the index of a table that was reported as changed meanwhile
+          if (!index.pending.remove(reference, token)) return;
+          index.tables.put(reference, entry);
+          dirty.set(true);
+          if (maxIdentifiers > 0 && index.getIdentifierCount() > Math.max(maxIdentifiers, index.compactionThreshold))
+            compact(index);
+        } catch (Exception e) {
+          index.pending.remove(reference, token);
+          log.warn("Unable to index entities of table {}: {}", reference, e.getMessage());
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      index.pending.remove(reference, token);
+    }
+  }
+
+  /**
+   * Forget the table's index and the ones of the views that are built on top of this table.
+   *
+   * @param reference
+   */
+  private void invalidate(String reference) {
+    for (EntityTypeIndex index : indices.values()) {
+      invalidate(index, Sets.newHashSet(reference));
+    }
+    dirty.set(true);
+  }
+
+  /**
+   * Forget the tables' index and the ones of the views that are built, directly or not, on top of these tables.
+   *
+   * @param index
+   * @param references
+   */
+  private void invalidate(EntityTypeIndex index, Set<String> references) {
+    Set<String> invalidated = Sets.newHashSet(references);
+    boolean added = true;
+    while (added) {
+      added = false;
+      for (Map.Entry<String, TableEntry> entry : index.tables.entrySet()) {
+        if (!invalidated.contains(entry.getKey()) && entry.getValue().isBuiltOn(invalidated)) {
+          invalidated.add(entry.getKey());
+          added = true;
+        }
+      }
+    }
+    for (String reference : invalidated) {
+      index.tables.remove(reference);
+      index.pending.remove(reference);
+    }
+  }
+
+  /**
+   * Replace the index of an entity type by one that encodes only the identifiers of the indexed tables. Lookups
+   * running on the former index are not affected, and the tables they index meanwhile are indexed again later.
+   *
+   * @param index
+   */
+  private void compact(EntityTypeIndex index) {
+    EntityTypeIndex compacted = new EntityTypeIndex(index.entityType);
+    List<String> identifiers = index.getIdentifiers();
+    for (Map.Entry<String, TableEntry> entry : Maps.newHashMap(index.tables).entrySet()) {
+      BitSet entities = new BitSet();
+      BitSet former = entry.getValue().entities;
+      for (int id = former.nextSetBit(0); id >= 0; id = former.nextSetBit(id + 1)) {
+        entities.set(compacted.encode(identifiers.get(id)));
+      }
+      compacted.tables.put(entry.getKey(), new TableEntry(entry.getValue().view, entry.getValue().references,
+          entry.getValue().stamp, entities));
+    }
+    // do not compact again before the dictionary has grown significantly
+    compacted.compactionThreshold = 2 * compacted.getIdentifierCount();
+    log.info("Entities index of type {} compacted from {} to {} identifiers", index.entityType, identifiers.size(),
+        compacted.getIdentifierCount());
+    indices.put(index.entityType, compacted);
+  }
+
+  private static String toReference(ValueTable table) {
+    if (table instanceof ValueTableReference) return ((ValueTableReference) table).getReference();
+    return table.getDatasource().getName() + "." + table.getName();
+  }
+
+  /**
+   * The references of the tables a view is built on.
+   *
+   * @param table
+   * @return null if not known
+   */
+  private static Set<String> getFromReferences(ValueTable table) {
+    if (!table.isView()) return Sets.newHashSet();
+    if (!(table instanceof ValueTableWrapper)) return null;
+    ValueTable from = ((ValueTableWrapper) table).getWrappedValueTable();
+    List<ValueTable> fromTables = from instanceof JoinTable ? ((JoinTable) from).getTables() : Lists.newArrayList(from);
+    Set<String> references = Sets.newHashSet();
+    for (ValueTable fromTable : fromTables) references.add(toReference(fromTable));
+    return references;
+  }
+
+  /**
+   * Last update of the table, if known.
+   *
+   * @param table
+   * @return
+   */
+  private static String getStamp(ValueTable table) {
+    try {
+      Value lastUpdate = table.getTimestamps().getLastUpdate();
+      return lastUpdate == null || lastUpdate.isNull() ? null : lastUpdate.toString();
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  private File getIndexFile(String entityType) throws UnsupportedEncodingException {
+    return new File(indexDirectory, URLEncoder.encode(entityType, "UTF-8") + ".idx");
+  }
+
+  private void write(EntityTypeIndex index) throws IOException {
+    File file = getIndexFile(index.entityType);
+    File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))))) {
+      out.writeInt(FORMAT_VERSION);
+      out.writeUTF(index.entityType);
+      // identifiers are only added: encoded values of the tables are all in the later copy of the identifiers
+      Map<String, TableEntry> tables = Maps.newHashMap(index.tables);
+      List<String> identifiers = index.getIdentifiers();
+      out.writeInt(identifiers.size());
+      for (String identifier : identifiers) out.writeUTF(identifier);
+      out.writeInt(tables.size());
+      for (Map.Entry<String, TableEntry> entry : tables.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeBoolean(entry.getValue().view);
+        Set<String> references = entry.getValue().references;
+        out.writeInt(references == null ? -1 : references.size());
+        if (references != null) for (String reference : references) out.writeUTF(reference);
+        out.writeUTF(entry.getValue().stamp);
+        long[] words = entry.getValue().entities.toLongArray();
+        out.writeInt(words.length);
+        for (long word : words) out.writeLong(word);
+      }
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private EntityTypeIndex read(File file) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+      if (in.readInt() != FORMAT_VERSION) throw new IOException("Unsupported format version");
+      EntityTypeIndex index = new EntityTypeIndex(in.readUTF());
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) index.encode(in.readUTF());
+      int tableCount = in.readInt();
+      for (int i = 0; i < tableCount; i++) {
+        String reference = in.readUTF();
+        boolean view = in.readBoolean();
+        int referenceCount = in.readInt();
+        Set<String> references = referenceCount < 0 ? null : Sets.newHashSet();
+        for (int j = 0; j < referenceCount; j++) references.add(in.readUTF());
+        String stamp = in.readUTF();
+        long[] words = new long[in.readInt()];
+        for (int j = 0; j < words.length; j++) words[j] = in.readLong();
+        if (!stamp.isEmpty())
+          index.tables.put(reference, new TableEntry(view, references, stamp, BitSet.valueOf(words)));
+      }
+      return index;
+    }
+  }
+
+  /**
+   * The encoded identifiers of an entity type and the entities of each table of this type.
+   */
+  private static class EntityTypeIndex {
+
+    private final String entityType;
+
+    private final Map<String, Integer> identifiers = Maps.newConcurrentMap();
+
+    private final List<String> identifiersById = Lists.newArrayList();
+
+    private final Map<String, TableEntry> tables = Maps.newConcurrentMap();
+
+    /**
+     * Tables being indexed, with the token of their indexing.
+     */
+    private final Map<String, Object> pending = Maps.newConcurrentMap();
+
+    private int compactionThreshold;
+
+    private EntityTypeIndex(String entityType) {
+      this.entityType = entityType;
+    }
+
+    private TableEntry indexTable(ValueTable table, String stamp) {
+      long start = System.currentTimeMillis();
+      BitSet entities = new BitSet();
+      for (VariableEntity entity : table.getVariableEntities()) {
+        entities.set(encode(entity.getIdentifier()));
+      }
+      log.debug("Entities of table {} indexed in {}ms", toReference(table), System.currentTimeMillis() - start);
+      return new TableEntry(table.isView(), getFromReferences(table), stamp, entities);
+    }
+
+    private int encode(String identifier) {
+      Integer id = identifiers.get(identifier);
+      if (id != null) return id;
+      synchronized (identifiersById) {
+        return identifiers.computeIfAbsent(identifier, k -> {
+          identifiersById.add(k);
+          return identifiersById.size() - 1;
+        });
+      }
+    }
+
+    private int getIdentifierCount() {
+      synchronized (identifiersById) {
+        return identifiersById.size();
+      }
+    }
+
+    private List<String> getIdentifiers() {
+      synchronized (identifiersById) {
+        return Lists.newArrayList(identifiersById);
+      }
+    }
+  }
+
+  private static class TableEntry {
+
+    private final boolean view;
+
+    /**
+     * References of the tables a view is built on, null if not known.
+     */
+    private final Set<String> references;
+
+    private final String stamp;
+
+    private final BitSet entities;
+
+    private TableEntry(boolean view, Set<String> references, String stamp, BitSet entities) {
+      this.view = view;
+      this.references = references;
+      this.stamp = stamp;
+      this.entities = entities;
+    }
+
+    private boolean isBuiltOn(Set<String> tableReferences) {
+      if (!view) return false;
+      return references == null || references.stream().anyMatch(tableReferences::contains);
+    }
+  }
+
+}
@@ -14,6 +14,9 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import javax.validation.constraints.NotNull;
 
@@ -43,6 +46,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.StringUtils;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.Maps;
 
 import static org.obiba.magma.math.summary.AbstractVariableSummary.VariableSummaryBuilder;
@@ -58,6 +62,9 @@ public abstract class AbstractVariableSummaryCachedService< //
   private final Map<String, Map<String, TVariableSummaryBuilder>> summaryBuilders = Collections
       .synchronizedMap(new HashMap<String, Map<String, TVariableSummaryBuilder>>());
 
+  // summaries being computed by cache key, shared by the concurrent requests of the same summary
+  private final ConcurrentMap<String, FutureTask<TVariableSummary>> computingSummaries = Maps.newConcurrentMap();
+
   @NotNull
   protected abstract Cache getCache();
 
@@ -85,8 +92,17 @@ public abstract class AbstractVariableSummaryCachedService< //
   }
 
   protected void computeAndCacheSummaries(ValueTable table) {
+    cacheSummaries(table, getSummaryBuilders(table));
+  }
+
+  /**
+   * Build and cache the summaries from builders that were fed with the values of the table.
+   *
+   * @param table
+   * @param variableSummaryBuilders
+   */
+  protected void cacheSummaries(ValueTable table, Iterable<TVariableSummaryBuilder> variableSummaryBuilders) {
     Cache cache = getCache();
-    Iterable<TVariableSummaryBuilder> variableSummaryBuilders = getSummaryBuilders(table);
     for(TVariableSummaryBuilder summaryBuilder : variableSummaryBuilders) {
       String variableName = summaryBuilder.getVariable().getName();
       log.debug("Compute {} summary", variableName);
@@ -129,7 +145,7 @@ public abstract class AbstractVariableSummaryCachedService< //
     return inCache;
   }
 
-  private boolean isTransientVariable(AttributeAware variable) {
+  static boolean isTransientVariable(AttributeAware variable) {
     return variable.hasAttribute("opal", "transient") &&
         (boolean) variable.getAttribute("opal", "transient").getValue().getValue();
   }
@@ -163,11 +179,32 @@ public abstract class AbstractVariableSummaryCachedService< //
   }
 
   private TVariableSummary cacheSummary(TVariableSummaryFactory summaryFactory, Ehcache cache, String key) {
-    TVariableSummary summary = summaryFactory.getSummary();
-
-    log.trace("Cache {} summary for {} ({})", getSummaryType(summaryFactory), summary.getVariableName(), key);
-    cache.put(new Element(key, summary));
-    return summary;
+    FutureTask<TVariableSummary> task = new FutureTask<>(() -> {
+      TVariableSummary summary = summaryFactory.getSummary();
+      log.trace("Cache {} summary for {} ({})", getSummaryType(summaryFactory), summary.getVariableName(), key);
+      cache.put(new Element(key, summary));
+      return summary;
+    });
+    FutureTask<TVariableSummary> computing = computingSummaries.putIfAbsent(key, task);
+    if(computing == null) {
+      computing = task;
+      try {
+        task.run();
+      } finally {
+        computingSummaries.remove(key, task);
+      }
+    } else {
+      log.debug("Wait for {} summary being computed for {} ({})", getSummaryType(summaryFactory),
+          summaryFactory.getVariable().getName(), key);
+    }
+    try {
+      return computing.get();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch(ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
   }
 
   private boolean isCacheObsolete(Element element, Timestamped table) {
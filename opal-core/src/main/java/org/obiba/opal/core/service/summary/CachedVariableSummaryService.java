@@ -11,7 +11,13 @@
 package org.obiba.opal.core.service.summary;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.stream.Collectors;
 
 import javax.validation.constraints.NotNull;
 
@@ -19,8 +25,10 @@ import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
 
 import org.obiba.magma.Value;
+import org.obiba.magma.ValueSet;
 import org.obiba.magma.ValueTable;
 import org.obiba.magma.Variable;
+import org.obiba.magma.VariableValueSource;
 import org.obiba.magma.math.summary.AbstractVariableSummary;
 import org.obiba.magma.math.summary.BinaryVariableSummary;
 import org.obiba.magma.math.summary.BinaryVariableSummaryFactory;
@@ -44,8 +52,13 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
 
 @Component
 public class CachedVariableSummaryService implements VariableSummaryService {
@@ -61,10 +74,20 @@ public class CachedVariableSummaryService implements VariableSummaryService {
   private final Map<Class<? extends VariableSummaryFactory<?>>, AbstractVariableSummaryCachedService<?, ?, ?>>
       summaryServices = new HashMap<>();
 
+  private final ContinuousVariableSummaryCachedService continuousSummaryService = new ContinuousVariableSummaryCachedService();
+
+  private final CategoricalVariableSummaryCachedService categoricalSummaryService = new CategoricalVariableSummaryCachedService();
+
+  private final DefaultVariableSummaryCachedService defaultSummaryService = new DefaultVariableSummaryCachedService();
+
+  // table scans by table reference and variable names, shared by the concurrent requests of the same scan and joined by
+  // the summary requests of the scanned variables
+  private final ConcurrentMap<String, TableScan> computingTables = Maps.newConcurrentMap();
+
   public CachedVariableSummaryService() {
-    summaryServices.put(ContinuousVariableSummaryFactory.class, new ContinuousVariableSummaryCachedService());
-    summaryServices.put(CategoricalVariableSummaryFactory.class, new CategoricalVariableSummaryCachedService());
-    summaryServices.put(DefaultVariableSummaryFactory.class, new DefaultVariableSummaryCachedService());
+    summaryServices.put(ContinuousVariableSummaryFactory.class, continuousSummaryService);
+    summaryServices.put(CategoricalVariableSummaryFactory.class, categoricalSummaryService);
+    summaryServices.put(DefaultVariableSummaryFactory.class, defaultSummaryService);
     summaryServices.put(BinaryVariableSummaryFactory.class, new BinaryVariableSummaryCachedService());
     summaryServices.put(TextVariableSummaryFactory.class, new TextVariableSummaryCachedService());
     summaryServices.put(GeoVariableSummaryFactory.class, new GeoVariableSummaryCachedService());
@@ -111,6 +134,42 @@ public class CachedVariableSummaryService implements VariableSummaryService {
     log.info("Variables summaries for {} computed in {}", table.getTableReference(), stopwatch.stop());
   }
 
+  @Override
+  public void computeSummaries(@NotNull ValueTable table, @NotNull Iterable<Variable> variables) {
+    if(!cacheSummaries) {
+      log.info("Variable summaries cache disabled!");
+      return;
+    }
+    List<Variable> summarizedVariables = Lists.newArrayList(variables).stream()
+        .filter(variable -> !BinaryType.get().equals(variable.getValueType()))
+        .filter(variable -> !AbstractVariableSummaryCachedService.isTransientVariable(variable))
+        .collect(Collectors.toList());
+    if(summarizedVariables.isEmpty()) return;
+
+    String key = table.getTableReference() + ":" + Joiner.on(",").join(Ordering.natural()
+        .sortedCopy(summarizedVariables.stream().map(Variable::getName).collect(Collectors.toList())));
+    TableScan scan = new TableScan(table, summarizedVariables);
+    TableScan computing = computingTables.putIfAbsent(key, scan);
+    if(computing == null) {
+      computing = scan;
+      try {
+        scan.task.run();
+      } finally {
+        computingTables.remove(key, scan);
+      }
+    } else {
+      log.debug("Wait for variables summaries of {} being computed", table.getTableReference());
+    }
+    try {
+      computing.task.get();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch(ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
   @Override
   public void clearComputingSummaries(@NotNull ValueTable valueTable) {
     if(!cacheSummaries) return;
@@ -125,6 +184,7 @@ public class CachedVariableSummaryService implements VariableSummaryService {
   public <TVariableSummary extends VariableSummary, //
       TVariableSummaryFactory extends VariableSummaryFactory<TVariableSummary>> TVariableSummary getSummary(
       @NotNull VariableSummaryFactory<TVariableSummary> summaryFactory, boolean refreshCache) {
+    if(!refreshCache) awaitTableScan(summaryFactory);
     return getService((Class<TVariableSummaryFactory>) summaryFactory.getClass())
         .getSummary(summaryFactory, refreshCache);
   }
@@ -137,6 +197,88 @@ public class CachedVariableSummaryService implements VariableSummaryService {
     return getService((Class<TVariableSummaryFactory>) summaryFactory.getClass()).isSummaryCached(summaryFactory);
   }
 
+  /**
+   * Wait for the table scans in progress that compute the default summary of the variable, so that it is served from
+   * the cache instead of being computed again.
+   *
+   * @param summaryFactory
+   */
+  private void awaitTableScan(VariableSummaryFactory<?> summaryFactory) {
+    if(!(summaryFactory instanceof CategoricalVariableSummaryFactory) &&
+        !(summaryFactory instanceof ContinuousVariableSummaryFactory) &&
+        !(summaryFactory instanceof DefaultVariableSummaryFactory)) return;
+    String tableReference = summaryFactory.getTable().getTableReference();
+    String variableName = summaryFactory.getVariable().getName();
+    for(TableScan scan : computingTables.values()) {
+      if(!scan.includes(tableReference, variableName)) continue;
+      log.debug("Wait for summary of variable {} being computed by the scan of {}", variableName, tableReference);
+      try {
+        scan.task.get();
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch(ExecutionException e) {
+        // the summary is computed on its own
+        log.debug("Scan of {} failed", tableReference, e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Read the values of each value set once and feed the summary builders of all the variables, the same way as the
+   * stacked values.
+   *
+   * @param table
+   * @param variables
+   */
+  private void scanTable(ValueTable table, List<Variable> variables) {
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    List<VariableValueSource> sources = Lists.newArrayList();
+    List<CategoricalVariableSummary.Builder> categoricalBuilders = Lists.newArrayList();
+    List<ContinuousVariableSummary.Builder> continuousBuilders = Lists.newArrayList();
+    List<DefaultVariableSummary.Builder> defaultBuilders = Lists.newArrayList();
+    for(Variable variable : variables) {
+      sources.add(table.getVariableValueSource(variable.getName()));
+      categoricalBuilders.add(categoricalSummaryService.newVariableSummaryBuilder(variable));
+      continuousBuilders.add(variable.getValueType().isNumeric() ? continuousSummaryService.newVariableSummaryBuilder(variable) : null);
+      defaultBuilders.add(variable.getValueType().isNumeric() ? null : defaultSummaryService.newVariableSummaryBuilder(variable));
+    }
+    for(ValueSet valueSet : table.getValueSets()) {
+      for(int i = 0; i < sources.size(); i++) {
+        Value value = sources.get(i).getValue(valueSet);
+        categoricalBuilders.get(i).addValue(value);
+        if(continuousBuilders.get(i) != null) continuousBuilders.get(i).addValue(value);
+        if(defaultBuilders.get(i) != null) defaultBuilders.get(i).addValue(value);
+      }
+    }
+    categoricalSummaryService.cacheSummaries(table, categoricalBuilders);
+    continuousSummaryService.cacheSummaries(table, continuousBuilders.stream().filter(b -> b != null).collect(Collectors.toList()));
+    defaultSummaryService.cacheSummaries(table, defaultBuilders.stream().filter(b -> b != null).collect(Collectors.toList()));
+    log.info("Summaries of {} variables of {} computed in {}", variables.size(), table.getTableReference(), stopwatch.stop());
+  }
+
+  /**
+   * A scan of the table that computes the default summaries of some of its variables.
+   */
+  private class TableScan {
+
+    private final String tableReference;
+
+    private final Set<String> variableNames;
+
+    private final FutureTask<Void> task;
+
+    private TableScan(ValueTable table, List<Variable> variables) {
+      tableReference = table.getTableReference();
+      variableNames = variables.stream().map(Variable::getName).collect(Collectors.toSet());
+      task = new FutureTask<>(() -> scanTable(table, variables), null);
+    }
+
+    private boolean includes(String reference, String variableName) {
+      return tableReference.equals(reference) && variableNames.contains(variableName);
+    }
+  }
+
   private class ContinuousVariableSummaryCachedService extends
       AbstractVariableSummaryCachedService<ContinuousVariableSummary, ContinuousVariableSummaryFactory, ContinuousVariableSummary.Builder> {
 
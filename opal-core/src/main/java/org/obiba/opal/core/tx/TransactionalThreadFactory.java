@@ -13,6 +13,8 @@ import java.util.concurrent.ThreadFactory;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
 import org.springframework.transaction.support.TransactionTemplate;
 
 @Component
@@ -26,4 +28,19 @@ public class TransactionalThreadFactory implements ThreadFactory {
     return new TransactionalThread(transactionTemplate, runnable);
   }
 
+  /**
+   * Wrap the runnable so that it is executed in a transaction by any thread, for instance one of a pool.
+   *
+   * @param runnable
+   * @return
+   */
+  public Runnable newTransactionalRunnable(Runnable runnable) {
+    return () -> transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+      @Override
+      protected void doInTransactionWithoutResult(TransactionStatus status) {
+        runnable.run();
+      }
+    });
+  }
+
 }
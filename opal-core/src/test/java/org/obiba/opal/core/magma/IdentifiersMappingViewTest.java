@@ -19,6 +19,7 @@ import org.obiba.magma.support.VariableEntityBean;
 import org.obiba.magma.type.IntegerType;
 import org.obiba.magma.type.TextType;
 import org.obiba.opal.core.identifiers.IdentifiersMapping;
+import org.obiba.opal.core.identifiers.IdentifiersMappingIndex;
 import org.obiba.opal.core.magma.IdentifiersMappingView.Policy;
 
 import com.google.common.collect.ImmutableSet;
@@ -259,6 +260,17 @@ public class IdentifiersMappingViewTest {
       return null;
     }
 
+    @NotNull
+    @Override
+    public IdentifiersMappingIndex getIdentifiersMappingIndex(@NotNull String entityType, @NotNull String idMapping) {
+      return IdentifiersMappingIndex.build(keysTable, idMapping);
+    }
+
+    @Override
+    public void invalidateIdentifiersMappingIndex(@NotNull String entityType) {
+
+    }
+
     @NotNull
     @Override
     public String getTableReference(@NotNull String entityType) {
@@ -275,6 +287,11 @@ public class IdentifiersMappingViewTest {
       return false;
     }
 
+    @Override
+    public int getIdentifiersBatchSize() {
+      return 10000;
+    }
+
     @Override
     public void start() {
 
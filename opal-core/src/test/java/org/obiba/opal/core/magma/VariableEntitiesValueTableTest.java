@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.opal.core.magma;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.obiba.magma.Datasource;
+import org.obiba.magma.MagmaEngine;
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.support.StaticValueTable;
+import org.obiba.magma.support.VariableEntityBean;
+import org.obiba.magma.type.IntegerType;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class VariableEntitiesValueTableTest {
+
+  private StaticValueTable table;
+
+  @Before
+  public void setUp() {
+    MagmaEngine.get();
+    table = new StaticValueTable(EasyMock.createMock(Datasource.class), "table", ImmutableSet.of("1", "2", "3", "4"));
+    table.addVariables(IntegerType.get(), "Var1");
+    for(int i = 1; i < 5; i++) {
+      table.addValues("" + i, "Var1", i);
+    }
+  }
+
+  @After
+  public void stopYourEngine() {
+    MagmaEngine.get().shutdown();
+  }
+
+  @Test
+  public void testEntitiesSubset() {
+    VariableEntitiesValueTable chunk = new VariableEntitiesValueTable(table,
+        Lists.newArrayList(entity("2"), entity("3")));
+
+    assertThat(chunk.getVariableEntities()).containsExactly(entity("2"), entity("3"));
+    assertThat(chunk.getVariableEntityCount()).isEqualTo(2);
+    assertThat(chunk.hasValueSet(entity("1"))).isFalse();
+    assertThat(chunk.hasValueSet(entity("3"))).isTrue();
+    assertThat(chunk.getVariables()).hasSize(1);
+  }
+
+  @Test
+  public void testEntityNotInTable() {
+    VariableEntitiesValueTable chunk = new VariableEntitiesValueTable(table, Lists.newArrayList(entity("5")));
+
+    assertThat(chunk.hasValueSet(entity("5"))).isFalse();
+  }
+
+  private VariableEntity entity(String identifier) {
+    return new VariableEntityBean(table.getEntityType(), identifier);
+  }
+
+}
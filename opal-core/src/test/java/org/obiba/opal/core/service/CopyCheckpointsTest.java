@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.core.service;
+
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.support.VariableEntityBean;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class CopyCheckpointsTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private CopyCheckpoints checkpoints;
+
+  @Before
+  public void setUp() {
+    checkpoints = new CopyCheckpoints(folder.getRoot());
+  }
+
+  @Test
+  public void testSaveAndGet() throws IOException {
+    checkpoints.save("t 1", new CopyCheckpoints.Checkpoint("ds.t", "abc", 10, 4, "0004"));
+
+    CopyCheckpoints.Checkpoint checkpoint = checkpoints.get("t 1");
+    assertThat(checkpoint.getSource()).isEqualTo("ds.t");
+    assertThat(checkpoint.getDigest()).isEqualTo("abc");
+    assertThat(checkpoint.getEntityCount()).isEqualTo(10);
+    assertThat(checkpoint.getCopied()).isEqualTo(4);
+    assertThat(checkpoint.getLastIdentifier()).isEqualTo("0004");
+    assertThat(checkpoints.get("t")).isNull();
+
+    checkpoints.delete("t 1");
+    assertThat(checkpoints.get("t 1")).isNull();
+  }
+
+  @Test
+  public void testGetResumeIndex() throws IOException {
+    List<VariableEntity> entities = newEntities("1", "2", "3", "4", "5");
+    assertThat(checkpoints.getResumeIndex("t", "ds.t", entities)).isEqualTo(0);
+
+    saveCheckpoint("ds.t", entities, 2);
+
+    assertThat(checkpoints.getResumeIndex("t", "ds.t", entities)).isEqualTo(2);
+  }
+
+  @Test
+  public void testGetResumeIndex_LastIdentifierNotFound() throws IOException {
+    checkpoints.save("t", new CopyCheckpoints.Checkpoint("ds.t", CopyCheckpoints.digest(newEntities("1", "3", "5")),
+        3, 2, "2"));
+
+    assertThat(checkpoints.getResumeIndex("t", "ds.t", newEntities("1", "3", "5"))).isEqualTo(1);
+  }
+
+  @Test
+  public void testGetResumeIndex_OtherSource() throws IOException {
+    List<VariableEntity> entities = newEntities("1", "2", "3", "4", "5");
+    saveCheckpoint("ds.t", entities, 2);
+
+    assertThat(checkpoints.getResumeIndex("t", "other.t", entities)).isEqualTo(0);
+  }
+
+  @Test
+  public void testGetResumeIndex_OtherEntities() throws IOException {
+    saveCheckpoint("ds.t", newEntities("1", "2", "3", "4", "5"), 2);
+
+    // same count, same last copied identifier
+    assertThat(checkpoints.getResumeIndex("t", "ds.t", newEntities("1", "2", "3", "4", "6"))).isEqualTo(0);
+  }
+
+  @Test
+  public void testDigest() {
+    assertThat(CopyCheckpoints.digest(newEntities("1", "2"))).isEqualTo(CopyCheckpoints.digest(newEntities("1", "2")));
+    assertThat(CopyCheckpoints.digest(newEntities("1", "2"))).isNotEqualTo(CopyCheckpoints.digest(newEntities("12")));
+  }
+
+  //
+  // Private methods
+  //
+
+  private void saveCheckpoint(String source, List<VariableEntity> entities, int copied) throws IOException {
+    checkpoints.save("t", new CopyCheckpoints.Checkpoint(source, CopyCheckpoints.digest(entities), entities.size(),
+        copied, entities.get(copied - 1).getIdentifier()));
+  }
+
+  private static List<VariableEntity> newEntities(String... identifiers) {
+    List<VariableEntity> entities = Lists.newArrayList();
+    for (String identifier : identifiers) entities.add(new VariableEntityBean("Participant", identifier));
+    return entities;
+  }
+
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.core.service;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class CopyValueTablesLockingActionTest {
+
+  @Test
+  public void testSplit() {
+    List<CopyValueTablesLockingAction.Chunk> chunks = CopyValueTablesLockingAction.Chunk.split(0, 5, 2);
+
+    assertThat(chunks).hasSize(3);
+    assertChunk(chunks.get(0), 0, 2, true);
+    assertChunk(chunks.get(1), 2, 4, false);
+    assertChunk(chunks.get(2), 4, 5, false);
+  }
+
+  @Test
+  public void testSplit_Resumed() {
+    List<CopyValueTablesLockingAction.Chunk> chunks = CopyValueTablesLockingAction.Chunk.split(3, 5, 2);
+
+    // variables are copied with the first chunk of the resumed copy
+    assertThat(chunks).hasSize(1);
+    assertChunk(chunks.get(0), 3, 5, true);
+  }
+
+  @Test
+  public void testSplit_Completed() {
+    assertThat(CopyValueTablesLockingAction.Chunk.split(5, 5, 2)).isEmpty();
+  }
+
+  private static void assertChunk(CopyValueTablesLockingAction.Chunk chunk, int start, int end, boolean copyMetadata) {
+    assertThat(chunk.getStart()).isEqualTo(start);
+    assertThat(chunk.getEnd()).isEqualTo(end);
+    assertThat(chunk.isCopyMetadata()).isEqualTo(copyMetadata);
+  }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.opal.core.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.obiba.magma.ValueTable;
+import org.obiba.magma.Variable;
+import org.obiba.magma.support.VariableEntityBean;
+import org.obiba.magma.type.TextType;
+import org.obiba.opal.core.identifiers.IdentifiersMappingIndex;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class OpalPrivateVariableEntityMapTest {
+
+  @Test
+  public void test_lookup_IndexIsSuppliedOnce() {
+    AtomicInteger supplied = new AtomicInteger();
+    OpalPrivateVariableEntityMap entityMap = new OpalPrivateVariableEntityMap(keysTable(), ownerVariable(),
+        () -> "generated", () -> {
+      IdentifiersMappingIndex index = new IdentifiersMappingIndex("Participant", "owner");
+      index.putIfPrivateAbsent("1", "p" + supplied.incrementAndGet());
+      return index;
+    });
+
+    assertThat(entityMap.privateEntity(entity("1")).getIdentifier()).isEqualTo("p1");
+    assertThat(entityMap.privateEntity(entity("1")).getIdentifier()).isEqualTo("p1");
+    assertThat(supplied.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void test_lookup_InvalidatedIndexIsNotUsed() {
+    AtomicInteger supplied = new AtomicInteger();
+    IdentifiersMappingIndex[] current = new IdentifiersMappingIndex[1];
+    OpalPrivateVariableEntityMap entityMap = new OpalPrivateVariableEntityMap(keysTable(), ownerVariable(),
+        () -> "generated", () -> {
+      current[0] = new IdentifiersMappingIndex("Participant", "owner");
+      current[0].putIfPrivateAbsent("1", "p" + supplied.incrementAndGet());
+      return current[0];
+    });
+    assertThat(entityMap.hasPublicEntity(entity("1"))).isTrue();
+
+    // identifiers table modified by other means
+    current[0].invalidate();
+    assertThat(entityMap.privateEntity(entity("1")).getIdentifier()).isEqualTo("p2");
+    assertThat(supplied.get()).isEqualTo(2);
+  }
+
+  //
+  // Private methods
+  //
+
+  private static VariableEntityBean entity(String identifier) {
+    return new VariableEntityBean("Participant", identifier);
+  }
+
+  private static ValueTable keysTable() {
+    ValueTable table = createNiceMock(ValueTable.class);
+    expect(table.getEntityType()).andStubReturn("Participant");
+    expect(table.getName()).andStubReturn("Participant");
+    replay(table);
+    return table;
+  }
+
+  private static Variable ownerVariable() {
+    return Variable.Builder.newVariable("owner", TextType.get(), "Participant").build();
+  }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.core.service;
+
+import com.google.common.collect.Sets;
+import org.junit.Before;
+import org.junit.Test;
+import org.obiba.magma.Datasource;
+import org.obiba.magma.ValueTable;
+import org.obiba.magma.support.NullTimestamps;
+import org.obiba.opal.core.domain.Project;
+import org.obiba.opal.core.domain.ProjectMetrics;
+import org.obiba.opal.core.event.ValueTableAddedEvent;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.easymock.EasyMock.*;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ProjectMetricsServiceImplTest {
+
+  private ProjectMetricsServiceImpl projectMetricsService;
+
+  private Datasource datasource;
+
+  private AtomicInteger reads;
+
+  @Before
+  public void setUp() {
+    projectMetricsService = new ProjectMetricsServiceImpl();
+    ReflectionTestUtils.setField(projectMetricsService, "ttl", 0L);
+    datasource = createMock(Datasource.class);
+    expect(datasource.getName()).andStubReturn("ds");
+    replay(datasource);
+    reads = new AtomicInteger();
+  }
+
+  @Test
+  public void testGetTableMetrics_ReadOnce() {
+    ValueTable table = newTable("t", false, 3);
+
+    assertThat(projectMetricsService.getTableMetrics(table).getVariableCount()).isEqualTo(3);
+    assertThat(projectMetricsService.getTableMetrics(table).getVariableCount()).isEqualTo(3);
+    assertThat(reads.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testGetTableMetrics_ReadAgainWhenTableModified() {
+    ValueTable table = newTable("t", false, 3);
+    ValueTable other = newTable("u", false, 2);
+    projectMetricsService.getTableMetrics(table);
+    projectMetricsService.getTableMetrics(other);
+
+    projectMetricsService.onValueTableAdded(new ValueTableAddedEvent("ds", "t"));
+    projectMetricsService.getTableMetrics(table);
+    projectMetricsService.getTableMetrics(other);
+
+    assertThat(reads.get()).isEqualTo(3);
+  }
+
+  @Test
+  public void testGetTableMetrics_ViewsReadAgainWhenAnyTableModified() {
+    ValueTable view = newTable("v", true, 1);
+    projectMetricsService.getTableMetrics(view);
+
+    projectMetricsService.onValueTableAdded(new ValueTableAddedEvent("ds", "t"));
+    projectMetricsService.getTableMetrics(view);
+
+    assertThat(reads.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void testGetTableMetrics_ReadAgainWhenModifiedDuringRead() {
+    ValueTable table = newTable("t", false, 3, () -> projectMetricsService.onValueTableAdded(new ValueTableAddedEvent("ds", "u")));
+    projectMetricsService.getTableMetrics(table);
+    projectMetricsService.getTableMetrics(table);
+
+    assertThat(reads.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void testGetTableMetrics_ReadOnceWhenOtherProjectModifiedDuringRead() {
+    ValueTable table = newTable("t", false, 3, () -> projectMetricsService.onValueTableAdded(new ValueTableAddedEvent("other", "u")));
+    projectMetricsService.getTableMetrics(table);
+    projectMetricsService.getTableMetrics(table);
+
+    assertThat(reads.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testGetTableMetrics_ReadAgainWhenExpired() throws InterruptedException {
+    ReflectionTestUtils.setField(projectMetricsService, "ttl", 1L);
+    ValueTable table = newTable("t", false, 3);
+    projectMetricsService.getTableMetrics(table);
+    projectMetricsService.getTableMetrics(table);
+    assertThat(reads.get()).isEqualTo(1);
+
+    Thread.sleep(1100);
+    projectMetricsService.getTableMetrics(table);
+
+    assertThat(reads.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void testGetProjectMetrics() {
+    Datasource projectDatasource = createMock(Datasource.class);
+    expect(projectDatasource.getValueTables())
+        .andStubReturn(Sets.newHashSet(newTable("t", false, 3), newTable("u", false, 2), newTable("v", true, 4)));
+    replay(projectDatasource);
+    Project project = createMock(Project.class);
+    expect(project.getName()).andStubReturn("ds");
+    expect(project.getDatasource()).andStubReturn(projectDatasource);
+    replay(project);
+
+    ProjectMetrics metrics = projectMetricsService.getProjectMetrics(project);
+
+    assertThat(metrics.getTableCount()).isEqualTo(3);
+    assertThat(metrics.getViewCount()).isEqualTo(1);
+    assertThat(metrics.getVariableCount()).isEqualTo(9);
+    assertThat(metrics.getDerivedVariableCount()).isEqualTo(4);
+  }
+
+  //
+  // Private methods
+  //
+
+  private ValueTable newTable(String name, boolean view, int variableCount) {
+    return newTable(name, view, variableCount, () -> {});
+  }
+
+  /**
+   * Mock a table which reads are counted, the given action being run during each read.
+   */
+  private ValueTable newTable(String name, boolean view, int variableCount, Runnable duringRead) {
+    ValueTable table = createMock(ValueTable.class);
+    expect(table.getName()).andStubReturn(name);
+    expect(table.getDatasource()).andStubReturn(datasource);
+    expect(table.isView()).andStubReturn(view);
+    expect(table.getVariableCount()).andStubAnswer(() -> {
+      reads.incrementAndGet();
+      duringRead.run();
+      return variableCount;
+    });
+    expect(table.getTimestamps()).andStubReturn(NullTimestamps.get());
+    replay(table);
+    return table;
+  }
+
+}
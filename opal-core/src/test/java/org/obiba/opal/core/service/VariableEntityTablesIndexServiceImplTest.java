@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.core.service;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.obiba.magma.*;
+import org.obiba.magma.support.ValueTableWrapper;
+import org.obiba.magma.support.VariableEntityBean;
+import org.obiba.magma.type.TextType;
+import org.obiba.opal.core.event.ValueTableAddedEvent;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.easymock.EasyMock.*;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class VariableEntityTablesIndexServiceImplTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final AtomicInteger reads = new AtomicInteger();
+
+  private final AtomicInteger lookups = new AtomicInteger();
+
+  private final AtomicReference<String> stamp = new AtomicReference<>("2021-01-01");
+
+  private final AtomicReference<List<VariableEntity>> entities = new AtomicReference<>();
+
+  private ValueTable table;
+
+  @Before
+  public void setUp() {
+    MagmaEngine.get();
+    entities.set(newEntities("1", "2"));
+    table = newTable("t");
+  }
+
+  @After
+  public void stopYourEngine() {
+    MagmaEngine.get().shutdown();
+  }
+
+  @Test
+  public void testHasValueSet_ReadOnce() {
+    VariableEntityTablesIndexServiceImpl service = newService();
+
+    assertThat(service.hasValueSet(table, entity("1"))).isTrue();
+    assertThat(service.hasValueSet(table, entity("2"))).isTrue();
+    assertThat(service.hasValueSet(table, entity("3"))).isFalse();
+    assertThat(reads.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testHasValueSet_ReindexedWhenStampChanges() {
+    VariableEntityTablesIndexServiceImpl service = newService();
+    assertThat(service.hasValueSet(table, entity("3"))).isFalse();
+
+    entities.set(newEntities("2", "3"));
+    stamp.set("2021-01-02");
+
+    assertThat(service.hasValueSet(table, entity("3"))).isTrue();
+    assertThat(service.hasValueSet(table, entity("1"))).isFalse();
+    assertThat(reads.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void testHasValueSet_NotIndexedWithoutStamp() {
+    stamp.set(null);
+    VariableEntityTablesIndexServiceImpl service = newService();
+
+    assertThat(service.hasValueSet(table, entity("1"))).isTrue();
+    assertThat(service.hasValueSet(table, entity("3"))).isFalse();
+    assertThat(reads.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void testStart_ReloadsSavedIndex() {
+    VariableEntityTablesIndexServiceImpl service = newService();
+    service.hasValueSet(table, entity("1"));
+    service.stop();
+
+    VariableEntityTablesIndexServiceImpl restarted = newService();
+    restarted.start();
+
+    assertThat(restarted.hasValueSet(table, entity("2"))).isTrue();
+    assertThat(restarted.hasValueSet(table, entity("3"))).isFalse();
+    assertThat(reads.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testStart_ReindexedWhenStampChangedWhileStopped() {
+    VariableEntityTablesIndexServiceImpl service = newService();
+    service.hasValueSet(table, entity("1"));
+    service.stop();
+    entities.set(newEntities("3"));
+    stamp.set("2021-01-02");
+
+    VariableEntityTablesIndexServiceImpl restarted = newService();
+    restarted.start();
+
+    assertThat(restarted.hasValueSet(table, entity("3"))).isTrue();
+    assertThat(restarted.hasValueSet(table, entity("1"))).isFalse();
+    assertThat(reads.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void testHasValueSet_CompactedIdentifiers() {
+    VariableEntityTablesIndexServiceImpl service = newService();
+    ReflectionTestUtils.setField(service, "maxIdentifiers", 3);
+    service.hasValueSet(table, entity("1"));
+
+    entities.set(newEntities("3", "4"));
+    stamp.set("2021-01-02");
+
+    assertThat(service.hasValueSet(table, entity("3"))).isTrue();
+    assertThat(service.hasValueSet(table, entity("4"))).isTrue();
+    assertThat(service.hasValueSet(table, entity("1"))).isFalse();
+    assertThat(reads.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void testHasValueSet_TableQueriedUntilIndexed() throws InterruptedException {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    CountDownLatch latch = new CountDownLatch(1);
+    // indexing is queued behind this task
+    executor.execute(() -> {
+      try {
+        latch.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    VariableEntityTablesIndexServiceImpl service = new VariableEntityTablesIndexServiceImpl(folder.getRoot(), executor);
+
+    assertThat(service.hasValueSet(table, entity("1"))).isTrue();
+    assertThat(service.hasValueSet(table, entity("3"))).isFalse();
+    assertThat(lookups.get()).isEqualTo(2);
+
+    latch.countDown();
+    executor.shutdown();
+    assertThat(executor.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+
+    assertThat(service.hasValueSet(table, entity("2"))).isTrue();
+    assertThat(lookups.get()).isEqualTo(2);
+    assertThat(reads.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testInvalidate_OnlyViewsBuiltOnModifiedTable() {
+    VariableEntityTablesIndexServiceImpl service = newService();
+    ValueTable other = newTable("u");
+    ValueTable view = newView("v", table);
+    service.hasValueSet(table, entity("1"));
+    service.hasValueSet(other, entity("1"));
+    service.hasValueSet(view, entity("1"));
+    assertThat(reads.get()).isEqualTo(3);
+
+    service.onValueTableAdded(new ValueTableAddedEvent("ds", "u"));
+    service.hasValueSet(table, entity("1"));
+    service.hasValueSet(other, entity("1"));
+    service.hasValueSet(view, entity("1"));
+    assertThat(reads.get()).isEqualTo(4);
+
+    service.onValueTableAdded(new ValueTableAddedEvent("ds", "t"));
+    service.hasValueSet(table, entity("1"));
+    service.hasValueSet(other, entity("1"));
+    service.hasValueSet(view, entity("1"));
+    assertThat(reads.get()).isEqualTo(6);
+  }
+
+  //
+  // Private methods
+  //
+
+  private VariableEntityTablesIndexServiceImpl newService() {
+    return new VariableEntityTablesIndexServiceImpl(folder.getRoot(), MoreExecutors.newDirectExecutorService());
+  }
+
+  private static VariableEntity entity(String identifier) {
+    return new VariableEntityBean("Participant", identifier);
+  }
+
+  private static List<VariableEntity> newEntities(String... identifiers) {
+    List<VariableEntity> list = Lists.newArrayList();
+    for (String identifier : identifiers) list.add(entity(identifier));
+    return list;
+  }
+
+  private ValueTable newTable(String name) {
+    ValueTable valueTable = createMock(ValueTable.class);
+    expectTable(valueTable, name, false);
+    replay(valueTable);
+    return valueTable;
+  }
+
+  private ValueTable newView(String name, ValueTable from) {
+    ValueTableWrapper view = createMock(ValueTableWrapper.class);
+    expectTable(view, name, true);
+    expect(view.getWrappedValueTable()).andStubReturn(from);
+    replay(view);
+    return view;
+  }
+
+  /**
+   * Expect a table which entities reads and lookups are counted.
+   */
+  private void expectTable(ValueTable valueTable, String name, boolean view) {
+    Datasource datasource = createMock(Datasource.class);
+    expect(datasource.getName()).andStubReturn("ds");
+    replay(datasource);
+    Timestamps timestamps = createMock(Timestamps.class);
+    expect(timestamps.getLastUpdate()).andStubAnswer(() -> TextType.get().valueOf(stamp.get()));
+    replay(timestamps);
+    expect(valueTable.getName()).andStubReturn(name);
+    expect(valueTable.getEntityType()).andStubReturn("Participant");
+    expect(valueTable.getDatasource()).andStubReturn(datasource);
+    expect(valueTable.isView()).andStubReturn(view);
+    expect(valueTable.getTimestamps()).andStubReturn(timestamps);
+    expect(valueTable.getVariableEntities()).andStubAnswer(() -> {
+      reads.incrementAndGet();
+      return entities.get();
+    });
+    expect(valueTable.hasValueSet(anyObject(VariableEntity.class))).andStubAnswer(() -> {
+      lookups.incrementAndGet();
+      return entities.get().contains(getCurrentArguments()[0]);
+    });
+  }
+
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.core.service.summary;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.obiba.magma.Datasource;
+import org.obiba.magma.MagmaEngine;
+import org.obiba.magma.ValueSet;
+import org.obiba.magma.Variable;
+import org.obiba.magma.math.summary.CategoricalVariableSummary;
+import org.obiba.magma.math.summary.CategoricalVariableSummaryFactory;
+import org.obiba.magma.math.summary.ContinuousVariableSummary;
+import org.obiba.magma.math.summary.ContinuousVariableSummaryFactory;
+import org.obiba.magma.math.summary.DefaultVariableSummaryFactory;
+import org.obiba.magma.support.StaticValueTable;
+import org.obiba.magma.type.IntegerType;
+import org.obiba.magma.type.TextType;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.google.common.collect.ImmutableSet;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class CachedVariableSummaryServiceTest {
+
+  private CacheManager cacheManager;
+
+  private CachedVariableSummaryService summaryService;
+
+  private ScanCountingValueTable table;
+
+  @Before
+  public void setUp() {
+    MagmaEngine.get();
+    cacheManager = CacheManager.newInstance(new Configuration().name("variable-summary-test")
+        .defaultCache(new CacheConfiguration("default", 1000)));
+    for(String type : new String[] { "continuous", "categorical", "default", "binary", "text", "geo" }) {
+      cacheManager.addCache("opal-variable-summary-" + type);
+    }
+    summaryService = new CachedVariableSummaryService();
+    ReflectionTestUtils.setField(summaryService, "cacheSummaries", true);
+    ReflectionTestUtils.setField(summaryService, "cacheManager", cacheManager);
+
+    table = new ScanCountingValueTable();
+    table.addVariables(IntegerType.get(), "Var1", "Var2");
+    table.addVariables(TextType.get(), "Var3");
+    for(int i = 1; i < 5; i++) {
+      table.addValues("" + i, "Var1", i, "Var2", i * 10, "Var3", "text-" + i);
+    }
+  }
+
+  @After
+  public void stopYourEngine() {
+    cacheManager.shutdown();
+    MagmaEngine.get().shutdown();
+  }
+
+  @Test
+  public void testComputeSummaries_ScansTableOnce() {
+    summaryService.computeSummaries(table, table.getVariables());
+
+    assertThat(table.getScanCount()).isEqualTo(1);
+    for(Variable variable : table.getVariables()) {
+      assertThat(summaryService.isSummaryCached(categoricalFactory(variable))).isTrue();
+    }
+    assertThat(summaryService.isSummaryCached(continuousFactory(table.getVariable("Var1")))).isTrue();
+    assertThat(summaryService.isSummaryCached(continuousFactory(table.getVariable("Var2")))).isTrue();
+    assertThat(summaryService.isSummaryCached(defaultFactory(table.getVariable("Var3")))).isTrue();
+  }
+
+  @Test
+  public void testComputeSummaries_SubsetOfVariables() {
+    summaryService.computeSummaries(table, ImmutableSet.of(table.getVariable("Var1")));
+
+    assertThat(table.getScanCount()).isEqualTo(1);
+    assertThat(summaryService.isSummaryCached(continuousFactory(table.getVariable("Var1")))).isTrue();
+    assertThat(summaryService.isSummaryCached(continuousFactory(table.getVariable("Var2")))).isFalse();
+    assertThat(summaryService.isSummaryCached(categoricalFactory(table.getVariable("Var3")))).isFalse();
+  }
+
+  @Test
+  public void testGetSummary_ServedFromScan() {
+    summaryService.computeSummaries(table, table.getVariables());
+
+    CategoricalVariableSummaryFactory categoricalFactory = categoricalFactory(table.getVariable("Var1"));
+    CategoricalVariableSummary categorical = summaryService.getSummary(categoricalFactory, false);
+    assertThat(categorical).isSameAs(
+        cacheManager.getCache("opal-variable-summary-categorical").get(categoricalFactory.getCacheKey()).getObjectValue());
+
+    ContinuousVariableSummaryFactory continuousFactory = continuousFactory(table.getVariable("Var2"));
+    ContinuousVariableSummary continuous = summaryService.getSummary(continuousFactory, false);
+    assertThat(continuous).isSameAs(
+        cacheManager.getCache("opal-variable-summary-continuous").get(continuousFactory.getCacheKey()).getObjectValue());
+    assertThat(table.getScanCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testComputeSummaries_ConcurrentRequestsShareScan() throws Exception {
+    table.blockScans();
+    Thread first = new Thread(() -> summaryService.computeSummaries(table, table.getVariables()));
+    first.start();
+    assertThat(table.awaitScanStarted()).isTrue();
+
+    Thread second = new Thread(() -> summaryService.computeSummaries(table, table.getVariables()));
+    second.start();
+    // either waiting for the scan in progress, or blocked in its own scan
+    while(second.getState() != Thread.State.WAITING && second.isAlive()) {
+      Thread.sleep(10);
+    }
+    table.releaseScans();
+    first.join(TimeUnit.SECONDS.toMillis(10));
+    second.join(TimeUnit.SECONDS.toMillis(10));
+
+    assertThat(table.getScanCount()).isEqualTo(1);
+    assertThat(summaryService.isSummaryCached(continuousFactory(table.getVariable("Var1")))).isTrue();
+  }
+
+  @Test
+  public void testGetSummary_JoinsScanInProgress() throws Exception {
+    table.blockScans();
+    Thread scan = new Thread(() -> summaryService.computeSummaries(table, table.getVariables()));
+    scan.start();
+    assertThat(table.awaitScanStarted()).isTrue();
+
+    CategoricalVariableSummaryFactory categoricalFactory = categoricalFactory(table.getVariable("Var1"));
+    AtomicReference<CategoricalVariableSummary> summary = new AtomicReference<>();
+    Thread request = new Thread(() -> summary.set(summaryService.getSummary(categoricalFactory, false)));
+    request.start();
+    // waits for the scan instead of reading the variable values
+    request.join(200);
+    assertThat(request.isAlive()).isTrue();
+
+    table.releaseScans();
+    scan.join(TimeUnit.SECONDS.toMillis(10));
+    request.join(TimeUnit.SECONDS.toMillis(10));
+
+    assertThat(table.getScanCount()).isEqualTo(1);
+    assertThat(summary.get()).isSameAs(
+        cacheManager.getCache("opal-variable-summary-categorical").get(categoricalFactory.getCacheKey()).getObjectValue());
+  }
+
+  private CategoricalVariableSummaryFactory categoricalFactory(Variable variable) {
+    return new CategoricalVariableSummaryFactory.Builder() //
+        .variable(variable) //
+        .table(table) //
+        .valueSource(table.getVariableValueSource(variable.getName())) //
+        .distinct(TextType.get().equals(variable.getValueType()) && variable.areAllCategoriesMissing()) //
+        .build();
+  }
+
+  private ContinuousVariableSummaryFactory continuousFactory(Variable variable) {
+    return new ContinuousVariableSummaryFactory.Builder() //
+        .variable(variable) //
+        .table(table) //
+        .valueSource(table.getVariableValueSource(variable.getName())) //
+        .distribution(ContinuousVariableSummary.Distribution.normal) //
+        .build();
+  }
+
+  private DefaultVariableSummaryFactory defaultFactory(Variable variable) {
+    return new DefaultVariableSummaryFactory.Builder() //
+        .variable(variable) //
+        .table(table) //
+        .valueSource(table.getVariableValueSource(variable.getName())) //
+        .build();
+  }
+
+  /**
+   * Counts the reads of all the value sets, which can be blocked until released.
+   */
+  private static class ScanCountingValueTable extends StaticValueTable {
+
+    private final AtomicInteger scanCount = new AtomicInteger();
+
+    private final CountDownLatch scanStarted = new CountDownLatch(1);
+
+    private CountDownLatch scanReleased = new CountDownLatch(0);
+
+    private ScanCountingValueTable() {
+      super(EasyMock.createNiceMock(Datasource.class), "table", ImmutableSet.of("1", "2", "3", "4"));
+    }
+
+    @Override
+    public Iterable<ValueSet> getValueSets() {
+      scanCount.incrementAndGet();
+      scanStarted.countDown();
+      try {
+        scanReleased.await();
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return super.getValueSets();
+    }
+
+    int getScanCount() {
+      return scanCount.get();
+    }
+
+    void blockScans() {
+      scanReleased = new CountDownLatch(1);
+    }
+
+    void releaseScans() {
+      scanReleased.countDown();
+    }
+
+    boolean awaitScanStarted() throws InterruptedException {
+      return scanStarted.await(10, TimeUnit.SECONDS);
+    }
+  }
+
+}
@@ -10,27 +10,46 @@
 package org.obiba.opal.datashield;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import org.obiba.datashield.core.DSEnvironment;
+import org.obiba.datashield.core.DSMethod;
 import org.obiba.datashield.core.impl.DefaultDSMethod;
 import org.obiba.datashield.r.expr.ParseException;
-import org.obiba.datashield.r.expr.RScriptGenerator;
 import org.obiba.datashield.r.expr.RScriptGeneratorFactory;
 import org.obiba.opal.spi.r.AbstractROperationWithResult;
 import org.obiba.opal.spi.r.ROperation;
 import org.obiba.opal.spi.r.ROperations;
 
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.stream.Collectors;
 
 public abstract class AbstractRestrictedRScriptROperation extends AbstractROperationWithResult {
 
-  private final String script;
+  /**
+   * Symbol, in the methods environment, of the digest of the methods it was built with.
+   */
+  private static final String DIGEST_SYMBOL = ".opal.digest";
+
+  /**
+   * Validated and restricted scripts, by parser version, methods environment and original script.
+   */
+  private static final Cache<String, String> restrictedScripts = CacheBuilder.newBuilder()
+      .maximumSize(1000)
+      .recordStats()
+      .build();
 
+  private final String script;
 
   private final DSEnvironment environment;
 
-  private final RScriptGenerator rScriptGenerator;
+  private final String restrictedScript;
 
   @SuppressWarnings("ConstantConditions")
   public AbstractRestrictedRScriptROperation(String script, DSEnvironment environment,
@@ -42,14 +61,20 @@ public abstract class AbstractRestrictedRScriptROperation extends AbstractROpera
     this.script = script;
     this.environment = environment;
     DataShieldLog.userLog("parsing '{}'", script);
-    try {
-      this.rScriptGenerator = RScriptGeneratorFactory.make(rParserVersion, environment, script);
-    } catch (Throwable e) {
-      DataShieldLog.userLog("Script failed validation: " + e.getMessage());
-      if (e instanceof ParseException)
-        throw e;
-      throw new ParseException(e.getMessage(), e);
+    String key = rParserVersion + "\n" + environment.getMethodType().symbol() + "\n" + digest(environment, false) + "\n" + script;
+    String restricted = restrictedScripts.getIfPresent(key);
+    if (restricted == null) {
+      try {
+        restricted = RScriptGeneratorFactory.make(rParserVersion, environment, script).toScript();
+      } catch (Throwable e) {
+        DataShieldLog.userLog("Script failed validation: " + e.getMessage());
+        if (e instanceof ParseException)
+          throw e;
+        throw new ParseException(e.getMessage(), e);
+      }
+      restrictedScripts.put(key, restricted);
     }
+    this.restrictedScript = restricted;
   }
 
   @Override
@@ -58,39 +83,71 @@ public abstract class AbstractRestrictedRScriptROperation extends AbstractROpera
   }
 
   protected String restricted() {
-    return rScriptGenerator.toScript();
+    return restrictedScript;
   }
 
   /**
    * Returns a sequence of {@code ROperation} instances to run in order to prepare an R environment for executing the
    * methods defined by this {@code DataShieldEnvironment}. Once the operations are executed, an environment is setup
    * and the method {@code DataShieldMethod#invoke(Environment)} will allow obtaining the signature to invoke the
-   * method.
+   * method. The environment is built only if it does not exist in the R session or if it was built from different
+   * methods.
    *
    * @return a sequence of {@code ROperation} that will create a protected R environment for executing methods defined.
    */
   public Iterable<ROperation> prepareOps(DSEnvironment environment) {
     String envSymbol = environment.getMethodType().symbol();
-    List<ROperation> rops = environment.getMethods().stream()
+    List<String> assignments = environment.getMethods().stream()
         .filter(m -> !m.hasPackage())
-        .map(m -> ROperations.assign(m.getName(), ((DefaultDSMethod) m).getFunction(), envSymbol, true))
+        .map(m -> String.format("base::assign('%s', value={%s}, envir=%s)\nbase::lockBinding('%s', %s)",
+            m.getName(), ((DefaultDSMethod) m).getFunction(), envSymbol, m.getName(), envSymbol))
         .collect(Collectors.toList());
-    if (rops.isEmpty())
-      return rops;
+    if (assignments.isEmpty())
+      return ImmutableList.of();
 
-    return ImmutableList.<ROperation>builder()//
-        .add(ROperations.eval(String.format("base::rm(%s)", envSymbol), null))
-        .add(ROperations.assign(envSymbol, "base::new.env()"))
-        .addAll(rops)
+    String digest = digest(environment, true);
+    String rscript = String.format("base::is.null(if (!(base::exists('%s', inherits=FALSE) && base::is.environment(%s) && " +
+            "base::identical(base::get0('%s', envir=%s, inherits=FALSE), '%s'))) {\n", envSymbol, envSymbol, DIGEST_SYMBOL, envSymbol, digest) +
+        String.format("base::suppressWarnings(base::rm(%s))\n", envSymbol) +
+        String.format("%s <- base::new.env()\n", envSymbol) +
+        String.join("\n", assignments) + "\n" +
+        String.format("base::assign('%s', '%s', envir=%s)\n", DIGEST_SYMBOL, digest, envSymbol) +
         // Protect the contents of the environment
-        .add(ROperations.eval(String.format("base::lockEnvironment(%s, bindings=TRUE)", envSymbol), null))//
+        String.format("base::lockEnvironment(%s, bindings=TRUE)\n", envSymbol) +
         // Protect the contents of the environment
-        .add(ROperations.eval(String.format("base::lockBinding('%s', base::environment())", envSymbol), null))
-        .build();
+        String.format("base::lockBinding('%s', base::environment())\n", envSymbol) +
+        "})";
+    return ImmutableList.of(ROperations.eval(rscript, null));
   }
 
   @Override
   public String toString() {
     return script;
   }
+
+  static CacheStats getRestrictedScriptsStats() {
+    return restrictedScripts.stats();
+  }
+
+  /**
+   * Digest of the methods definition.
+   *
+   * @param environment
+   * @param customOnly only the methods that are not from a package
+   * @return
+   */
+  private static String digest(DSEnvironment environment, boolean customOnly) {
+    Hasher hasher = Hashing.sha256().newHasher();
+    for (DSMethod method : environment.getMethods()) {
+      if (customOnly && method.hasPackage()) continue;
+      hasher.putString(Strings.nullToEmpty(method.getName()), StandardCharsets.UTF_8).putByte((byte) 0);
+      if (method instanceof DefaultDSMethod) {
+        DefaultDSMethod m = (DefaultDSMethod) method;
+        hasher.putString(m.hasPackage() ? Strings.nullToEmpty(m.getPackage()) : "", StandardCharsets.UTF_8).putByte((byte) 0)
+            .putString(Strings.nullToEmpty(m.getFunction()), StandardCharsets.UTF_8).putByte((byte) 0);
+      } else
+        hasher.putString(method.toString(), StandardCharsets.UTF_8).putByte((byte) 0);
+    }
+    return hasher.hash().toString();
+  }
 }
@@ -24,9 +24,11 @@ import org.obiba.opal.core.domain.HasUniqueProperties;
 import org.obiba.opal.r.service.RServerProfile;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.TreeSet;
 import java.util.stream.Collectors;
 
 public class DataShieldProfile implements RServerProfile, DSConfiguration, HasUniqueProperties {
@@ -113,6 +115,15 @@ public class DataShieldProfile implements RServerProfile, DSConfiguration, HasUn
     return new DefaultDSEnvironment(type, environments.get(type));
   }
 
+  @Override
+  public synchronized Collection<String> getRPackages() {
+    return environments.values().stream()
+        .flatMap(List::stream)
+        .filter(DefaultDSMethod::hasPackage)
+        .map(DefaultDSMethod::getPackage)
+        .collect(Collectors.toCollection(TreeSet::new));
+  }
+
   @Override
   public Iterable<DSOption> getOptions() {
     return this.options.keySet().stream().map(k -> new DefaultDSOption(k, this.options.get(k))).collect(Collectors.toList());
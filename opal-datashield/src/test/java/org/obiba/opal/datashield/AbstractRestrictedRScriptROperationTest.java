@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.datashield;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.obiba.datashield.core.DSMethodType;
+import org.obiba.datashield.core.impl.DefaultDSMethod;
+import org.obiba.datashield.r.expr.ParseException;
+import org.obiba.opal.spi.r.ROperation;
+
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+public class AbstractRestrictedRScriptROperationTest {
+
+  private static final String PARSER_VERSION = "v2";
+
+  @Test
+  public void test_restrictedScriptIsCached() throws ParseException {
+    DataShieldEnvironment environment = environment(method("cacheMean", "function(x) mean(x)"));
+    long misses = AbstractRestrictedRScriptROperation.getRestrictedScriptsStats().missCount();
+    long hits = AbstractRestrictedRScriptROperation.getRestrictedScriptsStats().hitCount();
+
+    String first = new RestrictedRScriptROperation("cacheMean(D$x)", environment, PARSER_VERSION, null).restricted();
+    String second = new RestrictedRScriptROperation("cacheMean(D$x)", environment, PARSER_VERSION, null).restricted();
+
+    assertThat(second).isEqualTo(first);
+    assertThat(AbstractRestrictedRScriptROperation.getRestrictedScriptsStats().missCount()).isEqualTo(misses + 1);
+    assertThat(AbstractRestrictedRScriptROperation.getRestrictedScriptsStats().hitCount()).isEqualTo(hits + 1);
+  }
+
+  @Test
+  public void test_cacheIsKeyedByMethods() throws ParseException {
+    long misses = AbstractRestrictedRScriptROperation.getRestrictedScriptsStats().missCount();
+
+    new RestrictedRScriptROperation("keyedMean(D$x)", environment(method("keyedMean", "function(x) mean(x)")),
+        PARSER_VERSION, null);
+    // same script, method redefined
+    new RestrictedRScriptROperation("keyedMean(D$x)", environment(method("keyedMean", "function(x) base::mean(x)")),
+        PARSER_VERSION, null);
+    // same script and methods, other environment
+    new RestrictedAssignmentROperation("D", "keyedMean(D$x)",
+        new DataShieldEnvironment(DSMethodType.ASSIGN, Lists.newArrayList(method("keyedMean", "function(x) mean(x)"))),
+        PARSER_VERSION);
+
+    assertThat(AbstractRestrictedRScriptROperation.getRestrictedScriptsStats().missCount()).isEqualTo(misses + 3);
+  }
+
+  @Test
+  public void test_invalidScriptIsNotCached() {
+    DataShieldEnvironment environment = environment(method("invalidMean", "function(x) mean(x)"));
+    long misses = AbstractRestrictedRScriptROperation.getRestrictedScriptsStats().missCount();
+
+    for (int i = 0; i < 2; i++) {
+      try {
+        new RestrictedRScriptROperation("invalidMean(D$x", environment, PARSER_VERSION, null);
+        fail("ParseException expected");
+      } catch (ParseException e) {
+        // expected
+      }
+    }
+    assertThat(AbstractRestrictedRScriptROperation.getRestrictedScriptsStats().missCount()).isEqualTo(misses + 2);
+  }
+
+  @Test
+  public void test_prepareOps_DigestOfCustomMethods() throws ParseException {
+    DataShieldEnvironment environment = environment(method("prepMean", "function(x) mean(x)"),
+        packageMethod("prepLength", "dsBase::lengthDS", "1.0"));
+    String script = prepareScript(environment);
+
+    // same methods, same environment check
+    assertThat(prepareScript(environment(method("prepMean", "function(x) mean(x)"),
+        packageMethod("prepLength", "dsBase::lengthDS", "1.0")))).isEqualTo(script);
+    // package methods are not in the environment
+    assertThat(prepareScript(environment(method("prepMean", "function(x) mean(x)"),
+        packageMethod("prepLength", "dsBase::lengthDS", "2.0")))).isEqualTo(script);
+    // custom method redefined, environment is rebuilt
+    assertThat(prepareScript(environment(method("prepMean", "function(x) base::mean(x)"),
+        packageMethod("prepLength", "dsBase::lengthDS", "1.0")))).isNotEqualTo(script);
+
+    assertThat(script).contains("base::assign('prepMean', value={function(x) mean(x)}");
+    assertThat(script).doesNotContain("prepLength");
+  }
+
+  @Test
+  public void test_prepareOps_PackageMethodsOnly() throws ParseException {
+    DataShieldEnvironment environment = environment(packageMethod("pkgLength", "dsBase::lengthDS", "1.0"));
+    RestrictedRScriptROperation rop = new RestrictedRScriptROperation("pkgLength(D$x)", environment, PARSER_VERSION,
+        null);
+
+    assertThat(rop.prepareOps(environment)).isEmpty();
+  }
+
+  //
+  // Private methods
+  //
+
+  private static String prepareScript(DataShieldEnvironment environment) throws ParseException {
+    RestrictedRScriptROperation rop = new RestrictedRScriptROperation("prepMean(D$x)", environment, PARSER_VERSION,
+        null);
+    List<ROperation> ops = Lists.newArrayList(rop.prepareOps(environment));
+    assertThat(ops).hasSize(1);
+    return ops.get(0).toString();
+  }
+
+  private static DataShieldEnvironment environment(DefaultDSMethod... methods) {
+    return new DataShieldEnvironment(DSMethodType.AGGREGATE, Lists.newArrayList(methods));
+  }
+
+  private static DefaultDSMethod method(String name, String function) {
+    return new DefaultDSMethod(name, function);
+  }
+
+  private static DefaultDSMethod packageMethod(String name, String function, String version) {
+    return new DefaultDSMethod(name, function, "dsBase", version);
+  }
+
+}
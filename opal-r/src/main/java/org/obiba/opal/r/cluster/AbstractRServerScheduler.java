@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.r.cluster;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Maps;
+import org.obiba.opal.r.service.RServerState;
+
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Common scheduling rules: R servers that are not running or that have reached their R sessions capacity are
+ * excluded, and the load of each R server is estimated from its state and from the R sessions recently assigned to it
+ * (that are not necessarily reported by the state yet). The new R session of a user preferably goes to the R server
+ * of the previous one, unless that server is significantly more loaded than the one that would be chosen otherwise.
+ */
+public abstract class AbstractRServerScheduler implements RServerScheduler {
+
+  /**
+   * Time during which an assigned R session is accounted in the load of the R server.
+   */
+  private static final long ASSIGNMENT_WINDOW = TimeUnit.SECONDS.toMillis(10);
+
+  /**
+   * Difference of load above which the user affinity is not honored.
+   */
+  private static final double AFFINITY_SLACK = 1.0;
+
+  private final Map<String, Deque<Long>> assignments = Maps.newHashMap();
+
+  private final Cache<String, String> affinities = CacheBuilder.newBuilder()
+      .maximumSize(10000)
+      .expireAfterAccess(1, TimeUnit.HOURS)
+      .build();
+
+  private int maxSessionsPerServer = 0;
+
+  private boolean affinity = true;
+
+  /**
+   * Maximum count of R sessions per R server.
+   *
+   * @param maxSessionsPerServer 0 or less for no limit
+   */
+  public void setMaxSessionsPerServer(int maxSessionsPerServer) {
+    this.maxSessionsPerServer = maxSessionsPerServer;
+  }
+
+  public void setAffinity(boolean affinity) {
+    this.affinity = affinity;
+    if (!affinity) affinities.invalidateAll();
+  }
+
+  @Override
+  public synchronized RServerState select(String user, List<RServerState> states) {
+    long now = System.currentTimeMillis();
+    List<RServerState> available = states.stream()
+        .filter(RServerState::isRunning)
+        .filter(s -> maxSessionsPerServer <= 0 || getSessionsCount(s, now) < maxSessionsPerServer)
+        .collect(Collectors.toList());
+    if (available.isEmpty()) return null;
+
+    int maxFreeMemory = available.stream().mapToInt(RServerState::getSystemFreeMemory).max().orElse(0);
+    Map<String, Double> loads = Maps.newHashMap();
+    available.forEach(s -> loads.put(s.getName(), getLoad(s, now, maxFreeMemory)));
+
+    RServerState selected = choose(available, loads);
+    if (affinity && user != null) {
+      String preferred = affinities.getIfPresent(user);
+      if (preferred != null && !preferred.equals(selected.getName())) {
+        Optional<RServerState> preferredState = available.stream().filter(s -> s.getName().equals(preferred)).findFirst();
+        if (preferredState.isPresent() && loads.get(preferred) <= loads.get(selected.getName()) + AFFINITY_SLACK)
+          selected = preferredState.get();
+      }
+      affinities.put(user, selected.getName());
+    }
+    assignments.computeIfAbsent(selected.getName(), k -> new LinkedList<>()).addLast(now);
+    return selected;
+  }
+
+  /**
+   * Choose one of the R servers, all able to accept a new R session.
+   *
+   * @param available not empty
+   * @param loads estimated load by R server name
+   * @return
+   */
+  protected abstract RServerState choose(List<RServerState> available, Map<String, Double> loads);
+
+  //
+  // Private methods
+  //
+
+  /**
+   * Estimated count of R sessions, including the recently assigned ones.
+   *
+   * @param state
+   * @param now
+   * @return
+   */
+  private int getSessionsCount(RServerState state, long now) {
+    return state.getRSessionsCount() + getRecentAssignmentsCount(state.getName(), now);
+  }
+
+  /**
+   * Count of R sessions (busy ones weigh double) per core, including the one to be created, increased by up to 100%
+   * when the free memory is low compared to the other R servers.
+   *
+   * @param state
+   * @param now
+   * @param maxFreeMemory
+   * @return
+   */
+  private double getLoad(RServerState state, long now, int maxFreeMemory) {
+    double sessions = getSessionsCount(state, now) + state.getBusyRSessionsCount() + 1;
+    double load = sessions / Math.max(1, state.getSystemCores());
+    if (maxFreeMemory > 0)
+      load = load * (2 - Math.max(0, state.getSystemFreeMemory()) / (double) maxFreeMemory);
+    return load;
+  }
+
+  private int getRecentAssignmentsCount(String name, long now) {
+    Deque<Long> times = assignments.get(name);
+    if (times == null) return 0;
+    while (!times.isEmpty() && times.peekFirst() < now - ASSIGNMENT_WINDOW) times.pollFirst();
+    return times.size();
+  }
+
+}
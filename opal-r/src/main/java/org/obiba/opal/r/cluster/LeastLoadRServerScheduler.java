@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.r.cluster;
+
+import org.obiba.opal.r.service.RServerState;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Choose the R server with the lowest weighted load.
+ */
+public class LeastLoadRServerScheduler extends AbstractRServerScheduler {
+
+  @Override
+  protected RServerState choose(List<RServerState> available, Map<String, Double> loads) {
+    return available.stream()
+        .min(Comparator.comparingDouble(s -> loads.get(s.getName())))
+        .orElse(available.get(0));
+  }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.r.cluster;
+
+import org.obiba.opal.r.service.RServerState;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Pick two R servers at random and choose the least loaded one: avoids that all the concurrent requests are sent to
+ * the same R server when the load information is not up to date.
+ */
+public class PowerOfTwoChoicesRServerScheduler extends AbstractRServerScheduler {
+
+  private final Random random;
+
+  public PowerOfTwoChoicesRServerScheduler() {
+    this(new Random());
+  }
+
+  public PowerOfTwoChoicesRServerScheduler(Random random) {
+    this.random = random;
+  }
+
+  @Override
+  protected RServerState choose(List<RServerState> available, Map<String, Double> loads) {
+    if (available.size() == 1) return available.get(0);
+    int first = random.nextInt(available.size());
+    int second = random.nextInt(available.size() - 1);
+    if (second >= first) second++;
+    RServerState s1 = available.get(first);
+    RServerState s2 = available.get(second);
+    return loads.get(s1.getName()) <= loads.get(s2.getName()) ? s1 : s2;
+  }
+
+}
@@ -10,6 +10,8 @@
 
 package org.obiba.opal.r.cluster;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.eventbus.EventBus;
@@ -31,45 +33,117 @@ import org.slf4j.LoggerFactory;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 public class RServerCluster implements RServerClusterService {
 
   private static final Logger log = LoggerFactory.getLogger(RServerCluster.class);
 
+  /**
+   * Maximum count of R servers that are called concurrently.
+   */
+  private static final int FAN_OUT_THREADS = 16;
+
+  /**
+   * Deadline of the R servers inspection calls, in seconds.
+   */
+  private static final int READ_TIMEOUT = 30;
+
+  private static final String ALL_PACKAGES = "";
+
   private final String name;
 
   private final List<RServerService> rServerServices = Collections.synchronizedList(Lists.newArrayList());
 
   private final EventBus eventBus;
 
+  /**
+   * Requests for a R session wait in turn when the cluster is saturated.
+   */
+  private final ReentrantLock saturationQueue = new ReentrantLock(true);
+
+  private RServerScheduler scheduler = new LeastLoadRServerScheduler();
+
+  private long queueTimeout = TimeUnit.SECONDS.toMillis(60);
+
+  private ThreadPoolExecutor fanOutExecutor;
+
+  /**
+   * Installed packages (all of them or by name), complete results only.
+   */
+  private final Cache<String, List<OpalR.RPackageDto>> packagesCache = CacheBuilder.newBuilder()
+      .expireAfterWrite(10, TimeUnit.MINUTES)
+      .build();
+
+  private volatile Map<String, List<Opal.EntryDto>> dataShieldPackagesProperties;
+
   public RServerCluster(String name, EventBus eventBus) {
     this.eventBus = eventBus;
     this.name = name;
   }
 
+  public void setScheduler(RServerScheduler scheduler) {
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Set how long a request for a R session can wait for a R server to accept it, when the cluster is saturated.
+   *
+   * @param queueTimeout in seconds (0 to fail immediately)
+   */
+  public void setQueueTimeout(int queueTimeout) {
+    this.queueTimeout = TimeUnit.SECONDS.toMillis(Math.max(0, queueTimeout));
+  }
+
   public String getName() {
     return name;
   }
 
   public void addRServerService(RServerService service) {
     rServerServices.add(service);
+    invalidatePackagesCache();
   }
 
   public void removeRServerService(App app) {
     try {
       Optional<RServerService> service = rServerServices.stream()
           .filter(s -> s.isFor(app)).findFirst();
-      service.ifPresent(rServerServices::remove);
+      service.ifPresent(s -> {
+        rServerServices.remove(s);
+        s.dispose();
+      });
     } catch (Exception e) {
       // ignored
     }
+    invalidatePackagesCache();
   }
 
   public List<RServerService> getRServerServices() {
     return rServerServices;
   }
 
+  /**
+   * Forget the installed packages of all the R servers.
+   */
+  public void invalidatePackagesCache() {
+    packagesCache.invalidateAll();
+    dataShieldPackagesProperties = null;
+  }
+
+  /**
+   * Forget the installed package of all the R servers.
+   *
+   * @param name
+   */
+  public void invalidatePackagesCache(String name) {
+    packagesCache.invalidate(ALL_PACKAGES);
+    packagesCache.invalidate(name);
+    dataShieldPackagesProperties = null;
+  }
+
   public RServerService getRServerService(String sname) {
     Optional<RServerService> service = rServerServices.stream().filter(s -> s.getName().equals(sname)).findFirst();
     if (service.isPresent()) return service.get();
@@ -97,7 +171,13 @@ public class RServerCluster implements RServerClusterService {
   @Override
   public void stop() {
     rServerServices.forEach(RServerService::stop);
+    rServerServices.forEach(RServerService::dispose);
     eventBus.post(new RServerServiceStoppedEvent(getName()));
+    invalidatePackagesCache();
+    synchronized (this) {
+      if (fanOutExecutor != null) fanOutExecutor.shutdown();
+      fanOutExecutor = null;
+    }
   }
 
   /**
@@ -142,12 +222,12 @@ public class RServerCluster implements RServerClusterService {
 
   @Override
   public RServerSession newRServerSession(String user) throws RServerException {
-    return getNextRServerService().newRServerSession(user);
+    return getNextRServerService(user).newRServerSession(user);
   }
 
   @Override
   public void execute(ROperation rop) throws RServerException {
-    getNextRServerService().execute(rop);
+    getNextRServerService(null).execute(rop);
   }
 
   @Override
@@ -162,67 +242,41 @@ public class RServerCluster implements RServerClusterService {
 
   @Override
   public List<OpalR.RPackageDto> getInstalledPackagesDtos() {
+    List<OpalR.RPackageDto> cached = packagesCache.getIfPresent(ALL_PACKAGES);
+    if (cached != null) return Lists.newArrayList(cached);
+    FanOutResults<List<OpalR.RPackageDto>> results = invokeAll("list R packages",
+        service -> service::getInstalledPackagesDtos, READ_TIMEOUT);
     List<OpalR.RPackageDto> allPackages = Lists.newArrayList();
-    ExecutorService executor = Executors.newFixedThreadPool(rServerServices.size());
-    try {
-      List<Future<List<OpalR.RPackageDto>>> futurePkgs = executor.invokeAll(rServerServices.stream()
-          .map(service -> (Callable<List<OpalR.RPackageDto>>) service::getInstalledPackagesDtos)
-          .collect(Collectors.toList()));
-      for (Future<List<OpalR.RPackageDto>> fPkgs : futurePkgs) {
-        try {
-          allPackages.addAll(fPkgs.get());
-        } catch (ExecutionException e) {
-          // ignore
-        }
-      }
-      allPackages.sort(Comparator.comparing(OpalR.RPackageDto::getName));
-    } catch (InterruptedException e) {
-      log.error("Cannot retrieve all R packages", e);
-    }
-    return allPackages;
+    results.getValues().forEach(allPackages::addAll);
+    allPackages.sort(Comparator.comparing(OpalR.RPackageDto::getName));
+    if (results.isComplete()) packagesCache.put(ALL_PACKAGES, allPackages);
+    return Lists.newArrayList(allPackages);
   }
 
   @Override
   public List<OpalR.RPackageDto> getInstalledPackageDto(String name) {
+    List<OpalR.RPackageDto> cached = packagesCache.getIfPresent(name);
+    if (cached != null) return Lists.newArrayList(cached);
+    FanOutResults<List<OpalR.RPackageDto>> results = invokeAll("get R package " + name,
+        service -> () -> service.getInstalledPackageDto(name), READ_TIMEOUT);
     List<OpalR.RPackageDto> allPackages = Lists.newArrayList();
-    ExecutorService executor = Executors.newFixedThreadPool(rServerServices.size());
-    try {
-      List<Future<List<OpalR.RPackageDto>>> futurePkgs = executor.invokeAll(rServerServices.stream()
-          .map(service -> (Callable<List<OpalR.RPackageDto>>) service.getInstalledPackageDto(name))
-          .collect(Collectors.toList()));
-      for (Future<List<OpalR.RPackageDto>> fPkgs : futurePkgs) {
-        try {
-          allPackages.addAll(fPkgs.get());
-        } catch (ExecutionException e) {
-          // ignore
-        }
-      }
-      allPackages.sort(Comparator.comparing(OpalR.RPackageDto::getName));
-    } catch (InterruptedException e) {
-      log.error("Cannot retrieve all R packages", e);
-    }
-    return allPackages;
+    results.getValues().forEach(allPackages::addAll);
+    allPackages.sort(Comparator.comparing(OpalR.RPackageDto::getName));
+    // not cached when the package is not installed on some R server
+    if (results.isComplete()) packagesCache.put(name, allPackages);
+    return Lists.newArrayList(allPackages);
   }
 
   @Override
   public Map<String, List<Opal.EntryDto>> getDataShieldPackagesProperties() {
+    Map<String, List<Opal.EntryDto>> cached = dataShieldPackagesProperties;
+    if (cached != null) return Maps.newHashMap(cached);
+    FanOutResults<Map<String, List<Opal.EntryDto>>> results = invokeAll("list DataSHIELD packages",
+        service -> service::getDataShieldPackagesProperties, READ_TIMEOUT);
     Map<String, List<Opal.EntryDto>> allProperties = Maps.newHashMap();
-    ExecutorService executor = Executors.newFixedThreadPool(rServerServices.size());
-    try {
-      List<Future<Map<String, List<Opal.EntryDto>>>> futureProps = executor.invokeAll(rServerServices.stream()
-          .map(service -> (Callable<Map<String, List<Opal.EntryDto>>>) service::getDataShieldPackagesProperties)
-          .collect(Collectors.toList()));
-      for (Future<Map<String, List<Opal.EntryDto>>> fProps : futureProps) {
-        try {
-          allProperties.putAll(fProps.get());
-        } catch (ExecutionException e) {
-          // ignore
-        }
-      }
-    } catch (InterruptedException e) {
-      log.error("Cannot retrieve all Datashield packages properties", e);
-    }
-    return allProperties;
+    results.getValues().forEach(allProperties::putAll);
+    if (results.isComplete()) dataShieldPackagesProperties = allProperties;
+    return Maps.newHashMap(allProperties);
   }
 
   @Override
@@ -321,32 +375,21 @@ public class RServerCluster implements RServerClusterService {
 
   @Override
   public String[] getLog(Integer nbLines) {
-    ExecutorService executor = Executors.newFixedThreadPool(rServerServices.size());
-    try {
-      List<Future<List<String>>> futureLogs = executor.invokeAll(rServerServices.stream().map(service -> (Callable<List<String>>) () -> {
-        List<String> lines = Lists.newArrayList(String.format("[Info] %s R log start", service.getName()));
-        try {
-          lines.addAll(Arrays.asList(service.getLog(nbLines)));
-        } catch (Exception e) {
-          log.warn("Failed to retrieve R server log on {}", service.getName(), e);
-          lines.add("[Error] Failed to retrieve R server log on " + service.getName());
-        }
-        lines.add(String.format("[Info] %s R log end", service.getName()));
-        return lines;
-      }).collect(Collectors.toList()));
-      List<String> allLogs = Lists.newArrayList();
-      futureLogs.forEach(listFuture -> {
-        try {
-          allLogs.addAll(listFuture.get());
-        } catch (Exception e) {
-          // ignore
-        }
-      });
-      return allLogs.toArray(new String[0]);
-    } catch (InterruptedException e) {
-      log.error("Error while invoking all R servers", e);
-      return new String[]{"[Error] Failed to retrieve R server logs"};
-    }
+    FanOutResults<List<String>> results = invokeAll("get R log", service -> () -> {
+      List<String> lines = Lists.newArrayList(String.format("[Info] %s R log start", service.getName()));
+      try {
+        lines.addAll(Arrays.asList(service.getLog(nbLines)));
+      } catch (Exception e) {
+        log.warn("Failed to retrieve R server log on {}", service.getName(), e);
+        lines.add("[Error] Failed to retrieve R server log on " + service.getName());
+      }
+      lines.add(String.format("[Info] %s R log end", service.getName()));
+      return lines;
+    }, READ_TIMEOUT);
+    List<String> allLogs = Lists.newArrayList();
+    results.getValues().forEach(allLogs::addAll);
+    results.getFailures().forEach(sname -> allLogs.add("[Error] Failed to retrieve R server log on " + sname));
+    return allLogs.toArray(new String[0]);
   }
 
   //
@@ -395,12 +438,44 @@ public class RServerCluster implements RServerClusterService {
   //
 
   /**
-   * Get the next R server service that is running and not too busy (count of R sessions and their business)
+   * Get the next R server service that is running and not too busy, as chosen by the scheduler. If all the R servers
+   * are saturated, wait in turn (up to the queue timeout) for one of them to accept a new R session.
    *
+   * @param user
    * @return
    */
-  private RServerService getNextRServerService() {
-    Optional<RServerState> state = rServerServices.stream().map(s -> {
+  private RServerService getNextRServerService(String user) {
+    RServerService service = selectRServerService(user);
+    if (service != null) return service;
+    long deadline = System.currentTimeMillis() + queueTimeout;
+    try {
+      if (queueTimeout > 0 && saturationQueue.tryLock(queueTimeout, TimeUnit.MILLISECONDS)) {
+        try {
+          log.debug("R servers of cluster {} are saturated, waiting for one to be available", name);
+          long remaining;
+          while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+            Thread.sleep(Math.min(remaining, 1000));
+            service = selectRServerService(user);
+            if (service != null) return service;
+          }
+        } finally {
+          saturationQueue.unlock();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    throw new NoSuchElementException("All R servers are saturated in cluster: " + name);
+  }
+
+  /**
+   * Ask the scheduler for a R server.
+   *
+   * @param user
+   * @return null if the R servers are saturated
+   */
+  private RServerService selectRServerService(String user) {
+    List<RServerState> states = rServerServices.stream().map(s -> {
       try {
         return s.getState();
       } catch (RServerException e) {
@@ -409,18 +484,103 @@ public class RServerCluster implements RServerClusterService {
     })
         .filter(Objects::nonNull)
         .filter(RServerState::isRunning)
-        .min(Comparator.comparingInt(RServerState::getRSessionsCount));
-    if (state.isPresent())
-      return getRServerService(state.get().getName());
-    throw new NoSuchElementException("No R server is available in cluster: " + name);
+        .collect(Collectors.toList());
+    if (states.isEmpty())
+      throw new NoSuchElementException("No R server is available in cluster: " + name);
+    RServerState state = scheduler.select(user, states);
+    return state == null ? null : getRServerService(state.getName());
   }
 
   private void invokeAll(List<Callable<Void>> callables) {
-    ExecutorService executor = Executors.newFixedThreadPool(rServerServices.size());
     try {
-      executor.invokeAll(callables);
+      getFanOutExecutor().invokeAll(callables);
     } catch (InterruptedException e) {
       log.error("Error while invoking all R servers", e);
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Call all the R servers concurrently and collect the results of the ones that responded in time.
+   *
+   * @param operation description of the call, for reporting
+   * @param call the call to make on each R server
+   * @param timeout in seconds
+   * @param <T>
+   * @return
+   */
+  private <T> FanOutResults<T> invokeAll(String operation, Function<RServerService, Callable<T>> call, int timeout) {
+    List<RServerService> services = Lists.newArrayList(rServerServices);
+    FanOutResults<T> results = new FanOutResults<>();
+    if (services.isEmpty()) return results;
+    try {
+      List<Future<T>> futures = getFanOutExecutor().invokeAll(services.stream().map(call).collect(Collectors.toList()),
+          timeout, TimeUnit.SECONDS);
+      for (int i = 0; i < futures.size(); i++) {
+        String sname = services.get(i).getName();
+        try {
+          results.addValue(futures.get(i).get());
+        } catch (CancellationException e) {
+          log.warn("R server {} of cluster {} did not respond within {}s to: {}", sname, name, timeout, operation);
+          results.addFailure(sname);
+        } catch (ExecutionException e) {
+          log.debug("R server {} of cluster {} failed to: {}", sname, name, operation, e.getCause());
+          results.addFailure(sname);
+        }
+      }
+    } catch (InterruptedException e) {
+      log.error("Error while invoking all R servers", e);
+      Thread.currentThread().interrupt();
+      services.forEach(s -> results.addFailure(s.getName()));
+    }
+    if (!results.isComplete())
+      log.debug("Partial result for '{}' in cluster {}, missing R servers: {}", operation, name, results.getFailures());
+    return results;
+  }
+
+  /**
+   * Get the bounded executor for calling the R servers, which threads are released when idle.
+   *
+   * @return
+   */
+  private synchronized ExecutorService getFanOutExecutor() {
+    if (fanOutExecutor == null) {
+      AtomicInteger count = new AtomicInteger();
+      fanOutExecutor = new ThreadPoolExecutor(FAN_OUT_THREADS, FAN_OUT_THREADS, 60, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<>(), r -> {
+        Thread thread = new Thread(r, "R cluster " + name + " " + count.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+      });
+      fanOutExecutor.allowCoreThreadTimeOut(true);
+    }
+    return fanOutExecutor;
+  }
+
+  private static class FanOutResults<T> {
+
+    private final List<T> values = Lists.newArrayList();
+
+    private final List<String> failures = Lists.newArrayList();
+
+    void addValue(T value) {
+      if (value != null) values.add(value);
+    }
+
+    void addFailure(String serverName) {
+      failures.add(serverName);
+    }
+
+    List<T> getValues() {
+      return values;
+    }
+
+    List<String> getFailures() {
+      return failures;
+    }
+
+    boolean isComplete() {
+      return failures.isEmpty();
     }
   }
 
@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.r.cluster;
+
+import org.obiba.opal.r.service.RServerState;
+
+import java.util.List;
+
+/**
+ * Strategy for choosing the R server of a cluster on which a new R session is to be created.
+ */
+public interface RServerScheduler {
+
+  /**
+   * Choose a R server among the ones of the cluster, given their current state.
+   *
+   * @param user the R session owner, can be null
+   * @param states
+   * @return null if none of the R servers can accept a new R session
+   */
+  RServerState select(String user, List<RServerState> states);
+
+}
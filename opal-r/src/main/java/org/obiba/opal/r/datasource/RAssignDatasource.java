@@ -26,6 +26,7 @@ import org.obiba.opal.r.magma.util.NumberRange;
 import org.obiba.opal.spi.r.AbstractROperation;
 import org.obiba.opal.spi.r.ROperation;
 import org.obiba.opal.spi.r.RServerConnection;
+import org.obiba.opal.spi.r.RServerException;
 import org.obiba.opal.spi.r.RUtils;
 import org.obiba.opal.spi.r.datasource.RSessionHandler;
 import org.obiba.opal.spi.r.datasource.magma.MagmaRRuntimeException;
@@ -41,16 +42,27 @@ import java.util.UUID;
 import java.util.stream.Collectors;
 
 /**
- * A datasource that writes table data into a tibble in a R session. It first writes data in a CSV file and dictionary
- * information in R files. All these files are then sent to the R workspace and read into a tibble using the readr package.
+ * A datasource that writes table data into a tibble in a R session. Data are accumulated in typed column batches that
+ * are streamed to the R workspace in the R binary serialization format, and dictionary information is written in a
+ * R file that is sourced once all the data are assigned.
  */
 public class RAssignDatasource extends CsvDatasource {
 
   private static final Logger log = LoggerFactory.getLogger(RAssignDatasource.class);
 
+  // placeholder of the CSV table, never written
   private static final String DATA_FILE_NAME = ".data.csv.zip";
 
-  private static final String COLS_FILE_NAME = ".variable-cols.R";
+  private static final String BATCH_FILE_NAME = ".data-batch.rds";
+
+  private static final String BATCHES_SYMBOL = ".data.batches";
+
+  /**
+   * Count of cells (rows x columns) that are held in memory before being sent to R.
+   */
+  private static final int BATCH_CELLS = 2000000;
+
+  private static final int MIN_BATCH_ROWS = 100;
 
   private static final String ATTR_FILE_NAME = ".variable-attributes.R";
 
@@ -109,7 +121,7 @@ public class RAssignDatasource extends CsvDatasource {
       addValueTable(tableName, new File(parentFolder, DATA_FILE_NAME), entityType);
       Initialisables.initialise(getValueTable(tableName));
     }
-    return new RAssignValueTableWriter(super.createWriter(tableName, entityType), tableName, entityType, parentFolder);
+    return new RAssignValueTableWriter(tableName, entityType, parentFolder);
   }
 
   protected String getSymbol(String tableName) {
@@ -158,93 +170,174 @@ public class RAssignDatasource extends CsvDatasource {
   //
 
   /**
-   * A table writer wrapper to write data in CSV file and variables in R file, to be read by readr R package.
+   * A table writer that accumulates the values in typed column batches that are sent to the R session as soon as they
+   * are full. Repeatable variables are written in multiple lines.
    */
   private class RAssignValueTableWriter extends AbstractROperation implements ValueTableWriter {
 
-    private final ValueTableWriter wrapped;
-
     private final String tableName;
 
     private final String entityType;
 
-    private File dataFile;
+    private final File attributesFile;
+
+    private final Map<String, ValueType> columnTypes = Maps.newLinkedHashMap();
+
+    private RTibbleBatch batch;
 
-    private File colsFile;
+    private int batchCount = 0;
 
-    private File attributesFile;
+    private boolean closing = false;
 
-    RAssignValueTableWriter(ValueTableWriter wrapped, String tableName, String entityType, File parentFolder) {
-      this.wrapped = wrapped;
+    RAssignValueTableWriter(String tableName, String entityType, File parentFolder) {
       this.tableName = tableName;
       this.entityType = entityType;
-      this.dataFile = new File(parentFolder, DATA_FILE_NAME);
-      this.colsFile = new File(parentFolder, COLS_FILE_NAME);
       this.attributesFile = new File(parentFolder, ATTR_FILE_NAME);
     }
 
     @Override
     public VariableWriter writeVariables() {
-      return new RAssignVariableWriter(tableName, entityType, colsFile, attributesFile);
+      return new RAssignVariableWriter(this, tableName, attributesFile);
     }
 
     @NotNull
     @Override
     public ValueSetWriter writeValueSet(@NotNull VariableEntity entity) {
-      if (withMissings)
-        return wrapped.writeValueSet(entity);
-      else
-        return new RAssignValueSetWriter(wrapped.writeValueSet(entity));
+      return new RAssignValueSetWriter(this, entity);
     }
 
     @Override
-    public void close() {
-      wrapped.close();
-      // do read data and spec files with readr
+    public synchronized void close() {
+      // send the last batch, bind the batches and apply the attributes
+      if (closing) return;
+      closing = true;
       execute(this);
     }
 
+    synchronized void addColumn(Variable variable) {
+      // multiple lines are used for repeatable variables, then the column has the value type
+      columnTypes.put(variable.getName(), variable.getValueType());
+      if (batch != null) batch.addColumn(variable.getName(), variable.getValueType());
+    }
+
+    synchronized void addRows(String identifier, List<Map<String, Value>> lines) {
+      if (batch == null) batch = newBatch(Math.max(MIN_BATCH_ROWS, BATCH_CELLS / (columnTypes.size() + 1)));
+      for (Map<String, Value> line : lines) {
+        batch.addRow(identifier, line);
+      }
+      if (batch.isFull()) execute(this);
+    }
+
     @Override
     protected void doWithConnection() {
-      if (dataFile.exists()) {
-        doSendFiles();
-        doReadCSVFile();
+      try {
+        if (batch != null) doSendBatch();
+        if (closing && batchCount == 0) {
+          // no value sets: the typed columns are sent as an empty tibble
+          if (batch == null) batch = newBatch(MIN_BATCH_ROWS);
+          doSendBatch(true);
+        }
+        if (closing && batchCount > 0) {
+          doAssignBatches();
+          doReadAttributesFile();
+        }
+      } catch (RuntimeException e) {
+        // do not leave the batches sent so far in the R session workspace
+        if (batchCount > 0) doRemoveBatches();
+        batchCount = 0;
+        throw e;
+      }
+    }
+
+    private RTibbleBatch newBatch(int rows) {
+      RTibbleBatch newBatch = new RTibbleBatch(getEntityIdName(entityType), rows);
+      columnTypes.forEach(newBatch::addColumn);
+      return newBatch;
+    }
+
+    private void doSendBatch() {
+      doSendBatch(false);
+    }
+
+    /**
+     * Send the current batch to the R session workspace and append it to the list of batches.
+     *
+     * @param empty
+     */
+    private void doSendBatch(boolean empty) {
+      if (batch.getRowCount() == 0 && !empty) return;
+      log.debug("Writing batch {} of {} rows x {} columns to R session workspace", batchCount + 1, batch.getRowCount(),
+          batch.getColumnCount());
+      try {
+        writeFile(BATCH_FILE_NAME, batch.toRDS());
+      } catch (IOException | RServerException e) {
+        throw new MagmaRRuntimeException("Not able to write data batch of table: " + tableName, e);
       }
+      if (batchCount == 0)
+        eval(String.format("base::is.null(%s <- base::list(base::readRDS('%s')))", BATCHES_SYMBOL, BATCH_FILE_NAME));
+      else
+        eval(String.format("base::is.null(%s[[%d]] <- base::readRDS('%s'))", BATCHES_SYMBOL, batchCount + 1, BATCH_FILE_NAME));
+      eval(String.format("base::unlink('%s')", BATCH_FILE_NAME));
+      batchCount++;
+      batch = newBatch(batch.getCapacity());
     }
 
-    private void doSendFiles() {
-      // then send this file to R session's workspace
-      log.debug("Writing files from {} to R session workspace", dataFile.getParentFile().getAbsolutePath());
-      for (File child : dataFile.getParentFile().listFiles()) {
-        writeFile(child.getName(), child);
+    /**
+     * Bind the batches in one tibble.
+     */
+    private void doAssignBatches() {
+      try {
+        if (batchCount == 1) {
+          eval(String.format("base::is.null(base::assign('%s', %s[[1]]))", getSymbol(tableName), BATCHES_SYMBOL));
+        } else {
+          ensurePackage("vctrs");
+          eval(String.format("base::is.null(base::assign('%s', base::do.call(vctrs::vec_rbind, %s)))", getSymbol(tableName), BATCHES_SYMBOL));
+        }
+      } finally {
+        batchCount = 0;
+        doRemoveBatches();
       }
+      log.debug("Symbol {} assigned", getSymbol(tableName));
     }
 
     /**
-     * Read the CSV file in the R workspace with the appropriate data types.
+     * Remove the list of batches from the R session workspace.
      */
-    private void doReadCSVFile() {
-      log.debug("Reading the CSV file into a tibble");
-      ensurePackage("readr");
+    private void doRemoveBatches() {
+      try {
+        eval(String.format("base::is.null(base::suppressWarnings(base::rm(%s)))", BATCHES_SYMBOL));
+      } catch (RuntimeException e) {
+        log.warn("Unable to remove data batches of table {} from R session workspace: {}", tableName, e.getMessage());
+      }
+    }
+
+    /**
+     * Apply the variable attributes to the tibble columns.
+     */
+    private void doReadAttributesFile() {
+      if (!attributesFile.exists()) return;
       ensurePackage("labelled");
-      eval(String.format("base::source('%s')", COLS_FILE_NAME));
-      eval(String.format("base::is.null(base::assign('%s', readr::read_csv('%s', col_types = .cols)))", getSymbol(tableName), DATA_FILE_NAME));
-      eval("base::rm(.cols)");
+      writeFile(ATTR_FILE_NAME, attributesFile);
       eval(String.format("base::source('%s')", ATTR_FILE_NAME));
-      eval(String.format("base::unlink('%s')", DATA_FILE_NAME));
-      eval(String.format("base::unlink('%s')", COLS_FILE_NAME));
       eval(String.format("base::unlink('%s')", ATTR_FILE_NAME));
-      log.debug("Symbol {} assigned", getSymbol(tableName));
     }
 
   }
 
+  /**
+   * Collects the values of an entity and splits them in lines, one per occurrence of the repeatable variables.
+   */
   private class RAssignValueSetWriter implements ValueTableWriter.ValueSetWriter {
 
-    private final ValueTableWriter.ValueSetWriter wrapped;
+    private final RAssignValueTableWriter tableWriter;
+
+    private final VariableEntity entity;
 
-    private RAssignValueSetWriter(ValueTableWriter.ValueSetWriter wrapped) {
-      this.wrapped = wrapped;
+    private final Map<String, Value> values = Maps.newHashMap();
+
+    private RAssignValueSetWriter(RAssignValueTableWriter tableWriter, VariableEntity entity) {
+      this.tableWriter = tableWriter;
+      this.entity = entity;
     }
 
     @Override
@@ -253,40 +346,53 @@ public class RAssignDatasource extends CsvDatasource {
       if (!isWithMissings() && variable.isMissingValue(value)) {
         rval = variable.getValueType().nullValue();
       }
-      wrapped.writeValue(variable, rval);
+      values.put(variable.getName(), rval);
     }
 
     @Override
     public void remove() {
-      wrapped.remove();
+      // ignore
     }
 
     @Override
     public void close() {
-      wrapped.close();
+      int lineCount = 1;
+      for (Value value : values.values()) {
+        if (value != null && value.isSequence() && !value.isNull())
+          lineCount = Math.max(lineCount, value.asSequence().getSize());
+      }
+      List<Map<String, Value>> lines = Lists.newArrayListWithCapacity(lineCount);
+      for (int i = 0; i < lineCount; i++) {
+        Map<String, Value> line = Maps.newHashMap();
+        for (Map.Entry<String, Value> entry : values.entrySet()) {
+          Value value = entry.getValue();
+          if (value != null && value.isSequence()) {
+            List<Value> occurrences = value.isNull() ? null : value.asSequence().getValues();
+            line.put(entry.getKey(), occurrences != null && i < occurrences.size() ? occurrences.get(i) : null);
+          } else {
+            line.put(entry.getKey(), value);
+          }
+        }
+        lines.add(line);
+      }
+      tableWriter.addRows(entity.getIdentifier(), lines);
     }
   }
 
   /**
-   * Write column type specification for each variable.
+   * Declare a typed column for each variable and write the variable attributes in a R file.
    */
   private class RAssignVariableWriter implements ValueTableWriter.VariableWriter {
 
-    private final PrintWriter colsWriter;
+    private final RAssignValueTableWriter tableWriter;
 
     private final PrintWriter attributesWriter;
 
     private final String tableName;
 
-    RAssignVariableWriter(String tableName, String entityType, File colsFile, File attributesFile) {
+    RAssignVariableWriter(RAssignValueTableWriter tableWriter, String tableName, File attributesFile) {
+      this.tableWriter = tableWriter;
       this.tableName = tableName;
-      try {
-        this.colsWriter = new PrintWriter(new BufferedOutputStream(new FileOutputStream(colsFile)));
-      } catch (FileNotFoundException e) {
-        throw new MagmaRRuntimeException("Not able to write columns specification file: " + colsFile, e);
-      }
-      colsWriter.println(".cols <- readr::cols(");
-      colsWriter.print(String.format("  '%s' = col_character()", getEntityIdName(entityType)));
       try {
         this.attributesWriter = new PrintWriter(new BufferedOutputStream(new FileOutputStream(attributesFile)));
       } catch (FileNotFoundException e) {
@@ -296,29 +402,10 @@ public class RAssignDatasource extends CsvDatasource {
 
     @Override
     public void writeVariable(@NotNull Variable variable) {
-      writeVariableColumnSpecification(variable);
+      tableWriter.addColumn(variable);
       writeVariableAttributes(variable);
     }
 
-    private void writeVariableColumnSpecification(Variable variable) {
-      // column type
-      String type;
-      if (variable.getValueType().equals(IntegerType.get()))
-        type = "integer";
-      else if (variable.getValueType().equals(DecimalType.get()))
-        type = "double";
-      else if (variable.getValueType().equals(BooleanType.get()))
-        type = "logical";
-      else if (variable.getValueType().equals(DateType.get()))
-        type = "date";
-      else if (variable.getValueType().equals(DateTimeType.get()))
-        type = "datetime";
-      else
-        type = "character";
-      colsWriter.println(",");
-      colsWriter.print(String.format("  '%s' = col_%s()", variable.getName(), type));
-    }
-
     private void writeVariableAttributes(Variable variable) {
       // attributes
       List<String> attributesList = Lists.newArrayList();
@@ -409,11 +496,6 @@ public class RAssignDatasource extends CsvDatasource {
 
     @Override
     public void close() {
-      // finish cols
-      colsWriter.println();
-      colsWriter.println(")");
-      colsWriter.flush();
-      colsWriter.close();
       // finish attributes
       attributesWriter.flush();
       attributesWriter.close();
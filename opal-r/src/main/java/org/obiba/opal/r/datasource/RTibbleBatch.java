@@ -0,0 +1,419 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.r.datasource;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.obiba.magma.Value;
+import org.obiba.magma.ValueType;
+import org.obiba.magma.type.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A batch of rows of a tibble, stored column by column in typed arrays. The batch is serialized in the R native
+ * binary format (XDR, version 2), to be read in the R session with base::readRDS, without any text parsing nor
+ * column type guessing.
+ */
+class RTibbleBatch {
+
+  private static final int R_VERSION = (4 << 16) | (0 << 8);
+
+  private static final int R_MIN_VERSION = (2 << 16) | (3 << 8);
+
+  private static final int NILVALUE_SXP = 254;
+
+  private static final int SYMSXP = 1;
+
+  private static final int LISTSXP = 2;
+
+  private static final int CHARSXP = 9;
+
+  private static final int LGLSXP = 10;
+
+  private static final int INTSXP = 13;
+
+  private static final int REALSXP = 14;
+
+  private static final int STRSXP = 16;
+
+  private static final int VECSXP = 19;
+
+  private static final int IS_OBJECT_BIT_MASK = 1 << 8;
+
+  private static final int HAS_ATTR_BIT_MASK = 1 << 9;
+
+  private static final int HAS_TAG_BIT_MASK = 1 << 10;
+
+  private static final int UTF8_MASK = 1 << 3;
+
+  private static final int NA_INTEGER = Integer.MIN_VALUE;
+
+  private static final long NA_REAL_BITS = 0x7FF00000000007A2L;
+
+  private final int capacity;
+
+  private final CharacterColumn idColumn;
+
+  private final List<Column> columns = Lists.newArrayList();
+
+  private final Map<String, Column> columnsByName = Maps.newHashMap();
+
+  private int rows = 0;
+
+  /**
+   * @param idColumnName name of the entity identifier column
+   * @param capacity     expected count of rows
+   */
+  RTibbleBatch(String idColumnName, int capacity) {
+    this.capacity = capacity;
+    this.idColumn = new CharacterColumn(idColumnName);
+    columns.add(idColumn);
+    columnsByName.put(idColumnName, idColumn);
+  }
+
+  /**
+   * Add a typed column, if not already defined.
+   *
+   * @param name
+   * @param valueType
+   */
+  void addColumn(String name, ValueType valueType) {
+    if (columnsByName.containsKey(name)) return;
+    Column column;
+    if (IntegerType.get().equals(valueType))
+      column = new IntegerColumn(name);
+    else if (DecimalType.get().equals(valueType))
+      column = new DoubleColumn(name);
+    else if (BooleanType.get().equals(valueType))
+      column = new LogicalColumn(name);
+    else if (DateType.get().equals(valueType))
+      column = new DateColumn(name);
+    else if (DateTimeType.get().equals(valueType))
+      column = new DateTimeColumn(name);
+    else
+      column = new CharacterColumn(name);
+    // rows already in the batch are missing for this column
+    for (int i = 0; i < rows; i++) column.add(null);
+    columns.add(column);
+    columnsByName.put(name, column);
+  }
+
+  /**
+   * Append a row: the first value is the entity identifier, the others are the variable values by column name.
+   * Columns without a value are set to NA.
+   *
+   * @param identifier
+   * @param values
+   */
+  void addRow(String identifier, Map<String, Value> values) {
+    idColumn.addString(identifier);
+    for (int i = 1; i < columns.size(); i++) {
+      Column column = columns.get(i);
+      Value value = values.get(column.name);
+      column.add(value == null || value.isNull() ? null : value);
+    }
+    rows++;
+  }
+
+  int getRowCount() {
+    return rows;
+  }
+
+  int getColumnCount() {
+    return columns.size();
+  }
+
+  int getCapacity() {
+    return capacity;
+  }
+
+  boolean isFull() {
+    return rows >= capacity;
+  }
+
+  /**
+   * Serialize the batch as a tibble in the R binary format.
+   *
+   * @param os
+   * @throws IOException
+   */
+  void writeRDS(OutputStream os) throws IOException {
+    DataOutputStream out = new DataOutputStream(os);
+    out.writeBytes("X\n");
+    out.writeInt(2);
+    out.writeInt(R_VERSION);
+    out.writeInt(R_MIN_VERSION);
+    out.writeInt(VECSXP | IS_OBJECT_BIT_MASK | HAS_ATTR_BIT_MASK);
+    out.writeInt(columns.size());
+    for (Column column : columns) {
+      column.write(out, rows);
+    }
+    writeAttributeTag(out, "names");
+    String[] names = columns.stream().map(c -> c.name).toArray(String[]::new);
+    writeStrings(out, names, names.length);
+    writeAttributeTag(out, "row.names");
+    // compact form of automatic row names
+    out.writeInt(INTSXP);
+    out.writeInt(2);
+    out.writeInt(NA_INTEGER);
+    out.writeInt(-rows);
+    writeAttributeTag(out, "class");
+    writeStrings(out, new String[]{"tbl_df", "tbl", "data.frame"}, 3);
+    out.writeInt(NILVALUE_SXP);
+    out.flush();
+  }
+
+  /**
+   * Serialize the batch as a tibble in the R binary format, in memory.
+   *
+   * @return the serialized batch, read from the serialization buffer without copying it
+   * @throws IOException
+   */
+  InputStream toRDS() throws IOException {
+    RDSBuffer buffer = new RDSBuffer(rows * columns.size() * 8 + 1024);
+    writeRDS(buffer);
+    return buffer.toInputStream();
+  }
+
+  //
+  // Private methods
+  //
+
+  private static void writeAttributeTag(DataOutputStream out, String name) throws IOException {
+    out.writeInt(LISTSXP | HAS_TAG_BIT_MASK);
+    out.writeInt(SYMSXP);
+    writeString(out, name);
+  }
+
+  private static void writeStrings(DataOutputStream out, String[] values, int length) throws IOException {
+    out.writeInt(STRSXP);
+    out.writeInt(length);
+    for (int i = 0; i < length; i++) {
+      writeString(out, values[i]);
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(CHARSXP);
+      out.writeInt(-1);
+    } else {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(CHARSXP | (UTF8_MASK << 12));
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static void writeDoubles(DataOutputStream out, int flags, double[] values, int length) throws IOException {
+    out.writeInt(REALSXP | flags);
+    out.writeInt(length);
+    for (int i = 0; i < length; i++) {
+      out.writeLong(Double.doubleToRawLongBits(values[i]));
+    }
+  }
+
+  //
+  // Columns
+  //
+
+  private abstract static class Column {
+
+    private final String name;
+
+    private Column(String name) {
+      this.name = name;
+    }
+
+    abstract void add(Value value);
+
+    abstract void write(DataOutputStream out, int length) throws IOException;
+
+  }
+
+  private class CharacterColumn extends Column {
+
+    private String[] values = new String[capacity];
+
+    private int size = 0;
+
+    private CharacterColumn(String name) {
+      super(name);
+    }
+
+    @Override
+    void add(Value value) {
+      addString(value == null ? null : value.toString());
+    }
+
+    void addString(String value) {
+      if (size == values.length) values = Arrays.copyOf(values, size * 2);
+      values[size++] = value;
+    }
+
+    @Override
+    void write(DataOutputStream out, int length) throws IOException {
+      writeStrings(out, values, length);
+    }
+  }
+
+  private class DoubleColumn extends Column {
+
+    private double[] values = new double[capacity];
+
+    private int size = 0;
+
+    private DoubleColumn(String name) {
+      super(name);
+    }
+
+    @Override
+    void add(Value value) {
+      if (size == values.length) values = Arrays.copyOf(values, size * 2);
+      values[size++] = value == null ? Double.longBitsToDouble(NA_REAL_BITS) : toDouble(value);
+    }
+
+    double toDouble(Value value) {
+      return ((Number) value.getValue()).doubleValue();
+    }
+
+    @Override
+    void write(DataOutputStream out, int length) throws IOException {
+      writeDoubles(out, 0, values, length);
+    }
+  }
+
+  /**
+   * Days since epoch, with Date class.
+   */
+  private class DateColumn extends DoubleColumn {
+
+    private DateColumn(String name) {
+      super(name);
+    }
+
+    @Override
+    double toDouble(Value value) {
+      return LocalDate.parse(value.toString()).toEpochDay();
+    }
+
+    @Override
+    void write(DataOutputStream out, int length) throws IOException {
+      writeDoubles(out, IS_OBJECT_BIT_MASK | HAS_ATTR_BIT_MASK, super.values, length);
+      writeAttributeTag(out, "class");
+      writeStrings(out, new String[]{"Date"}, 1);
+      out.writeInt(NILVALUE_SXP);
+    }
+  }
+
+  /**
+   * Seconds since epoch, with POSIXct class in UTC.
+   */
+  private class DateTimeColumn extends DoubleColumn {
+
+    private DateTimeColumn(String name) {
+      super(name);
+    }
+
+    @Override
+    double toDouble(Value value) {
+      return ((Date) value.getValue()).getTime() / 1000d;
+    }
+
+    @Override
+    void write(DataOutputStream out, int length) throws IOException {
+      writeDoubles(out, IS_OBJECT_BIT_MASK | HAS_ATTR_BIT_MASK, super.values, length);
+      writeAttributeTag(out, "class");
+      writeStrings(out, new String[]{"POSIXct", "POSIXt"}, 2);
+      writeAttributeTag(out, "tzone");
+      writeStrings(out, new String[]{"UTC"}, 1);
+      out.writeInt(NILVALUE_SXP);
+    }
+  }
+
+  private class IntegerColumn extends Column {
+
+    private int[] values = new int[capacity];
+
+    private int size = 0;
+
+    private final int type;
+
+    private IntegerColumn(String name) {
+      this(name, INTSXP);
+    }
+
+    private IntegerColumn(String name, int type) {
+      super(name);
+      this.type = type;
+    }
+
+    @Override
+    void add(Value value) {
+      if (size == values.length) values = Arrays.copyOf(values, size * 2);
+      values[size++] = value == null ? NA_INTEGER : toInt(value);
+    }
+
+    int toInt(Value value) {
+      long longValue = ((Number) value.getValue()).longValue();
+      // out of R integer range is NA
+      return longValue > Integer.MAX_VALUE || longValue <= Integer.MIN_VALUE ? NA_INTEGER : (int) longValue;
+    }
+
+    @Override
+    void write(DataOutputStream out, int length) throws IOException {
+      out.writeInt(type);
+      out.writeInt(length);
+      for (int i = 0; i < length; i++) {
+        out.writeInt(values[i]);
+      }
+    }
+  }
+
+  private class LogicalColumn extends IntegerColumn {
+
+    private LogicalColumn(String name) {
+      super(name, LGLSXP);
+    }
+
+    @Override
+    int toInt(Value value) {
+      return (Boolean) value.getValue() ? 1 : 0;
+    }
+  }
+
+  /**
+   * In memory output that can be read back without copying its content.
+   */
+  private static class RDSBuffer extends ByteArrayOutputStream {
+
+    private RDSBuffer(int size) {
+      super(size);
+    }
+
+    private InputStream toInputStream() {
+      return new ByteArrayInputStream(buf, 0, count);
+    }
+  }
+
+}
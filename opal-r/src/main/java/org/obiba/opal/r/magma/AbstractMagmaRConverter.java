@@ -72,6 +72,12 @@ abstract class AbstractMagmaRConverter implements MagmaRConverter {
       Initialisables.initialise(view);
       filteredTable = view;
     }
+    if (magmaAssignROperation.hasVariables()) {
+      View view = new View(table.getName(), filteredTable);
+      view.setSelectClause(variable -> magmaAssignROperation.getVariables().contains(variable.getName()));
+      Initialisables.initialise(view);
+      filteredTable = view;
+    }
     return filteredTable;
   }
 
@@ -21,6 +21,7 @@ import org.obiba.opal.spi.r.RServerException;
 import javax.validation.constraints.NotNull;
 import java.io.File;
 import java.io.InputStream;
+import java.util.Collection;
 
 /**
  * Assign Magma values (from a table or a variable) to a R symbol.
@@ -57,6 +58,8 @@ public class MagmaAssignROperation extends AbstractROperation {
 
   private final RClass rClass;
 
+  private Collection<String> variables;
+
   public MagmaAssignROperation(@NotNull String symbol, @NotNull ValueTable valueTable, @NotNull DataExportService dataExportService, String idColumnName) {
     this(symbol, valueTable, dataExportService, idColumnName, RClass.TIBBLE);
   }
@@ -147,6 +150,10 @@ public class MagmaAssignROperation extends AbstractROperation {
     return symbol;
   }
 
+  String getPath() {
+    return path;
+  }
+
   boolean hasValueTable() {
     return valueTable != null;
   }
@@ -180,6 +187,25 @@ public class MagmaAssignROperation extends AbstractROperation {
     return variableFilter;
   }
 
+  /**
+   * Restrict the assigned variables to the given ones, in addition to the variable filter.
+   *
+   * @param variables
+   * @return
+   */
+  public MagmaAssignROperation withVariables(Collection<String> variables) {
+    this.variables = variables;
+    return this;
+  }
+
+  boolean hasVariables() {
+    return variables != null;
+  }
+
+  Collection<String> getVariables() {
+    return variables;
+  }
+
   @Override
   public String toString() {
     return symbol + " <- opal[" + path + "]";
@@ -0,0 +1,386 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.r.magma;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.obiba.core.util.FileUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Disk cache of the tables assigned in R sessions, as RDS files. The cache is bounded in size: the least recently
+ * used entries are evicted first. Entries of a table are evicted as soon as the table is updated or deleted, and
+ * a new snapshot of a table replaces the snapshots of its previous versions. The cache index is in memory only: the
+ * entries last as long as the process, the cache folder is cleared at startup.
+ */
+public class ValueTableRCache {
+
+  private static final Logger log = LoggerFactory.getLogger(ValueTableRCache.class);
+
+  private static final String R_CACHE_DIR = System.getenv().get("OPAL_HOME") + File.separatorChar + "work" + File.separatorChar + "R" + File.separatorChar + "cache";
+
+  private static final String CACHE_FILE_SUFFIX = ".rds";
+
+  private static final ValueTableRCache instance = new ValueTableRCache(new File(R_CACHE_DIR));
+
+  private final File cacheDir;
+
+  private final Map<String, Entry> entries = Maps.newConcurrentMap();
+
+  private final AtomicLong size = new AtomicLong();
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong evictions = new AtomicLong();
+
+  private volatile long maxSize = -1;
+
+  ValueTableRCache(File cacheDir) {
+    this.cacheDir = cacheDir;
+  }
+
+  public static ValueTableRCache get() {
+    return instance;
+  }
+
+  /**
+   * Set the maximum size of the cache in bytes, zero to disable the cache, negative for no limit.
+   *
+   * @param maxSize
+   */
+  public void setMaxSize(long maxSize) {
+    this.maxSize = maxSize;
+    evictToMaxSize(null);
+  }
+
+  public long getMaxSize() {
+    return maxSize;
+  }
+
+  public boolean isEnabled() {
+    return maxSize != 0;
+  }
+
+  /**
+   * Get the cached file of a table assignment and count the hit, if any.
+   *
+   * @param key
+   * @return null if there is no such entry
+   */
+  @Nullable
+  public File lookup(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null || !entry.getFile().exists()) {
+      misses.incrementAndGet();
+      return null;
+    }
+    entry.touch();
+    hits.incrementAndGet();
+    return entry.getFile();
+  }
+
+  /**
+   * Get a new temporary file in which a table assignment can be written before being put in the cache.
+   *
+   * @return
+   */
+  public File newTemporaryFile() {
+    if (!cacheDir.exists()) cacheDir.mkdirs();
+    return new File(cacheDir, "." + UUID.randomUUID() + ".tmp");
+  }
+
+  /**
+   * Move the file in the cache, replacing the entries of the previous versions of the table and evicting the least
+   * recently used entries if the cache is full.
+   *
+   * @param key
+   * @param file       the file to be moved in the cache
+   * @param datasource
+   * @param table
+   * @param lastUpdate table last update time
+   * @param parameters how the table was assigned, if it can be replayed
+   */
+  public void put(String key, File file, String datasource, String table, long lastUpdate,
+                  @Nullable AssignParameters parameters) {
+    File cacheFile = new File(cacheDir, key + CACHE_FILE_SUFFIX);
+    try {
+      Files.move(file.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      log.warn("Failed at caching table assignment: {}", key, e);
+      file.delete();
+      return;
+    }
+    Entry entry = new Entry(key, cacheFile, datasource, table, lastUpdate, parameters);
+    Entry previous = entries.put(key, entry);
+    if (previous != null) size.addAndGet(-previous.getSize());
+    size.addAndGet(entry.getSize());
+    // snapshots of previous versions of the table will never be hit again
+    entries.values().stream()
+        .filter(e -> e.isOf(datasource, table) && e.getLastUpdate() != lastUpdate)
+        .collect(Collectors.toList())
+        .forEach(this::remove);
+    evictToMaxSize(key);
+  }
+
+  /**
+   * Evict all the entries of a table.
+   *
+   * @param datasource
+   * @param table
+   * @return the evicted entries
+   */
+  public List<Entry> evict(String datasource, String table) {
+    List<Entry> evicted = entries.values().stream()
+        .filter(e -> e.isOf(datasource, table))
+        .collect(Collectors.toList());
+    evicted.forEach(this::remove);
+    return evicted;
+  }
+
+  /**
+   * Evict all the entries and remove any file left in the cache folder.
+   */
+  public void clear() {
+    Lists.newArrayList(entries.values()).forEach(this::remove);
+    try {
+      if (cacheDir.exists()) FileUtil.delete(cacheDir);
+    } catch (Exception e) {
+      log.warn("Failure when evicting table caches", e);
+    }
+  }
+
+  public int getEntryCount() {
+    return entries.size();
+  }
+
+  public long getSize() {
+    return size.get();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  //
+  // Private methods
+  //
+
+  private void remove(Entry entry) {
+    if (entries.remove(entry.getKey(), entry)) {
+      size.addAndGet(-entry.getSize());
+      evictions.incrementAndGet();
+      if (!entry.getFile().delete() && entry.getFile().exists())
+        log.warn("Failed at deleting table cache file: {}", entry.getFile());
+    }
+  }
+
+  /**
+   * Evict the least recently used entries until the cache size is under its maximum.
+   *
+   * @param lastKey key of the last entry put, evicted only if it does not fit in the cache by itself
+   */
+  private synchronized void evictToMaxSize(@Nullable String lastKey) {
+    if (maxSize < 0 || size.get() <= maxSize) return;
+    List<Entry> candidates = entries.values().stream()
+        .filter(e -> !e.getKey().equals(lastKey))
+        .sorted(Comparator.comparingLong(Entry::getLastAccess))
+        .collect(Collectors.toList());
+    for (Entry entry : candidates) {
+      if (size.get() <= maxSize) break;
+      log.debug("Evicting table cache {} ({} bytes)", entry.getKey(), entry.getSize());
+      remove(entry);
+    }
+    if (size.get() > maxSize && lastKey != null && entries.containsKey(lastKey)) {
+      remove(entries.get(lastKey));
+    }
+  }
+
+  //
+  // Inner classes
+  //
+
+  /**
+   * A table assignment snapshot.
+   */
+  public static class Entry {
+
+    private final String key;
+
+    private final File file;
+
+    private final long size;
+
+    private final String datasource;
+
+    private final String table;
+
+    private final long lastUpdate;
+
+    private final AssignParameters parameters;
+
+    private volatile long lastAccess;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private Entry(String key, File file, String datasource, String table, long lastUpdate,
+                  AssignParameters parameters) {
+      this.key = key;
+      this.file = file;
+      this.size = file.length();
+      this.datasource = datasource;
+      this.table = table;
+      this.lastUpdate = lastUpdate;
+      this.parameters = parameters;
+      this.lastAccess = System.currentTimeMillis();
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    public File getFile() {
+      return file;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public long getLastUpdate() {
+      return lastUpdate;
+    }
+
+    public long getLastAccess() {
+      return lastAccess;
+    }
+
+    public long getHits() {
+      return hits.get();
+    }
+
+    public boolean hasParameters() {
+      return parameters != null;
+    }
+
+    public AssignParameters getParameters() {
+      return parameters;
+    }
+
+    private boolean isOf(String datasource, String table) {
+      return this.datasource.equals(datasource) && this.table.equals(table);
+    }
+
+    private void touch() {
+      lastAccess = System.currentTimeMillis();
+      hits.incrementAndGet();
+    }
+  }
+
+  /**
+   * The parameters of a table assignment by path, so that it can be replayed to warm up the cache.
+   */
+  public static class AssignParameters {
+
+    private final String path;
+
+    private final String variableFilter;
+
+    private final boolean withMissings;
+
+    private final String idColumnName;
+
+    private final String identifiersMapping;
+
+    private final List<String> variables;
+
+    /**
+     * @param path
+     * @param variableFilter
+     * @param withMissings
+     * @param idColumnName
+     * @param identifiersMapping
+     * @param variables          names of the variables that were assigned, the ones visible by the requester
+     */
+    AssignParameters(String path, String variableFilter, boolean withMissings, String idColumnName,
+                     String identifiersMapping, List<String> variables) {
+      this.path = path;
+      this.variableFilter = variableFilter;
+      this.withMissings = withMissings;
+      this.idColumnName = idColumnName;
+      this.identifiersMapping = identifiersMapping;
+      this.variables = variables;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public String getVariableFilter() {
+      return variableFilter;
+    }
+
+    public boolean isWithMissings() {
+      return withMissings;
+    }
+
+    public String getIdColumnName() {
+      return idColumnName;
+    }
+
+    public String getIdentifiersMapping() {
+      return identifiersMapping;
+    }
+
+    public List<String> getVariables() {
+      return variables;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      AssignParameters that = (AssignParameters) o;
+      return withMissings == that.withMissings && Objects.equals(path, that.path) &&
+          Objects.equals(variableFilter, that.variableFilter) && Objects.equals(idColumnName, that.idColumnName) &&
+          Objects.equals(identifiersMapping, that.identifiersMapping) && Objects.equals(variables, that.variables);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(path, variableFilter, withMissings, idColumnName, identifiersMapping, variables);
+    }
+  }
+
+}
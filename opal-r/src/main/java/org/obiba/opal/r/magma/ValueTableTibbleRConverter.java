@@ -41,8 +41,6 @@ class ValueTableTibbleRConverter extends AbstractMagmaRConverter {
 
   private static final Logger log = LoggerFactory.getLogger(ValueTableTibbleRConverter.class);
 
-  private static final String R_CACHE_DIR = System.getenv().get("OPAL_HOME") + File.separatorChar + "work" + File.separatorChar + "R" + File.separatorChar + "cache";
-
   ValueTableTibbleRConverter(MagmaAssignROperation magmaAssignROperation) {
     super(magmaAssignROperation);
   }
@@ -56,9 +54,11 @@ class ValueTableTibbleRConverter extends AbstractMagmaRConverter {
 
     Stopwatch stopwatch = Stopwatch.createStarted();
 
-    File tableCache = getTableRCache(table);
+    ValueTableRCache cache = ValueTableRCache.get();
+    String cacheKey = getTableRCacheKey(table);
+    File tableCache = cache.isEnabled() ? cache.lookup(cacheKey) : null;
     boolean assigned = false;
-    if (tableCache.exists()) {
+    if (tableCache != null) {
       log.info("Assign table '{}' from R cache: {}", table.getName(), tableCache.getName());
       try (InputStream is = new FileInputStream(tableCache)) {
         magmaAssignROperation.doWriteFile(tableCache.getName(), is);
@@ -89,21 +89,48 @@ class ValueTableTibbleRConverter extends AbstractMagmaRConverter {
         Disposables.silentlyDispose(ds);
       }
 
-      if (!tableCache.exists()) {
+      if (cache.isEnabled()) {
+        File tmpCache = cache.newTemporaryFile();
+        String rdsName = cacheKey + ".rds";
         try {
-          magmaAssignROperation.doEval(String.format("saveRDS(`%s`, '%s')", getSymbol(), tableCache.getName()));
-          magmaAssignROperation.doReadFile(tableCache.getName(), tableCache);
-          magmaAssignROperation.doEval(String.format("base::unlink('%s')", tableCache.getName()));
+          magmaAssignROperation.doEval(String.format("saveRDS(`%s`, '%s')", getSymbol(), rdsName));
+          magmaAssignROperation.doReadFile(rdsName, tmpCache);
+          magmaAssignROperation.doEval(String.format("base::unlink('%s')", rdsName));
+          cache.put(cacheKey, tmpCache, table.getDatasource().getName(), table.getName(), getLastUpdate(table),
+              getAssignParameters(table));
         } catch (Exception e) {
           log.warn("Table R cache failure", e);
-          tableCache.delete();
+          tmpCache.delete();
         }
       }
     }
     log.info("R assignment succeed in {}", stopwatch.stop());
   }
 
-  private File getTableRCache(ValueTable table) {
+  /**
+   * Assignments by path can be replayed to warm up the cache, restricted to the variables that were assigned so that
+   * the replay has the same cache key.
+   *
+   * @param table
+   * @return null if the table was provided
+   */
+  private ValueTableRCache.AssignParameters getAssignParameters(ValueTable table) {
+    if (magmaAssignROperation.hasValueTable()) return null;
+    return new ValueTableRCache.AssignParameters(magmaAssignROperation.getPath(),
+        magmaAssignROperation.hasVariableFilter() ? magmaAssignROperation.getVariableFilter() : null,
+        magmaAssignROperation.withMissings(),
+        magmaAssignROperation.withIdColumn() ? magmaAssignROperation.getIdColumnName() : null,
+        magmaAssignROperation.getIdentifiersMapping(),
+        StreamSupport.stream(table.getVariables().spliterator(), false)
+            .map(Variable::getName)
+            .collect(Collectors.toList()));
+  }
+
+  private long getLastUpdate(ValueTable table) {
+    return ((Date)table.getTimestamps().getLastUpdate().getValue()).getTime();
+  }
+
+  private String getTableRCacheKey(ValueTable table) {
     String parametersKey = magmaAssignROperation.getIdColumnName() + "-" +
         magmaAssignROperation.withMissings() +  "-" +
         magmaAssignROperation.getIdentifiersMapping();
@@ -118,11 +145,8 @@ class ValueTableTibbleRConverter extends AbstractMagmaRConverter {
         .map(Variable::getName)
         .collect(Collectors.joining("|"));
     parametersKey = parametersKey + "-" + varsKey;
-    String cacheKey = table.getDatasource().getName() + "-" + table.getName() + "-" +
-        getCRC32Checksum(parametersKey.getBytes()) + "-" +
-        ((Date)table.getTimestamps().getLastUpdate().getValue()).getTime();
-    File tableCache = new File(R_CACHE_DIR, cacheKey + ".rds");
-    return tableCache;
+    return table.getDatasource().getName() + "-" + table.getName() + "-" +
+        getCRC32Checksum(parametersKey.getBytes()) + "-" + getLastUpdate(table);
   }
 
   public static long getCRC32Checksum(byte[] bytes) {
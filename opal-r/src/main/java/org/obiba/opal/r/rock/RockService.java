@@ -16,6 +16,10 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.eventbus.EventBus;
 import org.apache.commons.codec.binary.Base64;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.shiro.SecurityUtils;
 import org.json.JSONObject;
 import org.obiba.opal.core.cfg.AppsService;
@@ -25,6 +29,7 @@ import org.obiba.opal.core.runtime.App;
 import org.obiba.opal.core.runtime.OpalRuntime;
 import org.obiba.opal.core.tx.TransactionalThreadFactory;
 import org.obiba.opal.r.InstallLocalPackageOperation;
+import org.obiba.opal.r.service.RCommandsExecutor;
 import org.obiba.opal.r.service.RServerService;
 import org.obiba.opal.r.service.RServerSession;
 import org.obiba.opal.r.service.RServerState;
@@ -42,15 +47,23 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.beans.factory.config.ConfigurableBeanFactory;
 import org.springframework.context.annotation.Scope;
 import org.springframework.http.*;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
 
+import javax.annotation.PreDestroy;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 /**
@@ -62,12 +75,23 @@ public class RockService implements RServerService {
 
   private static final Logger log = LoggerFactory.getLogger(RockService.class);
 
+  /**
+   * Shared by all the Rock servers for refreshing their state in the background.
+   */
+  private static final ExecutorService stateRefreshExecutor = Executors.newCachedThreadPool(r -> {
+    Thread thread = new Thread(r, "Rock state refresh");
+    thread.setDaemon(true);
+    return thread;
+  });
+
   private String clusterName;
 
   private App app;
 
   private final TransactionalThreadFactory transactionalThreadFactory;
 
+  private final RCommandsExecutor rCommandsExecutor;
+
   private final OpalRuntime opalRuntime;
 
   private final EventBus eventBus;
@@ -92,9 +116,35 @@ public class RockService implements RServerService {
   @Value("${rock.default.user.password}")
   private String userPassword;
 
+  @Value("${rock.client.connectTimeout}")
+  private int connectTimeout = 10;
+
+  @Value("${rock.client.readTimeout}")
+  private int readTimeout = 0;
+
+  @Value("${rock.client.maxConnections}")
+  private int maxConnections = 50;
+
+  @Value("${rock.client.stateRefreshInterval}")
+  private int stateRefreshInterval = 5;
+
+  private PoolingHttpClientConnectionManager connectionManager;
+
+  private CloseableHttpClient httpClient;
+
+  private RestTemplate restTemplate;
+
+  private volatile RServerState state;
+
+  private volatile long stateTimestamp;
+
+  private final AtomicBoolean stateRefreshing = new AtomicBoolean(false);
+
   @Autowired
-  public RockService(TransactionalThreadFactory transactionalThreadFactory, OpalRuntime opalRuntime, EventBus eventBus, AppsService appsService) {
+  public RockService(TransactionalThreadFactory transactionalThreadFactory, RCommandsExecutor rCommandsExecutor,
+                     OpalRuntime opalRuntime, EventBus eventBus, AppsService appsService) {
     this.transactionalThreadFactory = transactionalThreadFactory;
+    this.rCommandsExecutor = rCommandsExecutor;
     this.opalRuntime = opalRuntime;
     this.eventBus = eventBus;
     this.appsService = appsService;
@@ -104,8 +154,19 @@ public class RockService implements RServerService {
     this.clusterName = clusterName;
   }
 
-  public void setApp(App app) {
+  public synchronized void setApp(App app) {
     this.app = app;
+    closeHttpClient();
+    this.state = null;
+  }
+
+  /**
+   * Close the HTTP client and its connections to the Rock server.
+   */
+  @Override
+  @PreDestroy
+  public synchronized void dispose() {
+    closeHttpClient();
   }
 
   @Override
@@ -116,8 +177,8 @@ public class RockService implements RServerService {
   @Override
   public void start() {
     try {
-      RestTemplate restTemplate = new RestTemplate();
-      restTemplate.exchange(getRServerResourceUrl("/rserver"), HttpMethod.PUT, new HttpEntity<>(createHeaders()), Void.class);
+      getRestTemplate().exchange(getRServerResourceUrl("/rserver"), HttpMethod.PUT, new HttpEntity<>(createHeaders()), Void.class);
+      state = null;
       eventBus.post(new RServerServiceStartedEvent(clusterName, getName()));
     } catch (RestClientException e) {
       log.warn("Error when starting R server: " + e.getMessage());
@@ -127,8 +188,8 @@ public class RockService implements RServerService {
   @Override
   public void stop() {
     try {
-      RestTemplate restTemplate = new RestTemplate();
-      restTemplate.exchange(getRServerResourceUrl("/rserver"), HttpMethod.DELETE, new HttpEntity<>(createHeaders()), Void.class);
+      getRestTemplate().exchange(getRServerResourceUrl("/rserver"), HttpMethod.DELETE, new HttpEntity<>(createHeaders()), Void.class);
+      state = null;
       eventBus.post(new RServerServiceStoppedEvent(clusterName, getName()));
     } catch (RestClientException e) {
       log.warn("Error when stopping R server: " + e.getMessage());
@@ -146,17 +207,26 @@ public class RockService implements RServerService {
     return false;
   }
 
+  /**
+   * Get the last known state of the R server: when it is older than the refresh interval, it is refreshed in the
+   * background (but read synchronously if it is much too old or unknown).
+   *
+   * @return
+   * @throws RServerException
+   */
   @Override
   public RServerState getState() throws RServerException {
-    try {
-      RestTemplate restTemplate = new RestTemplate();
-      ResponseEntity<RockServerStatus> response =
-          restTemplate.exchange(getRServerResourceUrl("/rserver"), HttpMethod.GET, new HttpEntity<>(createHeaders()), RockServerStatus.class);
-      return new RockState(response.getBody());
-    } catch (RestClientException e) {
-      log.error("Error when reading R server state", e);
-      throw new RockServerException("R server state not accessible", e);
+    RServerState cached = state;
+    if (cached != null && stateRefreshInterval > 0) {
+      long age = System.currentTimeMillis() - stateTimestamp;
+      long interval = TimeUnit.SECONDS.toMillis(stateRefreshInterval);
+      if (age <= interval) return cached;
+      if (age <= 3 * interval) {
+        refreshStateAsync();
+        return cached;
+      }
     }
+    return readState();
   }
 
   @Override
@@ -173,9 +243,8 @@ public class RockService implements RServerService {
   public List<OpalR.RPackageDto> getInstalledPackagesDtos() {
     List<OpalR.RPackageDto> pkgs = Lists.newArrayList();
     try {
-      RestTemplate restTemplate = new RestTemplate();
       ResponseEntity<RockStringMatrix> response =
-          restTemplate.exchange(getRServerResourceUrl("/rserver/packages"), HttpMethod.GET, new HttpEntity<>(createHeaders()), RockStringMatrix.class);
+          getRestTemplate().exchange(getRServerResourceUrl("/rserver/packages"), HttpMethod.GET, new HttpEntity<>(createHeaders()), RockStringMatrix.class);
       RockStringMatrix matrix = response.getBody();
       pkgs = matrix.iterateRows().stream()
           .map(new RPackageResourceHelper.StringsToRPackageDto(clusterName, getName(), matrix))
@@ -191,9 +260,8 @@ public class RockService implements RServerService {
     try {
       HttpHeaders headers = createHeaders();
       headers.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
-      RestTemplate restTemplate = new RestTemplate();
       ResponseEntity<String> response =
-          restTemplate.exchange(getRServerResourceUrl("/rserver/package/" + name), HttpMethod.GET, new HttpEntity<>(headers), String.class);
+          getRestTemplate().exchange(getRServerResourceUrl("/rserver/package/" + name), HttpMethod.GET, new HttpEntity<>(headers), String.class);
       String jsonSource = response.getBody();
       if (response.getStatusCode().is2xxSuccessful()) {
         List<OpalR.RPackageDto> pkgs = Lists.newArrayList();
@@ -225,9 +293,8 @@ public class RockService implements RServerService {
     try {
       HttpHeaders headers = createHeaders();
       headers.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
-      RestTemplate restTemplate = new RestTemplate();
       ResponseEntity<String> response =
-          restTemplate.exchange(getRServerResourceUrl("/rserver/packages/_datashield"), HttpMethod.GET, new HttpEntity<>(headers), String.class);
+          getRestTemplate().exchange(getRServerResourceUrl("/rserver/packages/_datashield"), HttpMethod.GET, new HttpEntity<>(headers), String.class);
       String jsonSource = response.getBody();
       if (response.getStatusCode().is2xxSuccessful()) {
         RNamedList<RServerResult> results = new RockResult(new JSONObject(jsonSource)).asNamedList();
@@ -244,8 +311,7 @@ public class RockService implements RServerService {
   @Override
   public void removePackage(String name) {
     try {
-      RestTemplate restTemplate = new RestTemplate();
-      restTemplate.exchange(getRServerResourceUrl("/rserver/package/" + name), HttpMethod.DELETE, new HttpEntity<>(createHeaders()), Void.class);
+      getRestTemplate().exchange(getRServerResourceUrl("/rserver/package/" + name), HttpMethod.DELETE, new HttpEntity<>(createHeaders()), Void.class);
     } catch (Exception e) {
       log.error("Error when removing a package", e);
     }
@@ -291,8 +357,7 @@ public class RockService implements RServerService {
   @Override
   public void updateAllCRANPackages() {
     try {
-      RestTemplate restTemplate = new RestTemplate();
-      restTemplate.exchange(getRServerResourceUrl("/rserver/packages"), HttpMethod.PUT, new HttpEntity<>(createHeaders()), Void.class);
+      getRestTemplate().exchange(getRServerResourceUrl("/rserver/packages"), HttpMethod.PUT, new HttpEntity<>(createHeaders()), Void.class);
     } catch (Exception e) {
       log.error("Error when updating all packages", e);
     }
@@ -303,10 +368,9 @@ public class RockService implements RServerService {
     try {
       HttpHeaders headers = createHeaders();
       headers.setAccept(Lists.newArrayList(MediaType.TEXT_PLAIN));
-      RestTemplate restTemplate = new RestTemplate();
       UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(getRServerResourceUrl("/rserver/_log"))
           .queryParam("limit", nbLines);
-      ResponseEntity<String> response = restTemplate.exchange(builder.toUriString(), HttpMethod.GET, new HttpEntity<>(headers), String.class);
+      ResponseEntity<String> response = getRestTemplate().exchange(builder.toUriString(), HttpMethod.GET, new HttpEntity<>(headers), String.class);
       return response.getBody().split("\n");
     } catch (RestClientException e) {
       log.warn("Error while getting R server log", e);
@@ -316,7 +380,7 @@ public class RockService implements RServerService {
 
   @Override
   public RServerSession newRServerSession(String user) throws RServerException {
-    return new RockSession(clusterName, app, getUserCredentials(), user, transactionalThreadFactory);
+    return new RockSession(clusterName, app, getUserCredentials(), user, getRestTemplate(), transactionalThreadFactory, rCommandsExecutor);
   }
 
   @Override
@@ -354,20 +418,99 @@ public class RockService implements RServerService {
       UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(getRServerResourceUrl("/rserver/packages"));
       params.forEach(builder::queryParam);
 
-      RestTemplate restTemplate = new RestTemplate();
-      restTemplate.exchange(builder.toUriString(), HttpMethod.POST, new HttpEntity<>(headers), Void.class, params);
+      getRestTemplate().exchange(builder.toUriString(), HttpMethod.POST, new HttpEntity<>(headers), Void.class, params);
     } catch (Exception e) {
       log.error("Error when installing a package", e);
     }
   }
 
+  private RServerState readState() throws RServerException {
+    try {
+      ResponseEntity<RockServerStatus> response =
+          getRestTemplate().exchange(getRServerResourceUrl("/rserver"), HttpMethod.GET, new HttpEntity<>(createHeaders()), RockServerStatus.class);
+      RServerState readState = new RockState(response.getBody());
+      state = readState;
+      stateTimestamp = System.currentTimeMillis();
+      return readState;
+    } catch (RestClientException e) {
+      state = null;
+      log.error("Error when reading R server state", e);
+      throw new RockServerException("R server state not accessible", e);
+    }
+  }
+
+  private void refreshStateAsync() {
+    if (!stateRefreshing.compareAndSet(false, true)) return;
+    try {
+      stateRefreshExecutor.execute(() -> {
+        try {
+          readState();
+        } catch (RServerException e) {
+          // logged, next read will be synchronous
+        } finally {
+          stateRefreshing.set(false);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      stateRefreshing.set(false);
+    }
+  }
+
+  /**
+   * Get the HTTP client of the Rock server, that keeps its connections alive and reuses them.
+   *
+   * @return
+   */
+  private synchronized RestTemplate getRestTemplate() {
+    if (restTemplate == null) {
+      connectionManager = new PoolingHttpClientConnectionManager(60, TimeUnit.SECONDS);
+      connectionManager.setMaxTotal(maxConnections);
+      connectionManager.setDefaultMaxPerRoute(maxConnections);
+      connectionManager.setValidateAfterInactivity(2000);
+      httpClient = HttpClientBuilder.create()
+          .setConnectionManager(connectionManager)
+          .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+          // the client is shared by all the users
+          .disableCookieManagement()
+          .build();
+      HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory(httpClient);
+      requestFactory.setConnectTimeout((int) TimeUnit.SECONDS.toMillis(connectTimeout));
+      requestFactory.setConnectionRequestTimeout((int) TimeUnit.SECONDS.toMillis(connectTimeout));
+      requestFactory.setReadTimeout((int) TimeUnit.SECONDS.toMillis(readTimeout));
+      // stream the uploaded files
+      requestFactory.setBufferRequestBody(false);
+      restTemplate = new RestTemplate(requestFactory);
+    }
+    return restTemplate;
+  }
+
+  /**
+   * Release the pooled connections, a new HTTP client is created on next request.
+   */
+  private synchronized void closeHttpClient() {
+    restTemplate = null;
+    if (httpClient != null) {
+      try {
+        httpClient.close();
+      } catch (IOException e) {
+        log.warn("Error when closing the R server HTTP client: " + e.getMessage());
+      }
+      httpClient = null;
+    }
+    if (connectionManager != null) {
+      connectionManager.shutdown();
+      connectionManager = null;
+    }
+  }
+
   private String getRServerResourceUrl(String path) {
     return app.getServer() + path;
   }
 
   private HttpHeaders createHeaders() {
+    AppCredentials credentials = getManagerCredentials();
     return new HttpHeaders() {{
-      String auth = getManagerCredentials().getUser() + ":" + getManagerCredentials().getPassword();
+      String auth = credentials.getUser() + ":" + credentials.getPassword();
       byte[] encodedAuth = Base64.encodeBase64(auth.getBytes(StandardCharsets.UTF_8));
       String authHeader = "Basic " + new String(encodedAuth);
       add("Authorization", authHeader);
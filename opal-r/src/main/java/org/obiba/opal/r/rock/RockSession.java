@@ -19,6 +19,7 @@ import org.obiba.opal.core.domain.AppCredentials;
 import org.obiba.opal.core.runtime.App;
 import org.obiba.opal.core.tx.TransactionalThreadFactory;
 import org.obiba.opal.r.service.AbstractRServerSession;
+import org.obiba.opal.r.service.RCommandsExecutor;
 import org.obiba.opal.r.service.RServerSession;
 import org.obiba.opal.spi.r.*;
 import org.slf4j.Logger;
@@ -33,6 +34,7 @@ import org.springframework.web.client.RestClientResponseException;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
@@ -46,14 +48,19 @@ class RockSession extends AbstractRServerSession implements RServerSession, RSer
 
   private final App app;
 
-  private final AppCredentials credentials;
+  private final RestTemplate restTemplate;
+
+  private final String authHeader;
 
   private String rockSessionId;
 
-  protected RockSession(String clusterName, App app, AppCredentials credentials, String user, TransactionalThreadFactory transactionalThreadFactory) throws RServerException {
-    super(clusterName, app.getName(), UUID.randomUUID().toString(), user, transactionalThreadFactory);
+  protected RockSession(String clusterName, App app, AppCredentials credentials, String user, RestTemplate restTemplate,
+                        TransactionalThreadFactory transactionalThreadFactory, RCommandsExecutor rCommandsExecutor) throws RServerException {
+    super(clusterName, app.getName(), UUID.randomUUID().toString(), user, transactionalThreadFactory, rCommandsExecutor);
     this.app = app;
-    this.credentials = credentials;
+    this.restTemplate = restTemplate;
+    String auth = credentials.getUser() + ":" + credentials.getPassword();
+    this.authHeader = "Basic " + new String(Base64.getEncoder().encode(auth.getBytes(StandardCharsets.UTF_8)));
     openSession();
   }
 
@@ -65,7 +72,6 @@ class RockSession extends AbstractRServerSession implements RServerSession, RSer
   public void assignData(String symbol, String content) throws RServerException {
     touch();
     String serverUrl = getRSessionResourceUrl("/_assign");
-    RestTemplate restTemplate = new RestTemplate();
     HttpHeaders headers = createHeaders();
     headers.setContentType(MediaType.valueOf("application/x-rdata"));
     UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(serverUrl)
@@ -83,7 +89,6 @@ class RockSession extends AbstractRServerSession implements RServerSession, RSer
   public void assignScript(String symbol, String content) throws RServerException {
     touch();
     String serverUrl = getRSessionResourceUrl("/_assign");
-    RestTemplate restTemplate = new RestTemplate();
     HttpHeaders headers = createHeaders();
     headers.setContentType(MediaType.valueOf("application/x-rscript"));
     UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(serverUrl)
@@ -102,7 +107,6 @@ class RockSession extends AbstractRServerSession implements RServerSession, RSer
     touch();
     long start = System.currentTimeMillis();
     String serverUrl = getRSessionResourceUrl("/_eval");
-    RestTemplate restTemplate = new RestTemplate();
     HttpHeaders headers = createHeaders();
     headers.setContentType(MediaType.valueOf("application/x-rscript"));
 
@@ -110,9 +114,19 @@ class RockSession extends AbstractRServerSession implements RServerSession, RSer
       if (RSerialize.RAW == serialize) {
         // accept application/octet-stream
         headers.setAccept(Lists.newArrayList(MediaType.APPLICATION_OCTET_STREAM, MediaType.APPLICATION_JSON));
-        ResponseEntity<byte[]> response = restTemplate.exchange(serverUrl, HttpMethod.POST, new HttpEntity<>(expr, headers), byte[].class);
+        // same encoding as the default string message converter
+        byte[] content = expr.getBytes(StandardCharsets.ISO_8859_1);
+        headers.setContentLength(content.length);
+        // read the response body directly, without intermediate buffering
+        // TODO stream the raw result to its consumer: RServerResult only exposes it as a byte array
+        byte[] body = restTemplate.execute(serverUrl, HttpMethod.POST,
+            request -> {
+              request.getHeaders().putAll(headers);
+              request.getBody().write(content);
+            },
+            response -> readBytes(response.getBody(), response.getHeaders().getContentLength()));
         log.debug("eval: {}ms", System.currentTimeMillis()-start);
-        return new RockResult(response.getBody());
+        return new RockResult(body);
       } else {
         // accept application/json
         headers.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
@@ -144,7 +158,6 @@ class RockSession extends AbstractRServerSession implements RServerSession, RSer
           .queryParam("path", fileName)
           .queryParam("overwrite", true);
 
-      RestTemplate restTemplate = new RestTemplate();
       ResponseEntity<String> response = restTemplate.postForEntity(builder.toUriString(), requestEntity, String.class);
       if (!response.getStatusCode().is2xxSuccessful()) {
         log.error("File upload to {} failed: {}", serverUrl, response.getStatusCode().getReasonPhrase());
@@ -166,7 +179,6 @@ class RockSession extends AbstractRServerSession implements RServerSession, RSer
       UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(serverUrl)
           .queryParam("path", fileName);
 
-      RestTemplate restTemplate = new RestTemplate();
       restTemplate.execute(builder.build().toUri(), HttpMethod.GET,
           request -> request.getHeaders().putAll(headers),
           (ResponseExtractor<Void>) response -> {
@@ -197,6 +209,7 @@ class RockSession extends AbstractRServerSession implements RServerSession, RSer
   @Override
   public void close() {
     if (isClosed()) return;
+    closeRCommandsQueue();
     closeSession();
   }
 
@@ -226,7 +239,6 @@ class RockSession extends AbstractRServerSession implements RServerSession, RSer
 
   private void openSession() throws RServerException {
     try {
-      RestTemplate restTemplate = new RestTemplate();
       ResponseEntity<RockSessionInfo> response = restTemplate.exchange(getRSessionsResourceUrl(), HttpMethod.POST, new HttpEntity<>(createHeaders()), RockSessionInfo.class);
       RockSessionInfo info = response.getBody();
       this.rockSessionId = info.getId();
@@ -237,7 +249,6 @@ class RockSession extends AbstractRServerSession implements RServerSession, RSer
 
   private RockSessionInfo getSession() throws RServerException {
     try {
-      RestTemplate restTemplate = new RestTemplate();
       ResponseEntity<RockSessionInfo> response = restTemplate.exchange(getRSessionResourceUrl(""), HttpMethod.GET, new HttpEntity<>(createHeaders()), RockSessionInfo.class);
       return response.getBody();
     } catch (RestClientException e) {
@@ -247,7 +258,6 @@ class RockSession extends AbstractRServerSession implements RServerSession, RSer
 
   private void closeSession() {
     try {
-      RestTemplate restTemplate = new RestTemplate();
       restTemplate.exchange(getRSessionResourceUrl(""), HttpMethod.DELETE, new HttpEntity<>(createHeaders()), Void.class);
       this.rockSessionId = null;
     } catch (RestClientException e) {
@@ -268,12 +278,17 @@ class RockSession extends AbstractRServerSession implements RServerSession, RSer
   }
 
   private HttpHeaders createHeaders() {
-    return new HttpHeaders() {{
-      String auth = credentials.getUser() + ":" + credentials.getPassword();
-      byte[] encodedAuth = Base64.getEncoder().encode(auth.getBytes(StandardCharsets.UTF_8));
-      String authHeader = "Basic " + new String(encodedAuth);
-      add("Authorization", authHeader);
-    }};
+    HttpHeaders headers = new HttpHeaders();
+    headers.add("Authorization", authHeader);
+    return headers;
+  }
+
+  private static byte[] readBytes(InputStream in, long contentLength) throws IOException {
+    if (in == null) return new byte[0];
+    if (contentLength < 0 || contentLength > Integer.MAX_VALUE) return ByteStreams.toByteArray(in);
+    byte[] bytes = new byte[(int) contentLength];
+    ByteStreams.readFully(in, bytes);
+    return bytes;
   }
 
   private static class MultiPartInputStreamResource extends InputStreamResource {
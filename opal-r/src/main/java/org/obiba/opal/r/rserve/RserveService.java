@@ -80,6 +80,9 @@ public class RserveService implements RServerService, ROperationTemplate {
   @Autowired
   private TransactionalThreadFactory transactionalThreadFactory;
 
+  @Autowired
+  private RCommandsExecutor rCommandsExecutor;
+
   @Autowired
   private OpalRuntime opalRuntime;
 
@@ -155,7 +158,8 @@ public class RserveService implements RServerService, ROperationTemplate {
   @Override
   public RServerSession newRServerSession(String user) {
     RServerConnection rConnection = newConnection();
-    RserveSession session = new RserveSession(getName(), (RserveConnection) rConnection, transactionalThreadFactory, user);
+    RserveSession session = new RserveSession(getName(), (RserveConnection) rConnection, transactionalThreadFactory,
+        rCommandsExecutor, user);
     sessions.add(session);
     return session;
   }
@@ -21,14 +21,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Collections;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
 
 /**
  * Defines the common attributes of what is a R server session.
@@ -39,11 +44,13 @@ public abstract class AbstractRServerSession implements RServerSession {
 
   protected final TransactionalThreadFactory transactionalThreadFactory;
 
+  private final RCommandsExecutor rCommandsExecutor;
+
   protected final Lock lock = new ReentrantLock();
 
   private final String id;
 
-  private final String user;
+  private String user;
 
   private final Date created;
 
@@ -60,28 +67,31 @@ public abstract class AbstractRServerSession implements RServerSession {
   private RServerProfile profile;
 
   /**
-   * R commands to be processed.
+   * R commands to be processed, in the order of submission.
    */
-  private final BlockingQueue<RCommand> rCommandQueue = new LinkedBlockingQueue<>();
+  private final Queue<Runnable> rCommandQueue = new ConcurrentLinkedQueue<>();
 
   /**
-   * All R commands.
+   * Whether the queue is being processed by the shared executor.
    */
-  private final List<RCommand> rCommandList = Collections.synchronizedList(new LinkedList<>());
-
-  private RCommandsConsumer rCommandsConsumer;
+  private final AtomicBoolean rCommandsDraining = new AtomicBoolean(false);
 
-  private Thread consumer;
+  /**
+   * All R commands, by identifier and in the order of submission.
+   */
+  private final Map<String, RCommand> rCommands = Collections.synchronizedMap(new LinkedHashMap<>());
 
   /**
    * R command identifier increment.
    */
   private int commandId = 1;
 
-  protected AbstractRServerSession(String clusterName, String serverName, String id, String user, TransactionalThreadFactory transactionalThreadFactory) {
+  protected AbstractRServerSession(String clusterName, String serverName, String id, String user,
+                                   TransactionalThreadFactory transactionalThreadFactory, RCommandsExecutor rCommandsExecutor) {
     this.id = id;
     this.user = user;
     this.transactionalThreadFactory = transactionalThreadFactory;
+    this.rCommandsExecutor = rCommandsExecutor;
     this.created = new Date();
     this.timestamp = created;
     this.clusterName = clusterName;
@@ -181,49 +191,75 @@ public abstract class AbstractRServerSession implements RServerSession {
   @Override
   public synchronized String executeAsync(ROperation rop) {
     touch();
-    ensureRCommandsConsumer();
+    evictRCommands();
     String rCommandId = getId() + "-" + commandId++;
-    RCommand cmd = new RCommand(rCommandId, rop);
-    rCommandList.add(cmd);
-    rCommandQueue.offer(cmd);
+    RCommand cmd = new RCommand(rCommandId, new RCommandOperation(rop));
+    rCommands.put(rCommandId, cmd);
+    Subject owner = SessionDetachedSubject.asSessionDetachedSubject(SecurityUtils.getSubject());
+    rCommandQueue.offer(owner.associateWith(transactionalThreadFactory.newTransactionalRunnable(() -> consume(cmd))));
+    scheduleRCommands();
     return rCommandId;
   }
 
   @Override
   public Iterable<RCommand> getRCommands() {
     touch();
-    return rCommandList;
+    evictRCommands();
+    synchronized (rCommands) {
+      return Lists.newArrayList(rCommands.values());
+    }
   }
 
   @Override
   public boolean hasRCommand(String cmdId) {
     touch();
-    for (RCommand rCommand : rCommandList) {
-      if (rCommand.getId().equals(cmdId)) return true;
-    }
-    return false;
+    return rCommands.containsKey(cmdId);
   }
 
   @Override
   public RCommand getRCommand(String cmdId) {
     touch();
-    for (RCommand rCommand : rCommandList) {
-      if (rCommand.getId().equals(cmdId)) return rCommand;
-    }
-    throw new NoSuchRCommandException(cmdId);
+    RCommand rCommand = rCommands.get(cmdId);
+    if (rCommand == null) throw new NoSuchRCommandException(cmdId);
+    return rCommand;
   }
 
   @Override
   public RCommand removeRCommand(String cmdId) {
     touch();
     RCommand rCommand = getRCommand(cmdId);
-    synchronized (rCommand) {
+    rCommands.remove(cmdId);
+    // a pending command is still executed (side effects) and released when done
+    if (rCommand.isFinished()) releaseRCommand(rCommand);
+    else synchronized (rCommand) {
       rCommand.notifyAll();
     }
-    rCommandList.remove(rCommand);
     return rCommand;
   }
 
+  //
+  // Package methods
+  //
+
+  /**
+   * Hand over the session to another user (pooled sessions only).
+   *
+   * @param user
+   */
+  void setUser(String user) {
+    this.user = user;
+  }
+
+  /**
+   * Forget the commands, the execution context and the profile of the previous user (pooled sessions only).
+   */
+  void resetState() {
+    closeRCommandsQueue();
+    executionContext = DEFAULT_CONTEXT;
+    profile = null;
+    touch();
+  }
+
   //
   // Protected methods
   //
@@ -232,6 +268,15 @@ public abstract class AbstractRServerSession implements RServerSession {
     this.busy = busy;
   }
 
+  /**
+   * Get the executor of the asynchronous R commands and its results retention settings.
+   *
+   * @return
+   */
+  protected RCommandsExecutor getRCommandsExecutor() {
+    return rCommandsExecutor;
+  }
+
   /**
    * Get the workspaces directory for the current execution context.
    *
@@ -247,64 +292,114 @@ public abstract class AbstractRServerSession implements RServerSession {
   //
 
   protected void closeRCommandsQueue() {
-    if (consumer == null) return;
+    rCommandQueue.clear();
+    List<RCommand> removed;
+    synchronized (rCommands) {
+      removed = Lists.newArrayList(rCommands.values());
+      rCommands.clear();
+    }
+    removed.forEach(this::releaseRCommand);
+  }
+
+  /**
+   * Have the pending commands run by the shared executor, unless it is already processing this session's queue
+   * (commands of a session are executed one after the other).
+   */
+  private void scheduleRCommands() {
+    if (!rCommandQueue.isEmpty() && rCommandsDraining.compareAndSet(false, true)) {
+      try {
+        getRCommandsExecutor().execute(this::drainRCommands);
+      } catch (RejectedExecutionException e) {
+        rCommandsDraining.set(false);
+        throw e;
+      }
+    }
+  }
+
+  private void drainRCommands() {
     try {
-      consumer.interrupt();
+      Runnable next;
+      while ((next = rCommandQueue.poll()) != null) {
+        next.run();
+      }
     } catch (Exception e) {
-      // ignore
+      log.error("Error in R commands processing", e);
     } finally {
-      consumer = null;
-      rCommandList.clear();
-      rCommandQueue.clear();
+      rCommandsDraining.set(false);
     }
+    // commands submitted while finishing
+    scheduleRCommands();
   }
 
-  private void ensureRCommandsConsumer() {
-    if (rCommandsConsumer == null) {
-      rCommandsConsumer = new RCommandsConsumer();
-      startRCommandsConsumer();
-    } else if (consumer == null || !consumer.isAlive()) {
-      startRCommandsConsumer();
+  private void consume(RCommand rCommand) {
+    try {
+      rCommand.inProgress();
+      execute(rCommand.getROperation());
+      rCommand.completed();
+    } catch (Exception e) {
+      log.error("Error when consuming R command: {}", e.getMessage(), e);
+      rCommand.failed(e.getMessage());
+    }
+    if (!rCommands.containsKey(rCommand.getId())) releaseRCommand(rCommand);
+    else spillRCommandResults();
+    synchronized (rCommand) {
+      rCommand.notifyAll();
     }
   }
 
-  private void startRCommandsConsumer() {
-    Subject owner = SessionDetachedSubject.asSessionDetachedSubject(SecurityUtils.getSubject());
-    consumer = transactionalThreadFactory.newThread(owner.associateWith(rCommandsConsumer));
-    consumer.setName("R Operations Consumer " + rCommandsConsumer);
-    consumer.setPriority(Thread.NORM_PRIORITY);
-    consumer.start();
+  /**
+   * Remove the finished commands that have outlived the results time to live.
+   */
+  private void evictRCommands() {
+    long timeToLive = getRCommandsExecutor().getResultTimeToLive();
+    if (timeToLive < 0) return;
+    long limit = System.currentTimeMillis() - timeToLive;
+    List<RCommand> expired;
+    synchronized (rCommands) {
+      expired = rCommands.values().stream()
+          .filter(cmd -> cmd.isFinished() && cmd.getEndDate() != null && cmd.getEndDate().getTime() < limit)
+          .collect(Collectors.toList());
+      expired.forEach(cmd -> rCommands.remove(cmd.getId()));
+    }
+    expired.forEach(cmd -> {
+      log.debug("R command {} result has expired", cmd.getId());
+      releaseRCommand(cmd);
+    });
   }
 
-  private class RCommandsConsumer implements Runnable {
-
-    @Override
-    public void run() {
-      log.debug("Starting R operations consumer");
+  /**
+   * Write to disk the oldest results in memory until the memory used by the results is within the limit.
+   */
+  private void spillRCommandResults() {
+    long maxMemory = getRCommandsExecutor().getResultsMaxMemory();
+    if (maxMemory < 0) return;
+    List<RCommandOperation> inMemory;
+    synchronized (rCommands) {
+      inMemory = rCommands.values().stream()
+          .filter(cmd -> cmd.isFinished() && cmd.getROperation() instanceof RCommandOperation)
+          .map(cmd -> (RCommandOperation) cmd.getROperation())
+          .filter(rop -> rop.getResultSize() > 0)
+          .collect(Collectors.toList());
+    }
+    long used = inMemory.stream().mapToLong(RCommandOperation::getResultSize).sum();
+    for (RCommandOperation rop : inMemory) {
+      if (used <= maxMemory) break;
+      long size = rop.getResultSize();
       try {
-        //noinspection InfiniteLoopStatement
-        while (true) {
-          consume(rCommandQueue.take());
-        }
-      } catch (InterruptedException ignored) {
-        log.debug("Stopping R operations consumer");
-      } catch (Exception e) {
-        log.error("Error in R command consumer", e);
+        rop.spill(getRCommandsExecutor().getSpillDirectory());
+        used -= size;
+      } catch (IOException e) {
+        log.warn("Failed to write R command result to disk: {}", e.getMessage());
+        break;
       }
     }
+  }
 
-    private void consume(RCommand rCommand) {
-      try {
-        rCommand.inProgress();
-        execute(rCommand.getROperation());
-        rCommand.completed();
-      } catch (Exception e) {
-        log.error("Error when consuming R command: {}", e.getMessage(), e);
-        rCommand.failed(e.getMessage());
-      }
-      synchronized (rCommand) {
-        rCommand.notifyAll();
-      }
+  private void releaseRCommand(RCommand rCommand) {
+    if (rCommand.getROperation() instanceof RCommandOperation)
+      ((RCommandOperation) rCommand.getROperation()).clear();
+    synchronized (rCommand) {
+      rCommand.notifyAll();
     }
   }
 
@@ -9,6 +9,7 @@
  */
 package org.obiba.opal.r.service;
 
+import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
@@ -19,6 +20,7 @@ import org.apache.commons.io.filefilter.TrueFileFilter;
 import org.apache.shiro.SecurityUtils;
 import org.obiba.core.util.FileUtil;
 import org.obiba.opal.r.service.event.RServerServiceStoppedEvent;
+import org.obiba.opal.r.service.event.RServiceInitializedEvent;
 import org.obiba.opal.r.service.event.RServiceStoppedEvent;
 import org.obiba.opal.spi.r.FileReadROperation;
 import org.obiba.opal.spi.r.FileWriteROperation;
@@ -36,7 +38,12 @@ import javax.ws.rs.ForbiddenException;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Maps R Sessions with its invoking Opal user (through its Opal Session). Current R session of an Opal user is the last
@@ -52,20 +59,100 @@ public class OpalRSessionManager {
 
   private static final String R_IMAGE_FILE = ".RData";
 
+  /**
+   * Delay before checking again a R session that is busy while its timeout is reached.
+   */
+  private static final long EXPIRY_RECHECK_DELAY_MILLIS = 60 * 1000;
+
   @Value("${org.obiba.opal.r.sessionTimeout}")
   private Long rSessionTimeout;
 
+  @Value("${org.obiba.opal.r.pool.minIdle}")
+  private int poolMinIdle = 0;
+
+  @Value("${org.obiba.opal.r.pool.maxSize}")
+  private int poolMaxSize = 0;
+
+  @Value("${org.obiba.opal.r.pool.packages}")
+  private String poolPackages;
+
+  @Value("${org.obiba.opal.r.pool.resetOnReturn}")
+  private boolean poolResetOnReturn = false;
+
   @Autowired
   private RServerManagerService rServerManagerService;
 
-  private final Map<String, SubjectRSessions> rSessionMap = Maps.newConcurrentMap();
+  private final RSessionRegistry rSessionRegistry = new RSessionRegistry();
+
+  /**
+   * Pending expiry checks, by R session identifier.
+   */
+  private final Map<String, ScheduledFuture<?>> rSessionExpiries = Maps.newConcurrentMap();
+
+  private final ScheduledThreadPoolExecutor rSessionExpiryExecutor;
+
+  /**
+   * Closing a R session involves a round trip to the R server, so it is not done in the request thread.
+   */
+  private final ExecutorService rSessionCloseExecutor = Executors.newCachedThreadPool(r -> {
+    Thread thread = new Thread(r, "R session close");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * Pools of pre-started R sessions, by cluster and profile names.
+   */
+  private final Map<String, RServerSessionPool> rSessionPools = Maps.newConcurrentMap();
+
+  private ExecutorService rSessionPoolExecutor;
+
+  public OpalRSessionManager() {
+    rSessionExpiryExecutor = new ScheduledThreadPoolExecutor(1, r -> {
+      Thread thread = new Thread(r, "R session expiry");
+      thread.setDaemon(true);
+      return thread;
+    });
+    rSessionExpiryExecutor.setRemoveOnCancelPolicy(true);
+  }
 
-  @PreDestroy
   public void stop() {
-    for (String principal : rSessionMap.keySet()) {
-      doClearRSessions(principal);
+    for (RServerSession rSession : rSessionRegistry.getAll()) {
+      unregisterRSession(rSession.getId());
+      try {
+        rSession.close();
+      } catch (Exception e) {
+        log.warn("Failed closing R session: {}", rSession.getId(), e);
+      }
+    }
+    rSessionPools.values().forEach(RServerSessionPool::close);
+    rSessionPools.clear();
+    synchronized (this) {
+      if (rSessionPoolExecutor != null) rSessionPoolExecutor.shutdownNow();
+      rSessionPoolExecutor = null;
+    }
+  }
+
+  @PreDestroy
+  public void destroy() {
+    stop();
+    rSessionExpiryExecutor.shutdownNow();
+    rSessionCloseExecutor.shutdown();
+  }
+
+  /**
+   * Start the R sessions of the default profile's pool as soon as the R servers are ready.
+   *
+   * @param event
+   */
+  @Subscribe
+  public void onRServiceInitialized(RServiceInitializedEvent event) {
+    try {
+      RServerSessionPool pool = getRSessionPool(rServerManagerService.getDefaultRServerProfile());
+      if (pool != null) pool.fill();
+    } catch (Exception e) {
+      log.warn("Error while starting R session pool", e);
     }
-    rSessionMap.clear();
   }
 
   @Subscribe
@@ -85,9 +172,10 @@ public class OpalRSessionManager {
   @Subscribe
   public void onRServerServiceStopped(RServerServiceStoppedEvent event) {
     try {
-      for (SubjectRSessions sessions : rSessionMap.values()) {
-        sessions.removeRSessions(event.getCluster(), event.getName());
+      for (RServerSession rSession : rSessionRegistry.getByServer(event.getCluster(), event.getName())) {
+        removeRSession(rSession.getId());
       }
+      rSessionPools.values().forEach(pool -> pool.removeRSessions(event.getName()));
     } catch (Exception e) {
       log.warn("Error while stopping R session manager", e);
     }
@@ -99,13 +187,7 @@ public class OpalRSessionManager {
    * @return
    */
   public List<RServerSession> getRSessions() {
-    ImmutableList.Builder<RServerSession> builder = ImmutableList.builder();
-
-    for (SubjectRSessions rSessions : rSessionMap.values()) {
-      builder.addAll(rSessions);
-    }
-
-    return builder.build();
+    return ImmutableList.copyOf(rSessionRegistry.getAll());
   }
 
   /**
@@ -114,7 +196,7 @@ public class OpalRSessionManager {
    * @return
    */
   public List<RServerSession> getSubjectRSessions() {
-    return new ImmutableList.Builder<RServerSession>().addAll(getRSessions(getSubjectPrincipal())).build();
+    return ImmutableList.copyOf(rSessionRegistry.getByPrincipal(getSubjectPrincipal()));
   }
 
   /**
@@ -123,26 +205,19 @@ public class OpalRSessionManager {
    * @param rSessionId
    */
   public RServerSession getRSession(String rSessionId) {
-    for (SubjectRSessions rSessions : rSessionMap.values()) {
-      if (rSessions.hasRSession(rSessionId)) {
-        return rSessions.getRSession(rSessionId);
-      }
-    }
-    throw new NoSuchRSessionException(rSessionId);
+    RServerSession rSession = rSessionRegistry.get(rSessionId);
+    if (rSession == null) throw new NoSuchRSessionException(rSessionId);
+    return rSession;
   }
 
   /**
-   * Remove the R session with the provided identifier.
+   * Remove the R session with the provided identifier. The R session is closed asynchronously.
    *
    * @param rSessionId
    */
   public void removeRSession(String rSessionId) {
-    for (SubjectRSessions rSessions : rSessionMap.values()) {
-      if (rSessions.hasRSession(rSessionId)) {
-        rSessions.removeRSession(rSessionId);
-        return;
-      }
-    }
+    RServerSession rSession = unregisterRSession(rSessionId);
+    if (rSession != null) closeRSessionAsync(rSession);
   }
 
   /**
@@ -151,7 +226,7 @@ public class OpalRSessionManager {
    * @param rSessionId
    */
   public void removeSubjectRSession(String rSessionId) {
-    getRSessions(getSubjectPrincipal()).removeRSession(rSessionId);
+    removeRSession(getSubjectRSession(rSessionId).getId());
   }
 
   /**
@@ -161,7 +236,18 @@ public class OpalRSessionManager {
    * @param saveId
    */
   public void saveSubjectRSession(String rSessionId, String saveId) {
-    getRSessions(getSubjectPrincipal()).saveRSession(rSessionId, saveId);
+    RServerSession rSession = getSubjectRSession(rSessionId);
+    // make sure the session storage folder is empty
+    File store = rSession.getWorkspace(saveId);
+    Lists.newArrayList(store.listFiles()).forEach(file -> {
+      try {
+        FileUtil.delete(file);
+      } catch (IOException e) {
+        // ignore
+      }
+    });
+    rSession.saveRSessionFiles(saveId);
+    saveRSessionImage(rSession, saveId);
   }
 
   /**
@@ -171,7 +257,9 @@ public class OpalRSessionManager {
    * @param restoreId
    */
   public void restoreSubjectRSession(String rSessionId, String restoreId) {
-    getRSessions(getSubjectPrincipal()).restoreRSession(rSessionId, restoreId);
+    RServerSession rSession = getSubjectRSession(rSessionId);
+    restoreSessionImage(rSession, restoreId);
+    restoreSessionFiles(rSession, restoreId);
   }
 
   /**
@@ -200,20 +288,29 @@ public class OpalRSessionManager {
    * @return
    */
   public RServerSession getSubjectRSession(String rSessionId) {
-    return getRSession(getSubjectPrincipal(), rSessionId);
+    RServerSession rSession = rSessionRegistry.get(getSubjectPrincipal(), rSessionId);
+    if (rSession == null) throw new NoSuchRSessionException(rSessionId);
+    return rSession;
   }
 
   public void removeSubjectRSessions() {
-    getRSessions(getSubjectPrincipal()).removeRSessions();
+    for (RServerSession rSession : rSessionRegistry.getByPrincipal(getSubjectPrincipal())) {
+      removeRSession(rSession.getId());
+    }
   }
 
   /**
-   * Check for expired {@link RServerSession}s, close them if any and clean subject
-   * {@link RServerSession} pool.
+   * Check that the idle R sessions of the pools are responsive and start the missing ones.
    */
   @Scheduled(fixedDelay = 60 * 1000)
-  public void checkRSessions() {
-    rSessionMap.keySet().forEach(this::checkRSessions);
+  public void checkRSessionPools() {
+    rSessionPools.values().forEach(pool -> {
+      try {
+        pool.checkHealth();
+      } catch (Exception e) {
+        log.warn("Failed checking R session pool", e);
+      }
+    });
   }
 
   /**
@@ -243,209 +340,154 @@ public class OpalRSessionManager {
   // private methods
   //
 
-  private synchronized void checkRSessions(String principal) {
-    if (!rSessionMap.containsKey(principal)) return;
-    log.debug("clearRSessions({})", principal);
-    SubjectRSessions subjectRSessions = rSessionMap.get(principal);
-    for (RServerSession rSession : subjectRSessions) {
-      if (rSession.hasExpired(rSessionTimeout)) {
-        try {
-          rSession.close();
-        } catch (Exception e) {
-          log.warn("Failed closing R session: {}", rSession.getId(), e);
-        }
-      }
-    }
-    subjectRSessions.clean();
-  }
-
-  private void doClearRSessions(String principal) {
-    for (RServerSession rSession : rSessionMap.get(principal)) {
-      try {
-        rSession.close();
-      } catch (Exception e) {
-        log.warn("Failed closing R session: {}", rSession.getId(), e);
-      }
-    }
-  }
-
   private RServerSession addRSession(String principal, RServerProfile profile) {
     try {
       RServerProfile safeProfile = asSafeRServerProfile(profile);
-      SubjectRSessions rSessions = getRSessions(principal);
-      RServerSession rSession = rServerManagerService.getRServer(safeProfile.getCluster()).newRServerSession(principal);
+      RServerSessionPool pool = getRSessionPool(safeProfile);
+      RServerSession rSession = pool == null ? null : pool.take(principal, safeProfile);
+      if (rSession == null)
+        rSession = rServerManagerService.getRServer(safeProfile.getCluster()).newRServerSession(principal);
       rSession.setProfile(safeProfile);
-      rSessions.addRSession(rSession);
+      rSessionRegistry.add(principal, rSession);
+      scheduleExpiryCheck(rSession.getId(), TimeUnit.MINUTES.toMillis(rSessionTimeout));
       return rSession;
     } catch (Exception e) {
       throw new RRuntimeException(e);
     }
   }
 
-  private RServerProfile asSafeRServerProfile(RServerProfile profile) {
-    if (profile != null) return profile;
-    return rServerManagerService.getDefaultRServerProfile();
-  }
-
-  private RServerSession getRSession(String principal, String rSessionId) {
-    return getRSessions(principal).getRSession(rSessionId);
+  private RServerSession unregisterRSession(String rSessionId) {
+    ScheduledFuture<?> expiry = rSessionExpiries.remove(rSessionId);
+    if (expiry != null) expiry.cancel(false);
+    return rSessionRegistry.remove(rSessionId);
   }
 
-  private synchronized SubjectRSessions getRSessions(String principal) {
-    SubjectRSessions rSessions = rSessionMap.get(principal);
-    if (rSessions == null) {
-      rSessions = new SubjectRSessions();
-      rSessionMap.put(principal, rSessions);
-    }
-    return rSessions;
+  private void scheduleExpiryCheck(String rSessionId, long delayMillis) {
+    if (rSessionExpiryExecutor.isShutdown()) return;
+    rSessionExpiries.put(rSessionId,
+        rSessionExpiryExecutor.schedule(() -> checkExpiry(rSessionId), delayMillis, TimeUnit.MILLISECONDS));
   }
 
-  private String getSubjectPrincipal() {
-    if (!SecurityUtils.getSubject().isAuthenticated()) throw new ForbiddenException();
-    return SecurityUtils.getSubject().getPrincipal().toString();
-  }
-
-  //
-  // Nested classes
-  //
-
-  private static final class SubjectRSessions implements Iterable<RServerSession> {
-
-    private final List<RServerSession> rSessions = Collections.synchronizedList(new ArrayList<RServerSession>());
-
-    void saveRSession(String rSessionId, String saveId) {
-      RServerSession rSession = getRSession(rSessionId);
-      // make sure the session storage folder is empty
-      File store = rSession.getWorkspace(saveId);
-      Lists.newArrayList(store.listFiles()).forEach(file -> {
-        try {
-          FileUtil.delete(file);
-        } catch (IOException e) {
-          // ignore
-        }
-      });
-      saveRSessionFiles(rSession, saveId);
-      saveRSessionImage(rSession, saveId);
-    }
-
-    void restoreRSession(String rSessionId, String restoreId) {
-      RServerSession rSession = getRSession(rSessionId);
-      restoreSessionImage(rSession, restoreId);
-      restoreSessionFiles(rSession, restoreId);
-    }
-
-    void removeRSession(String rSessionId) {
-      removeRSession(getRSession(rSessionId));
-    }
-
-    void removeRSession(RServerSession rSession) {
-      try {
-        rSession.close();
-        rSessions.remove(rSession);
-      } catch (Exception e) {
-        log.warn("Failed closing R session: {}", rSession.getId(), e);
-      }
+  /**
+   * Remove the R session if it has expired or was closed, otherwise check it again when it would expire
+   * from its last activity.
+   *
+   * @param rSessionId
+   */
+  private void checkExpiry(String rSessionId) {
+    RServerSession rSession = rSessionRegistry.get(rSessionId);
+    if (rSession == null) {
+      rSessionExpiries.remove(rSessionId);
+      return;
     }
-
-    void removeRSessions(String clusterName, String serverName) {
-      List<RServerSession> sessionsToRemove = rSessions.stream()
-          .filter(s -> clusterName.equals(s.getProfile().getCluster()) && serverName.equals(s.getRServerServiceName()))
-          .collect(Collectors.toList());
-      for (RServerSession rSession : sessionsToRemove) {
-        try {
-          removeRSession(rSession);
-        } catch (Exception e) {
-          log.warn("Failed closing R session: {}", rSession.getId(), e);
-        }
-      }
+    if (rSession.isClosed()) {
+      unregisterRSession(rSessionId);
+    } else if (rSession.hasExpired(rSessionTimeout)) {
+      log.debug("R session {} has expired", rSessionId);
+      unregisterRSession(rSessionId);
+      closeRSessionAsync(rSession);
+    } else {
+      long remaining = rSession.getTimestamp().getTime() + TimeUnit.MINUTES.toMillis(rSessionTimeout) - System.currentTimeMillis();
+      scheduleExpiryCheck(rSessionId, remaining > 0 ? remaining : EXPIRY_RECHECK_DELAY_MILLIS);
     }
+  }
 
-    void removeRSessions() {
-      for (RServerSession rSession : rSessions) {
-        try {
-          rSession.close();
-        } catch (Exception e) {
-          log.warn("Failed closing R session: {}", rSession.getId(), e);
-        }
-      }
-      rSessions.clear();
+  private void closeRSessionAsync(RServerSession rSession) {
+    try {
+      rSessionCloseExecutor.execute(() -> closeRSession(rSession));
+    } catch (RejectedExecutionException e) {
+      closeRSession(rSession);
     }
+  }
 
-    void clean() {
-      List<RServerSession> toRemove = Lists.newArrayList();
-      for (RServerSession rSession : rSessions) {
-        if (rSession.isClosed()) {
-          toRemove.add(rSession);
-        }
+  /**
+   * Give back the R session to its pool if enabled and possible, otherwise close it.
+   *
+   * @param rSession
+   */
+  private void closeRSession(RServerSession rSession) {
+    try {
+      if (poolResetOnReturn && rSession.getProfile() != null) {
+        RServerSessionPool pool = rSessionPools.get(getRSessionPoolKey(rSession.getProfile()));
+        if (pool != null && pool.giveBack(rSession)) return;
       }
-      rSessions.removeAll(toRemove);
-    }
-
-    private void saveRSessionFiles(RServerSession rSession, String saveId) {
-      rSession.saveRSessionFiles(saveId);
+      rSession.close();
+    } catch (Exception e) {
+      log.warn("Failed closing R session: {}", rSession.getId(), e);
     }
+  }
 
-    private void saveRSessionImage(RServerSession rSession, String saveId) {
-      // then save the memory image
-      String rscript = "base::save.image()";
-      RScriptROperation rop = new RScriptROperation(rscript, false);
-      rSession.execute(rop);
-      FileReadROperation readop = new FileReadROperation(R_IMAGE_FILE, new File(rSession.getWorkspace(saveId), R_IMAGE_FILE));
-      rSession.execute(readop);
-    }
+  /**
+   * Get or create the pool of R sessions of the profile.
+   *
+   * @param profile
+   * @return null if pooling is disabled
+   */
+  private RServerSessionPool getRSessionPool(RServerProfile profile) {
+    if (poolMinIdle <= 0) return null;
+    return rSessionPools.computeIfAbsent(getRSessionPoolKey(profile), k -> new RServerSessionPool(profile, rServerManagerService,
+        getRSessionPoolExecutor(), poolMinIdle, poolMaxSize, poolResetOnReturn,
+        Splitter.on(",").trimResults().omitEmptyStrings().splitToList(Strings.nullToEmpty(poolPackages))));
+  }
 
-    private void restoreSessionImage(RServerSession rSession, String restoreId) {
-      File source = new File(rSession.getWorkspace(restoreId), R_IMAGE_FILE);
-      if (!source.exists()) return;
-      FileWriteROperation writeop = new FileWriteROperation(R_IMAGE_FILE, source);
-      rSession.execute(writeop);
-      String rscript = String.format("base::load('%s')", R_IMAGE_FILE);
-      RScriptROperation rop = new RScriptROperation(rscript, false);
-      rSession.execute(rop);
-    }
+  private String getRSessionPoolKey(RServerProfile profile) {
+    return Strings.nullToEmpty(profile.getCluster()) + ":" + profile.getName();
+  }
 
-    private void restoreSessionFiles(RServerSession rSession, String restoreId) {
-      File source = rSession.getWorkspace(restoreId);
-      FileUtils.listFiles(source, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE).forEach(file -> {
-        String destination = file.getAbsolutePath().replace(source.getAbsolutePath(), "");
-        if (destination.startsWith("/")) destination = destination.substring(1);
-        if (destination.contains("/")) {
-          // make sure destination directory exists
-          String rscript = String.format("base::dir.create('%s', showWarnings=FALSE, recursive=TRUE)", destination.substring(0, destination.lastIndexOf("/")));
-          RScriptROperation rop = new RScriptROperation(rscript, false);
-          rSession.execute(rop);
-        }
-        FileWriteROperation writeop = new FileWriteROperation(destination, file);
-        rSession.execute(writeop);
+  private synchronized ExecutorService getRSessionPoolExecutor() {
+    if (rSessionPoolExecutor == null) {
+      rSessionPoolExecutor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "R session pool");
+        thread.setDaemon(true);
+        return thread;
       });
     }
+    return rSessionPoolExecutor;
+  }
 
-    private boolean hasRSession(String rSessionId) {
-      for (RServerSession rs : rSessions) {
-        if (rs.getId().equals(rSessionId)) {
-          return true;
-        }
-      }
-      return false;
-    }
+  private RServerProfile asSafeRServerProfile(RServerProfile profile) {
+    if (profile != null) return profile;
+    return rServerManagerService.getDefaultRServerProfile();
+  }
 
-    private void addRSession(RServerSession rSession) {
-      rSessions.add(rSession);
-    }
+  private String getSubjectPrincipal() {
+    if (!SecurityUtils.getSubject().isAuthenticated()) throw new ForbiddenException();
+    return SecurityUtils.getSubject().getPrincipal().toString();
+  }
 
-    private RServerSession getRSession(String rSessionId) {
-      for (RServerSession rs : rSessions) {
-        if (rs.getId().equals(rSessionId)) {
-          return rs;
-        }
-      }
-      throw new NoSuchRSessionException(rSessionId);
-    }
+  private void saveRSessionImage(RServerSession rSession, String saveId) {
+    // then save the memory image
+    String rscript = "base::save.image()";
+    RScriptROperation rop = new RScriptROperation(rscript, false);
+    rSession.execute(rop);
+    FileReadROperation readop = new FileReadROperation(R_IMAGE_FILE, new File(rSession.getWorkspace(saveId), R_IMAGE_FILE));
+    rSession.execute(readop);
+  }
 
-    @Override
-    public Iterator<RServerSession> iterator() {
-      return rSessions.iterator();
-    }
+  private void restoreSessionImage(RServerSession rSession, String restoreId) {
+    File source = new File(rSession.getWorkspace(restoreId), R_IMAGE_FILE);
+    if (!source.exists()) return;
+    FileWriteROperation writeop = new FileWriteROperation(R_IMAGE_FILE, source);
+    rSession.execute(writeop);
+    String rscript = String.format("base::load('%s')", R_IMAGE_FILE);
+    RScriptROperation rop = new RScriptROperation(rscript, false);
+    rSession.execute(rop);
+  }
 
+  private void restoreSessionFiles(RServerSession rSession, String restoreId) {
+    File source = rSession.getWorkspace(restoreId);
+    FileUtils.listFiles(source, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE).forEach(file -> {
+      String destination = file.getAbsolutePath().replace(source.getAbsolutePath(), "");
+      if (destination.startsWith("/")) destination = destination.substring(1);
+      if (destination.contains("/")) {
+        // make sure destination directory exists
+        String rscript = String.format("base::dir.create('%s', showWarnings=FALSE, recursive=TRUE)", destination.substring(0, destination.lastIndexOf("/")));
+        RScriptROperation rop = new RScriptROperation(rscript, false);
+        rSession.execute(rop);
+      }
+      FileWriteROperation writeop = new FileWriteROperation(destination, file);
+      rSession.execute(writeop);
+    });
   }
+
 }
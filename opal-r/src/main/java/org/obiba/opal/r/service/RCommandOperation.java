@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.r.service;
+
+import org.obiba.opal.spi.r.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Wraps the R operation of an asynchronous R command: once executed, the operation is released and only its result
+ * is kept, in memory or in a file when it was spilled to disk.
+ */
+class RCommandOperation implements ROperationWithResult {
+
+  private final String script;
+
+  private ROperation rOperation;
+
+  private RServerResult result;
+
+  private long resultSize = 0;
+
+  private File spillFile;
+
+  RCommandOperation(ROperation rOperation) {
+    this.rOperation = rOperation;
+    this.script = rOperation.toString();
+  }
+
+  @Override
+  public void doWithConnection(RServerConnection connection) {
+    ROperation rop = rOperation;
+    if (rop == null) return;
+    try {
+      rop.doWithConnection(connection);
+    } finally {
+      if (rop instanceof ROperationWithResult && ((ROperationWithResult) rop).hasResult())
+        setResult(((ROperationWithResult) rop).getResult());
+      rOperation = null;
+    }
+  }
+
+  private synchronized void setResult(RServerResult result) {
+    this.result = result;
+    this.resultSize = estimateSize(result);
+  }
+
+  @Override
+  public synchronized boolean hasResult() {
+    return result != null;
+  }
+
+  @Override
+  public synchronized RServerResult getResult() {
+    return result;
+  }
+
+  /**
+   * Memory used by the result, 0 if there is none or if it was spilled.
+   *
+   * @return
+   */
+  synchronized long getResultSize() {
+    return spillFile == null ? resultSize : 0;
+  }
+
+  /**
+   * Write the result in a file of the directory and keep a reference to that file only.
+   *
+   * @param directory
+   */
+  synchronized void spill(File directory) throws IOException {
+    if (result == null || spillFile != null) return;
+    File file = File.createTempFile("rcmd-", result.isRaw() ? ".bin" : ".json", directory);
+    if (result.isRaw())
+      Files.write(file.toPath(), result.asBytes());
+    else
+      Files.write(file.toPath(), result.asJSON().getBytes(StandardCharsets.UTF_8));
+    spillFile = file;
+    result = new SpilledResult(file, result.isRaw());
+  }
+
+  /**
+   * Release the result and delete its file if it was spilled.
+   */
+  synchronized void clear() {
+    result = null;
+    rOperation = null;
+    if (spillFile != null) {
+      try {
+        Files.deleteIfExists(spillFile.toPath());
+      } catch (IOException e) {
+        // ignore
+      }
+      spillFile = null;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return script;
+  }
+
+  private static long estimateSize(RServerResult result) {
+    try {
+      return result.isRaw() ? result.asBytes().length : (long) result.asJSON().length() * 2;
+    } catch (Exception e) {
+      // not representable, cannot be spilled either
+      return 0;
+    }
+  }
+
+  /**
+   * A result read back from its file, that only supports the raw and JSON representations.
+   */
+  private static class SpilledResult implements RServerResult {
+
+    private final File file;
+
+    private final boolean raw;
+
+    private SpilledResult(File file, boolean raw) {
+      this.file = file;
+      this.raw = raw;
+    }
+
+    @Override
+    public int length() {
+      return 1;
+    }
+
+    @Override
+    public boolean isRaw() {
+      return raw;
+    }
+
+    @Override
+    public byte[] asBytes() {
+      if (!raw) throw new UnsupportedOperationException("Not a raw result");
+      return read();
+    }
+
+    @Override
+    public boolean isNumeric() {
+      return false;
+    }
+
+    @Override
+    public double[] asDoubles() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isInteger() {
+      return false;
+    }
+
+    @Override
+    public int[] asIntegers() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean asLogical() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String asJSON() {
+      if (raw) throw new UnsupportedOperationException("Not a JSON result");
+      return new String(read(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean isString() {
+      return false;
+    }
+
+    @Override
+    public String[] asStrings() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public RMatrix<String> asStringMatrix() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isList() {
+      return false;
+    }
+
+    @Override
+    public List<RServerResult> asList() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isNamedList() {
+      return false;
+    }
+
+    @Override
+    public RNamedList<RServerResult> asNamedList() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean[] isNA() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object asNativeJavaObject() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean hasNames() {
+      return false;
+    }
+
+    @Override
+    public String[] getNames() {
+      return new String[0];
+    }
+
+    private byte[] read() {
+      try {
+        return Files.readAllBytes(file.toPath());
+      } catch (IOException e) {
+        throw new RRuntimeException(e);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.r.service;
+
+import org.obiba.core.util.FileUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor shared by all the R sessions for running their asynchronous R commands, with a bounded count of threads.
+ * Also holds the settings of the retention of the commands results.
+ */
+@Component
+public class RCommandsExecutor {
+
+  private static final Logger log = LoggerFactory.getLogger(RCommandsExecutor.class);
+
+  private static final String SPILL_DIR = System.getenv().get("OPAL_HOME") + File.separatorChar + "work"
+      + File.separatorChar + "R" + File.separatorChar + "commands";
+
+  private final File spillDirectory;
+
+  @Value("${org.obiba.opal.r.commands.maxThreads}")
+  private int commandsMaxThreads = 32;
+
+  @Value("${org.obiba.opal.r.commands.resultsTTL}")
+  private long commandsResultsTTL = 60;
+
+  @Value("${org.obiba.opal.r.commands.resultsMaxMemory}")
+  private long commandsResultsMaxMemory = 64;
+
+  private ThreadPoolExecutor executor;
+
+  private int maxThreads = 32;
+
+  private long resultTimeToLive = TimeUnit.MINUTES.toMillis(60);
+
+  private long resultsMaxMemory = 64 * 1024 * 1024;
+
+  public RCommandsExecutor() {
+    this(new File(SPILL_DIR));
+  }
+
+  RCommandsExecutor(File spillDirectory) {
+    this.spillDirectory = spillDirectory;
+  }
+
+  @PostConstruct
+  public void init() {
+    configure(commandsMaxThreads);
+    setResultsRetention(commandsResultsTTL, commandsResultsMaxMemory < 0 ? -1 : commandsResultsMaxMemory * 1024 * 1024);
+  }
+
+  /**
+   * Set the maximum count of R commands running concurrently. The commands already submitted complete in the previous
+   * executor.
+   *
+   * @param maxThreads
+   */
+  public synchronized void configure(int maxThreads) {
+    this.maxThreads = Math.max(1, maxThreads);
+    if (executor != null) executor.shutdown();
+    executor = null;
+  }
+
+  /**
+   * Set how long the finished R commands are kept and how much memory their results can use in a R session,
+   * beyond which they are written to disk.
+   *
+   * @param timeToLive in minutes (0 or less to keep until removed)
+   * @param maxMemory in bytes (negative for no limit)
+   */
+  public void setResultsRetention(long timeToLive, long maxMemory) {
+    setResultsRetention(timeToLive, TimeUnit.MINUTES, maxMemory);
+  }
+
+  void setResultsRetention(long timeToLive, TimeUnit unit, long maxMemory) {
+    this.resultTimeToLive = timeToLive <= 0 ? -1 : unit.toMillis(timeToLive);
+    this.resultsMaxMemory = maxMemory;
+  }
+
+  long getResultTimeToLive() {
+    return resultTimeToLive;
+  }
+
+  long getResultsMaxMemory() {
+    return resultsMaxMemory;
+  }
+
+  File getSpillDirectory() {
+    if (!spillDirectory.exists()) spillDirectory.mkdirs();
+    return spillDirectory;
+  }
+
+  /**
+   * Remove the results written to disk by a previous run, that are not referred by any R command.
+   */
+  public void purgeSpillDirectory() {
+    try {
+      if (spillDirectory.exists()) FileUtil.delete(spillDirectory);
+    } catch (Exception e) {
+      log.warn("Failure when removing R commands results files", e);
+    }
+  }
+
+  void execute(Runnable runnable) {
+    getExecutor().execute(runnable);
+  }
+
+  /**
+   * Stop the running commands and release the threads.
+   */
+  public synchronized void shutdown() {
+    if (executor != null) executor.shutdownNow();
+    executor = null;
+  }
+
+  //
+  // Private methods
+  //
+
+  private synchronized ThreadPoolExecutor getExecutor() {
+    if (executor == null || executor.isShutdown()) {
+      AtomicInteger count = new AtomicInteger();
+      executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+        Thread thread = new Thread(r, "R command " + count.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+      });
+      executor.allowCoreThreadTimeOut(true);
+    }
+    return executor;
+  }
+
+}
@@ -31,6 +31,11 @@ import org.obiba.opal.r.service.event.RServiceInitializedEvent;
 import org.obiba.opal.spi.r.*;
 import org.obiba.opal.sql.SQLExtractor;
 import org.obiba.opal.sql.SQLParserException;
+import org.obiba.opal.sql.UnsupportedSQLException;
+import org.obiba.opal.sql.engine.CSVResultWriter;
+import org.obiba.opal.sql.engine.JSONResultWriter;
+import org.obiba.opal.sql.engine.SQLQuery;
+import org.obiba.opal.sql.engine.SQLTable;
 import org.obiba.opal.web.support.InvalidRequestException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,6 +48,7 @@ import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.ws.rs.ForbiddenException;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.text.Normalizer;
 import java.util.*;
 
@@ -89,20 +95,9 @@ public class RSQLService implements Service, SQLService {
     sqlExec.setQuery(query);
     sqlExec.setUser(getSubjectPrincipal());
 
-    RServerSession rSession = prepareRSession();
-
     try {
-      String queryStr = prepareEnvironment(datasource, query, idName, rSession);
-
-      // execute SQL
-      String rOutput = "out." + output.toString().toLowerCase();
-      RScriptROperation rop = new RScriptROperation(String.format("%s.%s('%s', '%s')", EXECUTE_SQL_FUNC, output.toString(), queryStr, rOutput), false);
-      rSession.execute(rop);
-
-      File outputFile = new File(R_WORK_DIR, rSession.getId() + "-" + rOutput);
-      FileReadROperation frop = new FileReadROperation(rOutput, outputFile);
-      rSession.execute(frop);
-      return outputFile;
+      File outputFile = executeNatively(datasource, query, idName, output);
+      return outputFile == null ? executeInR(datasource, query, idName, output) : outputFile;
     } catch (RRuntimeException | SQLParserException e) {
       sqlExec.setError(e.getMessage());
       throw new SQLException(e);
@@ -111,7 +106,6 @@ public class RSQLService implements Service, SQLService {
       throw e;
     } finally {
       saveSQLExecutionHistory(sqlExec);
-      closeRSession(rSession.getId());
     }
   }
 
@@ -191,6 +185,66 @@ public class RSQLService implements Service, SQLService {
     }
   }
 
+  /**
+   * Execute a single table query without R: the values are read column by column from the Magma table, only for the
+   * columns and the rows the query needs, and the result is streamed to the output file.
+   *
+   * @param datasource
+   * @param query
+   * @param idName
+   * @param output
+   * @return null if the query or the output format is not supported natively
+   */
+  private File executeNatively(@Nullable String datasource, String query, String idName, Output output) throws SQLParserException {
+    if (output == Output.RDS) return null;
+    SQLQuery sqlQuery;
+    try {
+      sqlQuery = SQLQuery.parse(query);
+    } catch (UnsupportedSQLException e) {
+      log.debug("SQL query to be executed in R: {}", e.getMessage());
+      return null;
+    }
+    Datasource ds = Strings.isNullOrEmpty(datasource) ? null : MagmaEngine.get().getDatasource(datasource);
+    ValueTable valueTable = extractValueTable(ds, sqlQuery.getTableName());
+    SQLTable sqlTable = new ValueTableSQLTable(valueTable, Strings.isNullOrEmpty(idName) ? DEFAULT_ID_COLUMN : idName);
+
+    File outputFile = new File(R_WORK_DIR, UUID.randomUUID() + "-out." + output.toString().toLowerCase());
+    outputFile.getParentFile().mkdirs();
+    try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile), StandardCharsets.UTF_8))) {
+      sqlQuery.execute(sqlTable, output == Output.JSON ? new JSONResultWriter(writer) : new CSVResultWriter(writer));
+      return outputFile;
+    } catch (UnsupportedSQLException e) {
+      log.debug("SQL query to be executed in R: {}", e.getMessage());
+      outputFile.delete();
+      return null;
+    } catch (IOException e) {
+      outputFile.delete();
+      throw new SQLException(e);
+    } catch (RuntimeException e) {
+      outputFile.delete();
+      throw e;
+    }
+  }
+
+  private File executeInR(@Nullable String datasource, String query, String idName, Output output) throws SQLParserException {
+    RServerSession rSession = prepareRSession();
+    try {
+      String queryStr = prepareEnvironment(datasource, query, idName, rSession);
+
+      // execute SQL
+      String rOutput = "out." + output.toString().toLowerCase();
+      RScriptROperation rop = new RScriptROperation(String.format("%s.%s('%s', '%s')", EXECUTE_SQL_FUNC, output.toString(), queryStr, rOutput), false);
+      rSession.execute(rop);
+
+      File outputFile = new File(R_WORK_DIR, rSession.getId() + "-" + rOutput);
+      FileReadROperation frop = new FileReadROperation(rOutput, outputFile);
+      rSession.execute(frop);
+      return outputFile;
+    } finally {
+      closeRSession(rSession.getId());
+    }
+  }
+
   private RServerSession prepareRSession() {
     RServerSession rSession = opalRSessionManager.newSubjectRSession();
     rSession.setExecutionContext("SQL");
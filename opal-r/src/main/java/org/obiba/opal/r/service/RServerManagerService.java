@@ -13,19 +13,33 @@ package org.obiba.opal.r.service;
 import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
-import org.obiba.core.util.FileUtil;
+import org.apache.shiro.SecurityUtils;
+import org.apache.shiro.authc.AuthenticationException;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.Subject;
 import org.obiba.magma.ValueTable;
 import org.obiba.opal.core.cfg.OpalConfigurationExtension;
 import org.obiba.opal.core.event.*;
 import org.obiba.opal.core.runtime.NoSuchServiceConfigurationException;
 import org.obiba.opal.core.runtime.NoSuchServiceException;
 import org.obiba.opal.core.runtime.Service;
+import org.obiba.opal.core.security.BackgroundJobServiceAuthToken;
+import org.obiba.opal.core.service.DataExportService;
+import org.obiba.opal.core.service.IdentifiersTableService;
 import org.obiba.opal.core.service.OrientDbService;
+import org.obiba.opal.r.cluster.AbstractRServerScheduler;
+import org.obiba.opal.r.cluster.LeastLoadRServerScheduler;
+import org.obiba.opal.r.cluster.PowerOfTwoChoicesRServerScheduler;
 import org.obiba.opal.r.cluster.RServerCluster;
+import org.obiba.opal.r.magma.MagmaAssignROperation;
+import org.obiba.opal.r.magma.ValueTableRCache;
 import org.obiba.opal.r.rock.RockService;
 import org.obiba.opal.r.rserve.RserveService;
+import org.obiba.opal.r.service.event.RPackageInstalledEvent;
+import org.obiba.opal.r.service.event.RPackageRemovedEvent;
 import org.obiba.opal.r.service.event.RServiceInitializedEvent;
 import org.obiba.opal.r.service.event.RServiceStartedEvent;
 import org.obiba.opal.r.service.event.RServiceStoppedEvent;
@@ -33,11 +47,15 @@ import org.obiba.opal.web.model.OpalR;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationContext;
 import org.springframework.stereotype.Component;
 
-import java.io.File;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -48,7 +66,12 @@ public class RServerManagerService implements Service {
 
   private static final Logger log = LoggerFactory.getLogger(RServerManagerService.class);
 
-  private static final String R_CACHE_DIR = System.getenv().get("OPAL_HOME") + File.separatorChar + "work" + File.separatorChar + "R" + File.separatorChar + "cache";
+  private static final String CACHE_WARM_UP_SYMBOL = ".opal.cache.warmup";
+
+  /**
+   * Delay before warming up the cache of a table that was updated, as updates often come in series.
+   */
+  private static final long CACHE_WARM_UP_DELAY_SECONDS = 60;
 
   public static final String DEFAULT_CLUSTER_NAME = "default";
 
@@ -60,6 +83,37 @@ public class RServerManagerService implements Service {
   @Autowired
   private EventBus eventBus;
 
+  @Autowired
+  private DataExportService dataExportService;
+
+  @Autowired
+  private IdentifiersTableService identifiersTableService;
+
+  @Value("${org.obiba.opal.r.cache.maxSize}")
+  private long cacheMaxSize = -1;
+
+  @Value("${org.obiba.opal.r.cache.warmUpHits}")
+  private int cacheWarmUpHits = 3;
+
+  @Value("${org.obiba.opal.r.cluster.scheduler}")
+  private String clusterScheduler = "least-load";
+
+  @Value("${org.obiba.opal.r.cluster.affinity}")
+  private boolean clusterAffinity = true;
+
+  @Value("${org.obiba.opal.r.cluster.maxSessionsPerServer}")
+  private int clusterMaxSessionsPerServer = 0;
+
+  @Value("${org.obiba.opal.r.cluster.queueTimeout}")
+  private int clusterQueueTimeout = 60;
+
+  private ScheduledExecutorService cacheWarmUpExecutor;
+
+  private final Map<ValueTableRCache.AssignParameters, ScheduledFuture<?>> cacheWarmUps = Maps.newConcurrentMap();
+
+  @Autowired
+  private RCommandsExecutor rCommandsExecutor;
+
   // legacy
   @Autowired
   private RserveService rserveService;
@@ -166,6 +220,7 @@ public class RServerManagerService implements Service {
       log.info("Register R server: {}", event.getApp().toString());
       RockService rServerService = applicationContext.getBean("rockRService", RockService.class);
       rServerService.setApp(event.getApp());
+      boolean added = false;
       try {
         // R server can only be in one cluster
         String clusterName = rServerService.getState().getCluster();
@@ -173,14 +228,17 @@ public class RServerManagerService implements Service {
           // ensure a service built on same app is not already registered in the cluster
           rClusters.get(clusterName).removeRServerService(event.getApp());
         else
-          rClusters.put(clusterName, new RServerCluster(clusterName, eventBus));
+          rClusters.put(clusterName, newRServerCluster(clusterName));
         rClusters.get(clusterName).addRServerService(rServerService);
+        added = true;
         rServerService.setRServerClusterName(clusterName);
         if (running)
           rServerService.start();
         log.info("R server '{}' added to cluster: {}", rServerService.getName(), clusterName);
       } catch (Exception e) {
         log.error("Rock R server registration failed: {}", event.getApp().getName(), e);
+        // prototype bean, not disposed by the application context
+        if (!added) rServerService.dispose();
         eventBus.post(new AppRejectedEvent(event.getApp()));
       }
       notifyInitialized();
@@ -199,19 +257,35 @@ public class RServerManagerService implements Service {
     }
   }
 
+  @Subscribe
+  public void onRPackageInstalled(RPackageInstalledEvent event) {
+    RServerCluster cluster = rClusters.get(event.getCluster());
+    if (cluster == null) return;
+    if (event.hasPackageName())
+      cluster.invalidatePackagesCache(event.getPackageName());
+    else
+      cluster.invalidatePackagesCache();
+  }
+
+  @Subscribe
+  public void onRPackageRemoved(RPackageRemovedEvent event) {
+    RServerCluster cluster = rClusters.get(event.getCluster());
+    if (cluster != null) cluster.invalidatePackagesCache(event.getPackageName());
+  }
+
   @Subscribe
   public synchronized void onTableDeleted(ValueTableDeletedEvent event) {
-    evictTableCache(event.getValueTable());
+    evictTableCache(event.getValueTable(), false);
   }
 
   @Subscribe
   public synchronized void onTableUpdated(ValueTableUpdatedEvent event) {
-    evictTableCache(event.getValueTable());
+    evictTableCache(event.getValueTable(), true);
   }
 
   @Subscribe
   public synchronized void onTableRenamed(ValueTableRenamedEvent event) {
-    evictTableCache(event.getValueTable());
+    evictTableCache(event.getValueTable(), false);
   }
 
   @Override
@@ -221,9 +295,19 @@ public class RServerManagerService implements Service {
 
   @Override
   public void start() {
+    // cache entries from a previous run are not indexed
+    ValueTableRCache.get().clear();
+    ValueTableRCache.get().setMaxSize(cacheMaxSize < 0 ? -1 : cacheMaxSize * 1024 * 1024);
+    // command results spilled by a previous run are not referred anymore
+    rCommandsExecutor.purgeSpillDirectory();
+    cacheWarmUpExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(getSubject().associateWith(r), "R table cache warm-up");
+      thread.setDaemon(true);
+      return thread;
+    });
     if (!rserveServiceInDefaultCluster && rserveService.isServiceAvailable()) {
       if (!rClusters.containsKey(getDefaultClusterName()))
-        rClusters.put(getDefaultClusterName(), new RServerCluster(getDefaultClusterName(), eventBus));
+        rClusters.put(getDefaultClusterName(), newRServerCluster(getDefaultClusterName()));
       rClusters.get(getDefaultClusterName()).addRServerService(rserveService);
       rserveServiceInDefaultCluster = true;
     }
@@ -243,7 +327,10 @@ public class RServerManagerService implements Service {
     }
     running = false;
     eventBus.post(new RServiceStoppedEvent(getName()));
-    evictTableCaches();
+    if (cacheWarmUpExecutor != null) cacheWarmUpExecutor.shutdownNow();
+    rCommandsExecutor.shutdown();
+    cacheWarmUps.clear();
+    ValueTableRCache.get().clear();
   }
 
   @Override
@@ -260,27 +347,72 @@ public class RServerManagerService implements Service {
   // Private methods
   //
 
-  private void evictTableCaches() {
+  private RServerCluster newRServerCluster(String clusterName) {
+    RServerCluster cluster = new RServerCluster(clusterName, eventBus);
+    AbstractRServerScheduler scheduler = "power-of-two".equals(clusterScheduler)
+        ? new PowerOfTwoChoicesRServerScheduler()
+        : new LeastLoadRServerScheduler();
+    scheduler.setAffinity(clusterAffinity);
+    scheduler.setMaxSessionsPerServer(clusterMaxSessionsPerServer);
+    cluster.setScheduler(scheduler);
+    cluster.setQueueTimeout(clusterQueueTimeout);
+    return cluster;
+  }
+
+  /**
+   * Evict the table's R cache entries and schedule the warm up of the entries that were frequently hit.
+   *
+   * @param table
+   * @param warmUp
+   */
+  private void evictTableCache(ValueTable table, boolean warmUp) {
     try {
-      File cacheDir = new File(R_CACHE_DIR);
-      FileUtil.delete(cacheDir);
+      List<ValueTableRCache.Entry> evicted = ValueTableRCache.get().evict(table.getDatasource().getName(), table.getName());
+      if (warmUp && cacheWarmUpHits > 0 && cacheWarmUpExecutor != null) {
+        evicted.stream()
+            .filter(entry -> entry.hasParameters() && entry.getHits() >= cacheWarmUpHits)
+            .forEach(entry -> scheduleCacheWarmUp(entry.getParameters()));
+      }
     } catch (Exception e) {
-      log.warn("Failure when evicting table caches", e);
+      log.warn("Failure when evicting table cache: {}", table.getName(), e);
     }
   }
 
-  private void evictTableCache(ValueTable table) {
+  private void scheduleCacheWarmUp(ValueTableRCache.AssignParameters parameters) {
+    ScheduledFuture<?> previous = cacheWarmUps.put(parameters, cacheWarmUpExecutor.schedule(() -> warmUpCache(parameters),
+        CACHE_WARM_UP_DELAY_SECONDS, TimeUnit.SECONDS));
+    if (previous != null) previous.cancel(false);
+  }
+
+  /**
+   * Assign the table in a R session of the default cluster, which puts it in the cache. The assignment is restricted
+   * to the variables of the original one (the ones visible by its requester), so that it has the same cache key.
+   *
+   * @param parameters
+   */
+  private void warmUpCache(ValueTableRCache.AssignParameters parameters) {
+    cacheWarmUps.remove(parameters);
+    if (!running) return;
+    log.info("Warming up R cache of table: {}", parameters.getPath());
     try {
-      File cacheDir = new File(R_CACHE_DIR);
-      String tableCachePrefix = String.format("%s-%s-", table.getDatasource().getName(), table.getName());
-      File[] files = cacheDir.listFiles(file -> file.getName().startsWith(tableCachePrefix));
-      if (files != null) {
-        for (File file : files) {
-          file.delete();
-        }
-      }
+      getDefaultRServer().execute(new MagmaAssignROperation(CACHE_WARM_UP_SYMBOL, parameters.getPath(),
+          parameters.getVariableFilter(), parameters.isWithMissings(), parameters.getIdColumnName(),
+          parameters.getIdentifiersMapping(), MagmaAssignROperation.RClass.TIBBLE, identifiersTableService,
+          dataExportService).withVariables(Sets.newHashSet(parameters.getVariables())));
     } catch (Exception e) {
-      log.warn("Failure when evicting table cache: {}", table.getName(), e);
+      log.warn("Failure when warming up R cache of table: {}", parameters.getPath(), e);
+    }
+  }
+
+  private Subject getSubject() {
+    // Login as background task user
+    try {
+      PrincipalCollection principals = SecurityUtils.getSecurityManager()
+          .authenticate(BackgroundJobServiceAuthToken.INSTANCE).getPrincipals();
+      return new Subject.Builder().principals(principals).authenticated(true).buildSubject();
+    } catch (AuthenticationException e) {
+      log.warn("Failed to obtain system user credentials: {}", e.getMessage());
+      throw new RuntimeException(e);
     }
   }
 
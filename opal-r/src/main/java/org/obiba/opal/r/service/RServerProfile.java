@@ -10,6 +10,9 @@
 
 package org.obiba.opal.r.service;
 
+import java.util.Collection;
+import java.util.Collections;
+
 /**
  * Bridge between the requested profile and the R servers cluster.
  */
@@ -28,4 +31,13 @@ public interface RServerProfile {
    * @return
    */
   String getCluster();
+
+  /**
+   * Get the R packages that the sessions of this profile are likely to use, to be loaded in advance.
+   *
+   * @return
+   */
+  default Collection<String> getRPackages() {
+    return Collections.emptyList();
+  }
 }
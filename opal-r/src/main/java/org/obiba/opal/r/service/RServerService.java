@@ -38,6 +38,13 @@ public interface RServerService {
 
   boolean isRunning();
 
+  /**
+   * Release the resources held to communicate with the R server, when the service is removed. The R server itself is
+   * not stopped.
+   */
+  default void dispose() {
+  }
+
   RServerState getState() throws RServerException;
 
   RServerSession newRServerSession(String user) throws RServerException;
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.r.service;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.obiba.opal.spi.r.RScriptROperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Pool of idle R sessions of a R server profile, started in advance with the packages of interest already loaded.
+ * A session taken from the pool is handed to its user and is not shared: it either comes back reset (when
+ * reset-on-return is enabled) or it is closed. The reset cannot undo everything a user can do in a R session (for
+ * instance the state of the namespaces loaded in advance), this is why it is disabled by default.
+ */
+class RServerSessionPool {
+
+  private static final Logger log = LoggerFactory.getLogger(RServerSessionPool.class);
+
+  /**
+   * Owner of the sessions waiting in the pool.
+   */
+  private static final String POOL_USER = "opal";
+
+  /**
+   * Attached environment in which the initial state of a pooled session is saved.
+   */
+  private static final String POOL_ENV = "opal:pool";
+
+  private final RServerManagerService rServerManagerService;
+
+  private final Executor executor;
+
+  private final int minIdle;
+
+  /**
+   * Maximum count of idle (or starting) sessions: a session given back when it is reached is closed. The sessions
+   * handed out to users are not counted.
+   */
+  private final int maxSize;
+
+  private final boolean resetOnReturn;
+
+  private final Collection<String> packages;
+
+  private final Deque<AbstractRServerSession> idleSessions = new ConcurrentLinkedDeque<>();
+
+  /**
+   * Identifiers of the idle sessions and of the sessions handed out that can be given back.
+   */
+  private final Set<String> pooledSessionIds = Sets.newConcurrentHashSet();
+
+  private final AtomicInteger starting = new AtomicInteger();
+
+  private volatile RServerProfile profile;
+
+  private volatile boolean closed = false;
+
+  RServerSessionPool(RServerProfile profile, RServerManagerService rServerManagerService, Executor executor,
+                     int minIdle, int maxSize, boolean resetOnReturn, Collection<String> packages) {
+    this.profile = profile;
+    this.rServerManagerService = rServerManagerService;
+    this.executor = executor;
+    this.minIdle = minIdle;
+    this.maxSize = Math.max(minIdle, maxSize);
+    this.resetOnReturn = resetOnReturn;
+    this.packages = packages;
+  }
+
+  /**
+   * Take an idle session and give it to the user, and schedule the start of a replacement.
+   *
+   * @param user
+   * @param profile latest state of the profile
+   * @return null if no idle session is available
+   */
+  RServerSession take(String user, RServerProfile profile) {
+    this.profile = profile;
+    AbstractRServerSession rSession;
+    while ((rSession = idleSessions.pollFirst()) != null) {
+      if (!rSession.isClosed()) break;
+      pooledSessionIds.remove(rSession.getId());
+    }
+    fill();
+    if (rSession == null) return null;
+    // the session will be closed by its user, it is not tracked anymore
+    if (!resetOnReturn) pooledSessionIds.remove(rSession.getId());
+    rSession.setUser(user);
+    rSession.setProfile(profile);
+    rSession.touch();
+    log.debug("R session {} taken from pool {}", rSession.getId(), getName());
+    return rSession;
+  }
+
+  /**
+   * Reset a session that was taken from this pool and put it back in the idle ones.
+   *
+   * @param rSession
+   * @return false if the session was not taken back, in which case the caller is responsible for closing it
+   */
+  boolean giveBack(RServerSession rSession) {
+    if (closed || rSession.isClosed() || !pooledSessionIds.contains(rSession.getId())) return false;
+    if (idleSessions.size() + starting.get() >= maxSize) {
+      pooledSessionIds.remove(rSession.getId());
+      return false;
+    }
+    AbstractRServerSession session = (AbstractRServerSession) rSession;
+    try {
+      session.execute(new RScriptROperation(resetScript(), false));
+      session.resetState();
+      session.setUser(POOL_USER);
+      idleSessions.offerLast(session);
+      log.debug("R session {} returned to pool {}", session.getId(), getName());
+      return true;
+    } catch (Exception e) {
+      log.warn("Failed to reset R session {}, it will be closed: {}", session.getId(), e.getMessage());
+      pooledSessionIds.remove(session.getId());
+      return false;
+    }
+  }
+
+  /**
+   * Start asynchronously the sessions missing to reach the minimum count of idle ones.
+   */
+  void fill() {
+    int missing = minIdle - idleSessions.size() - starting.get();
+    for (int i = 0; i < missing && !closed; i++) {
+      starting.incrementAndGet();
+      executor.execute(this::startSession);
+    }
+  }
+
+  /**
+   * Evaluate a trivial expression in each idle session, discard the ones that do not respond and start replacements.
+   */
+  void checkHealth() {
+    for (AbstractRServerSession rSession : Lists.newArrayList(idleSessions)) {
+      if (!idleSessions.remove(rSession)) continue; // taken meanwhile
+      try {
+        rSession.execute(new RScriptROperation("base::TRUE", false));
+        idleSessions.offerLast(rSession);
+      } catch (Exception e) {
+        log.warn("Pooled R session {} is not responding, it will be replaced: {}", rSession.getId(), e.getMessage());
+        discard(rSession);
+      }
+    }
+    fill();
+  }
+
+  /**
+   * Discard the idle sessions that are running on the given R server.
+   *
+   * @param serverName
+   */
+  void removeRSessions(String serverName) {
+    List<AbstractRServerSession> toRemove = idleSessions.stream()
+        .filter(s -> serverName.equals(s.getRServerServiceName()))
+        .collect(Collectors.toList());
+    toRemove.forEach(s -> {
+      if (idleSessions.remove(s)) discard(s);
+    });
+  }
+
+  void close() {
+    closed = true;
+    AbstractRServerSession rSession;
+    while ((rSession = idleSessions.pollFirst()) != null) discard(rSession);
+    pooledSessionIds.clear();
+  }
+
+  int getIdleCount() {
+    return idleSessions.size();
+  }
+
+  //
+  // Private methods
+  //
+
+  private String getName() {
+    return profile.getCluster() + ":" + profile.getName();
+  }
+
+  private void startSession() {
+    try {
+      if (closed) return;
+      RServerSession rSession = rServerManagerService.getRServer(profile.getCluster()).newRServerSession(POOL_USER);
+      if (!(rSession instanceof AbstractRServerSession)) {
+        rSession.close();
+        return;
+      }
+      AbstractRServerSession session = (AbstractRServerSession) rSession;
+      try {
+        session.execute(new RScriptROperation(warmUpScript(), false));
+      } catch (Exception e) {
+        session.close();
+        throw e;
+      }
+      if (closed) {
+        session.close();
+        return;
+      }
+      pooledSessionIds.add(session.getId());
+      idleSessions.offerLast(session);
+      log.debug("R session {} started in pool {}", session.getId(), getName());
+    } catch (Exception e) {
+      log.warn("Failed to start a R session in pool {}: {}", getName(), e.getMessage());
+    } finally {
+      starting.decrementAndGet();
+    }
+  }
+
+  private void discard(AbstractRServerSession rSession) {
+    pooledSessionIds.remove(rSession.getId());
+    try {
+      rSession.close();
+    } catch (Exception e) {
+      log.debug("Failed closing pooled R session: {}", rSession.getId(), e);
+    }
+  }
+
+  /**
+   * Load the namespaces of the packages (without attaching them) and save the initial options, search path, loaded
+   * namespaces, environment variables and working directory.
+   *
+   * @return
+   */
+  private String warmUpScript() {
+    Set<String> names = Sets.newLinkedHashSet(packages);
+    names.addAll(profile.getRPackages());
+    String pkgs = names.stream().map(n -> "'" + n + "'").collect(Collectors.joining(","));
+    return Joiner.on("\n").join(
+        String.format("for (.p in c(%s)) base::try(base::suppressPackageStartupMessages(base::loadNamespace(.p)), silent = TRUE)", pkgs),
+        "base::suppressWarnings(base::rm(.p))",
+        String.format(".e <- base::attach(NULL, name = '%s')", POOL_ENV),
+        "base::assign('options', base::options(), envir = .e)",
+        "base::assign('search', base::search(), envir = .e)",
+        "base::assign('namespaces', base::loadedNamespaces(), envir = .e)",
+        "base::assign('env', base::Sys.getenv(), envir = .e)",
+        "base::assign('wd', base::getwd(), envir = .e)",
+        "base::rm(.e)");
+  }
+
+  /**
+   * Close the connections, remove global objects, working and temporary directory files, detach what was attached,
+   * unload the namespaces loaded by the user and restore the initial environment variables and options. Fails if
+   * some namespaces could not be unloaded, in which case the session is not given back.
+   *
+   * @return
+   */
+  private String resetScript() {
+    return Joiner.on("\n").join(
+        String.format(".e <- base::as.environment('%s')", POOL_ENV),
+        "base::setwd(.e$wd)",
+        "base::closeAllConnections()",
+        "base::rm(list = base::setdiff(base::ls(envir = .GlobalEnv, all.names = TRUE), '.e'), envir = .GlobalEnv)",
+        "base::unlink(base::list.files('.', all.files = TRUE, no.. = TRUE), recursive = TRUE, force = TRUE)",
+        "base::unlink(base::list.files(base::tempdir(), all.files = TRUE, full.names = TRUE, no.. = TRUE), recursive = TRUE, force = TRUE)",
+        "for (.s in base::setdiff(base::search(), .e$search)) base::detach(.s, character.only = TRUE)",
+        "for (.i in 1:3) for (.ns in base::rev(base::setdiff(base::loadedNamespaces(), .e$namespaces))) base::try(base::unloadNamespace(.ns), silent = TRUE)",
+        ".v <- base::setdiff(base::names(base::Sys.getenv()), base::names(.e$env))",
+        "if (base::length(.v) > 0) base::Sys.unsetenv(.v)",
+        "base::do.call(base::Sys.setenv, base::as.list(.e$env))",
+        ".n <- base::setdiff(base::names(base::options()), base::names(.e$options))",
+        "base::options(stats::setNames(base::vector('list', base::length(.n)), .n))",
+        "base::options(.e$options)",
+        ".ns <- base::setdiff(base::loadedNamespaces(), .e$namespaces)",
+        "base::suppressWarnings(base::rm(.e, .s, .i, .v, .n))",
+        "if (base::length(.ns) > 0) base::stop('Namespaces cannot be unloaded: ', base::paste(.ns, collapse = ', '))",
+        "base::rm(.ns)",
+        "base::invisible(base::gc())");
+  }
+
+}
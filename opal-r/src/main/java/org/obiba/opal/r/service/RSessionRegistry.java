@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.r.service;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Concurrent registry of the R sessions, indexed by session identifier, by principal and by R server (within a cluster).
+ * None of the operations require a global lock nor a scan of all the sessions.
+ */
+class RSessionRegistry {
+
+  private final Map<String, Entry> entries = Maps.newConcurrentMap();
+
+  private final Map<String, Set<String>> idsByPrincipal = Maps.newConcurrentMap();
+
+  private final Map<String, Set<String>> idsByServer = Maps.newConcurrentMap();
+
+  void add(String principal, RServerSession rSession) {
+    Entry entry = new Entry(principal, rSession);
+    entries.put(rSession.getId(), entry);
+    addId(idsByPrincipal, principal, rSession.getId());
+    addId(idsByServer, entry.serverKey, rSession.getId());
+  }
+
+  /**
+   * Get a R session by its identifier.
+   *
+   * @param rSessionId
+   * @return null if not found
+   */
+  RServerSession get(String rSessionId) {
+    Entry entry = entries.get(rSessionId);
+    return entry == null ? null : entry.rSession;
+  }
+
+  /**
+   * Get a R session by its identifier, if it belongs to the principal.
+   *
+   * @param principal
+   * @param rSessionId
+   * @return null if not found
+   */
+  RServerSession get(String principal, String rSessionId) {
+    Entry entry = entries.get(rSessionId);
+    return entry == null || !entry.principal.equals(principal) ? null : entry.rSession;
+  }
+
+  /**
+   * Unregister a R session.
+   *
+   * @param rSessionId
+   * @return the R session that was removed, null if not found
+   */
+  RServerSession remove(String rSessionId) {
+    Entry entry = entries.remove(rSessionId);
+    if (entry == null) return null;
+    removeId(idsByPrincipal, entry.principal, rSessionId);
+    removeId(idsByServer, entry.serverKey, rSessionId);
+    return entry.rSession;
+  }
+
+  /**
+   * Get all the R sessions, in the order of their creation.
+   *
+   * @return
+   */
+  List<RServerSession> getAll() {
+    return sorted(entries.keySet());
+  }
+
+  List<RServerSession> getByPrincipal(String principal) {
+    return sorted(idsByPrincipal.get(principal));
+  }
+
+  List<RServerSession> getByServer(String clusterName, String serverName) {
+    return sorted(idsByServer.get(toServerKey(clusterName, serverName)));
+  }
+
+  //
+  // Private methods
+  //
+
+  private List<RServerSession> sorted(Set<String> ids) {
+    if (ids == null) return Lists.newArrayList();
+    return ids.stream()
+        .map(this::get)
+        .filter(Objects::nonNull)
+        .sorted(Comparator.comparing(RServerSession::getCreated))
+        .collect(Collectors.toList());
+  }
+
+  private static void addId(Map<String, Set<String>> index, String key, String rSessionId) {
+    index.compute(key, (k, ids) -> {
+      Set<String> safeIds = ids == null ? Sets.newConcurrentHashSet() : ids;
+      safeIds.add(rSessionId);
+      return safeIds;
+    });
+  }
+
+  private static void removeId(Map<String, Set<String>> index, String key, String rSessionId) {
+    index.computeIfPresent(key, (k, ids) -> {
+      ids.remove(rSessionId);
+      return ids.isEmpty() ? null : ids;
+    });
+  }
+
+  private static String toServerKey(String clusterName, String serverName) {
+    return clusterName + ":" + serverName;
+  }
+
+  private static class Entry {
+
+    private final String principal;
+
+    private final RServerSession rSession;
+
+    private final String serverKey;
+
+    private Entry(String principal, RServerSession rSession) {
+      this.principal = principal;
+      this.rSession = rSession;
+      this.serverKey = toServerKey(rSession.getProfile() == null ? null : rSession.getProfile().getCluster(),
+          rSession.getRServerServiceName());
+    }
+  }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.r.service;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.obiba.magma.*;
+import org.obiba.magma.type.BooleanType;
+import org.obiba.magma.type.DecimalType;
+import org.obiba.magma.type.IntegerType;
+import org.obiba.opal.sql.UnsupportedSQLException;
+import org.obiba.opal.sql.engine.SQLTable;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exposes a {@link ValueTable} to the SQL engine: the entity identifier column followed by one column per variable,
+ * values being read column by column for the requested rows only.
+ */
+class ValueTableSQLTable implements SQLTable {
+
+  private final ValueTable valueTable;
+
+  private final String idName;
+
+  private final List<String> columnNames = Lists.newArrayList();
+
+  private final Map<String, Variable> variables = Maps.newHashMap();
+
+  private List<VariableEntity> entities;
+
+  ValueTableSQLTable(ValueTable valueTable, String idName) {
+    this.valueTable = valueTable;
+    this.idName = idName;
+    columnNames.add(idName);
+    for (Variable variable : valueTable.getVariables()) {
+      columnNames.add(variable.getName());
+      variables.put(variable.getName(), variable);
+    }
+  }
+
+  @Override
+  public List<String> getColumnNames() {
+    return columnNames;
+  }
+
+  @Override
+  public int getRowCount() {
+    return getEntities().size();
+  }
+
+  @Override
+  public Object[][] getValues(List<String> columns, int[] rows) {
+    List<VariableEntity> rowEntities = Lists.newArrayListWithCapacity(rows.length);
+    for (int row : rows) rowEntities.add(getEntities().get(row));
+    Object[][] values = new Object[columns.size()][];
+    for (int i = 0; i < columns.size(); i++) {
+      values[i] = idName.equals(columns.get(i)) ? getIdentifiers(rowEntities) : getVariableValues(columns.get(i), rowEntities);
+    }
+    return values;
+  }
+
+  private List<VariableEntity> getEntities() {
+    if (entities == null) entities = valueTable.getVariableEntities();
+    return entities;
+  }
+
+  private Object[] getIdentifiers(List<VariableEntity> rowEntities) {
+    Object[] values = new Object[rowEntities.size()];
+    for (int i = 0; i < values.length; i++) values[i] = rowEntities.get(i).getIdentifier();
+    return values;
+  }
+
+  private Object[] getVariableValues(String name, List<VariableEntity> rowEntities) {
+    Variable variable = variables.get(name);
+    if (variable.isRepeatable() || variable.getValueType().isBinary())
+      throw new UnsupportedSQLException("Repeatable or binary variable: " + name);
+    VariableValueSource source = valueTable.getVariableValueSource(name);
+    Object[] values = new Object[rowEntities.size()];
+    if (source.supportVectorSource()) {
+      Iterator<Value> iterator = source.asVectorSource().getValues(rowEntities).iterator();
+      for (int i = 0; i < values.length && iterator.hasNext(); i++) values[i] = toSQLValue(iterator.next());
+    } else {
+      for (int i = 0; i < values.length; i++)
+        values[i] = toSQLValue(source.getValue(valueTable.getValueSet(rowEntities.get(i))));
+    }
+    return values;
+  }
+
+  /**
+   * Convert a Magma value to its SQL counterpart: integers to long, decimals to double, booleans as is,
+   * any other type to its string representation.
+   *
+   * @param value
+   * @return
+   */
+  private Object toSQLValue(Value value) {
+    if (value == null || value.isNull()) return null;
+    ValueType type = value.getValueType();
+    Object object = value.getValue();
+    if (type == IntegerType.get()) return ((Number) object).longValue();
+    if (type == DecimalType.get()) return ((Number) object).doubleValue();
+    if (type == BooleanType.get()) return object;
+    return value.toString();
+  }
+
+}
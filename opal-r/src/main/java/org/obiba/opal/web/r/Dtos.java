@@ -14,6 +14,7 @@ import org.apache.commons.io.FileUtils;
 import org.obiba.magma.type.DateTimeType;
 import org.obiba.opal.core.runtime.App;
 import org.obiba.opal.r.cluster.RServerCluster;
+import org.obiba.opal.r.magma.ValueTableRCache;
 import org.obiba.opal.r.service.RServerService;
 import org.obiba.opal.r.service.RServerSession;
 import org.obiba.opal.r.service.RServerState;
@@ -121,6 +122,17 @@ public class Dtos {
         .build();
   }
 
+  public static OpalR.RTableCacheDto asDto(ValueTableRCache cache) {
+    return OpalR.RTableCacheDto.newBuilder()
+        .setEntries(cache.getEntryCount())
+        .setSize(cache.getSize())
+        .setMaxSize(cache.getMaxSize())
+        .setHits(cache.getHits())
+        .setMisses(cache.getMisses())
+        .setEvictions(cache.getEvictions())
+        .build();
+  }
+
   public static Ws.ClientErrorDto getErrorMessage(Response.StatusType status,
                                                   RRuntimeException exception) {
 
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.web.r;
+
+import org.obiba.opal.r.magma.ValueTableRCache;
+import org.obiba.opal.web.model.OpalR;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Component;
+
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.core.Response;
+
+@Component
+@Scope("request")
+@Path("/service/r/cache")
+public class RServiceCacheResource {
+
+  @GET
+  public OpalR.RTableCacheDto getCache() {
+    return Dtos.asDto(ValueTableRCache.get());
+  }
+
+  @DELETE
+  public Response clearCache() {
+    ValueTableRCache.get().clear();
+    return Response.noContent().build();
+  }
+
+}
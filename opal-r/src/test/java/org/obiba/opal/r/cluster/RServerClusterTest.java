@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.r.cluster;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.eventbus.EventBus;
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.obiba.opal.r.service.RServerService;
+import org.obiba.opal.web.model.Opal;
+import org.obiba.opal.web.model.OpalR;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+public class RServerClusterTest {
+
+  private RServerCluster cluster;
+
+  private final AtomicInteger calls = new AtomicInteger();
+
+  @Before
+  public void setUp() {
+    cluster = new RServerCluster("default", new EventBus());
+  }
+
+  @After
+  public void tearDown() {
+    cluster.stop();
+  }
+
+  @Test
+  public void fanOutIsConcurrentTest() {
+    // each R server responds only when all of them have been called
+    CyclicBarrier barrier = new CyclicBarrier(3);
+    for (String sname : new String[]{"rock3", "rock1", "rock2"}) {
+      cluster.addRServerService(newService(sname, () -> {
+        barrier.await(5, TimeUnit.SECONDS);
+        return Lists.newArrayList(newPackage("pkg", sname));
+      }));
+    }
+
+    List<OpalR.RPackageDto> packages = cluster.getInstalledPackagesDtos();
+    Assert.assertEquals(Lists.newArrayList("rock1", "rock2", "rock3"), packages.stream()
+        .map(OpalR.RPackageDto::getRserver).sorted().collect(Collectors.toList()));
+    Assert.assertEquals(3, calls.get());
+  }
+
+  @Test
+  public void packagesAreCachedTest() {
+    cluster.addRServerService(newService("rock1", () -> Lists.newArrayList(newPackage("b", "rock1"), newPackage("a", "rock1"))));
+    cluster.addRServerService(newService("rock2", () -> Lists.newArrayList(newPackage("c", "rock2"))));
+
+    List<OpalR.RPackageDto> packages = cluster.getInstalledPackagesDtos();
+    Assert.assertEquals(Lists.newArrayList("a", "b", "c"), names(packages));
+    Assert.assertEquals(2, calls.get());
+
+    // served from the cache, and not affected by changes of the returned list
+    packages.clear();
+    Assert.assertEquals(Lists.newArrayList("a", "b", "c"), names(cluster.getInstalledPackagesDtos()));
+    Assert.assertEquals(2, calls.get());
+  }
+
+  @Test
+  public void partialPackagesAreNotCachedTest() {
+    cluster.addRServerService(newService("rock1", () -> Lists.newArrayList(newPackage("a", "rock1"))));
+    cluster.addRServerService(newService("rock2", () -> {
+      throw new IllegalStateException("R server is down");
+    }));
+
+    Assert.assertEquals(Lists.newArrayList("a"), names(cluster.getInstalledPackagesDtos()));
+    Assert.assertEquals(Lists.newArrayList("a"), names(cluster.getInstalledPackagesDtos()));
+    Assert.assertEquals(4, calls.get());
+  }
+
+  @Test
+  public void invalidatePackagesCacheTest() {
+    cluster.addRServerService(newService("rock1", () -> Lists.newArrayList(newPackage("a", "rock1"))));
+    cluster.getInstalledPackagesDtos();
+    cluster.getInstalledPackageDto("a");
+    cluster.getDataShieldPackagesProperties();
+    Assert.assertEquals(3, calls.get());
+
+    // package installed or removed
+    cluster.invalidatePackagesCache("a");
+    cluster.getInstalledPackagesDtos();
+    cluster.getInstalledPackageDto("a");
+    cluster.getDataShieldPackagesProperties();
+    Assert.assertEquals(6, calls.get());
+
+    // R server added
+    cluster.addRServerService(newService("rock2", () -> Lists.newArrayList(newPackage("a", "rock2"))));
+    Assert.assertEquals(2, cluster.getInstalledPackagesDtos().size());
+    Assert.assertEquals(8, calls.get());
+  }
+
+  @Test
+  public void noRServerTest() {
+    Assert.assertTrue(cluster.getInstalledPackagesDtos().isEmpty());
+    Assert.assertTrue(cluster.getDataShieldPackagesProperties().isEmpty());
+    Assert.assertEquals(0, cluster.getLog(10).length);
+  }
+
+  @Test
+  public void getLogTest() {
+    cluster.addRServerService(newService("rock1", () -> Lists.newArrayList()));
+    cluster.addRServerService(newService("rock2", () -> Lists.newArrayList()));
+
+    String[] lines = cluster.getLog(10);
+    Assert.assertEquals(6, lines.length);
+    Assert.assertEquals("[Info] rock1 R log start", lines[0]);
+    Assert.assertEquals("rock1 log", lines[1]);
+    Assert.assertEquals("[Info] rock2 R log start", lines[3]);
+  }
+
+  //
+  // Private methods
+  //
+
+  private static List<String> names(List<OpalR.RPackageDto> packages) {
+    return packages.stream().map(OpalR.RPackageDto::getName).collect(Collectors.toList());
+  }
+
+  private static OpalR.RPackageDto newPackage(String name, String rserver) {
+    return OpalR.RPackageDto.newBuilder().setName(name).setCluster("default").setRserver(rserver).build();
+  }
+
+  /**
+   * Mock a R server which installed packages are provided by the inventory, counting the calls to the R server.
+   */
+  private RServerService newService(String name, Inventory inventory) {
+    RServerService service = EasyMock.createNiceMock(RServerService.class);
+    EasyMock.expect(service.getName()).andStubReturn(name);
+    EasyMock.expect(service.getInstalledPackagesDtos()).andStubAnswer(() -> {
+      calls.incrementAndGet();
+      return inventory.get();
+    });
+    EasyMock.expect(service.getInstalledPackageDto(EasyMock.anyString())).andStubAnswer(() -> {
+      calls.incrementAndGet();
+      String pkg = (String) EasyMock.getCurrentArguments()[0];
+      return inventory.get().stream().filter(p -> p.getName().equals(pkg)).collect(Collectors.toList());
+    });
+    EasyMock.expect(service.getDataShieldPackagesProperties()).andStubAnswer(() -> {
+      calls.incrementAndGet();
+      Map<String, List<Opal.EntryDto>> properties = ImmutableMap.of();
+      return properties;
+    });
+    EasyMock.expect(service.getLog(EasyMock.anyObject(Integer.class))).andStubReturn(new String[]{name + " log"});
+    EasyMock.replay(service);
+    return service;
+  }
+
+  private interface Inventory {
+    List<OpalR.RPackageDto> get() throws Exception;
+  }
+
+}
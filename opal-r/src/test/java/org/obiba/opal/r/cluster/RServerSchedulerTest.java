@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.r.cluster;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Assert;
+import org.junit.Test;
+import org.obiba.opal.r.service.RServerState;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class RServerSchedulerTest {
+
+  @Test
+  public void leastLoadBurstTest() {
+    List<RServerState> states = Lists.newArrayList(
+        new TestState("rock1", 4, 0, 0, 1000),
+        new TestState("rock2", 4, 0, 0, 1000),
+        new TestState("rock3", 4, 0, 0, 1000),
+        new TestState("rock4", 4, 0, 0, 1000));
+    Map<String, Integer> counts = burst(new LeastLoadRServerScheduler(), states, 100);
+    Assert.assertEquals(4, counts.size());
+    counts.values().forEach(count -> Assert.assertEquals(25, count.intValue()));
+  }
+
+  @Test
+  public void powerOfTwoChoicesBurstTest() {
+    List<RServerState> states = Lists.newArrayList(
+        new TestState("rock1", 4, 0, 0, 1000),
+        new TestState("rock2", 4, 0, 0, 1000),
+        new TestState("rock3", 4, 0, 0, 1000),
+        new TestState("rock4", 4, 0, 0, 1000));
+    Map<String, Integer> counts = burst(new PowerOfTwoChoicesRServerScheduler(new Random(1)), states, 100);
+    Assert.assertEquals(4, counts.size());
+    counts.values().forEach(count -> Assert.assertTrue(count >= 20 && count <= 30));
+  }
+
+  @Test
+  public void weightedLoadTest() {
+    List<RServerState> states = Lists.newArrayList(
+        new TestState("small", 2, 0, 0, 1000),
+        new TestState("large", 8, 0, 0, 1000),
+        new TestState("busy", 8, 8, 8, 1000));
+    Map<String, Integer> counts = burst(new LeastLoadRServerScheduler(), states, 30);
+    Assert.assertTrue(counts.get("large") > counts.get("small"));
+    Assert.assertTrue(counts.get("large") > counts.getOrDefault("busy", 0));
+  }
+
+  @Test
+  public void memoryLoadTest() {
+    List<RServerState> states = Lists.newArrayList(
+        new TestState("low", 4, 0, 0, 100),
+        new TestState("high", 4, 0, 0, 1000));
+    RServerScheduler scheduler = new LeastLoadRServerScheduler();
+    Assert.assertEquals("high", scheduler.select("user1", states).getName());
+  }
+
+  @Test
+  public void capacityTest() {
+    List<RServerState> states = Lists.newArrayList(
+        new TestState("rock1", 4, 1, 0, 1000),
+        new TestState("rock2", 4, 2, 0, 1000),
+        new TestState("rock3", 4, 0, 0, 1000, false));
+    LeastLoadRServerScheduler scheduler = new LeastLoadRServerScheduler();
+    scheduler.setMaxSessionsPerServer(3);
+    Map<String, Integer> counts = burst(scheduler, states, 3);
+    Assert.assertEquals(2, counts.get("rock1").intValue());
+    Assert.assertEquals(1, counts.get("rock2").intValue());
+    Assert.assertNull(counts.get("rock3"));
+    // saturated
+    Assert.assertNull(scheduler.select("user", states));
+  }
+
+  @Test
+  public void affinityTest() {
+    List<RServerState> states = Lists.newArrayList(
+        new TestState("rock1", 4, 0, 0, 1000),
+        new TestState("rock2", 4, 0, 0, 1000));
+    LeastLoadRServerScheduler scheduler = new LeastLoadRServerScheduler();
+    String first = scheduler.select("user1", states).getName();
+    Assert.assertNotEquals(first, scheduler.select("user2", states).getName());
+    Assert.assertEquals(first, scheduler.select("user3", states).getName());
+    // not the least loaded, but not much more loaded
+    Assert.assertEquals(first, scheduler.select("user1", states).getName());
+
+    scheduler.setAffinity(false);
+    Assert.assertNotEquals(first, scheduler.select("user1", states).getName());
+  }
+
+  @Test
+  public void affinityOverloadedTest() {
+    List<RServerState> states = Lists.newArrayList(
+        new TestState("rock1", 1, 0, 0, 1000),
+        new TestState("rock2", 1, 0, 0, 1000));
+    LeastLoadRServerScheduler scheduler = new LeastLoadRServerScheduler();
+    Map<String, Integer> counts = Maps.newHashMap();
+    for (int i = 0; i < 10; i++) {
+      counts.merge(scheduler.select("opal", states).getName(), 1, Integer::sum);
+    }
+    // the same user does not get all the sessions on the same R server
+    Assert.assertEquals(2, counts.size());
+    counts.values().forEach(count -> Assert.assertTrue(count >= 4 && count <= 6));
+  }
+
+  private Map<String, Integer> burst(RServerScheduler scheduler, List<RServerState> states, int count) {
+    Map<String, Integer> counts = Maps.newHashMap();
+    for (int i = 0; i < count; i++) {
+      RServerState state = scheduler.select("user" + i, states);
+      if (state != null) counts.merge(state.getName(), 1, Integer::sum);
+    }
+    return counts;
+  }
+
+  private static class TestState implements RServerState {
+
+    private final String name;
+
+    private final int cores;
+
+    private final int sessions;
+
+    private final int busySessions;
+
+    private final int freeMemory;
+
+    private final boolean running;
+
+    private TestState(String name, int cores, int sessions, int busySessions, int freeMemory) {
+      this(name, cores, sessions, busySessions, freeMemory, true);
+    }
+
+    private TestState(String name, int cores, int sessions, int busySessions, int freeMemory, boolean running) {
+      this.name = name;
+      this.cores = cores;
+      this.sessions = sessions;
+      this.busySessions = busySessions;
+      this.freeMemory = freeMemory;
+      this.running = running;
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public String getCluster() {
+      return "default";
+    }
+
+    @Override
+    public String getVersion() {
+      return "1.0";
+    }
+
+    @Override
+    public boolean isRunning() {
+      return running;
+    }
+
+    @Override
+    public List<String> getTags() {
+      return Lists.newArrayList();
+    }
+
+    @Override
+    public int getRSessionsCount() {
+      return sessions;
+    }
+
+    @Override
+    public int getBusyRSessionsCount() {
+      return busySessions;
+    }
+
+    @Override
+    public int getSystemCores() {
+      return cores;
+    }
+
+    @Override
+    public int getSystemFreeMemory() {
+      return freeMemory;
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package org.obiba.opal.r.datasource;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import org.junit.Assert;
+import org.junit.Test;
+import org.obiba.magma.type.DecimalType;
+import org.obiba.magma.type.IntegerType;
+import org.obiba.magma.type.TextType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+public class RTibbleBatchTest {
+
+  @Test
+  public void writeRDSTest() throws IOException {
+    RTibbleBatch batch = new RTibbleBatch("id", 1);
+    batch.addColumn("AGE", IntegerType.get());
+    batch.addColumn("WEIGHT", DecimalType.get());
+    batch.addColumn("NAME", TextType.get());
+    batch.addRow("1", ImmutableMap.of("AGE", IntegerType.get().valueOf(42), "WEIGHT", DecimalType.get().valueOf(60.5)));
+    batch.addRow("2", ImmutableMap.of("NAME", TextType.get().valueOf("foo")));
+    Assert.assertTrue(batch.isFull());
+    Assert.assertEquals(2, batch.getRowCount());
+    Assert.assertEquals(4, batch.getColumnCount());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    batch.writeRDS(out);
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+    Assert.assertEquals('X', in.readByte());
+    Assert.assertEquals('\n', in.readByte());
+    Assert.assertEquals(2, in.readInt());
+    in.readInt(); // writer version
+    in.readInt(); // min reader version
+    // list with object and attributes flags, one item per column
+    Assert.assertEquals(19 | (1 << 8) | (1 << 9), in.readInt());
+    Assert.assertEquals(4, in.readInt());
+    // id column: character vector
+    Assert.assertEquals(16, in.readInt());
+    Assert.assertEquals(2, in.readInt());
+    in.readInt();
+    Assert.assertEquals(1, in.readInt());
+    Assert.assertEquals('1', in.readByte());
+    in.readInt();
+    Assert.assertEquals(1, in.readInt());
+    Assert.assertEquals('2', in.readByte());
+    // AGE column: integer vector with NA
+    Assert.assertEquals(13, in.readInt());
+    Assert.assertEquals(2, in.readInt());
+    Assert.assertEquals(42, in.readInt());
+    Assert.assertEquals(Integer.MIN_VALUE, in.readInt());
+    // WEIGHT column: double vector with NA
+    Assert.assertEquals(14, in.readInt());
+    Assert.assertEquals(2, in.readInt());
+    Assert.assertEquals(60.5, in.readDouble(), 0);
+    Assert.assertEquals(0x7FF00000000007A2L, in.readLong());
+  }
+
+  @Test
+  public void toRDSTest() throws IOException {
+    RTibbleBatch batch = new RTibbleBatch("id", 10);
+    batch.addColumn("AGE", IntegerType.get());
+    batch.addRow("1", ImmutableMap.of("AGE", IntegerType.get().valueOf(42)));
+    batch.addRow("2", ImmutableMap.of());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    batch.writeRDS(out);
+    Assert.assertArrayEquals(out.toByteArray(), ByteStreams.toByteArray(batch.toRDS()));
+  }
+
+  @Test
+  public void emptyBatchTest() throws IOException {
+    RTibbleBatch batch = new RTibbleBatch("id", 10);
+    batch.addColumn("AGE", IntegerType.get());
+    batch.addColumn("NAME", TextType.get());
+    Assert.assertEquals(0, batch.getRowCount());
+
+    DataInputStream in = new DataInputStream(batch.toRDS());
+    in.skipBytes(2 + 3 * 4);
+    Assert.assertEquals(19 | (1 << 8) | (1 << 9), in.readInt());
+    Assert.assertEquals(3, in.readInt());
+    // typed columns without values
+    Assert.assertEquals(16, in.readInt());
+    Assert.assertEquals(0, in.readInt());
+    Assert.assertEquals(13, in.readInt());
+    Assert.assertEquals(0, in.readInt());
+    Assert.assertEquals(16, in.readInt());
+    Assert.assertEquals(0, in.readInt());
+    // names attribute
+    in.readInt();
+    in.readInt();
+    Assert.assertEquals("names", readString(in));
+    Assert.assertEquals(16, in.readInt());
+    Assert.assertEquals(3, in.readInt());
+    Assert.assertEquals("id", readString(in));
+    Assert.assertEquals("AGE", readString(in));
+    Assert.assertEquals("NAME", readString(in));
+    // row.names attribute in compact form, for no rows
+    in.readInt();
+    in.readInt();
+    Assert.assertEquals("row.names", readString(in));
+    Assert.assertEquals(13, in.readInt());
+    Assert.assertEquals(2, in.readInt());
+    Assert.assertEquals(Integer.MIN_VALUE, in.readInt());
+    Assert.assertEquals(0, in.readInt());
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    in.readInt();
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+}
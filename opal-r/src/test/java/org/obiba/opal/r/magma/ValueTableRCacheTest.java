@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.r.magma;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+public class ValueTableRCacheTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private ValueTableRCache cache;
+
+  @Before
+  public void setUp() {
+    cache = new ValueTableRCache(new File(folder.getRoot(), "cache"));
+  }
+
+  @Test
+  public void lookupTest() throws IOException {
+    put("a", "ds", "t1", 1, 100);
+
+    File file = cache.lookup("a");
+    Assert.assertNotNull(file);
+    Assert.assertEquals(100, file.length());
+    Assert.assertNull(cache.lookup("b"));
+    Assert.assertEquals(1, cache.getHits());
+    Assert.assertEquals(1, cache.getMisses());
+    Assert.assertEquals(1, cache.getEntryCount());
+    Assert.assertEquals(100, cache.getSize());
+  }
+
+  @Test
+  public void newVersionReplacesPreviousTest() throws IOException {
+    put("a1", "ds", "t1", 1, 100);
+    put("b1", "ds", "t2", 1, 100);
+    put("a2", "ds", "t1", 2, 100);
+
+    Assert.assertNull(cache.lookup("a1"));
+    Assert.assertNotNull(cache.lookup("a2"));
+    Assert.assertNotNull(cache.lookup("b1"));
+    Assert.assertEquals(2, cache.getEntryCount());
+    Assert.assertEquals(200, cache.getSize());
+  }
+
+  @Test
+  public void evictLeastRecentlyUsedTest() throws Exception {
+    cache.setMaxSize(250);
+    put("a", "ds", "t1", 1, 100);
+    Thread.sleep(5);
+    put("b", "ds", "t2", 1, 100);
+    Thread.sleep(5);
+    Assert.assertNotNull(cache.lookup("a"));
+    Thread.sleep(5);
+    put("c", "ds", "t3", 1, 100);
+
+    Assert.assertNull(cache.lookup("b"));
+    Assert.assertNotNull(cache.lookup("a"));
+    Assert.assertNotNull(cache.lookup("c"));
+    Assert.assertEquals(1, cache.getEvictions());
+    Assert.assertEquals(200, cache.getSize());
+  }
+
+  @Test
+  public void entryLargerThanMaxSizeTest() throws IOException {
+    cache.setMaxSize(50);
+    File file = put("a", "ds", "t1", 1, 100);
+
+    Assert.assertNull(cache.lookup("a"));
+    Assert.assertFalse(file.exists());
+    Assert.assertEquals(0, cache.getEntryCount());
+    Assert.assertEquals(0, cache.getSize());
+  }
+
+  @Test
+  public void evictTableTest() throws IOException {
+    File file = put("a", "ds", "t1", 1, 100);
+    put("b", "ds", "t2", 1, 100);
+
+    List<ValueTableRCache.Entry> evicted = cache.evict("ds", "t1");
+    Assert.assertEquals(1, evicted.size());
+    Assert.assertEquals("a", evicted.get(0).getKey());
+    Assert.assertFalse(file.exists());
+    Assert.assertNotNull(cache.lookup("b"));
+    Assert.assertEquals(100, cache.getSize());
+  }
+
+  @Test
+  public void disableTest() throws IOException {
+    put("a", "ds", "t1", 1, 100);
+    cache.setMaxSize(0);
+
+    Assert.assertFalse(cache.isEnabled());
+    Assert.assertEquals(0, cache.getEntryCount());
+    Assert.assertEquals(0, cache.getSize());
+  }
+
+  @Test
+  public void clearTest() throws IOException {
+    put("a", "ds", "t1", 1, 100);
+    cache.newTemporaryFile().createNewFile();
+    cache.clear();
+
+    Assert.assertEquals(0, cache.getEntryCount());
+    Assert.assertFalse(new File(folder.getRoot(), "cache").exists());
+  }
+
+  /**
+   * Put a file of the given size in the cache.
+   *
+   * @return the cached file
+   */
+  private File put(String key, String datasource, String table, long lastUpdate, int size) throws IOException {
+    File file = cache.newTemporaryFile();
+    Files.write(file.toPath(), new byte[size]);
+    cache.put(key, file, datasource, table, lastUpdate, null);
+    return new File(new File(folder.getRoot(), "cache"), key + ".rds");
+  }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.r.rock;
+
+import com.sun.net.httpserver.HttpServer;
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.obiba.opal.core.cfg.AppsService;
+import org.obiba.opal.core.domain.RockAppConfig;
+import org.obiba.opal.core.runtime.App;
+import org.obiba.opal.r.service.RServerState;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+public class RockServiceTest {
+
+  private HttpServer server;
+
+  private final AtomicInteger stateReads = new AtomicInteger();
+
+  private RockService service;
+
+  @Before
+  public void setUp() throws IOException {
+    // Rock server that reports its state
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/rserver", exchange -> {
+      stateReads.incrementAndGet();
+      byte[] body = "{\"id\":\"rock1\",\"cluster\":\"default\",\"running\":true}".getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().add("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream os = exchange.getResponseBody()) {
+        os.write(body);
+      }
+    });
+    server.start();
+
+    AppsService appsService = EasyMock.createNiceMock(AppsService.class);
+    EasyMock.expect(appsService.getRockAppConfig(EasyMock.anyObject(App.class))).andStubReturn(new RockAppConfig());
+    EasyMock.replay(appsService);
+    service = new RockService(null, null, null, null, appsService);
+    ReflectionTestUtils.setField(service, "stateRefreshInterval", 1);
+    service.setApp(newApp());
+  }
+
+  @After
+  public void tearDown() {
+    service.dispose();
+    server.stop(0);
+  }
+
+  @Test
+  public void stateIsCachedTest() throws Exception {
+    RServerState state = service.getState();
+    Assert.assertTrue(state.isRunning());
+    Assert.assertSame(state, service.getState());
+    Assert.assertEquals(1, stateReads.get());
+  }
+
+  @Test
+  public void staleStateIsRefreshedInBackgroundTest() throws Exception {
+    RServerState state = service.getState();
+    // older than the refresh interval
+    ReflectionTestUtils.setField(service, "stateTimestamp", System.currentTimeMillis() - 1500);
+
+    Assert.assertSame(state, service.getState());
+    await(() -> ReflectionTestUtils.getField(service, "state") != state);
+    Assert.assertEquals(2, stateReads.get());
+    Assert.assertNotSame(state, service.getState());
+    Assert.assertEquals(2, stateReads.get());
+  }
+
+  @Test
+  public void tooOldStateIsReadTest() throws Exception {
+    RServerState state = service.getState();
+    // older than three times the refresh interval
+    ReflectionTestUtils.setField(service, "stateTimestamp", System.currentTimeMillis() - 5000);
+
+    Assert.assertNotSame(state, service.getState());
+    Assert.assertEquals(2, stateReads.get());
+  }
+
+  @Test
+  public void setAppClosesHttpClientTest() throws Exception {
+    service.getState();
+    Object httpClient = ReflectionTestUtils.getField(service, "httpClient");
+    Assert.assertNotNull(httpClient);
+
+    service.setApp(newApp());
+    Assert.assertNull(ReflectionTestUtils.getField(service, "httpClient"));
+    Assert.assertNull(ReflectionTestUtils.getField(service, "connectionManager"));
+
+    // state is forgotten and read with a new client
+    service.getState();
+    Assert.assertEquals(2, stateReads.get());
+    Assert.assertNotNull(ReflectionTestUtils.getField(service, "httpClient"));
+    Assert.assertNotSame(httpClient, ReflectionTestUtils.getField(service, "httpClient"));
+  }
+
+  @Test
+  public void disposeClosesHttpClientTest() throws Exception {
+    service.getState();
+    Assert.assertNotNull(ReflectionTestUtils.getField(service, "httpClient"));
+
+    service.dispose();
+    Assert.assertNull(ReflectionTestUtils.getField(service, "httpClient"));
+    Assert.assertNull(ReflectionTestUtils.getField(service, "connectionManager"));
+    Assert.assertNull(ReflectionTestUtils.getField(service, "restTemplate"));
+  }
+
+  //
+  // Private methods
+  //
+
+  private App newApp() {
+    App app = new App("rock1");
+    app.setName("rock1");
+    app.setType("rock");
+    app.setServer("http://localhost:" + server.getAddress().getPort());
+    return app;
+  }
+
+  private static void await(BooleanSupplier condition) throws InterruptedException {
+    long timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+    while (!condition.getAsBoolean()) {
+      Assert.assertTrue("Timed out", System.currentTimeMillis() < timeout);
+      Thread.sleep(10);
+    }
+  }
+
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.r.service;
+
+import com.google.common.collect.Lists;
+import org.apache.shiro.subject.Subject;
+import org.apache.shiro.util.ThreadContext;
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.obiba.opal.core.tx.TransactionalThreadFactory;
+import org.obiba.opal.spi.r.RCommand;
+import org.obiba.opal.spi.r.ROperation;
+import org.obiba.opal.spi.r.ROperationWithResult;
+import org.obiba.opal.spi.r.RServerResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+public class RCommandsExecutorTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private RCommandsExecutor executor;
+
+  private TestRServerSession rSession;
+
+  @Before
+  public void setUp() {
+    executor = new RCommandsExecutor(new File(folder.getRoot(), "commands"));
+    executor.configure(1);
+
+    Subject subject = EasyMock.createNiceMock(Subject.class);
+    EasyMock.expect(subject.associateWith(EasyMock.anyObject(Runnable.class)))
+        .andAnswer(() -> (Runnable) EasyMock.getCurrentArguments()[0]).anyTimes();
+    TransactionalThreadFactory transactionalThreadFactory = EasyMock.createMock(TransactionalThreadFactory.class);
+    EasyMock.expect(transactionalThreadFactory.newTransactionalRunnable(EasyMock.anyObject(Runnable.class)))
+        .andAnswer(() -> (Runnable) EasyMock.getCurrentArguments()[0]).anyTimes();
+    EasyMock.replay(subject, transactionalThreadFactory);
+    ThreadContext.bind(subject);
+
+    rSession = new TestRServerSession(transactionalThreadFactory, executor);
+  }
+
+  @After
+  public void tearDown() {
+    ThreadContext.unbindSubject();
+    executor.shutdown();
+  }
+
+  @Test
+  public void boundedThreadsTest() throws InterruptedException {
+    executor.configure(2);
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    CountDownLatch done = new CountDownLatch(6);
+    for (int i = 0; i < 6; i++) {
+      executor.execute(() -> {
+        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        try {
+          Thread.sleep(20);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        running.decrementAndGet();
+        done.countDown();
+      });
+    }
+
+    Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+    Assert.assertTrue(maxRunning.get() <= 2);
+  }
+
+  @Test
+  public void resultIsKeptTest() throws InterruptedException {
+    String id = rSession.executeAsync(newROperation("\"abc\""));
+    await(() -> rSession.getRCommand(id).isFinished());
+
+    RCommand rCommand = rSession.getRCommand(id);
+    Assert.assertTrue(rCommand.hasResult());
+    Assert.assertEquals("\"abc\"", rCommand.asROperationWithResult().getResult().asJSON());
+    Assert.assertEquals(10, ((RCommandOperation) rCommand.getROperation()).getResultSize());
+  }
+
+  @Test
+  public void spillOldestResultsTest() throws InterruptedException {
+    // room for two results of 24 bytes
+    executor.setResultsRetention(0, 50);
+    String id1 = rSession.executeAsync(newROperation("\"aaaaaaaaaa\""));
+    String id2 = rSession.executeAsync(newROperation("\"bbbbbbbbbb\""));
+    String id3 = rSession.executeAsync(newROperation("\"cccccccccc\""));
+    RCommandOperation rop1 = (RCommandOperation) rSession.getRCommand(id1).getROperation();
+    await(() -> rop1.getResultSize() == 0 && rop1.hasResult());
+
+    Assert.assertEquals(1, executor.getSpillDirectory().listFiles().length);
+    Assert.assertEquals("\"aaaaaaaaaa\"", rSession.getRCommand(id1).asROperationWithResult().getResult().asJSON());
+    Assert.assertEquals(24, ((RCommandOperation) rSession.getRCommand(id2).getROperation()).getResultSize());
+    Assert.assertEquals(24, ((RCommandOperation) rSession.getRCommand(id3).getROperation()).getResultSize());
+
+    // spilled result is deleted with its command
+    rSession.removeRCommand(id1);
+    Assert.assertEquals(0, executor.getSpillDirectory().listFiles().length);
+  }
+
+  @Test
+  public void spillRawResultTest() throws IOException {
+    RServerResult result = EasyMock.createNiceMock(RServerResult.class);
+    EasyMock.expect(result.isRaw()).andStubReturn(true);
+    EasyMock.expect(result.asBytes()).andStubReturn(new byte[]{1, 2, 3});
+    EasyMock.replay(result);
+    RCommandOperation rop = new RCommandOperation(newROperation(result));
+    rop.doWithConnection(null);
+    Assert.assertEquals(3, rop.getResultSize());
+
+    rop.spill(executor.getSpillDirectory());
+    Assert.assertEquals(0, rop.getResultSize());
+    Assert.assertArrayEquals(new byte[]{1, 2, 3}, rop.getResult().asBytes());
+
+    rop.clear();
+    Assert.assertFalse(rop.hasResult());
+    Assert.assertEquals(0, executor.getSpillDirectory().listFiles().length);
+  }
+
+  @Test
+  public void evictExpiredResultsTest() throws InterruptedException {
+    executor.setResultsRetention(50, TimeUnit.MILLISECONDS, -1);
+    String id = rSession.executeAsync(newROperation("\"abc\""));
+    await(() -> rSession.getRCommand(id).isFinished());
+    RCommandOperation rop = (RCommandOperation) rSession.getRCommand(id).getROperation();
+    Thread.sleep(100);
+
+    Assert.assertTrue(Lists.newArrayList(rSession.getRCommands()).isEmpty());
+    Assert.assertFalse(rSession.hasRCommand(id));
+    Assert.assertFalse(rop.hasResult());
+    Assert.assertEquals(0, executor.getSpillDirectory().listFiles().length);
+  }
+
+  @Test
+  public void keepResultsWithoutTimeToLiveTest() throws InterruptedException {
+    executor.setResultsRetention(0, -1);
+    String id = rSession.executeAsync(newROperation("\"abc\""));
+    await(() -> rSession.getRCommand(id).isFinished());
+    Thread.sleep(50);
+
+    Assert.assertTrue(rSession.hasRCommand(id));
+    Assert.assertTrue(rSession.getRCommand(id).hasResult());
+  }
+
+  @Test
+  public void purgeSpillDirectoryTest() throws IOException {
+    File leftover = new File(executor.getSpillDirectory(), "rcmd-1.json");
+    Assert.assertTrue(leftover.createNewFile());
+
+    executor.purgeSpillDirectory();
+    Assert.assertFalse(leftover.exists());
+    Assert.assertTrue(executor.getSpillDirectory().exists());
+    Assert.assertEquals(0, executor.getSpillDirectory().listFiles().length);
+  }
+
+  //
+  // Private methods
+  //
+
+  private static void await(BooleanSupplier condition) throws InterruptedException {
+    long timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+    while (!condition.getAsBoolean()) {
+      Assert.assertTrue("Timed out", System.currentTimeMillis() < timeout);
+      Thread.sleep(10);
+    }
+  }
+
+  private static ROperation newROperation(String json) {
+    RServerResult result = EasyMock.createNiceMock(RServerResult.class);
+    EasyMock.expect(result.asJSON()).andStubReturn(json);
+    EasyMock.replay(result);
+    return newROperation(result);
+  }
+
+  private static ROperation newROperation(RServerResult result) {
+    ROperationWithResult rop = EasyMock.createNiceMock(ROperationWithResult.class);
+    EasyMock.expect(rop.hasResult()).andStubReturn(true);
+    EasyMock.expect(rop.getResult()).andStubReturn(result);
+    EasyMock.replay(rop);
+    return rop;
+  }
+
+  /**
+   * Executes the R operations without any R server.
+   */
+  private static class TestRServerSession extends AbstractRServerSession {
+
+    private boolean closed = false;
+
+    private TestRServerSession(TransactionalThreadFactory transactionalThreadFactory, RCommandsExecutor executor) {
+      super("default", "test", "1", "alice", transactionalThreadFactory, executor);
+    }
+
+    @Override
+    public void execute(ROperation rop) {
+      rop.doWithConnection(null);
+    }
+
+    @Override
+    public void close() {
+      closeRCommandsQueue();
+      closed = true;
+    }
+
+    @Override
+    public boolean isClosed() {
+      return closed;
+    }
+  }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.r.service;
+
+import com.google.common.collect.Lists;
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class RSessionRegistryTest {
+
+  private RSessionRegistry registry;
+
+  @Before
+  public void setUp() {
+    registry = new RSessionRegistry();
+  }
+
+  @Test
+  public void getTest() {
+    RServerSession rSession = newSession("1", 1, "default", "server1");
+    registry.add("alice", rSession);
+
+    Assert.assertSame(rSession, registry.get("1"));
+    Assert.assertSame(rSession, registry.get("alice", "1"));
+    Assert.assertNull(registry.get("bob", "1"));
+    Assert.assertNull(registry.get("2"));
+  }
+
+  @Test
+  public void getAllInCreationOrderTest() {
+    RServerSession s3 = newSession("3", 3, "default", "server1");
+    RServerSession s1 = newSession("1", 1, "default", "server1");
+    RServerSession s2 = newSession("2", 2, "default", "server2");
+    registry.add("alice", s3);
+    registry.add("bob", s1);
+    registry.add("alice", s2);
+
+    Assert.assertEquals(Lists.newArrayList(s1, s2, s3), registry.getAll());
+  }
+
+  @Test
+  public void getByPrincipalTest() {
+    RServerSession s1 = newSession("1", 1, "default", "server1");
+    RServerSession s2 = newSession("2", 2, "default", "server1");
+    RServerSession s3 = newSession("3", 3, "default", "server1");
+    registry.add("alice", s2);
+    registry.add("bob", s1);
+    registry.add("alice", s3);
+
+    Assert.assertEquals(Lists.newArrayList(s2, s3), registry.getByPrincipal("alice"));
+    Assert.assertEquals(Lists.newArrayList(s1), registry.getByPrincipal("bob"));
+    Assert.assertTrue(registry.getByPrincipal("carol").isEmpty());
+  }
+
+  @Test
+  public void getByServerTest() {
+    RServerSession s1 = newSession("1", 1, "default", "server1");
+    RServerSession s2 = newSession("2", 2, "default", "server2");
+    RServerSession s3 = newSession("3", 3, "other", "server1");
+    RServerSession s4 = newSession("4", 4, null, "server1");
+    registry.add("alice", s1);
+    registry.add("alice", s2);
+    registry.add("bob", s3);
+    registry.add("bob", s4);
+
+    Assert.assertEquals(Lists.newArrayList(s1), registry.getByServer("default", "server1"));
+    Assert.assertEquals(Lists.newArrayList(s2), registry.getByServer("default", "server2"));
+    Assert.assertEquals(Lists.newArrayList(s3), registry.getByServer("other", "server1"));
+    Assert.assertEquals(Lists.newArrayList(s4), registry.getByServer(null, "server1"));
+    Assert.assertTrue(registry.getByServer("other", "server2").isEmpty());
+  }
+
+  @Test
+  public void removeTest() {
+    RServerSession s1 = newSession("1", 1, "default", "server1");
+    RServerSession s2 = newSession("2", 2, "default", "server1");
+    registry.add("alice", s1);
+    registry.add("alice", s2);
+
+    Assert.assertSame(s1, registry.remove("1"));
+    Assert.assertNull(registry.remove("1"));
+    Assert.assertNull(registry.get("1"));
+    Assert.assertEquals(Lists.newArrayList(s2), registry.getAll());
+    Assert.assertEquals(Lists.newArrayList(s2), registry.getByPrincipal("alice"));
+    Assert.assertEquals(Lists.newArrayList(s2), registry.getByServer("default", "server1"));
+
+    registry.remove("2");
+    Assert.assertTrue(registry.getAll().isEmpty());
+    Assert.assertTrue(registry.getByPrincipal("alice").isEmpty());
+    Assert.assertTrue(registry.getByServer("default", "server1").isEmpty());
+  }
+
+  @Test
+  public void concurrentAddAndRemoveTest() throws InterruptedException {
+    int count = 1000;
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    CountDownLatch done = new CountDownLatch(count);
+    for (int i = 0; i < count; i++) {
+      String id = String.valueOf(i);
+      RServerSession rSession = newSession(id, i, "default", "server" + (i % 3));
+      executor.submit(() -> {
+        registry.add("user" + (id.length() % 2), rSession);
+        // remove every other session right after its registration
+        if (Integer.parseInt(id) % 2 == 0) registry.remove(id);
+        done.countDown();
+      });
+    }
+    Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+    executor.shutdown();
+
+    List<RServerSession> all = registry.getAll();
+    Assert.assertEquals(count / 2, all.size());
+    int byPrincipal = registry.getByPrincipal("user0").size() + registry.getByPrincipal("user1").size();
+    Assert.assertEquals(count / 2, byPrincipal);
+    int byServer = 0;
+    for (int i = 0; i < 3; i++) {
+      byServer += registry.getByServer("default", "server" + i).size();
+    }
+    Assert.assertEquals(count / 2, byServer);
+  }
+
+  //
+  // Private methods
+  //
+
+  private static RServerSession newSession(String id, long created, String cluster, String serverName) {
+    RServerProfile profile = EasyMock.createNiceMock(RServerProfile.class);
+    EasyMock.expect(profile.getCluster()).andStubReturn(cluster);
+    RServerSession rSession = EasyMock.createNiceMock(RServerSession.class);
+    EasyMock.expect(rSession.getId()).andStubReturn(id);
+    EasyMock.expect(rSession.getCreated()).andStubReturn(new Date(created));
+    EasyMock.expect(rSession.getProfile()).andStubReturn(profile);
+    EasyMock.expect(rSession.getRServerServiceName()).andStubReturn(serverName);
+    EasyMock.replay(profile, rSession);
+    return rSession;
+  }
+
+}
@@ -15,8 +15,10 @@ import org.obiba.opal.spi.search.ValueTableIndex;
 import org.obiba.opal.web.model.Opal;
 
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 public class IndexManagerConfiguration implements ValueTableIndexManagerConfiguration, OpalConfigurationExtension {
 
@@ -66,6 +68,14 @@ public class IndexManagerConfiguration implements ValueTableIndexManagerConfigur
     return schedule == null ? new Schedule() : schedule;
   }
 
+  @Override
+  public Collection<String> getScheduledTables() {
+    return new HashMap<>(indexConfigurations).entrySet().stream()
+        .filter(entry -> entry.getValue().getType() != Opal.ScheduleType.NOT_SCHEDULED)
+        .map(Map.Entry::getKey)
+        .collect(Collectors.toList());
+  }
+
   @SuppressWarnings("MagicNumber")
   private boolean shouldUpdate(Schedule schedule, Calendar now) {
     switch(schedule.getType()) {
@@ -9,32 +9,45 @@
  */
 package org.obiba.opal.search;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.apache.shiro.SecurityUtils;
 import org.apache.shiro.authc.AuthenticationException;
 import org.apache.shiro.subject.PrincipalCollection;
 import org.apache.shiro.subject.Subject;
 import org.obiba.magma.*;
-import org.obiba.magma.type.DateTimeType;
+import org.obiba.magma.support.MagmaEngineTableResolver;
 import org.obiba.opal.core.security.BackgroundJobServiceAuthToken;
 import org.obiba.opal.core.tx.TransactionalThreadFactory;
 import org.obiba.opal.search.service.OpalSearchService;
 import org.obiba.opal.spi.search.IndexManager;
 import org.obiba.opal.spi.search.IndexSynchronization;
 import org.obiba.opal.spi.search.ValueTableIndex;
+import org.obiba.opal.spi.search.ValuesIndexManager;
+import org.obiba.opal.web.model.Opal;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 
-import java.util.Calendar;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import javax.annotation.PreDestroy;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Manages {@code IndexSynchronization} tasks. This class will monitor the state of all indices periodically. When an
- * index is determined to be out of date, a {@code IndexSynchronization} task is created and run.
+ * Manages {@code IndexSynchronization} tasks. The indices to be synchronized are mostly notified by the table
+ * modification events, and are queued by index and table, so that several notifications of the same table result in
+ * one synchronization. A pool of workers runs the synchronizations of different tables in parallel. The indices with
+ * a schedule are checked every minute, all the indices are checked periodically for the modifications that were not
+ * notified.
  */
 @Component
 @Transactional(readOnly = true)
@@ -42,9 +55,12 @@ public class IndexSynchronizationManager {
 
   private static final Logger log = LoggerFactory.getLogger(IndexSynchronizationManager.class);
 
-  // Grace period before reindexing (in seconds)
+  // Grace period before reindexing a modified table (in seconds)
   private static final int GRACE_PERIOD = 30;
 
+  // Interval between the checks of all the indices (in minutes)
+  private static final int RECONCILIATION_INTERVAL = 30;
+
   @Autowired
   private OpalSearchService opalSearchService;
 
@@ -54,55 +70,116 @@ public class IndexSynchronizationManager {
   @Autowired
   private IndexManagerConfigurationService indexConfig;
 
-  private final SyncProducer syncProducer = new SyncProducer();
+  @Value("${org.obiba.opal.search.indexing.threads}")
+  private int indexingThreads;
+
+  // synchronizations to be run, by index and table, in submission order
+  private final Map<String, PendingSync> pendingSyncs = new LinkedHashMap<>();
 
-  private SyncConsumer syncConsumer;
+  // index and table of the synchronizations being run
+  private final Set<String> runningKeys = Sets.newHashSet();
 
-  private IndexSynchronization currentTask;
+  private final Map<String, IndexSynchronization> runningSyncs = Maps.newConcurrentMap();
 
-  private final BlockingQueue<IndexSynchronization> indexSyncQueue = new LinkedBlockingQueue<>();
+  private final List<Thread> workers = Lists.newArrayList();
 
-  private Thread consumer;
+  private long lastReconciliation = 0;
 
   // Every minute
   @Scheduled(fixedDelay = 60 * 1000)
   public void synchronizeIndices() {
-
     if(!opalSearchService.isRunning()) return;
-
-    if(syncConsumer == null) {
-      // start one IndexSynchronization consumer thread per index manager
-      syncConsumer = new SyncConsumer();
-      startConsumerThread();
-    } else if(consumer != null && !consumer.isAlive() && !consumer.isInterrupted()) {
-      // restart consumer if it died unexpectedly
-      startConsumerThread();
-    }
-    getSubject().execute(syncProducer);
+    startWorkers();
+    long now = System.currentTimeMillis();
+    boolean reconcile = now - lastReconciliation > TimeUnit.MINUTES.toMillis(RECONCILIATION_INTERVAL);
+    if(reconcile) lastReconciliation = now;
+    getSubject().execute(() -> checkIndices(reconcile));
   }
 
+  /**
+   * Synchronize the index of the table as soon as possible, whether it is up to date or not.
+   *
+   * @param indexManager
+   * @param table
+   */
   public void synchronizeIndex(IndexManager indexManager, ValueTable table) {
-    syncProducer.index(indexManager, table, 0);
+    submit(indexManager, table.getDatasource().getName(), table.getName(), 0, true);
   }
 
-  public IndexSynchronization getCurrentTask() {
-    return currentTask;
+  /**
+   * Synchronize the index of a table that was modified, after a grace period during which other modifications are
+   * expected. The values index is synchronized only if it is scheduled.
+   *
+   * @param indexManager
+   * @param datasource
+   * @param table
+   */
+  public void synchronizeModifiedIndex(IndexManager indexManager, String datasource, String table) {
+    submit(indexManager, datasource, table, GRACE_PERIOD, false);
   }
 
-  public void stopTask() {
-    currentTask.stop();
-    syncProducer.deleteCurrentTaskFromQueue();
+  /**
+   * Get the synchronization being run for the table, the values index one if any.
+   *
+   * @param datasource
+   * @param table
+   * @return null if none
+   */
+  public IndexSynchronization getCurrentTask(String datasource, String table) {
+    IndexSynchronization sync = runningSyncs.get(toKey(opalSearchService.getValuesIndexManager(), datasource, table));
+    return sync == null ? runningSyncs.get(toKey(opalSearchService.getVariablesIndexManager(), datasource, table)) : sync;
   }
 
-  private void startConsumerThread() {
-    consumer = transactionalThreadFactory.newThread(getSubject().associateWith(syncConsumer));
-    consumer.setName("Index Synchronization Consumer " + syncConsumer);
-    consumer.setPriority(Thread.MIN_PRIORITY);
-    consumer.start();
+  /**
+   * Stop the synchronizations of the table, the running ones and the pending ones.
+   *
+   * @param datasource
+   * @param table
+   */
+  public void stopTasks(String datasource, String table) {
+    String suffix = ":" + toReference(datasource, table);
+    synchronized(pendingSyncs) {
+      pendingSyncs.keySet().removeIf(key -> key.endsWith(suffix));
+    }
+    runningSyncs.entrySet().stream()
+        .filter(entry -> entry.getKey().endsWith(suffix))
+        .forEach(entry -> entry.getValue().stop());
+  }
+
+  public boolean isAlreadyQueued(IndexManager indexManager, ValueTableIndex index) {
+    String key = indexManager.getName() + ":" + index.getValueTableReference();
+    synchronized(pendingSyncs) {
+      boolean queued = pendingSyncs.containsKey(key);
+      log.trace("Indexation of {} is {}queued in {}...", index.getValueTableReference(), queued ? "" : "not ",
+          indexManager.getName());
+      return queued;
+    }
+  }
+
+  @PreDestroy
+  public void terminateConsumerThreads() {
+    synchronized(workers) {
+      workers.stream().filter(Thread::isAlive).forEach(Thread::interrupt);
+      workers.clear();
+    }
   }
 
-  public void terminateConsumerThread() {
-    if(consumer != null && consumer.isAlive()) consumer.interrupt();
+  //
+  // Private methods
+  //
+
+  private void startWorkers() {
+    synchronized(workers) {
+      // restart workers if they died unexpectedly
+      workers.removeIf(worker -> !worker.isAlive());
+      while(workers.size() < Math.max(1, indexingThreads)) {
+        Thread worker = transactionalThreadFactory.newThread(new SyncWorker());
+        worker.setName("Index Synchronization Worker " + (workers.size() + 1));
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
+        workers.add(worker);
+      }
+    }
   }
 
   private Subject getSubject() {
@@ -117,116 +194,176 @@ public class IndexSynchronizationManager {
     }
   }
 
-  private class SyncProducer implements Runnable {
-
-    @Override
-    public void run() {
-      try {
-        for(Datasource ds : MagmaEngine.get().getDatasources()) {
-          for(ValueTable table : ds.getValueTables()) {
-            log.debug("Check index for table: {}.{}", ds.getName(), table.getName());
-            IndexManager indexManager = opalSearchService.getVariablesIndexManager();
-            checkIndexable(indexManager, table, indexManager.isReady() && !indexManager.getIndex(table).isUpToDate());
-            indexManager = opalSearchService.getValuesIndexManager();
-            checkIndexable(indexManager, table, indexManager.isReady() && indexConfig.getConfig().isReadyForIndexing(table, indexManager.getIndex(table)));
+  /**
+   * Queue the synchronizations of the scheduled values indices, and of all the out of date indices when reconciling.
+   *
+   * @param reconcile
+   */
+  private void checkIndices(boolean reconcile) {
+    try {
+      IndexManager valuesIndexManager = opalSearchService.getValuesIndexManager();
+      if(valuesIndexManager.isReady()) {
+        for(String reference : indexConfig.getConfig().getScheduledTables()) {
+          try {
+            ValueTable table = MagmaEngineTableResolver.valueOf(reference).resolveTable();
+            if(indexConfig.getConfig().isReadyForIndexing(table, valuesIndexManager.getIndex(table)))
+              submit(valuesIndexManager, table.getDatasource().getName(), table.getName(), 0, false);
+          } catch(NoSuchDatasourceException | NoSuchValueTableException e) {
+            log.trace("Cannot check index of {}: {}", reference, e.getMessage());
           }
         }
-      } catch(Exception ignored) {
-        log.warn("Error while checking indexable", ignored);
       }
+      if(!reconcile) return;
+      IndexManager variablesIndexManager = opalSearchService.getVariablesIndexManager();
+      if(!variablesIndexManager.isReady()) return;
+      for(Datasource ds : MagmaEngine.get().getDatasources()) {
+        for(ValueTable table : ds.getValueTables()) {
+          log.debug("Check index for table: {}.{}", ds.getName(), table.getName());
+          if(!variablesIndexManager.getIndex(table).isUpToDate())
+            submit(variablesIndexManager, ds.getName(), table.getName(), GRACE_PERIOD, false);
+        }
+      }
+    } catch(Exception e) {
+      log.warn("Error while checking indexable", e);
     }
+  }
 
-    private void checkIndexable(IndexManager indexManager, ValueTable table, boolean indexable) {
-      if(!indexable) return;
-      index(indexManager, table, GRACE_PERIOD);
+  private void submit(IndexManager indexManager, String datasource, String table, int delay, boolean force) {
+    String key = toKey(indexManager, datasource, table);
+    long notBefore = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(delay);
+    synchronized(pendingSyncs) {
+      PendingSync pending = pendingSyncs.get(key);
+      if(pending == null) {
+        log.trace("Queueing for indexing {} in {}", toReference(datasource, table), indexManager.getName());
+        pendingSyncs.put(key, new PendingSync(key, indexManager, datasource, table, notBefore, force));
+      } else {
+        // a modification pushes back the synchronization, a request brings it forward
+        pending.notBefore = delay == 0 ? Math.min(pending.notBefore, notBefore) : Math.max(pending.notBefore, notBefore);
+        pending.force = pending.force || force;
+      }
+      pendingSyncs.notifyAll();
     }
+    if(opalSearchService.isRunning()) startWorkers();
+  }
 
-    private void index(IndexManager indexManager, ValueTable table, int seconds) {
-      // The index needs to be updated
-      Value value = table.getTimestamps().getLastUpdate();
-      // Check that the last modification to the ValueTable is older than the gracePeriod
-      // If we don't know (null value), reindex
-      if(value.isNull() || value.compareTo(gracePeriod(seconds)) < 0) {
-        submitTask(indexManager, table);
+  /**
+   * Wait for the next synchronization that is due and that is not about an index being synchronized.
+   *
+   * @return
+   * @throws InterruptedException
+   */
+  PendingSync take() throws InterruptedException {
+    synchronized(pendingSyncs) {
+      while(true) {
+        long now = System.currentTimeMillis();
+        long wait = 0;
+        Iterator<PendingSync> iterator = pendingSyncs.values().iterator();
+        while(iterator.hasNext()) {
+          PendingSync pending = iterator.next();
+          if(runningKeys.contains(pending.key)) continue;
+          if(pending.notBefore <= now) {
+            iterator.remove();
+            runningKeys.add(pending.key);
+            return pending;
+          }
+          wait = wait == 0 ? pending.notBefore - now : Math.min(wait, pending.notBefore - now);
+        }
+        pendingSyncs.wait(wait);
       }
     }
+  }
 
-    /**
-     * Returns a {@code Value} with the date and time at which things are reindexed.
-     *
-     * @return value
-     */
-    private Value gracePeriod(int seconds) {
-      // Now
-      Calendar gracePeriod = Calendar.getInstance();
-      // Move back in time by GRACE_PERIOD seconds
-      gracePeriod.add(Calendar.SECOND, -seconds);
-      // Things modified before this value can be reindexed
-      return DateTimeType.get().valueOf(gracePeriod);
+  void release(PendingSync pending) {
+    synchronized(pendingSyncs) {
+      runningSyncs.remove(pending.key);
+      runningKeys.remove(pending.key);
+      pendingSyncs.notifyAll();
     }
+  }
 
-    /**
-     * Check if the index is not the current task, or in the queue before adding it to the indexation queue.
-     *
-     * @param indexManager
-     * @param table
-     */
-    private void submitTask(IndexManager indexManager, ValueTable table) {
+  private void consume(PendingSync pending) {
+    try {
+      IndexManager indexManager = pending.indexManager;
+      // check if still indexable: indexation config could have changed
+      if(!indexManager.isReady()) return;
+      ValueTable table = MagmaEngine.get().getDatasource(pending.datasource).getValueTable(pending.table);
       ValueTableIndex index = indexManager.getIndex(table);
-      if(!isAlreadyQueued(indexManager, index)) {
-        log.trace("Queueing for indexing {} in {}", index.getIndexType(), indexManager.getName());
-        indexSyncQueue.offer(indexManager.createSyncTask(table, index));
+      if(!pending.force) {
+        if(index.isUpToDate()) return;
+        if(indexManager instanceof ValuesIndexManager &&
+            indexConfig.getConfig().getSchedule(table).getType() == Opal.ScheduleType.NOT_SCHEDULED) return;
       }
+      log.trace("Prepare indexing {} in {} with type {}", index.getValueTableReference(), indexManager.getName(),
+          index.getIndexType());
+      IndexSynchronization sync = indexManager.createSyncTask(table, index);
+      runningSyncs.put(pending.key, sync);
+      sync.run();
+    } catch(NoSuchDatasourceException | NoSuchValueTableException e) {
+      log.trace("Cannot index: {}", e.getMessage());
     }
+  }
 
-    private void deleteCurrentTaskFromQueue() {
-      log.trace("Deleting current task from queue : {}", currentTask.getValueTable().getName());
-      indexSyncQueue.remove(currentTask);
-    }
+  private static String toKey(IndexManager indexManager, String datasource, String table) {
+    return indexManager.getName() + ":" + toReference(datasource, table);
   }
 
-  public boolean isAlreadyQueued(IndexManager indexManager, ValueTableIndex index) {
-    for(IndexSynchronization s : indexSyncQueue) {
-      if(s.getValueTableIndex().getIndexType().equals(index.getIndexType())
-          && s.getIndexManager().getName().equals(indexManager.getName())
-          && s.getValueTable().getTableReference().equals(index.getValueTableReference())) {
-        log.trace("Indexation of {} is already queued in {}...", index.getValueTableReference(), indexManager.getName());
-        return true;
-      }
-    }
-    log.trace("Indexation of {} is not queued in {}...", index.getValueTableReference(), indexManager.getName());
-    return false;
+  private static String toReference(String datasource, String table) {
+    return datasource + "." + table;
   }
 
-  private class SyncConsumer implements Runnable {
+  private class SyncWorker implements Runnable {
 
     @Override
     public void run() {
-      log.debug("Starting indexing consumer");
+      log.debug("Starting indexing worker");
       try {
         //noinspection InfiniteLoopStatement
         while(true) {
-          consume(indexSyncQueue.take());
+          PendingSync pending = take();
+          try {
+            getSubject().execute(() -> consume(pending));
+          } catch(Exception e) {
+            log.warn("Indexing of {} failed", pending.key, e);
+          } finally {
+            release(pending);
+          }
         }
       } catch(InterruptedException ignored) {
-        log.debug("Stopping indexing consumer");
+        log.debug("Stopping indexing worker");
       }
     }
+  }
 
-    private void consume(IndexSynchronization sync) {
-      currentTask = sync;
-      try {
-        log.trace("Prepare indexing {} in {} with type {}",
-            sync.getValueTableIndex().getValueTableReference(), sync.getIndexManager().getName(), sync.getValueTableIndex().getIndexType());
-        // check if still indexable: indexation config could have changed
-        if(sync.getIndexManager().isReady()) {
-          getSubject().execute(sync);
-        }
-      } catch(NoSuchDatasourceException | NoSuchValueTableException e) {
-        log.trace("Cannot index: ", e.getMessage());
-      } finally {
-        currentTask = null;
-      }
+  static class PendingSync {
+
+    private final String key;
+
+    private final IndexManager indexManager;
+
+    private final String datasource;
+
+    private final String table;
+
+    private long notBefore;
+
+    private boolean force;
+
+    private PendingSync(String key, IndexManager indexManager, String datasource, String table, long notBefore,
+        boolean force) {
+      this.key = key;
+      this.indexManager = indexManager;
+      this.datasource = datasource;
+      this.table = table;
+      this.notBefore = notBefore;
+      this.force = force;
+    }
+
+    String getKey() {
+      return key;
+    }
+
+    boolean isForce() {
+      return force;
     }
   }
 }
@@ -12,6 +12,7 @@ package org.obiba.opal.search;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONObject;
 import org.obiba.magma.Initialisable;
@@ -21,15 +22,18 @@ import org.obiba.magma.VariableEntity;
 import org.obiba.magma.support.VariableEntityBean;
 import org.obiba.magma.views.View;
 import org.obiba.opal.core.magma.QueryWhereClause;
+import org.obiba.opal.spi.search.HitsCursor;
 import org.obiba.opal.spi.search.ValuesIndexManager;
 import org.obiba.opal.web.search.support.RQLParserFactory;
+import org.obiba.opal.web.ws.SortDir;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.config.ConfigurableBeanFactory;
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
 
-import java.util.Collection;
+import java.util.List;
+import java.util.Set;
 
 /**
  * {@link org.obiba.magma.views.WhereClause} that apply a where filter by issuing a query on a table index.
@@ -46,7 +50,7 @@ public class SearchQueryWhereClause extends AbstractSearchUtility implements Que
 
   private boolean allEntities = false;
 
-  private Collection<VariableEntity> entities = Lists.newArrayList();
+  private Set<VariableEntity> entities = Sets.newHashSet();
 
   @Override
   public void initialise() {
@@ -58,9 +62,14 @@ public class SearchQueryWhereClause extends AbstractSearchUtility implements Que
         return;
       }
       String safeQuery = "reference:\"" + valueTable.getTableReference() + "\" AND " + esQuery;
-      opalSearchService.executeAllIdentifiersQuery(
-          buildQuerySearch(safeQuery, 0, Integer.MAX_VALUE, Lists.newArrayList("identifier"), null, null, null),
-          getSearchPath()).forEach(id -> entities.add(new VariableEntityBean(valueTable.getEntityType(), id)));
+      try (HitsCursor<String> cursor = opalSearchService.openIdentifiersCursor(
+          buildQuerySearch(safeQuery, 0, Integer.MAX_VALUE, Lists.newArrayList("identifier"), null, "identifier", SortDir.ASC.name()),
+          getSearchPath())) {
+        List<String> identifiers;
+        while (!(identifiers = cursor.nextBatch()).isEmpty()) {
+          identifiers.forEach(id -> entities.add(new VariableEntityBean(valueTable.getEntityType(), id)));
+        }
+      }
     } catch(Exception e) {
       log.error("Failed querying: {}", query, e);
     }
@@ -12,6 +12,8 @@ package org.obiba.opal.search;
 import org.obiba.magma.ValueTable;
 import org.obiba.opal.spi.search.ValueTableIndex;
 
+import java.util.Collection;
+
 public interface ValueTableIndexManagerConfiguration {
 
   /**
@@ -30,4 +32,9 @@ public interface ValueTableIndexManagerConfiguration {
 
   Schedule getSchedule(ValueTable vt);
 
+  /**
+   * Get the fully qualified names of the tables which values indexing is scheduled.
+   */
+  Collection<String> getScheduledTables();
+
 }
@@ -41,6 +41,8 @@ public class OpalSearchService implements Service {
 
   static final String SERVICE_NAME = "search";
 
+  private static final int IDENTIFIERS_BATCH_SIZE = 1000;
+
   @Autowired
   private ElasticSearchConfigurationService configService;
 
@@ -116,17 +118,27 @@ public class OpalSearchService implements Service {
   }
 
   public Collection<String> executeAllIdentifiersQuery(QuerySettings querySettings, String searchPath) throws SearchException {
-    if (!isRunning()) return Lists.newArrayList();
-    IdentifiersQueryCallback callback = new IdentifiersQueryCallback();
-    int from = 0;
-    final int size = 1000;
-    while (!callback.hasTotal() || callback.getIdentifiers().size() < callback.getTotal()) {
-      querySettings.from(from);
-      querySettings.size(size);
-      getSearchServicePlugin().executeIdentifiersQuery(querySettings, searchPath, callback);
-      from = from + size;
+    List<String> identifiers = Lists.newArrayList();
+    try (HitsCursor<String> cursor = openIdentifiersCursor(querySettings, searchPath)) {
+      List<String> batch;
+      while (!(batch = cursor.nextBatch()).isEmpty()) {
+        identifiers.addAll(batch);
+      }
     }
-    return callback.getIdentifiers();
+    return identifiers;
+  }
+
+  /**
+   * Open a cursor on all the identifiers matching the query, to be read batch after batch and closed.
+   *
+   * @param querySettings
+   * @param searchPath
+   * @return
+   * @throws SearchException
+   */
+  public HitsCursor<String> openIdentifiersCursor(QuerySettings querySettings, String searchPath) throws SearchException {
+    if (!isRunning()) return HitsCursor.empty();
+    return getSearchServicePlugin().openIdentifiersCursor(querySettings, searchPath, IDENTIFIERS_BATCH_SIZE);
   }
 
   public void executeIdentifiersQuery(QuerySettings querySettings, String searchPath, IdentifiersQueryCallback callback) throws SearchException {
@@ -244,37 +256,75 @@ public class OpalSearchService implements Service {
     return opalRuntime.hasServicePlugins(SearchService.class);
   }
 
+  @Subscribe
+  public void onValueTableAdded(ValueTableAddedEvent event) {
+    if (!isRunning()) return;
+    synchronizeModified(event.getDatasourceName(), event.getTableName());
+  }
+
+  @Subscribe
+  public void onValueTableUpdated(ValueTableUpdatedEvent event) {
+    if (!isRunning() || !event.hasValueTable()) return;
+    ValueTable vt = event.getValueTable();
+    synchronizeModified(vt.getDatasource().getName(), vt.getName());
+  }
+
   @Subscribe
   public void onValueTableRenamed(ValueTableRenamedEvent event) {
-    remove(event.getValueTable());
+    if (!isRunning()) return;
+    ValueTable vt = event.getValueTable();
+    synchroManager.stopTasks(vt.getDatasource().getName(), vt.getName());
+    remove(vt);
+    synchronizeModified(vt.getDatasource().getName(), event.getNewName());
   }
 
   @Subscribe
   public void onValueTableDeleted(ValueTableDeletedEvent event) {
-    remove(event.getValueTable());
+    if (!isRunning()) return;
+    ValueTable vt = event.getValueTable();
+    synchroManager.stopTasks(vt.getDatasource().getName(), vt.getName());
+    remove(vt);
   }
 
   @Subscribe
   public void onVariableRenamed(VariableRenamedEvent event) {
-    remove(event.getValueTable());
+    if (!isRunning()) return;
+    // the documents of the former variable would remain
+    getVariablesIndexManager().getIndex(event.getValueTable()).delete();
+    synchronizeVariables(event.getValueTable());
   }
 
   @Subscribe
   public void onVariableDeleted(VariableDeletedEvent event) {
-    remove(event.getValueTable());
+    if (!isRunning()) return;
+    // the document of the deleted variable would remain
+    getVariablesIndexManager().getIndex(event.getValueTable()).delete();
+    synchronizeVariables(event.getValueTable());
   }
 
   @Subscribe
   public void onVariablesUpdated(VariablesUpdatedEvent event) {
     if (!isRunning()) return;
-    // to ensure variable search is correct
-    getVariablesIndexManager().getIndex(event.getValueTable()).delete();
-    // synchronize variable index
-    synchroManager.synchronizeIndex(getVariablesIndexManager(), event.getValueTable());
+    // updated variables documents are overwritten
+    synchronizeVariables(event.getValueTable());
+  }
+
+  /**
+   * Variables index is refreshed immediately, values index is refreshed once the table modifications have settled.
+   *
+   * @param vt
+   */
+  private void synchronizeVariables(@NotNull ValueTable vt) {
+    synchroManager.synchronizeIndex(getVariablesIndexManager(), vt);
+    synchroManager.synchronizeModifiedIndex(getValuesIndexManager(), vt.getDatasource().getName(), vt.getName());
+  }
+
+  private void synchronizeModified(String datasource, String table) {
+    synchroManager.synchronizeModifiedIndex(getVariablesIndexManager(), datasource, table);
+    synchroManager.synchronizeModifiedIndex(getValuesIndexManager(), datasource, table);
   }
 
   private void remove(@NotNull ValueTable vt) {
-    if (!isRunning()) return;
     // Delete index
     getValuesIndexManager().getIndex(vt).delete();
     getVariablesIndexManager().getIndex(vt).delete();
@@ -60,11 +60,10 @@ public abstract class IndexResource {
   }
 
   protected Float getValueTableIndexationProgress(String datasource, String table) {
-    IndexSynchronization currentTask = synchroManager.getCurrentTask();
-    if(currentTask != null && currentTask.getValueTable().getName().equals(table) &&
-        currentTask.getValueTable().getDatasource().getName().equals(datasource)) {
+    IndexSynchronization currentTask = synchroManager.getCurrentTask(datasource, table);
+    if(currentTask != null) {
       log.trace("Indexation is in progress...");
-      return synchroManager.getCurrentTask().getProgress();
+      return currentTask.getProgress();
     }
 
     return synchroManager.isAlreadyQueued(opalSearchService.getValuesIndexManager(), getValueTableIndex(datasource, table)) ? 0f : null;
@@ -25,6 +25,7 @@ import org.obiba.magma.MagmaEngine;
 import org.obiba.magma.Timestamps;
 import org.obiba.magma.ValueTable;
 import org.obiba.opal.search.IndexManagerConfigurationService;
+import org.obiba.opal.spi.search.IndexSynchronization;
 import org.obiba.opal.web.model.Opal;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Scope;
@@ -109,9 +110,9 @@ public class SearchServiceResource extends IndexResource {
 
   private Opal.TableIndexStatusDto getTableStatusDto(Datasource datasource, ValueTable valueTable) {
     float progress = 0f;
-    if(synchroManager.getCurrentTask() != null &&
-        synchroManager.getCurrentTask().getValueTable().getName().equals(valueTable.getName())) {
-      progress = synchroManager.getCurrentTask().getProgress();
+    IndexSynchronization currentTask = synchroManager.getCurrentTask(datasource.getName(), valueTable.getName());
+    if(currentTask != null) {
+      progress = currentTask.getProgress();
     }
 
     URI link = UriBuilder.fromPath("/").path(ValueTableIndexResource.class)
@@ -24,6 +24,8 @@ import org.obiba.magma.js.views.JavascriptClause;
 import org.obiba.magma.support.VariableEntityBean;
 import org.obiba.opal.search.AbstractSearchUtility;
 import org.obiba.opal.search.service.OpalSearchService;
+import org.obiba.opal.spi.search.HitsCursor;
+import org.obiba.opal.spi.search.QuerySettings;
 import org.obiba.opal.spi.search.SearchException;
 import org.obiba.opal.spi.search.ValuesIndexManager;
 import org.obiba.opal.web.model.Magma;
@@ -39,8 +41,15 @@ import org.springframework.util.StringUtils;
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -83,6 +92,51 @@ public class TableValueSetsSearchResource extends AbstractSearchUtility {
     return Response.ok().entity(dtoResponseBuilder.build()).build();
   }
 
+  /**
+   * Get the identifiers of all the entities matching the query, one per line. The identifiers are read from the index
+   * batch after batch, while being written to the response.
+   *
+   * @param queryLanguage
+   * @param query
+   * @return
+   * @throws SearchException
+   */
+  @GET
+  @Path("/identifiers")
+  @Produces(MediaType.TEXT_PLAIN)
+  @Transactional(readOnly = true)
+  public Response searchIdentifiers(@QueryParam("ql") @DefaultValue("rql") String queryLanguage, @QueryParam("query") String query) throws SearchException {
+    String esQuery = query;
+
+    if (!"es".equals(queryLanguage))
+      esQuery = RQLParserFactory.parse(query, opalSearchService.getValuesIndexManager());
+
+    if (!canQueryEsIndex()) return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+    if (!opalSearchService.getValuesIndexManager().hasIndex(getValueTable()))
+      return Response.status(Response.Status.NOT_FOUND).build();
+
+    esQuery = "reference:\"" + getValueTable().getTableReference() + (Strings.isNullOrEmpty(esQuery) ? "\"" : "\" AND " + esQuery);
+    QuerySettings querySettings = buildQuerySearch(esQuery, 0, Integer.MAX_VALUE,
+        Lists.newArrayList("identifier"), null, "identifier", SortDir.ASC.name()).noDefaultFields();
+    String searchPath = getSearchPath();
+    StreamingOutput stream = os -> {
+      Writer writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+      try (HitsCursor<String> cursor = opalSearchService.openIdentifiersCursor(querySettings, searchPath)) {
+        List<String> identifiers;
+        while (!(identifiers = cursor.nextBatch()).isEmpty()) {
+          for (String identifier : identifiers) {
+            writer.write(identifier);
+            writer.write('\n');
+          }
+          writer.flush();
+        }
+      } catch (SearchException e) {
+        throw new IOException(e.getMessage(), e);
+      }
+    };
+    return Response.ok(stream, MediaType.TEXT_PLAIN_TYPE).build();
+  }
+
   private Search.ValueSetsResultDto.Builder getValueSetsDtoBuilder(UriInfo uriInfo, String select,
                                                                    int totalIds, List<String> ids) throws SearchException {
     Search.ValueSetsResultDto.Builder dtoResponseBuilder = Search.ValueSetsResultDto.newBuilder();
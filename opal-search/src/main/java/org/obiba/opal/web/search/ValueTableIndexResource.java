@@ -94,14 +94,8 @@ public class ValueTableIndexResource extends IndexResource {
       return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity("SearchServiceUnavailable").build();
     }
 
-    // cancel indexation if in progress
-    IndexSynchronization currentTask = synchroManager.getCurrentTask();
-    if(currentTask != null &&
-        currentTask.getValueTable().getName().equals(table) &&
-        currentTask.getValueTable().getDatasource().getName().equals(datasource)) {
-      // Stop task
-      synchroManager.stopTask();
-    }
+    // cancel indexation if in progress or queued
+    synchroManager.stopTasks(datasource, table);
     getValueTableIndex(datasource, table).delete();
     return Response.ok().build();
   }
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.opal.search;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.obiba.magma.Datasource;
+import org.obiba.magma.ValueTable;
+import org.obiba.opal.search.IndexSynchronizationManager.PendingSync;
+import org.obiba.opal.search.service.OpalSearchService;
+import org.obiba.opal.spi.search.IndexManager;
+import org.obiba.opal.spi.search.ValueTableIndex;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+public class IndexSynchronizationManagerTest {
+
+  private IndexSynchronizationManager manager;
+
+  private IndexManager valuesIndexManager;
+
+  private IndexManager variablesIndexManager;
+
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    OpalSearchService opalSearchService = createNiceMock(OpalSearchService.class);
+    // no worker is started, the synchronizations are taken by the tests
+    expect(opalSearchService.isRunning()).andStubReturn(false);
+    replay(opalSearchService);
+    manager = new IndexSynchronizationManager();
+    ReflectionTestUtils.setField(manager, "opalSearchService", opalSearchService);
+
+    valuesIndexManager = newIndexManager("values");
+    variablesIndexManager = newIndexManager("variables");
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testSubmit_SameTableIsQueuedOnce() throws Exception {
+    manager.synchronizeIndex(valuesIndexManager, newTable("ds", "t1"));
+    manager.synchronizeIndex(valuesIndexManager, newTable("ds", "t1"));
+
+    assertThat(take().getKey()).isEqualTo("values:ds.t1");
+    assertNothingToTake();
+  }
+
+  @Test
+  public void testSubmit_InSubmissionOrder() throws Exception {
+    manager.synchronizeIndex(valuesIndexManager, newTable("ds", "t2"));
+    manager.synchronizeIndex(valuesIndexManager, newTable("ds", "t1"));
+    manager.synchronizeIndex(variablesIndexManager, newTable("ds", "t2"));
+
+    assertThat(take().getKey()).isEqualTo("values:ds.t2");
+    // other index of the same table is not excluded
+    assertThat(take().getKey()).isEqualTo("values:ds.t1");
+    assertThat(take().getKey()).isEqualTo("variables:ds.t2");
+  }
+
+  @Test
+  public void testTake_RunningKeyIsExcluded() throws Exception {
+    manager.synchronizeIndex(valuesIndexManager, newTable("ds", "t1"));
+    PendingSync running = take();
+
+    // modified again while being synchronized
+    manager.synchronizeIndex(valuesIndexManager, newTable("ds", "t1"));
+    manager.synchronizeIndex(valuesIndexManager, newTable("ds", "t2"));
+    assertThat(take().getKey()).isEqualTo("values:ds.t2");
+
+    Future<PendingSync> next = takeAsync();
+    assertNotDone(next);
+    manager.release(running);
+    assertThat(next.get(5, TimeUnit.SECONDS).getKey()).isEqualTo("values:ds.t1");
+  }
+
+  @Test
+  public void testSubmit_ModifiedTableAfterGracePeriod() throws Exception {
+    manager.synchronizeModifiedIndex(variablesIndexManager, "ds", "t1");
+
+    assertThat(manager.isAlreadyQueued(variablesIndexManager, newIndex("ds.t1"))).isTrue();
+    assertThat(manager.isAlreadyQueued(valuesIndexManager, newIndex("ds.t1"))).isFalse();
+    Future<PendingSync> next = takeAsync();
+    assertNotDone(next);
+
+    // a request brings the synchronization forward
+    manager.synchronizeIndex(variablesIndexManager, newTable("ds", "t1"));
+    PendingSync pending = next.get(5, TimeUnit.SECONDS);
+    assertThat(pending.getKey()).isEqualTo("variables:ds.t1");
+    assertThat(pending.isForce()).isTrue();
+    assertThat(manager.isAlreadyQueued(variablesIndexManager, newIndex("ds.t1"))).isFalse();
+  }
+
+  @Test
+  public void testSubmit_ModificationPushesBackRequest() throws Exception {
+    manager.synchronizeIndex(variablesIndexManager, newTable("ds", "t1"));
+    manager.synchronizeModifiedIndex(variablesIndexManager, "ds", "t1");
+
+    assertThat(manager.isAlreadyQueued(variablesIndexManager, newIndex("ds.t1"))).isTrue();
+    assertNothingToTake();
+  }
+
+  @Test
+  public void testStopTasks_PendingAreRemoved() throws Exception {
+    manager.synchronizeIndex(valuesIndexManager, newTable("ds", "t1"));
+    manager.synchronizeIndex(variablesIndexManager, newTable("ds", "t1"));
+    manager.synchronizeIndex(valuesIndexManager, newTable("ds", "t10"));
+
+    manager.stopTasks("ds", "t1");
+    assertThat(take().getKey()).isEqualTo("values:ds.t10");
+    assertNothingToTake();
+  }
+
+  //
+  // Private methods
+  //
+
+  private Future<PendingSync> takeAsync() {
+    return executor.submit(manager::take);
+  }
+
+  private PendingSync take() throws Exception {
+    return takeAsync().get(5, TimeUnit.SECONDS);
+  }
+
+  private void assertNothingToTake() throws Exception {
+    Future<PendingSync> next = takeAsync();
+    assertNotDone(next);
+    next.cancel(true);
+  }
+
+  private static void assertNotDone(Future<PendingSync> future) throws Exception {
+    try {
+      PendingSync pending = future.get(200, TimeUnit.MILLISECONDS);
+      fail("Unexpected synchronization of " + pending.getKey());
+    } catch(TimeoutException e) {
+      // expected
+    }
+  }
+
+  private static IndexManager newIndexManager(String name) {
+    IndexManager indexManager = createNiceMock(IndexManager.class);
+    expect(indexManager.getName()).andStubReturn(name);
+    replay(indexManager);
+    return indexManager;
+  }
+
+  private static ValueTableIndex newIndex(String reference) {
+    ValueTableIndex index = createNiceMock(ValueTableIndex.class);
+    expect(index.getValueTableReference()).andStubReturn(reference);
+    replay(index);
+    return index;
+  }
+
+  private static ValueTable newTable(String datasource, String name) {
+    Datasource ds = createNiceMock(Datasource.class);
+    expect(ds.getName()).andStubReturn(datasource);
+    ValueTable table = createNiceMock(ValueTable.class);
+    expect(table.getName()).andStubReturn(name);
+    expect(table.getDatasource()).andStubReturn(ds);
+    replay(ds, table);
+    return table;
+  }
+
+}
@@ -228,6 +228,10 @@ public class CommandJob implements OpalShell, Runnable {
     return startTime == null ? null : new Date(startTime);
   }
 
+  void setStartTime(Date startTime) {
+    this.startTime = startTime == null ? null : startTime.getTime();
+  }
+
   public String getStartTimeAsString() {
     return formatTime(getStartTime());
   }
@@ -236,6 +240,10 @@ public class CommandJob implements OpalShell, Runnable {
     return endTime != null ? new Date(endTime) : null;
   }
 
+  void setEndTime(Date endTime) {
+    this.endTime = endTime == null ? null : endTime.getTime();
+  }
+
   public String getEndTimeAsString() {
     return formatTime(getEndTime());
   }
@@ -244,6 +252,26 @@ public class CommandJob implements OpalShell, Runnable {
     return Collections.unmodifiableList(messages);
   }
 
+  void addMessages(List<Message> messages) {
+    this.messages.addAll(messages);
+  }
+
+  /**
+   * Keep the first and the last messages of a terminated job, the ones in between are replaced by a single message.
+   *
+   * @param max
+   */
+  public void truncateMessages(int max) {
+    if(messages.size() <= max || max < 2) return;
+    int head = max / 2;
+    int tail = max - head - 1;
+    List<Message> truncated = new ArrayList<>(messages.subList(0, head));
+    truncated.add(createMessage(String.format("[%d messages truncated]", messages.size() - head - tail)));
+    truncated.addAll(messages.subList(messages.size() - tail, messages.size()));
+    messages.clear();
+    messages.addAll(truncated);
+  }
+
   public String getMessageProgress() {
     return messageProgress;
   }
@@ -10,7 +10,11 @@
 
 package org.obiba.opal.shell;
 
+import java.util.Date;
+
+import org.obiba.magma.Value;
 import org.obiba.magma.type.DateTimeType;
+import org.obiba.opal.shell.commands.Command;
 import org.obiba.opal.web.model.Commands;
 
 public final class Dtos {
@@ -45,6 +49,35 @@ public final class Dtos {
     return dtoBuilder.build();
   }
 
+  /**
+   * Restore a terminated job from its state, the command is not executable anymore.
+   *
+   * @param dto
+   * @return
+   */
+  public static CommandJob fromDto(Commands.CommandStateDto dto) {
+    Command<Object> command = new TerminatedCommand(dto.getCommand(), dto.getCommandArgs());
+    CommandJob commandJob = new CommandJob(dto.getName(), command);
+    commandJob.setId(dto.getId());
+    commandJob.setOwner(dto.getOwner());
+    commandJob.setStatus(Commands.CommandStateDto.Status.valueOf(dto.getStatus()));
+    if(dto.hasProject()) commandJob.setProject(dto.getProject());
+    Date startTime = dto.hasStartTime() ? asDate(dto.getStartTime()) : null;
+    Date endTime = dto.hasEndTime() ? asDate(dto.getEndTime()) : null;
+    commandJob.setStartTime(startTime);
+    commandJob.setEndTime(endTime);
+    // submit time is not part of the state
+    Date submitTime = startTime == null ? endTime : startTime;
+    commandJob.setSubmitTime(submitTime == null ? new Date(0) : submitTime);
+    commandJob.addMessages(dto.getMessagesList());
+    return commandJob;
+  }
+
+  private static Date asDate(String dateTime) {
+    Value value = DateTimeType.get().valueOf(dateTime);
+    return value.isNull() ? null : (Date) value.getValue();
+  }
+
   private static Commands.CommandStateDto.ProgressDto.Builder progressAsDto(CommandJob commandJob) {
     Commands.CommandStateDto.ProgressDto.Builder dtoBuilder = Commands.CommandStateDto.ProgressDto.newBuilder()//
         .setMessage(commandJob.getMessageProgress())//
@@ -53,4 +86,61 @@ public final class Dtos {
         .setPercent(commandJob.getPercentProgress());
     return dtoBuilder;
   }
+
+  /**
+   * Command of a job restored from its state.
+   */
+  private static class TerminatedCommand implements Command<Object> {
+
+    private final String name;
+
+    private final String args;
+
+    private String owner;
+
+    private TerminatedCommand(String name, String args) {
+      this.name = name;
+      this.args = args;
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public void setShell(OpalShell shell) {
+      // nothing to do
+    }
+
+    @Override
+    public Object getOptions() {
+      return null;
+    }
+
+    @Override
+    public void setOptions(Object options) {
+      // nothing to do
+    }
+
+    @Override
+    public void setOwner(String owner) {
+      this.owner = owner;
+    }
+
+    @Override
+    public String getOwner() {
+      return owner;
+    }
+
+    @Override
+    public int execute() {
+      throw new IllegalStateException("Command " + name + " has already been executed");
+    }
+
+    @Override
+    public String toString() {
+      return args;
+    }
+  }
 }
@@ -38,6 +38,7 @@ import org.obiba.opal.core.domain.security.SubjectAcl;
 import org.obiba.opal.core.event.ValueTableAddedEvent;
 import org.obiba.opal.core.magma.QueryWhereClause;
 import org.obiba.opal.core.runtime.OpalRuntime;
+import org.obiba.opal.core.service.CopyConcurrency;
 import org.obiba.opal.core.service.DataExportService;
 import org.obiba.opal.core.service.database.DatabaseRegistry;
 import org.obiba.opal.core.service.security.SubjectAclService;
@@ -162,7 +163,8 @@ public class CopyCommand extends AbstractOpalRuntimeDependentCommand<CopyCommand
         getShell().printf("Copying tables [%s] to %s.\n", getTableNames(), destinationDatasource.getName());
         dataExportService
             .exportTablesToDatasource(options.isUnit() ? options.getUnit() : null, tables, destinationDatasource,
-                buildDatasourceCopier(destinationDatasource), !options.getNonIncremental(), new CopyProgressListener(tables.size()));
+                buildDatasourceCopier(destinationDatasource), !options.getNonIncremental(), new CopyProgressListener(tables.size()),
+                getCopyConcurrency());
         Disposables.dispose(destinationDatasource);
         getShell().printf("Successfully copied all tables.\n");
         errorCode = CommandResultCode.SUCCESS;
@@ -207,6 +209,9 @@ public class CopyCommand extends AbstractOpalRuntimeDependentCommand<CopyCommand
       appendFlag(sb, "no-values", options.getNoValues());
       appendFlag(sb, "no-variables", options.getNoVariables());
       appendFlag(sb, "copy-null", options.getCopyNullValues());
+      appendOption(sb, "concurrent-tables", options.isConcurrentTables(), String.valueOf(options.getConcurrentTables()));
+      appendOption(sb, "readers", options.isReaders(), String.valueOf(options.getReaders()));
+      appendOption(sb, "queue-size", options.isQueueSize(), String.valueOf(options.getQueueSize()));
       appendUnparsedList(sb, options.getTables());
     }
 
@@ -557,6 +562,12 @@ public class CopyCommand extends AbstractOpalRuntimeDependentCommand<CopyCommand
     return outputFile;
   }
 
+  private CopyConcurrency getCopyConcurrency() {
+    return CopyConcurrency.of(options.isConcurrentTables() ? options.getConcurrentTables() : null,
+        options.isReaders() ? options.getReaders() : null,
+        options.isQueueSize() ? options.getQueueSize() : null);
+  }
+
   private void appendOption(StringBuilder sb, String option, boolean optionSpecified, String value) {
     if (optionSpecified) {
       sb.append(" --");
@@ -787,7 +798,8 @@ public class CopyCommand extends AbstractOpalRuntimeDependentCommand<CopyCommand
 
     private final int tableCount;
 
-    private final Set<String> tables = Sets.newLinkedHashSet();
+    // tables may be copied concurrently
+    private final Map<String, Integer> tables = Maps.newHashMap();
 
     private List<String> tablesWithPermission = Lists.newArrayList();
 
@@ -797,8 +809,8 @@ public class CopyCommand extends AbstractOpalRuntimeDependentCommand<CopyCommand
 
     @Override
     public void status(String table, long entitiesCopied, long entitiesToCopy, int percentComplete) {
-      tables.add(table);
-      int globalPercentComplete = ((tables.size() - 1) * 100 + percentComplete) / tableCount;
+      tables.put(table, percentComplete);
+      int globalPercentComplete = tables.values().stream().mapToInt(Integer::intValue).sum() / tableCount;
       if (globalPercentComplete != currentPercentComplete) {
         getShell().progress(table, entitiesCopied, entitiesToCopy, globalPercentComplete);
         currentPercentComplete = globalPercentComplete;
@@ -123,6 +123,10 @@ public class ImportCommand extends AbstractOpalRuntimeDependentCommand<ImportCom
       sb.append(" --archive ").append(options.getArchive());
     }
 
+    if(options.isResume()) {
+      sb.append(" --resume");
+    }
+
     if(options.isFiles()) {
       for(String file : options.getFiles()) {
         sb.append(' ').append(file);
@@ -137,7 +141,7 @@ public class ImportCommand extends AbstractOpalRuntimeDependentCommand<ImportCom
     int errorCode = CRITICAL_ERROR;
     getShell().printf("  Importing datasource %s in %s...\n", options.getSource(), options.getDestination());
     try {
-      dataImportService.importData(options.getSource(), options.getDestination(), options.getUnit(), options.isForce(), options.isIgnore(),
+      dataImportService.importData(options.getSource(), options.getDestination(), options.getUnit(), options.isForce(), options.isIgnore(), options.isResume(),
           new ImportProgressListener(MagmaEngine.get().getDatasource(options.getSource()).getValueTables().size()));
       if(file != null) archive(file);
       errorCode = SUCCESS;
@@ -163,7 +167,7 @@ public class ImportCommand extends AbstractOpalRuntimeDependentCommand<ImportCom
     int errorCode = CRITICAL_ERROR;
     getShell().printf("  Importing tables [%s] in %s ...\n", getTableNames(), options.getDestination());
     try {
-      dataImportService.importData(options.getTables(), options.getDestination(), options.getUnit(), options.isForce(), options.isIgnore(),
+      dataImportService.importData(options.getTables(), options.getDestination(), options.getUnit(), options.isForce(), options.isIgnore(), options.isResume(),
           new ImportProgressListener(options.getTables().size()));
       if(file != null) archive(file);
       errorCode = SUCCESS;
@@ -108,6 +108,28 @@ public interface CopyCommandOptions extends HelpOption {
 
   boolean isTransform();
 
+  //
+  // Parallelism
+  //
+
+  @Option(longName = "concurrent-tables",
+      description = "Number of tables copied at the same time. Default depends on the destination datasource, files are always written one table at a time.")
+  Integer getConcurrentTables();
+
+  boolean isConcurrentTables();
+
+  @Option(longName = "readers",
+      description = "Number of value set readers per table. Default depends on the source datasource.")
+  Integer getReaders();
+
+  boolean isReaders();
+
+  @Option(longName = "queue-size",
+      description = "Maximum number of value sets read ahead of the writer, per table. Default is 100.")
+  Integer getQueueSize();
+
+  boolean isQueueSize();
+
   @Unparsed(name = "TABLE_NAME")
   List<String> getTables();
 }
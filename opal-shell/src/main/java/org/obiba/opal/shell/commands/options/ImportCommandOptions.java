@@ -77,4 +77,8 @@ public interface ImportCommandOptions extends HelpOption {
   @Option(shortName = "c",
       description = "Use incremental import.")
   boolean isIncremental();
+
+  @Option(shortName = "r",
+      description = "Resume an import done by chunks from where a previous attempt stopped.")
+  boolean isResume();
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.opal.shell.service.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.obiba.opal.shell.CommandJob;
+import org.obiba.opal.shell.Dtos;
+import org.obiba.opal.web.model.Commands;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Terminated jobs saved in a directory, one file per job state, so that the jobs history survives restarts without
+ * being kept in memory. Only the most recent jobs are kept.
+ */
+class CommandJobArchive {
+
+  private static final Logger log = LoggerFactory.getLogger(CommandJobArchive.class);
+
+  private static final String EXTENSION = ".pb";
+
+  private final File directory;
+
+  private final int size;
+
+  CommandJobArchive(File directory, int size) {
+    this.directory = directory;
+    this.size = size;
+  }
+
+  /**
+   * Save the state of a terminated job and discard the oldest ones that exceed the archive size.
+   *
+   * @param commandJob
+   */
+  synchronized void save(CommandJob commandJob) {
+    if(!directory.exists() && !directory.mkdirs()) {
+      log.warn("Unable to create jobs history directory: {}", directory.getAbsolutePath());
+      return;
+    }
+    File file = getFile(commandJob.getId());
+    File tmp = new File(directory, file.getName() + ".tmp");
+    try {
+      try(OutputStream out = new FileOutputStream(tmp)) {
+        Dtos.asDto(commandJob).writeTo(out);
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch(IOException e) {
+      log.warn("Unable to save state of job {}: {}", commandJob.getId(), e.getMessage());
+      return;
+    }
+    List<Integer> ids = getIds();
+    for(int i = 0; i < ids.size() - size; i++) {
+      delete(ids.get(i));
+    }
+  }
+
+  /**
+   * Read the state of a terminated job.
+   *
+   * @param id
+   * @return null if not found
+   */
+  synchronized CommandJob load(Integer id) {
+    File file = getFile(id);
+    if(!file.exists()) return null;
+    try(InputStream in = new FileInputStream(file)) {
+      return Dtos.fromDto(Commands.CommandStateDto.parseFrom(in));
+    } catch(Exception e) {
+      log.warn("Unable to read state of job {}: {}", id, e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Read the most recent terminated jobs.
+   *
+   * @param count
+   * @return jobs in the order of their ids
+   */
+  synchronized List<CommandJob> loadLatest(int count) {
+    List<Integer> ids = getIds();
+    List<CommandJob> commandJobs = new ArrayList<>();
+    for(Integer id : ids.subList(Math.max(0, ids.size() - count), ids.size())) {
+      CommandJob commandJob = load(id);
+      if(commandJob != null) commandJobs.add(commandJob);
+    }
+    return commandJobs;
+  }
+
+  /**
+   * @return the greatest archived job id, 0 if none
+   */
+  synchronized int getLastId() {
+    List<Integer> ids = getIds();
+    return ids.isEmpty() ? 0 : ids.get(ids.size() - 1);
+  }
+
+  synchronized boolean delete(Integer id) {
+    File file = getFile(id);
+    return file.exists() && file.delete();
+  }
+
+  synchronized void clear() {
+    for(Integer id : getIds()) {
+      delete(id);
+    }
+  }
+
+  //
+  // Private methods
+  //
+
+  private File getFile(Integer id) {
+    return new File(directory, id + EXTENSION);
+  }
+
+  /**
+   * @return archived job ids, in ascending order
+   */
+  private List<Integer> getIds() {
+    List<Integer> ids = new ArrayList<>();
+    File[] files = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+    if(files == null) return ids;
+    for(File file : files) {
+      try {
+        ids.add(Integer.valueOf(file.getName().substring(0, file.getName().length() - EXTENSION.length())));
+      } catch(NumberFormatException e) {
+        // not a job state
+      }
+    }
+    Collections.sort(ids);
+    return ids;
+  }
+
+}
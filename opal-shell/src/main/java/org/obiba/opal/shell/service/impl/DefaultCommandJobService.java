@@ -9,14 +9,20 @@
  */
 package org.obiba.opal.shell.service.impl;
 
+import java.io.File;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
 import org.apache.shiro.SecurityUtils;
 import org.apache.shiro.subject.Subject;
@@ -25,14 +31,28 @@ import org.obiba.opal.core.runtime.NoSuchServiceConfigurationException;
 import org.obiba.opal.core.security.SessionDetachedSubject;
 import org.obiba.opal.shell.CommandJob;
 import org.obiba.opal.shell.service.CommandJobService;
+import org.obiba.opal.shell.commands.options.CopyCommandOptions;
+import org.obiba.opal.shell.commands.options.ImportCommandOptions;
+import org.obiba.opal.shell.commands.options.ImportVCFCommandOptions;
+import org.obiba.opal.shell.commands.options.ReloadDatasourceCommandOptions;
+import org.obiba.opal.shell.commands.options.RestoreCommandOptions;
 import org.obiba.opal.shell.service.NoSuchCommandJobException;
 import org.obiba.opal.web.model.Commands.CommandStateDto.Status;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 /**
  * Default implementation of {@link CommandJobService}.
+ * <p/>
+ * Jobs are started when admitted by their lane, one lane per job name with its own count of concurrent jobs and its
+ * priority, and by their project, which has a maximum count of concurrent jobs. Jobs writing into the same datasource
+ * are not started together. Among the admitted jobs, the one with the highest priority is started first, then the one
+ * from the project with the fewest running jobs, then the oldest one.
+ * <p/>
+ * Terminated jobs are archived in the work directory. Only the most recent ones are kept in memory, with a bounded
+ * count of messages.
  */
 @Component
 public class DefaultCommandJobService implements CommandJobService {
@@ -42,20 +62,60 @@ public class DefaultCommandJobService implements CommandJobService {
 
   private static final Logger log = LoggerFactory.getLogger(DefaultCommandJobService.class);
 
+  private static final String DEFAULT_LANE = "*";
+
   //
   // Instance Variables
   //
 
+  /**
+   * Comma separated lanes, each of them being NAME:CONCURRENCY[:PRIORITY], the lane named * applies to the other jobs.
+   */
+  @Value("${org.obiba.opal.tasks.lanes}")
+  private String lanesSpec = "import:2,copy:2,export:2,backup:1,restore:1,reload:2:1,*:2";
+
+  /**
+   * Maximum count of concurrent jobs in a project, no limit if not positive.
+   */
+  @Value("${org.obiba.opal.tasks.projectConcurrency}")
+  private int projectConcurrency = 2;
+
+  /**
+   * Count of terminated jobs kept in memory.
+   */
+  @Value("${org.obiba.opal.tasks.historySize}")
+  private int historySize = 100;
+
+  /**
+   * Count of terminated jobs kept in the archive.
+   */
+  @Value("${org.obiba.opal.tasks.archiveSize}")
+  private int archiveSize = 1000;
+
+  /**
+   * Count of messages kept for a terminated job.
+   */
+  @Value("${org.obiba.opal.tasks.maxMessages}")
+  private int maxMessages = 1000;
+
   private Executor executor;
 
   private boolean isRunning;
 
+  private boolean historyRestored;
+
   private final AtomicInteger lastJobId;
 
+  private Map<String, Lane> lanes;
+
+  private final File archiveDirectory;
+
+  private CommandJobArchive archive;
+
   /**
    * Jobs submitted for execution, but not yet executed.
    */
-  private final BlockingQueue<Runnable> jobsNotStarted;
+  private final List<FutureCommandJob> jobsNotStarted;
 
   /**
    * Jobs in the process of being executed.
@@ -67,6 +127,11 @@ public class DefaultCommandJobService implements CommandJobService {
    */
   private final List<FutureCommandJob> jobsTerminated;
 
+  /**
+   * Jobs that have terminated and are to be saved in the archive, outside of the lock on this service.
+   */
+  private final List<CommandJob> jobsToArchive = new ArrayList<>();
+
   /**
    * Comparator for sorting jobs in order of submit time, most recent first.
    */
@@ -77,10 +142,15 @@ public class DefaultCommandJobService implements CommandJobService {
   //
 
   public DefaultCommandJobService() {
+    this(new File(System.getProperty("OPAL_HOME"), "work" + File.separatorChar + "jobs"));
+  }
+
+  DefaultCommandJobService(File archiveDirectory) {
+    this.archiveDirectory = archiveDirectory;
     lastJobId = new AtomicInteger();
     jobComparator = new CommandJobComparator();
 
-    jobsNotStarted = new LinkedBlockingQueue<>(); // thread-safe
+    jobsNotStarted = Collections.synchronizedList(new ArrayList<FutureCommandJob>());
     jobsStarted = Collections.synchronizedList(new ArrayList<FutureCommandJob>());
     jobsTerminated = Collections.synchronizedList(new ArrayList<FutureCommandJob>());
 
@@ -93,6 +163,7 @@ public class DefaultCommandJobService implements CommandJobService {
 
   @Override
   public void start() {
+    restoreHistory();
     isRunning = true;
   }
 
@@ -127,7 +198,11 @@ public class DefaultCommandJobService implements CommandJobService {
     commandJob.setOwner(owner.getPrincipal().toString());
     commandJob.setSubmitTime(getCurrentTime());
 
-    executor.execute(new FutureCommandJob(owner, commandJob));
+    synchronized(this) {
+      getNotStartedJobs().add(new FutureCommandJob(owner, commandJob));
+      dispatch();
+    }
+    archiveTerminatedJobs();
 
     return commandJob.getId();
   }
@@ -144,7 +219,7 @@ public class DefaultCommandJobService implements CommandJobService {
         return job;
       }
     }
-    return null;
+    return getArchive().load(id);
   }
 
   @Override
@@ -168,6 +243,20 @@ public class DefaultCommandJobService implements CommandJobService {
           log.info("CommandJob {} is not cancellable (current status: {})", id, job.getStatus());
           throw new IllegalStateException("commandJob not cancellable");
         }
+        boolean terminated = false;
+        synchronized(this) {
+          if(getNotStartedJobs().remove(futureCommandJob)) {
+            // never started, so terminated right away
+            futureCommandJob.cancel(false);
+            job.setStatus(Status.CANCELED);
+            terminate(futureCommandJob);
+            terminated = true;
+          }
+        }
+        if(terminated) {
+          archiveTerminatedJobs();
+          return;
+        }
         job.setStatus(Status.CANCEL_PENDING);
         futureCommandJob.cancel(true);
         return;
@@ -185,10 +274,15 @@ public class DefaultCommandJobService implements CommandJobService {
           log.info("CommandJob {} is not deletable (current status: {})", id, job.getStatus());
           throw new IllegalStateException("commandJob not deletable");
         }
-        getTerminatedJobs().remove(futureCommandJob);
+        synchronized(this) {
+          getTerminatedJobs().remove(futureCommandJob);
+          jobsToArchive.remove(job);
+        }
+        getArchive().delete(id);
         return;
       }
     }
+    if(getArchive().delete(id)) return;
     throw new NoSuchCommandJobException(id);
   }
 
@@ -200,6 +294,10 @@ public class DefaultCommandJobService implements CommandJobService {
         getTerminatedJobs().remove(futureCommandJob);
       }
     }
+    synchronized(this) {
+      jobsToArchive.clear();
+    }
+    getArchive().clear();
   }
 
   //
@@ -210,23 +308,26 @@ public class DefaultCommandJobService implements CommandJobService {
     this.executor = executor;
   }
 
+  /**
+   * Admission is done before execution, so the executor runs every job it is given.
+   *
+   * @return
+   */
   protected Executor createExecutor() {
-    return new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, jobsNotStarted) {
+    return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>()) {
       @Override
       protected void beforeExecute(Thread t, Runnable r) {
         log.info("Starting task {}", ((FutureCommandJob) r).commandJob.getId());
         t.setPriority(Thread.MIN_PRIORITY);
-        getStartedJobs().add((FutureCommandJob) r);
       }
 
       @Override
       protected void afterExecute(Runnable r, Throwable t) {
         log.info("CommandJob {} finished executing", ((FutureCommandJob) r).commandJob.getId());
         if(t != null) {
-          log.warn("CommandJob {} threw an exception: {}", t.getMessage());
+          log.warn("CommandJob {} threw an exception: {}", ((FutureCommandJob) r).commandJob.getId(), t.getMessage());
         }
-        getStartedJobs().remove(r);
-        getTerminatedJobs().add((FutureCommandJob) r);
+        onExecuted((FutureCommandJob) r);
       }
     };
   }
@@ -250,8 +351,8 @@ public class DefaultCommandJobService implements CommandJobService {
     List<FutureCommandJob> allFutureCommandJobs = new ArrayList<>();
 
     synchronized(this) {
-      for(Runnable runnable : getNotStartedJobs()) {
-        allFutureCommandJobs.add((FutureCommandJob) runnable);
+      for(FutureCommandJob futureCommandJob : getNotStartedJobs()) {
+        allFutureCommandJobs.add(futureCommandJob);
       }
 
       for(FutureCommandJob futureCommandJob : getStartedJobs()) {
@@ -266,7 +367,7 @@ public class DefaultCommandJobService implements CommandJobService {
     return allFutureCommandJobs;
   }
 
-  BlockingQueue<Runnable> getNotStartedJobs() {
+  List<FutureCommandJob> getNotStartedJobs() {
     return jobsNotStarted;
   }
 
@@ -289,10 +390,187 @@ public class DefaultCommandJobService implements CommandJobService {
     }
   }
 
+  /**
+   * Names of the datasources the job writes into. Such jobs would wait for the locks on the tables of the datasource
+   * held by each other, so they are not started together.
+   *
+   * @param commandJob
+   * @return
+   */
+  protected Set<String> getResources(CommandJob commandJob) {
+    Set<String> resources = new HashSet<>();
+    Object options = commandJob.getCommand().getOptions();
+    if(options instanceof ImportCommandOptions) {
+      resources.add(((ImportCommandOptions) options).getDestination());
+    } else if(options instanceof CopyCommandOptions) {
+      if(((CopyCommandOptions) options).isDestination()) resources.add(((CopyCommandOptions) options).getDestination());
+    } else if(options instanceof ImportVCFCommandOptions) {
+      resources.add(((ImportVCFCommandOptions) options).getProject());
+    } else if(options instanceof RestoreCommandOptions) {
+      resources.add(((RestoreCommandOptions) options).getProject());
+    } else if(options instanceof ReloadDatasourceCommandOptions) {
+      resources.add(((ReloadDatasourceCommandOptions) options).getProject());
+    }
+    resources.remove(null);
+    return resources;
+  }
+
   private boolean isCancellable(CommandJob commandJob) {
     return commandJob.getStatus() == Status.NOT_STARTED || commandJob.getStatus() == Status.IN_PROGRESS;
   }
 
+  /**
+   * Start the admitted jobs, by order of preference.
+   */
+  private synchronized void dispatch() {
+    FutureCommandJob next;
+    while((next = nextJob()) != null) {
+      getNotStartedJobs().remove(next);
+      getStartedJobs().add(next);
+      try {
+        executor.execute(next);
+      } catch(RejectedExecutionException e) {
+        log.warn("CommandJob {} could not be started: {}", next.getCommandJob().getId(), e.getMessage());
+        getStartedJobs().remove(next);
+        next.getCommandJob().setStatus(Status.FAILED);
+        terminate(next);
+      }
+    }
+  }
+
+  private FutureCommandJob nextJob() {
+    FutureCommandJob next = null;
+    for(FutureCommandJob candidate : getNotStartedJobs()) {
+      CommandJob commandJob = candidate.getCommandJob();
+      if(isAdmissible(commandJob) && (next == null || isPreferred(commandJob, next.getCommandJob()))) {
+        next = candidate;
+      }
+    }
+    return next;
+  }
+
+  private boolean isAdmissible(CommandJob commandJob) {
+    Lane lane = getLane(commandJob);
+    if(countStartedJobs(job -> getLane(job) == lane) >= lane.concurrency) return false;
+    if(projectConcurrency > 0 && commandJob.hasProject() &&
+        countStartedJobs(job -> commandJob.getProject().equals(job.getProject())) >= projectConcurrency) return false;
+    Set<String> startedResources = new HashSet<>();
+    for(FutureCommandJob futureCommandJob : getStartedJobs()) {
+      startedResources.addAll(getResources(futureCommandJob.getCommandJob()));
+    }
+    return startedResources.isEmpty() || Collections.disjoint(startedResources, getResources(commandJob));
+  }
+
+  /**
+   * Higher lane priority first, then the project with the fewest started jobs, then the oldest job.
+   *
+   * @param candidate
+   * @param other
+   * @return
+   */
+  private boolean isPreferred(CommandJob candidate, CommandJob other) {
+    int priority = getLane(candidate).priority;
+    int otherPriority = getLane(other).priority;
+    if(priority != otherPriority) return priority > otherPriority;
+    int started = countProjectStartedJobs(candidate);
+    int otherStarted = countProjectStartedJobs(other);
+    if(started != otherStarted) return started < otherStarted;
+    return candidate.getId() < other.getId();
+  }
+
+  private int countProjectStartedJobs(CommandJob commandJob) {
+    return commandJob.hasProject() ? countStartedJobs(job -> commandJob.getProject().equals(job.getProject())) : 0;
+  }
+
+  private int countStartedJobs(Predicate<CommandJob> predicate) {
+    int count = 0;
+    for(FutureCommandJob futureCommandJob : getStartedJobs()) {
+      if(predicate.test(futureCommandJob.getCommandJob())) count++;
+    }
+    return count;
+  }
+
+  void onExecuted(FutureCommandJob futureCommandJob) {
+    synchronized(this) {
+      getStartedJobs().remove(futureCommandJob);
+      terminate(futureCommandJob);
+      dispatch();
+    }
+    archiveTerminatedJobs();
+  }
+
+  /**
+   * Schedule the archiving of the terminated job and keep the most recent ones in memory.
+   *
+   * @param futureCommandJob
+   */
+  private synchronized void terminate(FutureCommandJob futureCommandJob) {
+    CommandJob commandJob = futureCommandJob.getCommandJob();
+    commandJob.truncateMessages(maxMessages);
+    jobsToArchive.add(commandJob);
+    List<FutureCommandJob> terminatedJobs = getTerminatedJobs();
+    terminatedJobs.add(futureCommandJob);
+    while(terminatedJobs.size() > Math.max(0, historySize)) {
+      terminatedJobs.remove(0);
+    }
+  }
+
+  /**
+   * Save the terminated jobs in the archive, without holding the lock on this service while writing the files.
+   */
+  private void archiveTerminatedJobs() {
+    List<CommandJob> commandJobs;
+    synchronized(this) {
+      if(jobsToArchive.isEmpty()) return;
+      commandJobs = new ArrayList<>(jobsToArchive);
+      jobsToArchive.clear();
+    }
+    CommandJobArchive commandJobArchive = getArchive();
+    for(CommandJob commandJob : commandJobs) {
+      commandJobArchive.save(commandJob);
+    }
+  }
+
+  private synchronized void restoreHistory() {
+    if(historyRestored) return;
+    historyRestored = true;
+    for(CommandJob commandJob : getArchive().loadLatest(historySize)) {
+      getTerminatedJobs().add(new FutureCommandJob(commandJob));
+    }
+    int lastArchivedId = getArchive().getLastId();
+    if(lastJobId.get() < lastArchivedId) lastJobId.set(lastArchivedId);
+  }
+
+  private synchronized Lane getLane(CommandJob commandJob) {
+    if(lanes == null) lanes = parseLanes(lanesSpec);
+    Lane lane = lanes.get(commandJob.getName());
+    return lane == null ? lanes.get(DEFAULT_LANE) : lane;
+  }
+
+  private synchronized CommandJobArchive getArchive() {
+    if(archive == null) archive = new CommandJobArchive(archiveDirectory, archiveSize);
+    return archive;
+  }
+
+  private static Map<String, Lane> parseLanes(String spec) {
+    Map<String, Lane> lanes = new LinkedHashMap<>();
+    if(spec != null) {
+      for(String token : spec.split(",")) {
+        if(token.trim().isEmpty()) continue;
+        String[] elements = token.trim().split(":");
+        try {
+          int concurrency = Integer.parseInt(elements[1].trim());
+          int priority = elements.length > 2 ? Integer.parseInt(elements[2].trim()) : 0;
+          lanes.put(elements[0].trim(), new Lane(Math.max(1, concurrency), priority));
+        } catch(NumberFormatException | ArrayIndexOutOfBoundsException e) {
+          log.warn("Invalid task lane definition: {}", token);
+        }
+      }
+    }
+    if(!lanes.containsKey(DEFAULT_LANE)) lanes.put(DEFAULT_LANE, new Lane(1, 0));
+    return lanes;
+  }
+
   //
   // Inner Classes
   //
@@ -306,11 +584,33 @@ public class DefaultCommandJobService implements CommandJobService {
       this.commandJob = commandJob;
     }
 
+    /**
+     * Job restored from the archive, not to be run.
+     *
+     * @param commandJob
+     */
+    FutureCommandJob(CommandJob commandJob) {
+      super(commandJob, null);
+      this.commandJob = commandJob;
+    }
+
     public CommandJob getCommandJob() {
       return commandJob;
     }
   }
 
+  private static class Lane {
+
+    private final int concurrency;
+
+    private final int priority;
+
+    private Lane(int concurrency, int priority) {
+      this.concurrency = concurrency;
+      this.priority = priority;
+    }
+  }
+
   static class CommandJobComparator implements Comparator<CommandJob>, Serializable {
 
     private static final long serialVersionUID = 1L;
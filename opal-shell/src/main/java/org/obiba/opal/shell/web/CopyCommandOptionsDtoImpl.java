@@ -169,6 +169,36 @@ public class CopyCommandOptionsDtoImpl implements CopyCommandOptions {
     return null;
   }
 
+  @Override
+  public Integer getConcurrentTables() {
+    return dto.getConcurrentTables();
+  }
+
+  @Override
+  public boolean isConcurrentTables() {
+    return dto.hasConcurrentTables();
+  }
+
+  @Override
+  public Integer getReaders() {
+    return dto.getReaders();
+  }
+
+  @Override
+  public boolean isReaders() {
+    return dto.hasReaders();
+  }
+
+  @Override
+  public Integer getQueueSize() {
+    return dto.getQueueSize();
+  }
+
+  @Override
+  public boolean isQueueSize() {
+    return dto.hasQueueSize();
+  }
+
   @Override
   public List<String> getTables() {
     return dto.getTablesList();
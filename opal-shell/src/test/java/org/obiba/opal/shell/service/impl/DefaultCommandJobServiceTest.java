@@ -9,6 +9,7 @@
  */
 package org.obiba.opal.shell.service.impl;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -23,15 +24,19 @@ import org.easymock.IAnswer;
 import org.easymock.IArgumentMatcher;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.obiba.opal.shell.CommandJob;
 import org.obiba.opal.shell.OpalShell;
 import org.obiba.opal.shell.commands.Command;
+import org.obiba.opal.shell.commands.options.ImportCommandOptions;
 import org.obiba.opal.shell.service.CommandJobService;
 import org.obiba.opal.shell.service.impl.DefaultCommandJobService.FutureCommandJob;
 import org.obiba.opal.web.model.Commands.CommandStateDto.Status;
 
 import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
@@ -58,6 +63,9 @@ public class DefaultCommandJobServiceTest {
 
   private List<FutureCommandJob> jobsTerminated;
 
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
   //
   // Fixture Methods (setUp / tearDown)
   //
@@ -100,7 +108,7 @@ public class DefaultCommandJobServiceTest {
     // mockUserProvider = createMock(UserProvider.class);
     // expect(mockUserProvider.getUsername()).andReturn("testUser").atLeastOnce();
 
-    sut = new DefaultCommandJobService() {
+    sut = new DefaultCommandJobService(new File(folder.getRoot(), "jobs")) {
       @Override
       protected List<FutureCommandJob> getFutureCommandJobs() {
         return futureCommandJobs != null ? futureCommandJobs : super.getFutureCommandJobs();
@@ -151,7 +159,7 @@ public class DefaultCommandJobServiceTest {
   @Test
   public void testGetCommand() {
     // Test-specific setup
-    CommandJobService sut = new DefaultCommandJobService() {
+    CommandJobService sut = new DefaultCommandJobService(new File(folder.getRoot(), "jobs")) {
       @Override
       public List<CommandJob> getHistory() {
         return createJobHistory();
@@ -170,7 +178,7 @@ public class DefaultCommandJobServiceTest {
   @Test
   public void testGetCommand_ReturnsNullIfJobDoesNotExist() {
     // Test-specific setup
-    CommandJobService sut = new DefaultCommandJobService() {
+    CommandJobService sut = new DefaultCommandJobService(new File(folder.getRoot(), "jobs")) {
       @Override
       public List<CommandJob> getHistory() {
         return createJobHistory();
@@ -309,6 +317,133 @@ public class DefaultCommandJobServiceTest {
     assertThat(jobsTerminated).isEmpty();
   }
 
+  @Test
+  public void testLaunchCommand_StartsJobsOfALaneUpToItsConcurrency() throws Exception {
+    List<Runnable> executed = new ArrayList<>();
+    DefaultCommandJobService sut = newCommandJobService(executed);
+
+    // backup lane has a concurrency of 1
+    sut.launchCommand(newProjectCommandJob("backup", "p1", null));
+    sut.launchCommand(newProjectCommandJob("backup", "p2", null));
+    assertThat(executed).hasSize(1);
+    assertThat(sut.getNotStartedJobs()).hasSize(1);
+
+    runJob(sut, (FutureCommandJob) executed.get(0));
+    assertThat(executed).hasSize(2);
+    assertThat(((FutureCommandJob) executed.get(1)).getCommandJob().getProject()).isEqualTo("p2");
+  }
+
+  @Test
+  public void testLaunchCommand_StartsJobsOfAProjectUpToItsConcurrency() throws Exception {
+    List<Runnable> executed = new ArrayList<>();
+    DefaultCommandJobService sut = newCommandJobService(executed);
+
+    // projects have a concurrency of 2
+    sut.launchCommand(newProjectCommandJob("report", "p1", null));
+    sut.launchCommand(newProjectCommandJob("copy", "p1", null));
+    sut.launchCommand(newProjectCommandJob("export", "p1", null));
+    sut.launchCommand(newProjectCommandJob("export", "p2", null));
+
+    assertThat(executed).hasSize(3);
+    assertThat(((FutureCommandJob) executed.get(2)).getCommandJob().getProject()).isEqualTo("p2");
+  }
+
+  @Test
+  public void testLaunchCommand_StartsJobOfTheLessBusyProjectFirst() throws Exception {
+    List<Runnable> executed = new ArrayList<>();
+    DefaultCommandJobService sut = newCommandJobService(executed);
+
+    // default lane has a concurrency of 2
+    sut.launchCommand(newProjectCommandJob("report", "p1", null));
+    sut.launchCommand(newProjectCommandJob("report", "p1", null));
+    sut.launchCommand(newProjectCommandJob("report", "p1", null));
+    sut.launchCommand(newProjectCommandJob("report", "p2", null));
+    assertThat(executed).hasSize(2);
+
+    runJob(sut, (FutureCommandJob) executed.get(0));
+    assertThat(executed).hasSize(3);
+    assertThat(((FutureCommandJob) executed.get(2)).getCommandJob().getProject()).isEqualTo("p2");
+  }
+
+  @Test
+  public void testLaunchCommand_StartsJobOfHigherPriorityFirst() throws Exception {
+    List<Runnable> executed = new ArrayList<>();
+    DefaultCommandJobService sut = newCommandJobService(executed);
+
+    sut.launchCommand(newProjectCommandJob("report", "p1", null));
+    sut.launchCommand(newProjectCommandJob("report", "p1", null));
+    sut.launchCommand(newProjectCommandJob("report", "p1", null));
+    // reload lane has a higher priority
+    sut.launchCommand(newProjectCommandJob("reload", "p1", null));
+    assertThat(executed).hasSize(2);
+
+    runJob(sut, (FutureCommandJob) executed.get(0));
+    assertThat(executed).hasSize(3);
+    assertThat(((FutureCommandJob) executed.get(2)).getCommandJob().getName()).isEqualTo("reload");
+  }
+
+  @Test
+  public void testLaunchCommand_DoesNotStartJobsWritingIntoTheSameDatasource() throws Exception {
+    List<Runnable> executed = new ArrayList<>();
+    DefaultCommandJobService sut = newCommandJobService(executed);
+
+    sut.launchCommand(newProjectCommandJob("import", "p1", newImportOptions("ds1")));
+    sut.launchCommand(newProjectCommandJob("import", "p2", newImportOptions("ds1")));
+    sut.launchCommand(newProjectCommandJob("import", "p3", newImportOptions("ds3")));
+    assertThat(executed).hasSize(2);
+    assertThat(((FutureCommandJob) executed.get(1)).getCommandJob().getProject()).isEqualTo("p3");
+
+    runJob(sut, (FutureCommandJob) executed.get(0));
+    assertThat(executed).hasSize(3);
+    assertThat(((FutureCommandJob) executed.get(2)).getCommandJob().getProject()).isEqualTo("p2");
+  }
+
+  @Test
+  public void testCancelCommand_TerminatesNotStartedJob() throws Exception {
+    List<Runnable> executed = new ArrayList<>();
+    DefaultCommandJobService sut = newCommandJobService(executed);
+
+    sut.launchCommand(newProjectCommandJob("backup", "p1", null));
+    Integer id = sut.launchCommand(newProjectCommandJob("backup", "p2", null));
+    sut.cancelCommand(id);
+
+    assertThat(sut.getCommand(id).getStatus()).isEqualTo(Status.CANCELED);
+    assertThat(sut.getNotStartedJobs()).isEmpty();
+    runJob(sut, (FutureCommandJob) executed.get(0));
+    assertThat(executed).hasSize(1);
+  }
+
+  @Test
+  public void testStart_RestoresArchivedJobs() throws Exception {
+    List<Runnable> executed = new ArrayList<>();
+    DefaultCommandJobService sut = newCommandJobService(executed);
+    Integer id = sut.launchCommand(newProjectCommandJob("report", "p1", null));
+    runJob(sut, (FutureCommandJob) executed.get(0));
+
+    DefaultCommandJobService restarted = newCommandJobService(new ArrayList<>());
+    restarted.start();
+
+    List<CommandJob> history = restarted.getHistory();
+    assertThat(history).hasSize(1);
+    assertThat(history.get(0).getId()).isEqualTo(id);
+    assertThat(history.get(0).getStatus()).isEqualTo(Status.SUCCEEDED);
+    assertThat(history.get(0).getProject()).isEqualTo("p1");
+    assertThat(restarted.launchCommand(newProjectCommandJob("report", "p1", null))).isEqualTo(id + 1);
+  }
+
+  @Test
+  public void testDeleteCommand_DeletesArchivedJob() throws Exception {
+    List<Runnable> executed = new ArrayList<>();
+    DefaultCommandJobService sut = newCommandJobService(executed);
+    Integer id = sut.launchCommand(newProjectCommandJob("report", "p1", null));
+    runJob(sut, (FutureCommandJob) executed.get(0));
+
+    sut.deleteCommand(id);
+
+    assertThat(sut.getCommand(id)).isNull();
+    assertThat(new File(folder.getRoot(), "jobs").list()).isEmpty();
+  }
+
   @Test
   public void testIsDeletable_ReturnsTrueForSucceededJob() {
     // Test-specific setup
@@ -385,6 +520,41 @@ public class DefaultCommandJobServiceTest {
   // Helper Methods
   //
 
+  private DefaultCommandJobService newCommandJobService(List<Runnable> executed) {
+    DefaultCommandJobService service = new DefaultCommandJobService(new File(folder.getRoot(), "jobs"));
+    service.setExecutor(executed::add);
+    return service;
+  }
+
+  @SuppressWarnings("unchecked")
+  private CommandJob newProjectCommandJob(String name, String project, Object options) {
+    Command<Object> cmd = createNiceMock(Command.class);
+    expect(cmd.getName()).andStubReturn(name);
+    expect(cmd.getOptions()).andStubReturn(options);
+    replay(cmd);
+    CommandJob aCommandJob = new CommandJob(name, cmd);
+    aCommandJob.setProject(project);
+    return aCommandJob;
+  }
+
+  private ImportCommandOptions newImportOptions(String destination) {
+    ImportCommandOptions options = createNiceMock(ImportCommandOptions.class);
+    expect(options.getDestination()).andStubReturn(destination);
+    replay(options);
+    return options;
+  }
+
+  /**
+   * Run the job as the executor would do.
+   *
+   * @param sut
+   * @param futureCommandJob
+   */
+  private void runJob(DefaultCommandJobService sut, FutureCommandJob futureCommandJob) {
+    futureCommandJob.run();
+    sut.onExecuted(futureCommandJob);
+  }
+
   private List<CommandJob> createJobHistory() {
     List<CommandJob> jobHistory = new ArrayList<>();
 
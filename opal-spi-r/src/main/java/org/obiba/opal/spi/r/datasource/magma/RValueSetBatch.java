@@ -13,7 +13,6 @@ package org.obiba.opal.spi.r.datasource.magma;
 import org.obiba.magma.ValueSet;
 import org.obiba.magma.ValueSetBatch;
 import org.obiba.magma.VariableEntity;
-import org.obiba.opal.spi.r.RServerResult;
 
 import java.util.List;
 import java.util.stream.Collectors;
@@ -34,10 +33,11 @@ class RValueSetBatch implements ValueSetBatch {
 
   @Override
   public List<ValueSet> getValueSets() {
-    RServerResult rexp = fetcher.getResult(entities);
+    // decode the batch result once for all the entities
+    RValueSetResult result = new RValueSetResult(table, fetcher.getResult(entities));
     return entities.stream().map(e -> {
       RValueSet vs = new RValueSet(table, e);
-      vs.parseResult(rexp);
+      vs.parseResult(result);
       return vs;
     }).collect(Collectors.toList());
   }
@@ -13,6 +13,7 @@ package org.obiba.opal.spi.r.datasource.magma;
 
 import org.obiba.magma.VariableEntity;
 import org.obiba.opal.spi.r.RServerResult;
+import org.obiba.opal.spi.r.RUtils;
 
 import java.util.List;
 import java.util.stream.Collectors;
@@ -29,27 +30,49 @@ class RValueSetFetcher {
   }
 
   RServerResult getResult(VariableEntity entity) {
-    RVariableEntity re = table.getRVariableEntity(entity);
-    String rid = re.getRIdentifier();
-    if (!re.isNumeric()) rid = String.format("'%s'", rid);
     // subset tibble: get the row(s) matching the entity id (result is a tibble)
-    String cmd = String.format("`%s`[`%s`$`%s` == %s,]", table.getSymbol(), table.getSymbol(), table.getIdColumn(), rid);
+    String cmd = String.format("`%s`[`%s`[['%s']] == %s,]", table.getSymbol(), table.getSymbol(), getIdColumn(),
+        toRIdentifier(entity));
     return table.execute(cmd);
   }
 
   RServerResult getResult(List<VariableEntity> entities) {
-    // to query R, we need the original R entity identifier
-    String ids = entities.stream()
-        .map(e -> {
-          RVariableEntity re = table.getRVariableEntity(e);
-          String rid = re.getRIdentifier();
-          if (!re.isNumeric()) rid = String.format("'%s'", rid);
-          return rid;
-        })
-        .collect(Collectors.joining(","));
     // subset tibble: get the row(s) matching the entity ids (result is a tibble)
-    String cmd = String.format("`%s`[`%s`$`%s` %%in%% c(%s),]", table.getSymbol(), table.getSymbol(), table.getIdColumn(), ids);
+    String cmd = String.format("`%s`[`%s`[['%s']] %%in%% c(%s),]", table.getSymbol(), table.getSymbol(), getIdColumn(),
+        toRIdentifiers(entities));
     return table.execute(cmd);
   }
 
+  RServerResult getResult(List<VariableEntity> entities, String colName) {
+    // subset tibble: get the row(s) matching the entity ids, with the id column and the requested column only
+    String cmd = String.format("`%s`[`%s`[['%s']] %%in%% c(%s),c('%s','%s')]", table.getSymbol(), table.getSymbol(),
+        getIdColumn(), toRIdentifiers(entities), getIdColumn(), RUtils.normalizeLabel(colName));
+    return table.execute(cmd);
+  }
+
+  //
+  // Private methods
+  //
+
+  /**
+   * The id column name, escaped the same way as the other column names.
+   *
+   * @return
+   */
+  private String getIdColumn() {
+    return RUtils.normalizeLabel(table.getIdColumn());
+  }
+
+  private String toRIdentifiers(List<VariableEntity> entities) {
+    return entities.stream().map(this::toRIdentifier).collect(Collectors.joining(","));
+  }
+
+  private String toRIdentifier(VariableEntity entity) {
+    // to query R, we need the original R entity identifier
+    RVariableEntity re = table.getRVariableEntity(entity);
+    String rid = re.getRIdentifier();
+    if (!re.isNumeric()) rid = String.format("'%s'", rid);
+    return rid;
+  }
+
 }
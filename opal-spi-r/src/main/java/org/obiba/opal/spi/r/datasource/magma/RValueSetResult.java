@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.spi.r.datasource.magma;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.obiba.magma.VariableEntity;
+import org.obiba.opal.spi.r.RNamedList;
+import org.obiba.opal.spi.r.RServerResult;
+
+import javax.validation.constraints.NotNull;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The tibble subset of one or more entities, decoded once: rows are indexed by entity identifier and each column
+ * vector is read once, so that the values of an entity are extracted by visiting only its own rows.
+ */
+class RValueSetResult {
+
+  private final RValueTable table;
+
+  /**
+   * Row positions by entity identifier (results from Rserve are column vectors).
+   */
+  private final Map<String, List<Integer>> rowsByIdentifier = Maps.newHashMap();
+
+  /**
+   * Column vectors by position.
+   */
+  private final Map<Integer, Column> columns = Maps.newHashMap();
+
+  /**
+   * Rows by entity identifier (results from rock are one JSON object per row).
+   */
+  private final Map<String, List<Map<String, Object>>> rowMapsByIdentifier = Maps.newHashMap();
+
+  /**
+   * Table positions of the result columns, null when the result has all the columns of the table.
+   */
+  private final int[] positions;
+
+  RValueSetResult(@NotNull RValueTable table, @NotNull RServerResult result) {
+    this(table, result, null);
+  }
+
+  /**
+   * Decode a tibble subset having only the identifiers column and the column at the given table position.
+   *
+   * @param table
+   * @param result
+   * @param position
+   */
+  RValueSetResult(@NotNull RValueTable table, @NotNull RServerResult result, int position) {
+    this(table, result, new int[]{table.getIdPosition(), position});
+  }
+
+  private RValueSetResult(@NotNull RValueTable table, @NotNull RServerResult result, int[] positions) {
+    this.table = table;
+    this.positions = positions;
+    if (result.isList()) {
+      List<RServerResult> list = result.asList();
+      if (list.stream().anyMatch(RServerResult::isNamedList))
+        indexRows(list);
+      else
+        indexColumns(list);
+    }
+  }
+
+  /**
+   * Extract the values of the entity (could be multilines), by column position.
+   *
+   * @param entity
+   * @return
+   */
+  Map<Integer, List<Object>> getValuesByPosition(@NotNull VariableEntity entity) {
+    Map<Integer, List<Object>> columnValues = Maps.newHashMap();
+    if (!rowMapsByIdentifier.isEmpty()) {
+      List<Map<String, Object>> rowMaps = rowMapsByIdentifier.get(entity.getIdentifier());
+      if (rowMaps != null) {
+        Map<String, Integer> colPositions = table.getColumnPositions();
+        for (Map.Entry<String, Integer> colPosition : colPositions.entrySet()) {
+          List<Object> values = Lists.newArrayListWithCapacity(rowMaps.size());
+          for (Map<String, Object> rowMap : rowMaps) {
+            values.add(rowMap.get(colPosition.getKey()));
+          }
+          columnValues.put(colPosition.getValue(), values);
+        }
+      }
+    } else {
+      List<Integer> rows = rowsByIdentifier.getOrDefault(table.getRVariableEntity(entity).getIdentifier(),
+          Collections.emptyList());
+      for (Map.Entry<Integer, Column> column : columns.entrySet()) {
+        List<Object> values = Lists.newArrayListWithCapacity(rows.size());
+        for (int row : rows) {
+          values.add(column.getValue().get(row));
+        }
+        columnValues.put(column.getKey(), values);
+      }
+    }
+    return columnValues;
+  }
+
+  /**
+   * Extract the values of the entity (could be multilines) in one column.
+   *
+   * @param entity
+   * @param colName
+   * @param position
+   * @return
+   */
+  List<Object> getValues(@NotNull VariableEntity entity, String colName, int position) {
+    if (!rowMapsByIdentifier.isEmpty()) {
+      List<Map<String, Object>> rowMaps = rowMapsByIdentifier.get(entity.getIdentifier());
+      if (rowMaps == null) return Collections.emptyList();
+      List<Object> values = Lists.newArrayListWithCapacity(rowMaps.size());
+      for (Map<String, Object> rowMap : rowMaps) {
+        values.add(rowMap.get(colName));
+      }
+      return values;
+    }
+    Column column = columns.get(position);
+    List<Integer> rows = rowsByIdentifier.get(table.getRVariableEntity(entity).getIdentifier());
+    if (column == null || rows == null) return Collections.emptyList();
+    List<Object> values = Lists.newArrayListWithCapacity(rows.size());
+    for (int row : rows) {
+      values.add(column.get(row));
+    }
+    return values;
+  }
+
+  /**
+   * Whether the result has the column at the given table position.
+   *
+   * @param position
+   * @return
+   */
+  boolean hasColumn(int position) {
+    return positions == null || Arrays.stream(positions).anyMatch(p -> p == position);
+  }
+
+  //
+  // Private methods
+  //
+
+  private void indexRows(List<RServerResult> list) {
+    for (RServerResult rowResult : list) {
+      RNamedList<RServerResult> rowNamedResults = rowResult.asNamedList();
+      String id = rowNamedResults.get(table.getIdColumn()).asStrings()[0];
+      rowMapsByIdentifier.computeIfAbsent(id, k -> Lists.newArrayList()).add(asMapOfObjects(rowResult));
+    }
+  }
+
+  private void indexColumns(List<RServerResult> list) {
+    int idPosition = positions == null ? table.getIdPosition() : 0;
+    String[] ids = list.get(idPosition).asStrings();
+    for (int row = 0; row < ids.length; row++) {
+      // normalize the identifier the same way the entities are
+      String id = new RVariableEntity(table.getEntityType(), ids[row]).getIdentifier();
+      rowsByIdentifier.computeIfAbsent(id, k -> Lists.newArrayList()).add(row);
+    }
+    for (int col = 0; col < list.size(); col++) {
+      if (idPosition == col) continue;
+      columns.put(positions == null ? col : positions[col], new Column(list.get(col)));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> asMapOfObjects(RServerResult vector) {
+    return (Map<String, Object>) vector.asNativeJavaObject();
+  }
+
+  /**
+   * A typed column vector, with its NA flags.
+   */
+  private static class Column {
+
+    private final Object payload;
+
+    private final boolean[] nas;
+
+    private Column(RServerResult vector) {
+      this.payload = vector.asNativeJavaObject();
+      this.nas = vector.isNA();
+    }
+
+    private Object get(int row) {
+      // #3303 force NA representation
+      if (row < nas.length && nas[row]) return null;
+      if (payload instanceof double[]) return ((double[]) payload)[row];
+      if (payload instanceof int[]) return ((int[]) payload)[row];
+      if (payload instanceof String[]) return ((String[]) payload)[row];
+      if (payload instanceof boolean[]) return ((boolean[]) payload)[row];
+      return Array.get(payload, row);
+    }
+  }
+
+}
@@ -10,6 +10,7 @@
 
 package org.obiba.opal.spi.r.datasource.magma;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import org.obiba.magma.*;
 import org.obiba.magma.support.AbstractValueTable;
@@ -37,6 +38,10 @@ public class RValueTable extends AbstractValueTable {
 
   private Map<String, Integer> columnPositions = Maps.newHashMap();
 
+  private List<VariableEntity> lastPage;
+
+  private RValueSetResult lastPageResult;
+
   public RValueTable(@NotNull RDatasource datasource, @NotNull String name, @NotNull String symbol, String entityType, String idColumn) {
     super(datasource, name);
     this.symbol = symbol;
@@ -65,6 +70,32 @@ public class RValueTable extends AbstractValueTable {
     return symbol;
   }
 
+  /**
+   * Get the decoded tibble subset of a page of entities, restricted to the identifiers column and the column of one
+   * variable, so that reading the vector of a variable does not transfer the values of the other columns. The last
+   * page is kept: when another variable is read for the same page, all the columns of the page are fetched at once and
+   * the following variables are read from it.
+   *
+   * @param entities
+   * @param colName
+   * @param position
+   * @return
+   */
+  synchronized RValueSetResult getColumnResult(List<VariableEntity> entities, String colName, int position) {
+    if (entities.equals(lastPage)) {
+      if (!lastPageResult.hasColumn(position))
+        lastPageResult = new RValueSetResult(this, new RValueSetFetcher(this).getResult(entities));
+    } else {
+      lastPage = Lists.newArrayList(entities);
+      lastPageResult = new RValueSetResult(this, new RValueSetFetcher(this).getResult(entities, colName), position);
+    }
+    return lastPageResult;
+  }
+
+  int getPageSize() {
+    return Math.max(1, getVariableEntityBatchSize());
+  }
+
   boolean isMultilines() {
     return ((RVariableEntityProvider) getVariableEntityProvider()).isMultilines();
   }
@@ -71,7 +71,15 @@ class RVariableValueSource extends AbstractVariableValueSource implements Variab
 
   @Override
   public Iterable<Value> getValues(List<VariableEntity> entities) {
-    return null;
+    List<Value> values = Lists.newArrayListWithCapacity(entities.size());
+    // one R call per page of entities, only for the column of this variable
+    for (List<VariableEntity> page : Lists.partition(entities, valueTable.getPageSize())) {
+      RValueSetResult result = valueTable.getColumnResult(page, colName, position);
+      for (VariableEntity entity : page) {
+        values.add(getValue(result.getValues(entity, colName, position)));
+      }
+    }
+    return values;
   }
 
   @Override
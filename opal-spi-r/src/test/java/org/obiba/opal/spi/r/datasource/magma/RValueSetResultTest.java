@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.spi.r.datasource.magma;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+import org.obiba.opal.spi.r.RNamedList;
+import org.obiba.opal.spi.r.RServerResult;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.easymock.EasyMock.*;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class RValueSetResultTest {
+
+  private RValueTable table;
+
+  @Before
+  public void setUp() {
+    table = new RValueTable(new RDatasource("test", null, "tbl", "Participant", "id"), "tbl", "tbl", "Participant", "id");
+  }
+
+  @Test
+  public void testGetValuesByPosition_MultilineEntity() {
+    RValueSetResult result = new RValueSetResult(table,
+        list(strings("1", "2", "1"), integers(10, 20, 30), strings("a", "b", "c")));
+
+    Map<Integer, List<Object>> values = result.getValuesByPosition(entity("1"));
+    assertThat(values).hasSize(2);
+    assertThat(values.get(1)).containsExactly(10, 30);
+    assertThat(values.get(2)).containsExactly("a", "c");
+    assertThat(result.getValuesByPosition(entity("2")).get(1)).containsExactly(20);
+  }
+
+  @Test
+  public void testGetValuesByPosition_UnknownEntity() {
+    RValueSetResult result = new RValueSetResult(table, list(strings("1", "2"), integers(10, 20)));
+
+    Map<Integer, List<Object>> values = result.getValuesByPosition(entity("3"));
+    assertThat(values.get(1)).isEmpty();
+  }
+
+  @Test
+  public void testGetValues_NA() {
+    RServerResult column = createNiceMock(RServerResult.class);
+    expect(column.asNativeJavaObject()).andStubReturn(new int[]{10, 20, 30});
+    expect(column.isNA()).andStubReturn(new boolean[]{false, true, false});
+    replay(column);
+    RValueSetResult result = new RValueSetResult(table, list(strings("1", "2", "3"), column));
+
+    assertThat(result.getValues(entity("1"), "x", 1)).containsExactly(10);
+    assertThat(result.getValues(entity("2"), "x", 1)).containsExactly((Object) null);
+  }
+
+  @Test
+  public void testGetValues_ColumnSubset() {
+    RValueSetResult result = new RValueSetResult(table, list(strings("1", "2"), integers(10, 20)), 3);
+
+    assertThat(result.getValues(entity("2"), "z", 3)).containsExactly(20);
+    assertThat(result.getValues(entity("2"), "x", 1)).isEmpty();
+    assertThat(result.getValuesByPosition(entity("1")).keySet()).containsOnly(3);
+  }
+
+  @Test
+  public void testGetValues_Rows() {
+    RValueSetResult result = new RValueSetResult(table,
+        list(row("1", 10), row("2", 20), row("1", 30)));
+
+    assertThat(result.getValues(entity("1"), "x", 1)).containsExactly(10, 30);
+    assertThat(result.getValues(entity("2"), "x", 1)).containsExactly(20);
+    assertThat(result.getValues(entity("3"), "x", 1)).isEmpty();
+  }
+
+  //
+  // Private methods
+  //
+
+  private static RVariableEntity entity(String id) {
+    return new RVariableEntity("Participant", id);
+  }
+
+  private static RServerResult list(RServerResult... items) {
+    RServerResult result = createNiceMock(RServerResult.class);
+    expect(result.isList()).andStubReturn(true);
+    expect(result.asList()).andStubReturn(Lists.newArrayList(items));
+    replay(result);
+    return result;
+  }
+
+  private static RServerResult row(String id, int x) {
+    RowNamedList values = new RowNamedList();
+    values.put("id", strings(id));
+    values.put("x", integers(x));
+    RServerResult result = createNiceMock(RServerResult.class);
+    expect(result.isNamedList()).andStubReturn(true);
+    expect(result.asNamedList()).andStubReturn(values);
+    expect(result.asNativeJavaObject()).andStubReturn(ImmutableMap.of("id", id, "x", x));
+    replay(result);
+    return result;
+  }
+
+  private static RServerResult strings(String... values) {
+    RServerResult result = createNiceMock(RServerResult.class);
+    expect(result.asStrings()).andStubReturn(values);
+    expect(result.length()).andStubReturn(values.length);
+    expect(result.asNativeJavaObject()).andStubReturn(values);
+    expect(result.isNA()).andStubReturn(new boolean[values.length]);
+    replay(result);
+    return result;
+  }
+
+  private static RServerResult integers(int... values) {
+    RServerResult result = createNiceMock(RServerResult.class);
+    expect(result.asIntegers()).andStubReturn(values);
+    expect(result.length()).andStubReturn(values.length);
+    expect(result.asNativeJavaObject()).andStubReturn(values);
+    expect(result.isNA()).andStubReturn(new boolean[values.length]);
+    replay(result);
+    return result;
+  }
+
+  private static class RowNamedList extends HashMap<String, RServerResult> implements RNamedList<RServerResult> {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public List<String> getNames() {
+      return Lists.newArrayList(keySet());
+    }
+  }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.spi.r.datasource.magma;
+
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+import org.obiba.magma.Value;
+import org.obiba.magma.VariableEntity;
+import org.obiba.opal.spi.r.RNamedList;
+import org.obiba.opal.spi.r.RServerResult;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.easymock.EasyMock.*;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class RVariableValueSourceTest {
+
+  private static final String[] IDS = {"1", "2", "3", "4", "5"};
+
+  private ScriptsValueTable table;
+
+  @Before
+  public void setUp() {
+    table = new ScriptsValueTable();
+  }
+
+  @Test
+  public void testGetValues_OneRCallPerPage() {
+    RVariableValueSource source = newSource("x", 1);
+    table.scripts.clear();
+
+    List<Value> values = Lists.newArrayList(source.getValues(getEntities()));
+
+    assertThat(values.stream().map(Value::toString).collect(Collectors.toList()))
+        .containsExactly("10", "20", "30", "40", "50");
+    // 5 entities by pages of 2
+    assertThat(table.scripts).hasSize(3);
+  }
+
+  @Test
+  public void testGetValues_SubsetsVariableColumn() {
+    RVariableValueSource x = newSource("x", 1);
+    RVariableValueSource y = newSource("y", 2);
+    table.scripts.clear();
+
+    Lists.newArrayList(x.getValues(getEntities()));
+    Lists.newArrayList(y.getValues(getEntities()));
+
+    assertThat(table.scripts).hasSize(6);
+    assertThat(table.scripts.subList(0, 3)).containsOnly("`tbl`[`tbl`[['id']] %in% c('1','2'),c('id','x')]",
+        "`tbl`[`tbl`[['id']] %in% c('3','4'),c('id','x')]", "`tbl`[`tbl`[['id']] %in% c('5'),c('id','x')]");
+    for (String script : table.scripts.subList(3, 6)) {
+      assertThat(script).endsWith(",c('id','y')]");
+    }
+  }
+
+  @Test
+  public void testGetValues_SamePageReusedAcrossVariables() {
+    RVariableValueSource x = newSource("x", 1);
+    RVariableValueSource y = newSource("y", 2);
+    table.scripts.clear();
+    List<VariableEntity> page = getEntities().subList(0, 2);
+
+    List<Value> xValues = Lists.newArrayList(x.getValues(page));
+    List<Value> yValues = Lists.newArrayList(y.getValues(page));
+    List<Value> xValuesAgain = Lists.newArrayList(x.getValues(getEntities().subList(0, 2)));
+
+    assertThat(xValues.stream().map(Value::toString).collect(Collectors.toList())).containsExactly("10", "20");
+    assertThat(yValues.stream().map(Value::toString).collect(Collectors.toList())).containsExactly("1", "2");
+    assertThat(xValuesAgain).isEqualTo(xValues);
+    // the second variable of the page fetches all the columns of the page
+    assertThat(table.scripts).containsExactly("`tbl`[`tbl`[['id']] %in% c('1','2'),c('id','x')]",
+        "`tbl`[`tbl`[['id']] %in% c('1','2'),]");
+  }
+
+  @Test
+  public void testGetValues_ColumnNamesEscaped() {
+    RVariableValueSource source = newSource("it's", 1);
+    table.scripts.clear();
+
+    Lists.newArrayList(source.getValues(getEntities().subList(0, 1)));
+
+    assertThat(table.scripts).containsExactly("`tbl`[`tbl`[['id']] %in% c('1'),c('id','it\\'s')]");
+  }
+
+  //
+  // Private methods
+  //
+
+  private RVariableValueSource newSource(String name, int position) {
+    ColumnDescription columnDesc = new ColumnDescription();
+    columnDesc.put("name", strings(name));
+    columnDesc.put("class", strings("integer"));
+    columnDesc.put("type", strings("int"));
+    RServerResult result = createNiceMock(RServerResult.class);
+    expect(result.asNamedList()).andStubReturn(columnDesc);
+    replay(result);
+    return new RVariableValueSource(table, result, position);
+  }
+
+  private List<VariableEntity> getEntities() {
+    List<VariableEntity> entities = Lists.newArrayList();
+    for (String id : IDS) {
+      entities.add(new RVariableEntity("Participant", id));
+    }
+    return entities;
+  }
+
+  private static RServerResult strings(String... values) {
+    RServerResult result = createNiceMock(RServerResult.class);
+    expect(result.asStrings()).andStubReturn(values);
+    expect(result.length()).andStubReturn(values.length);
+    expect(result.asNativeJavaObject()).andStubReturn(values);
+    expect(result.isNA()).andStubReturn(new boolean[values.length]);
+    replay(result);
+    return result;
+  }
+
+  private static RServerResult integers(int... values) {
+    RServerResult result = createNiceMock(RServerResult.class);
+    expect(result.asIntegers()).andStubReturn(values);
+    expect(result.length()).andStubReturn(values.length);
+    expect(result.asNativeJavaObject()).andStubReturn(values);
+    expect(result.isNA()).andStubReturn(new boolean[values.length]);
+    replay(result);
+    return result;
+  }
+
+  /**
+   * Records the R scripts and answers with the whole id column and the requested column, or all the columns.
+   */
+  private static class ScriptsValueTable extends RValueTable {
+
+    private final List<String> scripts = Lists.newArrayList();
+
+    private ScriptsValueTable() {
+      super(new RDatasource("test", null, "tbl", "Participant", "id"), "tbl", "tbl", "Participant", "id");
+      setVariableEntityBatchSize(2);
+    }
+
+    @Override
+    RServerResult execute(String script) {
+      scripts.add(script);
+      if ("`tbl`$`id`".equals(script)) return strings(IDS);
+      RServerResult result = createNiceMock(RServerResult.class);
+      expect(result.isList()).andStubReturn(true);
+      if (script.endsWith(",]"))
+        expect(result.asList()).andStubReturn(Lists.newArrayList(strings(IDS), integers(10, 20, 30, 40, 50),
+            integers(1, 2, 3, 4, 5)));
+      else
+        expect(result.asList()).andStubReturn(Lists.newArrayList(strings(IDS),
+            script.endsWith("'x')]") ? integers(10, 20, 30, 40, 50) : integers(1, 2, 3, 4, 5)));
+      replay(result);
+      return result;
+    }
+  }
+
+  private static class ColumnDescription extends HashMap<String, RServerResult> implements RNamedList<RServerResult> {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public List<String> getNames() {
+      return Lists.newArrayList(keySet());
+    }
+  }
+
+}
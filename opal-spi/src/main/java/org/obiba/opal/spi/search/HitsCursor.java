@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.spi.search;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Lazy reading of the hits of a query, batch after batch. The cursor must be closed to release the resources that the
+ * search engine could keep for it (scroll context, point in time).
+ *
+ * @param <T>
+ */
+public interface HitsCursor<T> extends Closeable {
+
+  /**
+   * Total count of hits.
+   *
+   * @return -1 if not known yet
+   */
+  int getTotal();
+
+  /**
+   * Read the next batch of hits.
+   *
+   * @return empty when all the hits were read
+   * @throws SearchException
+   */
+  List<T> nextBatch() throws SearchException;
+
+  @Override
+  void close();
+
+  static <T> HitsCursor<T> empty() {
+    return new HitsCursor<T>() {
+      @Override
+      public int getTotal() {
+        return 0;
+      }
+
+      @Override
+      public List<T> nextBatch() {
+        return Collections.emptyList();
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+
+}
@@ -11,6 +11,7 @@
 package org.obiba.opal.spi.search;
 
 import org.obiba.opal.spi.search.support.ItemResultDtoStrategy;
+import org.obiba.opal.spi.search.support.PagedIdentifiersCursor;
 import org.obiba.opal.web.model.Search;
 import org.obiba.plugins.spi.ServicePlugin;
 
@@ -40,6 +41,22 @@ public interface SearchService extends ServicePlugin {
 
   void executeIdentifiersQuery(QuerySettings querySettings, String searchPath, HitsQueryCallback<String> callback) throws SearchException;
 
+  /**
+   * Open a cursor on all the identifiers matching the query, the offset and size of the query settings are managed by
+   * the cursor. The default implementation issues a paged query per batch, of growing size, in the order of the query
+   * settings sort: search engines should override it to read the hits from a consistent view of the index (scroll, or
+   * search_after with a point in time).
+   *
+   * @param querySettings
+   * @param searchPath
+   * @param batchSize
+   * @return
+   * @throws SearchException
+   */
+  default HitsCursor<String> openIdentifiersCursor(QuerySettings querySettings, String searchPath, int batchSize) throws SearchException {
+    return new PagedIdentifiersCursor(this, querySettings, searchPath, batchSize);
+  }
+
   Search.EntitiesResultDto.Builder executeEntitiesQuery(QuerySettings querySettings, String searchPath, String entityType, String query) throws SearchException;
 
   Search.QueryResultDto executeQuery(QuerySettings querySettings, String searchPath, ItemResultDtoStrategy strategy) throws SearchException;
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.spi.search.support;
+
+import com.google.common.collect.Lists;
+import org.obiba.opal.spi.search.HitsCursor;
+import org.obiba.opal.spi.search.QuerySettings;
+import org.obiba.opal.spi.search.SearchException;
+import org.obiba.opal.spi.search.SearchService;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Identifiers cursor that issues a query per batch, with increasing offsets. As the cost of a query grows with its
+ * offset, the size of the batches is doubled at each query so that the overall cost is linear in the count of hits.
+ * The pages are consistent only if the query settings are sorted on a unique field: search engines should rather
+ * provide a cursor on a consistent view of the index.
+ */
+public class PagedIdentifiersCursor implements HitsCursor<String> {
+
+  private final SearchService searchService;
+
+  private final QuerySettings querySettings;
+
+  private final String searchPath;
+
+  private int batchSize;
+
+  private int from = 0;
+
+  private int total = -1;
+
+  private boolean exhausted = false;
+
+  public PagedIdentifiersCursor(SearchService searchService, QuerySettings querySettings, String searchPath, int batchSize) {
+    this.searchService = searchService;
+    this.querySettings = querySettings;
+    this.searchPath = searchPath;
+    this.batchSize = batchSize;
+  }
+
+  @Override
+  public int getTotal() {
+    return total;
+  }
+
+  @Override
+  public List<String> nextBatch() throws SearchException {
+    if (exhausted) return Collections.emptyList();
+    List<String> identifiers = Lists.newArrayListWithExpectedSize(batchSize);
+    querySettings.from(from).size(batchSize);
+    searchService.executeIdentifiersQuery(querySettings, searchPath, new SearchService.HitsQueryCallback<String>() {
+      @Override
+      public void onTotal(int count) {
+        total = count;
+      }
+
+      @Override
+      public void onIdentifier(String id) {
+        identifiers.add(id);
+      }
+    });
+    from = from + identifiers.size();
+    batchSize = batchSize > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : batchSize * 2;
+    exhausted = identifiers.isEmpty() || (total > -1 && from >= total);
+    return identifiers;
+  }
+
+  @Override
+  public void close() {
+    exhausted = true;
+  }
+}
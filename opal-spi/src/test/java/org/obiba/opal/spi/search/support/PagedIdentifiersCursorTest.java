@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.spi.search.support;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.obiba.opal.spi.search.HitsCursor;
+import org.obiba.opal.spi.search.QuerySettings;
+import org.obiba.opal.spi.search.SearchService;
+
+import java.util.List;
+
+import static org.easymock.EasyMock.*;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class PagedIdentifiersCursorTest {
+
+  @Test
+  public void testReadAllBatches() throws Exception {
+    List<String> index = newIndex(5500);
+    SearchService searchService = newSearchService(index, 3);
+    QuerySettings querySettings = QuerySettings.newSettings("*");
+
+    List<String> identifiers = Lists.newArrayList();
+    List<Integer> batchSizes = Lists.newArrayList();
+    try (HitsCursor<String> cursor = new PagedIdentifiersCursor(searchService, querySettings, "opal/values", 1000)) {
+      assertThat(cursor.getTotal()).isEqualTo(-1);
+      List<String> batch;
+      while (!(batch = cursor.nextBatch()).isEmpty()) {
+        batchSizes.add(batch.size());
+        identifiers.addAll(batch);
+      }
+      assertThat(cursor.getTotal()).isEqualTo(5500);
+    }
+
+    assertThat(identifiers).isEqualTo(index);
+    // batch size is doubled at each query
+    assertThat(batchSizes).containsExactly(1000, 2000, 2500);
+    // sort is left to the query settings
+    assertThat(querySettings.hasSort()).isFalse();
+    // no query issued once the total is reached
+    verify(searchService);
+  }
+
+  @Test
+  public void testNoHits() throws Exception {
+    SearchService searchService = newSearchService(Lists.newArrayList(), 1);
+    try (HitsCursor<String> cursor = new PagedIdentifiersCursor(searchService, QuerySettings.newSettings("*"), "opal/values", 1000)) {
+      assertThat(cursor.nextBatch()).isEmpty();
+      assertThat(cursor.nextBatch()).isEmpty();
+      assertThat(cursor.getTotal()).isEqualTo(0);
+    }
+    verify(searchService);
+  }
+
+  @Test
+  public void testClosed() throws Exception {
+    SearchService searchService = newSearchService(newIndex(10), 1);
+    HitsCursor<String> cursor = new PagedIdentifiersCursor(searchService, QuerySettings.newSettings("*"), "opal/values", 4);
+    assertThat(cursor.nextBatch()).hasSize(4);
+    cursor.close();
+    assertThat(cursor.nextBatch()).isEmpty();
+    verify(searchService);
+  }
+
+  private List<String> newIndex(int count) {
+    List<String> index = Lists.newArrayList();
+    for (int i = 0; i < count; i++) index.add(String.format("%06d", i));
+    return index;
+  }
+
+  /**
+   * In-memory search service: the identifiers query returns a page of the index.
+   *
+   * @param index
+   * @param queryCount expected count of identifiers queries
+   * @return
+   * @throws Exception
+   */
+  @SuppressWarnings("unchecked")
+  private SearchService newSearchService(List<String> index, int queryCount) throws Exception {
+    SearchService searchService = createMock(SearchService.class);
+    searchService.executeIdentifiersQuery(anyObject(QuerySettings.class), eq("opal/values"), anyObject(SearchService.HitsQueryCallback.class));
+    expectLastCall().andAnswer(() -> {
+      QuerySettings settings = (QuerySettings) getCurrentArguments()[0];
+      SearchService.HitsQueryCallback<String> callback = (SearchService.HitsQueryCallback<String>) getCurrentArguments()[2];
+      callback.onTotal(index.size());
+      index.stream().skip(settings.getFrom()).limit(settings.getSize()).forEach(callback::onIdentifier);
+      return null;
+    }).times(queryCount);
+    replay(searchService);
+    return searchService;
+  }
+}
@@ -0,0 +1,22 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.sql;
+
+/**
+ * The SQL statement is valid but is not supported by the native SQL engine.
+ */
+public class UnsupportedSQLException extends SQLParserException {
+
+  public UnsupportedSQLException(String message) {
+    super(message);
+  }
+
+}
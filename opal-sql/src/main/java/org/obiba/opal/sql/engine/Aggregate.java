@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.sql.engine;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+import java.util.Set;
+
+/**
+ * Accumulator of an aggregate function over the rows of a group.
+ */
+abstract class Aggregate {
+
+  private static final Set<String> FUNCTIONS = ImmutableSet.of("count", "sum", "total", "avg", "min", "max");
+
+  /**
+   * Value added for each row by count(*).
+   */
+  static final Object ROW = new Object();
+
+  /**
+   * Whether a function invocation is an aggregate (min and max with several arguments are scalar functions).
+   *
+   * @param function lower case function name
+   * @param argCount
+   * @return
+   */
+  static boolean isAggregate(String function, int argCount) {
+    return FUNCTIONS.contains(function) && (argCount <= 1 || !("min".equals(function) || "max".equals(function)));
+  }
+
+  static Aggregate of(String function, boolean distinct) {
+    Aggregate aggregate;
+    switch (function) {
+      case "count":
+        aggregate = new Count();
+        break;
+      case "sum":
+        aggregate = new Sum(false);
+        break;
+      case "total":
+        aggregate = new Sum(true);
+        break;
+      case "avg":
+        aggregate = new Avg();
+        break;
+      case "min":
+        aggregate = new Extremum(-1);
+        break;
+      case "max":
+        aggregate = new Extremum(1);
+        break;
+      default:
+        throw new IllegalArgumentException("Not an aggregate function: " + function);
+    }
+    return distinct ? new Distinct(aggregate) : aggregate;
+  }
+
+  /**
+   * Add the value of a row, null values are ignored except by count(*).
+   *
+   * @param value
+   */
+  abstract void add(Object value);
+
+  abstract Object getResult();
+
+  private static class Count extends Aggregate {
+
+    private long count = 0;
+
+    @Override
+    void add(Object value) {
+      if (value != null) count++;
+    }
+
+    @Override
+    Object getResult() {
+      return count;
+    }
+  }
+
+  private static class Sum extends Aggregate {
+
+    private final boolean total;
+
+    private long longSum = 0;
+
+    private double doubleSum = 0;
+
+    private boolean isDouble = false;
+
+    private boolean empty = true;
+
+    private Sum(boolean total) {
+      this.total = total;
+    }
+
+    @Override
+    void add(Object value) {
+      if (value == null) return;
+      Number number = SQLValues.toNumber(value);
+      empty = false;
+      if (!isDouble && number instanceof Long) {
+        try {
+          longSum = Math.addExact(longSum, number.longValue());
+          return;
+        } catch (ArithmeticException e) {
+          // integer overflow, continue as a real
+        }
+      }
+      if (!isDouble) {
+        doubleSum = longSum;
+        isDouble = true;
+      }
+      doubleSum += number.doubleValue();
+    }
+
+    @Override
+    Object getResult() {
+      if (total) return isDouble ? doubleSum : (double) longSum;
+      if (empty) return null;
+      return isDouble ? doubleSum : (Object) longSum;
+    }
+  }
+
+  private static class Avg extends Aggregate {
+
+    private double sum = 0;
+
+    private long count = 0;
+
+    @Override
+    void add(Object value) {
+      if (value == null) return;
+      sum += SQLValues.toNumber(value).doubleValue();
+      count++;
+    }
+
+    @Override
+    Object getResult() {
+      return count == 0 ? null : sum / count;
+    }
+  }
+
+  private static class Extremum extends Aggregate {
+
+    private final int sign;
+
+    private Object result;
+
+    private Extremum(int sign) {
+      this.sign = sign;
+    }
+
+    @Override
+    void add(Object value) {
+      if (value == null) return;
+      if (result == null || sign * SQLValues.compare(value, result) > 0) result = value;
+    }
+
+    @Override
+    Object getResult() {
+      return result;
+    }
+  }
+
+  private static class Distinct extends Aggregate {
+
+    private final Aggregate aggregate;
+
+    private final Set<Object> seen = Sets.newHashSet();
+
+    private Distinct(Aggregate aggregate) {
+      this.aggregate = aggregate;
+    }
+
+    @Override
+    void add(Object value) {
+      if (value != null && seen.add(SQLValues.normalize(value))) aggregate.add(value);
+    }
+
+    @Override
+    Object getResult() {
+      return aggregate.getResult();
+    }
+  }
+
+}
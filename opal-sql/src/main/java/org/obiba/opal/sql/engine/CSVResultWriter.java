@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.sql.engine;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Writes the result as CSV: quoted header and texts, empty missing values.
+ */
+public class CSVResultWriter implements SQLResultWriter {
+
+  private final Writer writer;
+
+  public CSVResultWriter(Writer writer) {
+    this.writer = writer;
+  }
+
+  @Override
+  public void writeHeader(List<String> columns) throws IOException {
+    writeLine(columns.toArray());
+  }
+
+  @Override
+  public void writeRow(Object[] values) throws IOException {
+    writeLine(values);
+  }
+
+  @Override
+  public void close() throws IOException {
+    writer.close();
+  }
+
+  private void writeLine(Object[] values) throws IOException {
+    for (int i = 0; i < values.length; i++) {
+      if (i > 0) writer.write(',');
+      writeValue(values[i]);
+    }
+    writer.write('\n');
+  }
+
+  private void writeValue(Object value) throws IOException {
+    if (value == null) return;
+    if (value instanceof Boolean) writer.write((Boolean) value ? "TRUE" : "FALSE");
+    else if (value instanceof Long) writer.write(value.toString());
+    else if (value instanceof Double) {
+      double dbl = (Double) value;
+      writer.write(Double.isNaN(dbl) ? "NaN" : Double.isInfinite(dbl) ? (dbl > 0 ? "Inf" : "-Inf") : SQLValues.formatDouble(dbl));
+    } else writer.write('"' + value.toString().replace("\"", "\"\"") + '"');
+  }
+
+}
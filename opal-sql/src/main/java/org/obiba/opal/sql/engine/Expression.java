@@ -0,0 +1,664 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.sql.engine;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.obiba.opal.sql.UnsupportedSQLException;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * A compiled SQL expression, evaluated against a row (and the aggregates of its group, if any).
+ */
+abstract class Expression {
+
+  abstract Object evaluate(SQLRow row);
+
+  List<Expression> getChildren() {
+    return ImmutableList.of();
+  }
+
+  boolean hasAggregate() {
+    return getChildren().stream().anyMatch(Expression::hasAggregate);
+  }
+
+  boolean hasColumn() {
+    return getChildren().stream().anyMatch(Expression::hasColumn);
+  }
+
+  /**
+   * Visit the expression tree, depth first.
+   *
+   * @param visitor
+   */
+  void accept(Consumer<Expression> visitor) {
+    visitor.accept(this);
+    getChildren().forEach(child -> child.accept(visitor));
+  }
+
+  //
+  // Expressions
+  //
+
+  static class Literal extends Expression {
+
+    private final Object value;
+
+    Literal(Object value) {
+      this.value = value;
+    }
+
+    @Override
+    Object evaluate(SQLRow row) {
+      return value;
+    }
+  }
+
+  /**
+   * Reference to a table column, bound to the position of the column in the rows before evaluation.
+   */
+  static class Column extends Expression {
+
+    private final String qualifier;
+
+    private final String name;
+
+    private int slot = -1;
+
+    Column(String qualifier, String name) {
+      this.qualifier = qualifier;
+      this.name = name;
+    }
+
+    String getQualifier() {
+      return qualifier;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    void bind(int slot) {
+      this.slot = slot;
+    }
+
+    @Override
+    boolean hasColumn() {
+      return true;
+    }
+
+    @Override
+    Object evaluate(SQLRow row) {
+      return row.getValue(slot);
+    }
+  }
+
+  /**
+   * Result of an aggregate function over the rows of the group, accumulated before evaluation.
+   */
+  static class AggregateCall extends Expression {
+
+    private final String function;
+
+    private final Expression argument;
+
+    private final boolean distinct;
+
+    private int slot = -1;
+
+    /**
+     * @param function lower case function name
+     * @param argument null for count(*)
+     * @param distinct
+     */
+    AggregateCall(String function, Expression argument, boolean distinct) {
+      this.function = function;
+      this.argument = argument;
+      this.distinct = distinct;
+      if (argument != null && argument.hasAggregate())
+        throw new UnsupportedSQLException("Nested aggregate functions are not supported");
+    }
+
+    void bind(int slot) {
+      this.slot = slot;
+    }
+
+    int getSlot() {
+      return slot;
+    }
+
+    Aggregate newAggregate() {
+      return Aggregate.of(function, distinct);
+    }
+
+    /**
+     * The value to be accumulated for a row.
+     *
+     * @param row
+     * @return
+     */
+    Object evaluateArgument(SQLRow row) {
+      return argument == null ? Aggregate.ROW : argument.evaluate(row);
+    }
+
+    @Override
+    List<Expression> getChildren() {
+      return argument == null ? ImmutableList.of() : ImmutableList.of(argument);
+    }
+
+    @Override
+    boolean hasAggregate() {
+      return true;
+    }
+
+    @Override
+    Object evaluate(SQLRow row) {
+      return row.getAggregate(slot).getResult();
+    }
+  }
+
+  static class Unary extends Expression {
+
+    private final String operator;
+
+    private final Expression operand;
+
+    Unary(String operator, Expression operand) {
+      this.operator = operator.toUpperCase(Locale.ENGLISH);
+      this.operand = operand;
+    }
+
+    @Override
+    List<Expression> getChildren() {
+      return ImmutableList.of(operand);
+    }
+
+    @Override
+    Object evaluate(SQLRow row) {
+      Object value = operand.evaluate(row);
+      if (value == null) return null;
+      switch (operator) {
+        case "NOT":
+          return SQLValues.fromBoolean(!SQLValues.isTrue(value));
+        case "-": {
+          Number number = SQLValues.toNumber(value);
+          return number instanceof Long ? (Object) (-number.longValue()) : -number.doubleValue();
+        }
+        case "~":
+          return ~SQLValues.toNumber(value).longValue();
+        default:
+          return SQLValues.isNumeric(value) ? SQLValues.toNumber(value) : value;
+      }
+    }
+  }
+
+  static class Binary extends Expression {
+
+    private final String operator;
+
+    private final Expression left;
+
+    private final Expression right;
+
+    Binary(String operator, Expression left, Expression right) {
+      this.operator = operator.toUpperCase(Locale.ENGLISH);
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    List<Expression> getChildren() {
+      return ImmutableList.of(left, right);
+    }
+
+    @Override
+    Object evaluate(SQLRow row) {
+      switch (operator) {
+        case "AND": {
+          Boolean leftValue = SQLValues.isTrue(left.evaluate(row));
+          if (Boolean.FALSE.equals(leftValue)) return 0L;
+          Boolean rightValue = SQLValues.isTrue(right.evaluate(row));
+          if (Boolean.FALSE.equals(rightValue)) return 0L;
+          return leftValue == null || rightValue == null ? null : 1L;
+        }
+        case "OR": {
+          Boolean leftValue = SQLValues.isTrue(left.evaluate(row));
+          if (Boolean.TRUE.equals(leftValue)) return 1L;
+          Boolean rightValue = SQLValues.isTrue(right.evaluate(row));
+          if (Boolean.TRUE.equals(rightValue)) return 1L;
+          return leftValue == null || rightValue == null ? null : 0L;
+        }
+        case "IS":
+          return SQLValues.fromBoolean(SQLValues.compareNullsFirst(left.evaluate(row), right.evaluate(row)) == 0);
+        case "IS NOT":
+          return SQLValues.fromBoolean(SQLValues.compareNullsFirst(left.evaluate(row), right.evaluate(row)) != 0);
+        default:
+          break;
+      }
+      Object leftValue = left.evaluate(row);
+      if (leftValue == null) return null;
+      Object rightValue = right.evaluate(row);
+      if (rightValue == null) return null;
+      switch (operator) {
+        case "||":
+          return SQLValues.toText(leftValue) + SQLValues.toText(rightValue);
+        case "=":
+        case "==":
+          return SQLValues.fromBoolean(SQLValues.compare(leftValue, rightValue) == 0);
+        case "!=":
+        case "<>":
+          return SQLValues.fromBoolean(SQLValues.compare(leftValue, rightValue) != 0);
+        case "<":
+          return SQLValues.fromBoolean(SQLValues.compare(leftValue, rightValue) < 0);
+        case "<=":
+          return SQLValues.fromBoolean(SQLValues.compare(leftValue, rightValue) <= 0);
+        case ">":
+          return SQLValues.fromBoolean(SQLValues.compare(leftValue, rightValue) > 0);
+        case ">=":
+          return SQLValues.fromBoolean(SQLValues.compare(leftValue, rightValue) >= 0);
+        default:
+          return arithmetic(SQLValues.toNumber(leftValue), SQLValues.toNumber(rightValue));
+      }
+    }
+
+    private boolean isBitwise() {
+      return "<<".equals(operator) || ">>".equals(operator) || "&".equals(operator) || "|".equals(operator);
+    }
+
+    private Object arithmetic(Number leftValue, Number rightValue) {
+      if (leftValue instanceof Long && rightValue instanceof Long || isBitwise()) {
+        long l = leftValue.longValue();
+        long r = rightValue.longValue();
+        switch (operator) {
+          case "+":
+            return l + r;
+          case "-":
+            return l - r;
+          case "*":
+            return l * r;
+          case "/":
+            return r == 0 ? null : l / r;
+          case "%":
+            return r == 0 ? null : l % r;
+          case "<<":
+            return l << r;
+          case ">>":
+            return l >> r;
+          case "&":
+            return l & r;
+          case "|":
+            return l | r;
+          default:
+            throw new UnsupportedSQLException("Unsupported operator: " + operator);
+        }
+      }
+      double l = leftValue.doubleValue();
+      double r = rightValue.doubleValue();
+      switch (operator) {
+        case "+":
+          return l + r;
+        case "-":
+          return l - r;
+        case "*":
+          return l * r;
+        case "/":
+          return r == 0 ? null : l / r;
+        case "%":
+          return (long) r == 0 ? null : (Object) (double) ((long) l % (long) r);
+        default:
+          throw new UnsupportedSQLException("Unsupported operator: " + operator);
+      }
+    }
+  }
+
+  static class IsNull extends Expression {
+
+    private final Expression operand;
+
+    private final boolean not;
+
+    IsNull(Expression operand, boolean not) {
+      this.operand = operand;
+      this.not = not;
+    }
+
+    @Override
+    List<Expression> getChildren() {
+      return ImmutableList.of(operand);
+    }
+
+    @Override
+    Object evaluate(SQLRow row) {
+      return SQLValues.fromBoolean((operand.evaluate(row) == null) != not);
+    }
+  }
+
+  static class Between extends Expression {
+
+    private final Expression operand;
+
+    private final Expression lower;
+
+    private final Expression upper;
+
+    private final boolean not;
+
+    Between(Expression operand, Expression lower, Expression upper, boolean not) {
+      this.operand = operand;
+      this.lower = lower;
+      this.upper = upper;
+      this.not = not;
+    }
+
+    @Override
+    List<Expression> getChildren() {
+      return ImmutableList.of(operand, lower, upper);
+    }
+
+    @Override
+    Object evaluate(SQLRow row) {
+      Object value = operand.evaluate(row);
+      Object lowerValue = lower.evaluate(row);
+      Object upperValue = upper.evaluate(row);
+      if (value == null || lowerValue == null || upperValue == null) return null;
+      boolean between = SQLValues.compare(value, lowerValue) >= 0 && SQLValues.compare(value, upperValue) <= 0;
+      return SQLValues.fromBoolean(between != not);
+    }
+  }
+
+  static class In extends Expression {
+
+    private final Expression operand;
+
+    private final List<Expression> items;
+
+    private final boolean not;
+
+    In(Expression operand, List<Expression> items, boolean not) {
+      this.operand = operand;
+      this.items = items;
+      this.not = not;
+    }
+
+    @Override
+    List<Expression> getChildren() {
+      List<Expression> children = Lists.newArrayList(operand);
+      children.addAll(items);
+      return children;
+    }
+
+    @Override
+    Object evaluate(SQLRow row) {
+      Object value = operand.evaluate(row);
+      if (value == null) return null;
+      boolean hasNull = false;
+      for (Expression item : items) {
+        Object itemValue = item.evaluate(row);
+        if (itemValue == null) hasNull = true;
+        else if (SQLValues.compare(value, itemValue) == 0) return SQLValues.fromBoolean(!not);
+      }
+      return hasNull ? null : SQLValues.fromBoolean(not);
+    }
+  }
+
+  /**
+   * Case insensitive pattern matching, with % and _ wildcards.
+   */
+  static class Like extends Expression {
+
+    private final Expression operand;
+
+    private final Expression pattern;
+
+    private final Expression escape;
+
+    private final boolean not;
+
+    private String lastPattern;
+
+    private Pattern lastRegex;
+
+    Like(Expression operand, Expression pattern, Expression escape, boolean not) {
+      this.operand = operand;
+      this.pattern = pattern;
+      this.escape = escape;
+      this.not = not;
+    }
+
+    @Override
+    List<Expression> getChildren() {
+      List<Expression> children = Lists.newArrayList(operand, pattern);
+      if (escape != null) children.add(escape);
+      return children;
+    }
+
+    @Override
+    Object evaluate(SQLRow row) {
+      Object value = operand.evaluate(row);
+      Object patternValue = pattern.evaluate(row);
+      if (value == null || patternValue == null) return null;
+      String escapeChar = escape == null ? null : SQLValues.toText(escape.evaluate(row));
+      boolean matches = toRegex(SQLValues.toText(patternValue), escapeChar).matcher(SQLValues.toText(value)).matches();
+      return SQLValues.fromBoolean(matches != not);
+    }
+
+    private Pattern toRegex(String likePattern, String escapeChar) {
+      String key = escapeChar == null ? likePattern : escapeChar + likePattern;
+      if (key.equals(lastPattern)) return lastRegex;
+      StringBuilder regex = new StringBuilder();
+      boolean escaped = false;
+      for (char c : likePattern.toCharArray()) {
+        if (!escaped && escapeChar != null && escapeChar.length() == 1 && c == escapeChar.charAt(0)) {
+          escaped = true;
+          continue;
+        }
+        if (!escaped && c == '%') regex.append(".*");
+        else if (!escaped && c == '_') regex.append('.');
+        else regex.append(Pattern.quote(String.valueOf(c)));
+        escaped = false;
+      }
+      lastPattern = key;
+      lastRegex = Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+      return lastRegex;
+    }
+  }
+
+  static class Case extends Expression {
+
+    private final Expression operand;
+
+    private final List<Expression> whens;
+
+    private final List<Expression> thens;
+
+    private final Expression otherwise;
+
+    Case(Expression operand, List<Expression> whens, List<Expression> thens, Expression otherwise) {
+      this.operand = operand;
+      this.whens = whens;
+      this.thens = thens;
+      this.otherwise = otherwise;
+    }
+
+    @Override
+    List<Expression> getChildren() {
+      List<Expression> children = Lists.newArrayList();
+      if (operand != null) children.add(operand);
+      children.addAll(whens);
+      children.addAll(thens);
+      if (otherwise != null) children.add(otherwise);
+      return children;
+    }
+
+    @Override
+    Object evaluate(SQLRow row) {
+      Object value = operand == null ? null : operand.evaluate(row);
+      for (int i = 0; i < whens.size(); i++) {
+        Object when = whens.get(i).evaluate(row);
+        boolean matches = operand == null
+            ? Boolean.TRUE.equals(SQLValues.isTrue(when))
+            : value != null && when != null && SQLValues.compare(value, when) == 0;
+        if (matches) return thens.get(i).evaluate(row);
+      }
+      return otherwise == null ? null : otherwise.evaluate(row);
+    }
+  }
+
+  /**
+   * Scalar function.
+   */
+  static class Function extends Expression {
+
+    private final String name;
+
+    private final List<Expression> arguments;
+
+    /**
+     * @param name      lower case function name
+     * @param arguments
+     */
+    Function(String name, List<Expression> arguments) {
+      this.name = name;
+      this.arguments = arguments;
+      int count = arguments.size();
+      switch (name) {
+        case "lower":
+        case "upper":
+        case "length":
+        case "abs":
+        case "trim":
+        case "typeof":
+          checkArguments(count == 1);
+          break;
+        case "round":
+          checkArguments(count == 1 || count == 2);
+          break;
+        case "substr":
+        case "substring":
+          checkArguments(count == 2 || count == 3);
+          break;
+        case "ifnull":
+        case "nullif":
+        case "instr":
+          checkArguments(count == 2);
+          break;
+        case "coalesce":
+        case "min":
+        case "max":
+          checkArguments(count >= 2);
+          break;
+        default:
+          throw new UnsupportedSQLException("Unsupported function: " + name);
+      }
+    }
+
+    private void checkArguments(boolean valid) {
+      if (!valid) throw new UnsupportedSQLException("Wrong number of arguments to function " + name + "()");
+    }
+
+    @Override
+    List<Expression> getChildren() {
+      return arguments;
+    }
+
+    @Override
+    Object evaluate(SQLRow row) {
+      switch (name) {
+        case "coalesce":
+        case "ifnull":
+          for (Expression argument : arguments) {
+            Object value = argument.evaluate(row);
+            if (value != null) return value;
+          }
+          return null;
+        case "nullif": {
+          Object value = arguments.get(0).evaluate(row);
+          Object other = arguments.get(1).evaluate(row);
+          return value != null && other != null && SQLValues.compare(value, other) == 0 ? null : value;
+        }
+        case "typeof":
+          return typeOf(arguments.get(0).evaluate(row));
+        case "min":
+        case "max": {
+          Object result = null;
+          for (Expression argument : arguments) {
+            Object value = argument.evaluate(row);
+            if (value == null) return null;
+            int comparison = result == null ? 0 : SQLValues.compare(value, result);
+            if (result == null || ("min".equals(name) ? comparison < 0 : comparison > 0)) result = value;
+          }
+          return result;
+        }
+        default:
+          break;
+      }
+      Object value = arguments.get(0).evaluate(row);
+      if (value == null) return null;
+      switch (name) {
+        case "lower":
+          return SQLValues.toText(value).toLowerCase();
+        case "upper":
+          return SQLValues.toText(value).toUpperCase();
+        case "trim":
+          return SQLValues.toText(value).trim();
+        case "length":
+          return (long) SQLValues.toText(value).codePointCount(0, SQLValues.toText(value).length());
+        case "abs": {
+          Number number = SQLValues.toNumber(value);
+          return number instanceof Long ? (Object) Math.abs(number.longValue()) : Math.abs(number.doubleValue());
+        }
+        case "round": {
+          Object digitsValue = arguments.size() > 1 ? arguments.get(1).evaluate(row) : 0L;
+          int digits = digitsValue == null ? 0 : Math.max(0, SQLValues.toNumber(digitsValue).intValue());
+          double scale = Math.pow(10, digits);
+          double number = SQLValues.toNumber(value).doubleValue();
+          return Math.signum(number) * Math.round(Math.abs(number) * scale) / scale;
+        }
+        case "instr": {
+          Object other = arguments.get(1).evaluate(row);
+          return other == null ? null : (long) (SQLValues.toText(value).indexOf(SQLValues.toText(other)) + 1);
+        }
+        default:
+          return substr(SQLValues.toText(value), row);
+      }
+    }
+
+    private Object substr(String text, SQLRow row) {
+      Object startValue = arguments.get(1).evaluate(row);
+      Object lengthValue = arguments.size() > 2 ? arguments.get(2).evaluate(row) : (long) text.length();
+      if (startValue == null || lengthValue == null) return null;
+      long start = SQLValues.toNumber(startValue).longValue();
+      long length = SQLValues.toNumber(lengthValue).longValue();
+      // 1-based position, negative counts from the end
+      long from = start > 0 ? start - 1 : start < 0 ? text.length() + start : -1;
+      long to = from + length;
+      if (length < 0) {
+        to = from;
+        from = from + length;
+      }
+      from = Math.max(0, Math.min(text.length(), from));
+      to = Math.max(from, Math.min(text.length(), to));
+      return text.substring((int) from, (int) to);
+    }
+
+    private static String typeOf(Object value) {
+      if (value == null) return "null";
+      if (value instanceof Double) return "real";
+      if (value instanceof String) return "text";
+      return "integer";
+    }
+  }
+
+}
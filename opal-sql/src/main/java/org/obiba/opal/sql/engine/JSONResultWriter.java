@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.sql.engine;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Writes the result as a JSON object: {"columns":["name",...],"rows":[[value,...],...]}.
+ */
+public class JSONResultWriter implements SQLResultWriter {
+
+  private final Writer writer;
+
+  private boolean firstRow = true;
+
+  public JSONResultWriter(Writer writer) {
+    this.writer = writer;
+  }
+
+  @Override
+  public void writeHeader(List<String> columns) throws IOException {
+    writer.write("{\"columns\":[");
+    for (int i = 0; i < columns.size(); i++) {
+      if (i > 0) writer.write(',');
+      writeString(columns.get(i));
+    }
+    writer.write("],\"rows\":[");
+  }
+
+  @Override
+  public void writeRow(Object[] values) throws IOException {
+    if (!firstRow) writer.write(',');
+    firstRow = false;
+    writer.write('[');
+    for (int i = 0; i < values.length; i++) {
+      if (i > 0) writer.write(',');
+      writeValue(values[i]);
+    }
+    writer.write(']');
+  }
+
+  @Override
+  public void close() throws IOException {
+    writer.write("]}");
+    writer.close();
+  }
+
+  private void writeValue(Object value) throws IOException {
+    if (value == null) writer.write("null");
+    else if (value instanceof Boolean || value instanceof Long) writer.write(value.toString());
+    else if (value instanceof Double) {
+      double dbl = (Double) value;
+      writer.write(Double.isNaN(dbl) || Double.isInfinite(dbl) ? "null" : SQLValues.formatDouble(dbl));
+    } else writeString(value.toString());
+  }
+
+  private void writeString(String value) throws IOException {
+    writer.write('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"':
+          writer.write("\\\"");
+          break;
+        case '\\':
+          writer.write("\\\\");
+          break;
+        case '\n':
+          writer.write("\\n");
+          break;
+        case '\r':
+          writer.write("\\r");
+          break;
+        case '\t':
+          writer.write("\\t");
+          break;
+        default:
+          if (c < 0x20) writer.write(String.format("\\u%04x", (int) c));
+          else writer.write(c);
+      }
+    }
+    writer.write('"');
+  }
+
+}
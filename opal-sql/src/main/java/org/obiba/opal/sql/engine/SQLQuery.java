@@ -0,0 +1,514 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.sql.engine;
+
+import com.google.common.collect.Lists;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+import org.obiba.opal.sql.SQLLexer;
+import org.obiba.opal.sql.SQLParser;
+import org.obiba.opal.sql.SQLParserException;
+import org.obiba.opal.sql.UnsupportedSQLException;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A SELECT statement on a single table, compiled to be executed natively: result columns (with aggregate and scalar
+ * functions), DISTINCT, WHERE, GROUP BY, HAVING, ORDER BY, LIMIT and OFFSET clauses are supported. Joins,
+ * sub-queries, compound selects, common table expressions and window functions are not: parsing such statement
+ * fails with a {@link UnsupportedSQLException}.
+ */
+public class SQLQuery {
+
+  private final String sql;
+
+  private String tableName;
+
+  private String tableAlias;
+
+  private boolean distinct;
+
+  private final List<ResultColumn> resultColumns = Lists.newArrayList();
+
+  private Expression where;
+
+  private final List<Expression> groupBy = Lists.newArrayList();
+
+  private Expression having;
+
+  private final List<OrderingTerm> orderBy = Lists.newArrayList();
+
+  private Expression limit;
+
+  private Expression offset;
+
+  private SQLQuery(String sql) {
+    this.sql = sql;
+  }
+
+  /**
+   * Parse and compile a SQL query.
+   *
+   * @param sql
+   * @return
+   * @throws SQLParserException if the query is not valid
+   * @throws UnsupportedSQLException if the query is valid but cannot be executed natively
+   */
+  public static SQLQuery parse(String sql) {
+    SQLQuery query = new SQLQuery(sql);
+    SQLLexer lexer = new SQLLexer(CharStreams.fromString(sql));
+    SQLParser parser = new SQLParser(new CommonTokenStream(lexer));
+    BaseErrorListener errorListener = new BaseErrorListener() {
+      @Override
+      public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line, int charPositionInLine,
+                              String msg, RecognitionException e) {
+        // the grammar may not cover the whole SQL dialect
+        throw new UnsupportedSQLException("Syntax error at " + line + ":" + charPositionInLine + ": " + msg);
+      }
+    };
+    lexer.removeErrorListeners();
+    lexer.addErrorListener(errorListener);
+    parser.removeErrorListeners();
+    parser.addErrorListener(errorListener);
+    query.compile(parser.parse());
+    return query;
+  }
+
+  /**
+   * The table name as written in the FROM clause.
+   *
+   * @return
+   */
+  public String getTableName() {
+    return tableName;
+  }
+
+  /**
+   * Execute the query against the table and write its result.
+   *
+   * @param table
+   * @param writer
+   * @throws IOException
+   */
+  public void execute(SQLTable table, SQLResultWriter writer) throws IOException {
+    new SQLQueryExecutor(this, table).execute(writer);
+  }
+
+  @Override
+  public String toString() {
+    return sql;
+  }
+
+  //
+  // Plan accessors
+  //
+
+  String getTableAlias() {
+    return tableAlias;
+  }
+
+  boolean isDistinct() {
+    return distinct;
+  }
+
+  List<ResultColumn> getResultColumns() {
+    return resultColumns;
+  }
+
+  Expression getWhere() {
+    return where;
+  }
+
+  List<Expression> getGroupBy() {
+    return groupBy;
+  }
+
+  Expression getHaving() {
+    return having;
+  }
+
+  List<OrderingTerm> getOrderBy() {
+    return orderBy;
+  }
+
+  Expression getLimit() {
+    return limit;
+  }
+
+  Expression getOffset() {
+    return offset;
+  }
+
+  //
+  // Compilation
+  //
+
+  private void compile(SQLParser.ParseContext parse) {
+    if (parse.sql_stmt_list().size() != 1 || parse.sql_stmt_list(0).sql_stmt().size() != 1)
+      throw new UnsupportedSQLException("A single statement is expected");
+    SQLParser.Sql_stmtContext stmt = parse.sql_stmt_list(0).sql_stmt(0);
+    SQLParser.Select_stmtContext select = stmt.select_stmt();
+    if (select == null || stmt.EXPLAIN() != null) throw new UnsupportedSQLException("Only SELECT statements are supported");
+    if (select.common_table_stmt() != null) throw new UnsupportedSQLException("WITH clause is not supported");
+    if (select.select_core().size() != 1) throw new UnsupportedSQLException("Compound SELECT is not supported");
+    compileSelectCore(select.select_core(0));
+    if (select.order_by_stmt() != null) {
+      for (SQLParser.Ordering_termContext term : select.order_by_stmt().ordering_term()) {
+        if (term.COLLATE() != null) throw new UnsupportedSQLException("COLLATE is not supported");
+        boolean desc = term.asc_desc() != null && term.asc_desc().DESC() != null;
+        Boolean nullsFirst = term.NULLS() == null ? null : term.FIRST() != null;
+        orderBy.add(new OrderingTerm(compileOrderingExpression(term.expr()), desc, nullsFirst));
+      }
+    }
+    SQLParser.Limit_stmtContext limitStmt = select.limit_stmt();
+    if (limitStmt != null) {
+      limit = compileConstant(limitStmt.expr(0));
+      if (limitStmt.expr().size() > 1) {
+        Expression second = compileConstant(limitStmt.expr(1));
+        // "LIMIT offset, count" form
+        if (limitStmt.OFFSET() == null) {
+          offset = limit;
+          limit = second;
+        } else offset = second;
+      }
+    }
+  }
+
+  private void compileSelectCore(SQLParser.Select_coreContext core) {
+    if (core.SELECT() == null) throw new UnsupportedSQLException("VALUES statement is not supported");
+    if (core.WINDOW() != null) throw new UnsupportedSQLException("WINDOW clause is not supported");
+    distinct = core.DISTINCT() != null;
+    compileFrom(core);
+    for (SQLParser.Result_columnContext column : core.result_column()) {
+      if (column.expr() == null) resultColumns.add(new ResultColumn(null, null));
+      else {
+        String label = column.column_alias() == null ? getLabel(column.expr()) : unquote(column.column_alias().getText());
+        resultColumns.add(new ResultColumn(compileExpression(column.expr()), label));
+      }
+    }
+    // WHERE, GROUP BY and HAVING expressions, in the order of the clauses
+    String clause = null;
+    for (ParseTree child : core.children) {
+      if (child instanceof TerminalNode) {
+        int type = ((TerminalNode) child).getSymbol().getType();
+        if (type == SQLParser.WHERE || type == SQLParser.GROUP || type == SQLParser.HAVING)
+          clause = child.getText().toUpperCase(Locale.ENGLISH);
+      } else if (child instanceof SQLParser.ExprContext && clause != null) {
+        Expression expression = compileExpression((SQLParser.ExprContext) child);
+        if ("WHERE".equals(clause)) {
+          if (expression.hasAggregate()) throw new SQLParserException("misuse of aggregate function in WHERE clause");
+          where = expression;
+        } else if ("GROUP".equals(clause)) {
+          if (expression.hasAggregate()) throw new SQLParserException("aggregate functions are not allowed in the GROUP BY clause");
+          groupBy.add(expression);
+        } else having = expression;
+      }
+    }
+    if (having != null && groupBy.isEmpty() && !hasAggregate())
+      throw new SQLParserException("a GROUP BY clause is required before HAVING");
+  }
+
+  private void compileFrom(SQLParser.Select_coreContext core) {
+    if (core.FROM() == null) throw new UnsupportedSQLException("SELECT without FROM clause is not supported");
+    List<SQLParser.Table_or_subqueryContext> tables = core.table_or_subquery();
+    if (core.join_clause() != null) {
+      if (!core.join_clause().join_operator().isEmpty()) throw new UnsupportedSQLException("Joins are not supported");
+      tables = core.join_clause().table_or_subquery();
+    }
+    if (tables.size() != 1) throw new UnsupportedSQLException("Joins are not supported");
+    SQLParser.Table_or_subqueryContext table = tables.get(0);
+    if (table.table_name() == null || table.schema_name() != null)
+      throw new UnsupportedSQLException("Sub-queries and table functions are not supported");
+    tableName = table.table_name().getText();
+    tableAlias = table.table_alias() == null ? null : unquote(table.table_alias().getText());
+  }
+
+  private boolean hasAggregate() {
+    return resultColumns.stream().anyMatch(c -> c.getExpression() != null && c.getExpression().hasAggregate());
+  }
+
+  /**
+   * Ordering term can refer to a result column by its alias or by its position.
+   *
+   * @param ctx
+   * @return
+   */
+  private Expression compileOrderingExpression(SQLParser.ExprContext ctx) {
+    if (ctx.literal_value() != null && ctx.literal_value().NUMERIC_LITERAL() != null) {
+      Number position = SQLValues.parseNumber(ctx.getText());
+      if (position instanceof Long) {
+        int index = position.intValue() - 1;
+        if (index < 0 || index >= resultColumns.size())
+          throw new SQLParserException("ORDER BY term out of range - should be between 1 and " + resultColumns.size());
+        return new ResultColumnReference(index);
+      }
+    }
+    if (ctx.column_name() != null && ctx.table_name() == null && ctx.children.size() == 1) {
+      String name = unquote(ctx.column_name().getText());
+      for (int i = 0; i < resultColumns.size(); i++) {
+        ResultColumn column = resultColumns.get(i);
+        if (column.getExpression() != null && name.equalsIgnoreCase(column.getLabel()))
+          return new ResultColumnReference(i);
+      }
+    }
+    return compileExpression(ctx);
+  }
+
+  private Expression compileConstant(SQLParser.ExprContext ctx) {
+    Expression expression = compileExpression(ctx);
+    if (expression.hasColumn() || expression.hasAggregate())
+      throw new SQLParserException("LIMIT and OFFSET must be constant");
+    return expression;
+  }
+
+  private Expression compileExpression(SQLParser.ExprContext ctx) {
+    if (ctx.literal_value() != null) return compileLiteral(ctx.literal_value());
+    if (ctx.BIND_PARAMETER() != null) throw new UnsupportedSQLException("Bind parameters are not supported");
+    if (ctx.raise_function() != null || ctx.CAST() != null || ctx.COLLATE() != null || ctx.select_stmt() != null
+        || ctx.EXISTS() != null || ctx.GLOB() != null || ctx.MATCH() != null || ctx.REGEXP() != null)
+      throw new UnsupportedSQLException("Unsupported expression: " + ctx.getText());
+    if (ctx.function_name() != null) return compileFunction(ctx);
+    if (ctx.CASE() != null) return compileCase(ctx);
+    if (ctx.unary_operator() != null) return new Expression.Unary(ctx.unary_operator().getText(), compileExpression(ctx.expr(0)));
+    ParseTree first = ctx.getChild(0);
+    if (ctx.column_name() != null && !(first instanceof SQLParser.ExprContext)) {
+      String qualifier = ctx.table_name() == null ? null : unquote(ctx.table_name().getText());
+      if (ctx.schema_name() != null) qualifier = unquote(ctx.schema_name().getText()) + "." + qualifier;
+      return new Expression.Column(qualifier, unquote(ctx.column_name().getText()));
+    }
+    if (first instanceof TerminalNode && "(".equals(first.getText())) {
+      if (ctx.expr().size() != 1) throw new UnsupportedSQLException("Row values are not supported");
+      return compileExpression(ctx.expr(0));
+    }
+    if (ctx.table_name() != null || ctx.table_function_name() != null)
+      throw new UnsupportedSQLException("Unsupported expression: " + ctx.getText());
+
+    Expression left = compileExpression(ctx.expr(0));
+    boolean not = ctx.NOT() != null;
+    if (ctx.BETWEEN() != null) {
+      SQLParser.ExprContext lower = ctx.expr(1);
+      // the grammar may read "x BETWEEN a AND b AND c" as "x BETWEEN (a AND b) AND c"
+      if (lower.AND() != null && lower.expr().size() == 2) {
+        Expression between = new Expression.Between(left, compileExpression(lower.expr(0)), compileExpression(lower.expr(1)), not);
+        return new Expression.Binary("AND", between, compileExpression(ctx.expr(2)));
+      }
+      return new Expression.Between(left, compileExpression(lower), compileExpression(ctx.expr(2)), not);
+    }
+    if (ctx.IN() != null) return new Expression.In(left, compileInItems(ctx), not);
+    if (ctx.LIKE() != null) {
+      Expression escape = ctx.ESCAPE() == null ? null : compileExpression(ctx.expr(2));
+      return new Expression.Like(left, compileExpression(ctx.expr(1)), escape, not);
+    }
+    if (ctx.ISNULL() != null) return new Expression.IsNull(left, false);
+    if (ctx.NOTNULL() != null || (ctx.NULL_() != null && ctx.expr().size() == 1)) return new Expression.IsNull(left, true);
+    if (ctx.IS() != null) {
+      SQLParser.ExprContext right = ctx.expr(1);
+      // the grammar may read "x IS NOT y" as "x IS (NOT y)", sqlite binds IS NOT first
+      if (!not && right.unary_operator() != null && right.unary_operator().NOT() != null) {
+        not = true;
+        right = right.expr(0);
+      }
+      return new Expression.Binary(not ? "IS NOT" : "IS", left, compileExpression(right));
+    }
+    if (ctx.expr().size() == 2) return new Expression.Binary(ctx.getChild(1).getText(), left, compileExpression(ctx.expr(1)));
+    throw new UnsupportedSQLException("Unsupported expression: " + ctx.getText());
+  }
+
+  private List<Expression> compileInItems(SQLParser.ExprContext ctx) {
+    List<Expression> items = Lists.newArrayList();
+    List<SQLParser.ExprContext> exprs = ctx.expr();
+    if (exprs.size() == 2 && !(ctx.getChild(ctx.getChildCount() - 1) instanceof TerminalNode)) {
+      // parsed as "expr IN expr", with a parenthesized list
+      SQLParser.ExprContext list = exprs.get(1);
+      if (list.getChild(0) instanceof TerminalNode && "(".equals(list.getChild(0).getText()) && list.select_stmt() == null) {
+        list.expr().forEach(item -> items.add(compileExpression(item)));
+        return items;
+      }
+      throw new UnsupportedSQLException("IN operand must be a list of values");
+    }
+    exprs.subList(1, exprs.size()).forEach(item -> items.add(compileExpression(item)));
+    return items;
+  }
+
+  private Expression compileFunction(SQLParser.ExprContext ctx) {
+    if (ctx.filter_clause() != null || ctx.over_clause() != null)
+      throw new UnsupportedSQLException("Window functions and filter clauses are not supported");
+    String name = unquote(ctx.function_name().getText()).toLowerCase(Locale.ENGLISH);
+    boolean star = ctx.children.stream().anyMatch(c -> c instanceof TerminalNode && "*".equals(c.getText()));
+    List<Expression> arguments = Lists.newArrayList();
+    ctx.expr().forEach(arg -> arguments.add(compileExpression(arg)));
+    if (Aggregate.isAggregate(name, arguments.size())) {
+      if (star) {
+        if (!"count".equals(name)) throw new SQLParserException("wrong number of arguments to function " + name + "()");
+        return new Expression.AggregateCall(name, null, false);
+      }
+      if (arguments.size() != 1) throw new SQLParserException("wrong number of arguments to function " + name + "()");
+      return new Expression.AggregateCall(name, arguments.get(0), ctx.DISTINCT() != null);
+    }
+    if (star || ctx.DISTINCT() != null) throw new SQLParserException("wrong use of function " + name + "()");
+    return new Expression.Function(name, arguments);
+  }
+
+  private Expression compileCase(SQLParser.ExprContext ctx) {
+    Expression operand = null;
+    List<Expression> whens = Lists.newArrayList();
+    List<Expression> thens = Lists.newArrayList();
+    Expression otherwise = null;
+    String previous = null;
+    for (ParseTree child : ctx.children) {
+      if (child instanceof TerminalNode) previous = child.getText().toUpperCase(Locale.ENGLISH);
+      else if (child instanceof SQLParser.ExprContext) {
+        Expression expression = compileExpression((SQLParser.ExprContext) child);
+        if ("CASE".equals(previous)) operand = expression;
+        else if ("WHEN".equals(previous)) whens.add(expression);
+        else if ("THEN".equals(previous)) thens.add(expression);
+        else if ("ELSE".equals(previous)) otherwise = expression;
+      }
+    }
+    return new Expression.Case(operand, whens, thens, otherwise);
+  }
+
+  private Expression compileLiteral(SQLParser.Literal_valueContext ctx) {
+    if (ctx.NULL_() != null) return new Expression.Literal(null);
+    if (ctx.TRUE_() != null) return new Expression.Literal(1L);
+    if (ctx.FALSE_() != null) return new Expression.Literal(0L);
+    if (ctx.STRING_LITERAL() != null) return new Expression.Literal(unquote(ctx.getText()));
+    if (ctx.NUMERIC_LITERAL() != null) {
+      String text = ctx.getText();
+      Number number = text.toLowerCase(Locale.ENGLISH).startsWith("0x")
+          ? Long.parseLong(text.substring(2), 16)
+          : SQLValues.parseNumber(text);
+      if (number == null) throw new SQLParserException("Invalid number: " + text);
+      return new Expression.Literal(number);
+    }
+    throw new UnsupportedSQLException("Unsupported literal: " + ctx.getText());
+  }
+
+  /**
+   * The label of an unaliased result column is the column name or the expression as written.
+   *
+   * @param ctx
+   * @return
+   */
+  private String getLabel(SQLParser.ExprContext ctx) {
+    if (ctx.column_name() != null && ctx.children.size() >= 1 && !(ctx.getChild(0) instanceof SQLParser.ExprContext)
+        && ctx.function_name() == null)
+      return unquote(ctx.column_name().getText());
+    return ctx.start.getInputStream().getText(Interval.of(ctx.start.getStartIndex(), ctx.stop.getStopIndex()));
+  }
+
+  /**
+   * Remove the quotes of an identifier or of a string literal.
+   *
+   * @param text
+   * @return
+   */
+  static String unquote(String text) {
+    if (text.length() < 2) return text;
+    char first = text.charAt(0);
+    char last = text.charAt(text.length() - 1);
+    if ((first == '"' || first == '`' || first == '\'') && first == last) {
+      String quote = String.valueOf(first);
+      return text.substring(1, text.length() - 1).replace(quote + quote, quote);
+    }
+    if (first == '[' && last == ']') return text.substring(1, text.length() - 1);
+    return text;
+  }
+
+  //
+  // Plan elements
+  //
+
+  /**
+   * A result column: an expression and its label, or all the table columns if the expression is null.
+   */
+  static class ResultColumn {
+
+    private final Expression expression;
+
+    private final String label;
+
+    private ResultColumn(Expression expression, String label) {
+      this.expression = expression;
+      this.label = label;
+    }
+
+    Expression getExpression() {
+      return expression;
+    }
+
+    String getLabel() {
+      return label;
+    }
+
+    boolean isStar() {
+      return expression == null;
+    }
+  }
+
+  static class OrderingTerm {
+
+    private final Expression expression;
+
+    private final boolean descending;
+
+    private final Boolean nullsFirst;
+
+    private OrderingTerm(Expression expression, boolean descending, Boolean nullsFirst) {
+      this.expression = expression;
+      this.descending = descending;
+      this.nullsFirst = nullsFirst;
+    }
+
+    Expression getExpression() {
+      return expression;
+    }
+
+    boolean isDescending() {
+      return descending;
+    }
+
+    /**
+     * Nulls are the smallest values, unless specified.
+     *
+     * @return
+     */
+    boolean isNullsFirst() {
+      return nullsFirst == null ? !descending : nullsFirst;
+    }
+  }
+
+  /**
+   * Refers to the value of a result column, evaluated by the executor.
+   */
+  static class ResultColumnReference extends Expression {
+
+    private final int index;
+
+    private ResultColumnReference(int index) {
+      this.index = index;
+    }
+
+    int getIndex() {
+      return index;
+    }
+
+    @Override
+    Object evaluate(SQLRow row) {
+      throw new IllegalStateException("Result column reference must be resolved by the executor");
+    }
+  }
+
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.sql.engine;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.obiba.opal.sql.SQLParserException;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Executes a {@link SQLQuery} against a {@link SQLTable}. The table is scanned by batches of rows: the columns of the
+ * WHERE clause are read first and the other referred columns are read only for the rows that satisfy it. When the
+ * query has no grouping, no DISTINCT and no ORDER BY, the rows are streamed to the writer as they are scanned and
+ * the scan stops as soon as the LIMIT is reached.
+ */
+class SQLQueryExecutor {
+
+  static final int BATCH_SIZE = 1000;
+
+  private final SQLQuery query;
+
+  private final SQLTable table;
+
+  /**
+   * Referred table column names, by slot.
+   */
+  private final List<String> columns = Lists.newArrayList();
+
+  private final List<String> whereColumns = Lists.newArrayList();
+
+  private final List<String> otherColumns = Lists.newArrayList();
+
+  private final List<Expression.AggregateCall> aggregateCalls = Lists.newArrayList();
+
+  /**
+   * Result column labels and expressions, stars being expanded.
+   */
+  private final List<String> labels = Lists.newArrayList();
+
+  private final List<Expression> outputs = Lists.newArrayList();
+
+  private final boolean grouped;
+
+  private final long limit;
+
+  private final long offset;
+
+  SQLQueryExecutor(SQLQuery query, SQLTable table) {
+    this.query = query;
+    this.table = table;
+    List<String> tableColumns = table.getColumnNames();
+    for (SQLQuery.ResultColumn resultColumn : query.getResultColumns()) {
+      if (resultColumn.isStar()) {
+        for (String column : tableColumns) {
+          labels.add(column);
+          outputs.add(new Expression.Column(null, column));
+        }
+      } else {
+        labels.add(resultColumn.getLabel());
+        outputs.add(resultColumn.getExpression());
+      }
+    }
+    // bind columns and aggregates
+    if (query.getWhere() != null) bind(query.getWhere(), whereColumns);
+    outputs.forEach(expression -> bind(expression, otherColumns));
+    query.getGroupBy().forEach(expression -> bind(expression, otherColumns));
+    if (query.getHaving() != null) bind(query.getHaving(), otherColumns);
+    query.getOrderBy().forEach(term -> bind(term.getExpression(), otherColumns));
+    grouped = !query.getGroupBy().isEmpty() || !aggregateCalls.isEmpty();
+    limit = evaluateConstant(query.getLimit(), -1);
+    offset = Math.max(0, evaluateConstant(query.getOffset(), 0));
+  }
+
+  void execute(SQLResultWriter writer) throws IOException {
+    try {
+      writer.writeHeader(labels);
+      RowSink sink = grouped ? new GroupingSink() : isStreamable() ? new StreamingSink(writer) : new CollectingSink();
+      scan(sink);
+      sink.flush(writer);
+    } finally {
+      writer.close();
+    }
+  }
+
+  //
+  // Private methods
+  //
+
+  private boolean isStreamable() {
+    return !query.isDistinct() && query.getOrderBy().isEmpty();
+  }
+
+  /**
+   * Read the table by batches of rows, applying the filter.
+   *
+   * @param sink
+   * @throws IOException
+   */
+  private void scan(RowSink sink) throws IOException {
+    int rowCount = table.getRowCount();
+    for (int from = 0; from < rowCount && !sink.isDone(); from += BATCH_SIZE) {
+      int to = Math.min(rowCount, from + BATCH_SIZE);
+      int[] rows = new int[to - from];
+      for (int i = 0; i < rows.length; i++) rows[i] = from + i;
+      Object[][] rowValues = new Object[rows.length][];
+      for (int i = 0; i < rows.length; i++) rowValues[i] = new Object[columns.size()];
+
+      if (query.getWhere() != null) {
+        fill(rowValues, whereColumns, table.getValues(whereColumns, rows), rows.length);
+        List<Integer> selected = Lists.newArrayList();
+        for (int i = 0; i < rows.length; i++) {
+          if (Boolean.TRUE.equals(SQLValues.isTrue(query.getWhere().evaluate(new SQLRow(rowValues[i], null)))))
+            selected.add(i);
+        }
+        if (selected.isEmpty()) continue;
+        int[] selectedRows = new int[selected.size()];
+        Object[][] selectedValues = new Object[selected.size()][];
+        for (int i = 0; i < selectedRows.length; i++) {
+          selectedRows[i] = rows[selected.get(i)];
+          selectedValues[i] = rowValues[selected.get(i)];
+        }
+        rows = selectedRows;
+        rowValues = selectedValues;
+      }
+      if (!otherColumns.isEmpty()) fill(rowValues, otherColumns, table.getValues(otherColumns, rows), rows.length);
+
+      for (Object[] values : rowValues) {
+        sink.accept(new SQLRow(values, null));
+        if (sink.isDone()) break;
+      }
+    }
+  }
+
+  private void fill(Object[][] rowValues, List<String> names, Object[][] columnValues, int count) {
+    for (int c = 0; c < names.size(); c++) {
+      int slot = columns.indexOf(names.get(c));
+      for (int r = 0; r < count; r++) {
+        rowValues[r][slot] = columnValues[c][r];
+      }
+    }
+  }
+
+  private void bind(Expression expression, List<String> target) {
+    expression.accept(node -> {
+      if (node instanceof Expression.Column) {
+        Expression.Column column = (Expression.Column) node;
+        String name = resolveColumn(column);
+        if (!columns.contains(name)) {
+          columns.add(name);
+          target.add(name);
+        }
+        column.bind(columns.indexOf(name));
+      } else if (node instanceof Expression.AggregateCall) {
+        Expression.AggregateCall call = (Expression.AggregateCall) node;
+        if (!aggregateCalls.contains(call)) {
+          call.bind(aggregateCalls.size());
+          aggregateCalls.add(call);
+        }
+      }
+    });
+  }
+
+  /**
+   * Column names are case insensitive, unless several columns have the same name with different cases.
+   *
+   * @param column
+   * @return
+   */
+  private String resolveColumn(Expression.Column column) {
+    String qualifier = column.getQualifier();
+    if (qualifier != null && !isTableQualifier(qualifier))
+      throw new SQLParserException("no such column: " + qualifier + "." + column.getName());
+    List<String> tableColumns = table.getColumnNames();
+    if (tableColumns.contains(column.getName())) return column.getName();
+    String resolved = null;
+    for (String name : tableColumns) {
+      if (name.equalsIgnoreCase(column.getName())) {
+        if (resolved != null) throw new SQLParserException("ambiguous column name: " + column.getName());
+        resolved = name;
+      }
+    }
+    if (resolved == null) throw new SQLParserException("no such column: " + column.getName());
+    return resolved;
+  }
+
+  private boolean isTableQualifier(String qualifier) {
+    if (qualifier.equalsIgnoreCase(query.getTableAlias())) return true;
+    String tableName = SQLQuery.unquote(query.getTableName());
+    return qualifier.equalsIgnoreCase(tableName) || qualifier.equalsIgnoreCase(tableName.substring(tableName.lastIndexOf('.') + 1));
+  }
+
+  private long evaluateConstant(Expression expression, long defaultValue) {
+    if (expression == null) return defaultValue;
+    Object value = expression.evaluate(new SQLRow(new Object[0], null));
+    return value == null ? defaultValue : SQLValues.toNumber(value).longValue();
+  }
+
+  private Object[] evaluateOutputs(SQLRow row) {
+    Object[] values = new Object[outputs.size()];
+    for (int i = 0; i < values.length; i++) values[i] = outputs.get(i).evaluate(row);
+    return values;
+  }
+
+  private Object[] evaluateSortKeys(SQLRow row, Object[] outputValues) {
+    List<SQLQuery.OrderingTerm> terms = query.getOrderBy();
+    Object[] keys = new Object[terms.size()];
+    for (int i = 0; i < keys.length; i++) {
+      Expression expression = terms.get(i).getExpression();
+      keys[i] = expression instanceof SQLQuery.ResultColumnReference
+          ? outputValues[((SQLQuery.ResultColumnReference) expression).getIndex()]
+          : expression.evaluate(row);
+    }
+    return keys;
+  }
+
+  private int compareSortKeys(Object[] keys1, Object[] keys2) {
+    List<SQLQuery.OrderingTerm> terms = query.getOrderBy();
+    for (int i = 0; i < keys1.length; i++) {
+      SQLQuery.OrderingTerm term = terms.get(i);
+      Object key1 = keys1[i];
+      Object key2 = keys2[i];
+      int comparison;
+      if (key1 == null || key2 == null) {
+        if (key1 == key2) continue;
+        comparison = (key1 == null) == term.isNullsFirst() ? -1 : 1;
+      } else {
+        comparison = SQLValues.compare(key1, key2);
+        if (term.isDescending()) comparison = -comparison;
+      }
+      if (comparison != 0) return comparison;
+    }
+    return 0;
+  }
+
+  //
+  // Row sinks
+  //
+
+  private interface RowSink {
+
+    void accept(SQLRow row) throws IOException;
+
+    /**
+     * Whether no more rows are needed.
+     *
+     * @return
+     */
+    boolean isDone();
+
+    void flush(SQLResultWriter writer) throws IOException;
+  }
+
+  /**
+   * Write the rows as they come.
+   */
+  private class StreamingSink implements RowSink {
+
+    private final SQLResultWriter writer;
+
+    private long skipped = 0;
+
+    private long written = 0;
+
+    private StreamingSink(SQLResultWriter writer) {
+      this.writer = writer;
+    }
+
+    @Override
+    public void accept(SQLRow row) throws IOException {
+      if (skipped < offset) {
+        skipped++;
+        return;
+      }
+      writer.writeRow(evaluateOutputs(row));
+      written++;
+    }
+
+    @Override
+    public boolean isDone() {
+      return limit >= 0 && written >= limit;
+    }
+
+    @Override
+    public void flush(SQLResultWriter writer) {
+      // rows were already written
+    }
+  }
+
+  /**
+   * Collect the result rows, to be deduplicated and/or sorted.
+   */
+  private class CollectingSink implements RowSink {
+
+    private final List<Object[][]> records = Lists.newArrayList();
+
+    private final Set<List<Object>> distinctValues = Sets.newHashSet();
+
+    @Override
+    public void accept(SQLRow row) {
+      Object[] outputValues = evaluateOutputs(row);
+      if (query.isDistinct() && !distinctValues.add(normalize(outputValues))) return;
+      records.add(new Object[][]{outputValues, evaluateSortKeys(row, outputValues)});
+    }
+
+    @Override
+    public boolean isDone() {
+      return false;
+    }
+
+    @Override
+    public void flush(SQLResultWriter writer) throws IOException {
+      if (!query.getOrderBy().isEmpty()) records.sort((r1, r2) -> compareSortKeys(r1[1], r2[1]));
+      long end = limit < 0 ? records.size() : Math.min(records.size(), offset + limit);
+      for (long i = offset; i < end; i++) {
+        writer.writeRow(records.get((int) i)[0]);
+      }
+    }
+
+    private List<Object> normalize(Object[] values) {
+      List<Object> normalized = Lists.newArrayListWithCapacity(values.length);
+      for (Object value : values) normalized.add(SQLValues.normalize(value));
+      return normalized;
+    }
+  }
+
+  /**
+   * Accumulate the aggregates by group, then collect the result rows of the groups.
+   */
+  private class GroupingSink implements RowSink {
+
+    private final Map<List<Object>, Group> groups = Maps.newHashMap();
+
+    @Override
+    public void accept(SQLRow row) {
+      List<Object> key = Lists.newArrayListWithCapacity(query.getGroupBy().size());
+      for (Expression expression : query.getGroupBy()) key.add(SQLValues.normalize(expression.evaluate(row)));
+      Group group = groups.computeIfAbsent(key, k -> new Group());
+      for (Expression.AggregateCall call : aggregateCalls) {
+        group.aggregates[call.getSlot()].add(call.evaluateArgument(row));
+      }
+      group.row = row;
+      group.key = key;
+    }
+
+    @Override
+    public boolean isDone() {
+      return false;
+    }
+
+    @Override
+    public void flush(SQLResultWriter writer) throws IOException {
+      // aggregates without grouping always produce one row
+      if (groups.isEmpty() && query.getGroupBy().isEmpty()) {
+        Group group = new Group();
+        group.row = new SQLRow(new Object[columns.size()], null);
+        group.key = Collections.emptyList();
+        groups.put(group.key, group);
+      }
+      List<Group> sortedGroups = Lists.newArrayList(groups.values());
+      // groups come in the order of their keys
+      sortedGroups.sort((g1, g2) -> {
+        for (int i = 0; i < g1.key.size(); i++) {
+          int comparison = SQLValues.compareNullsFirst(g1.key.get(i), g2.key.get(i));
+          if (comparison != 0) return comparison;
+        }
+        return 0;
+      });
+      CollectingSink collector = new CollectingSink();
+      for (Group group : sortedGroups) {
+        SQLRow groupRow = group.toRow();
+        if (query.getHaving() != null && !Boolean.TRUE.equals(SQLValues.isTrue(query.getHaving().evaluate(groupRow))))
+          continue;
+        collector.accept(groupRow);
+      }
+      collector.flush(writer);
+    }
+  }
+
+  private class Group {
+
+    private final Aggregate[] aggregates = new Aggregate[aggregateCalls.size()];
+
+    /**
+     * Last row of the group, for the values of the columns that are not aggregated.
+     */
+    private SQLRow row;
+
+    private List<Object> key;
+
+    private Group() {
+      for (Expression.AggregateCall call : aggregateCalls) aggregates[call.getSlot()] = call.newAggregate();
+    }
+
+    private SQLRow toRow() {
+      Object[] values = new Object[columns.size()];
+      for (int i = 0; i < values.length; i++) values[i] = row.getValue(i);
+      return new SQLRow(values, aggregates);
+    }
+  }
+
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.sql.engine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Streams the result of a SQL query, row by row. Closing the writer completes the output.
+ */
+public interface SQLResultWriter extends Closeable {
+
+  void writeHeader(List<String> columns) throws IOException;
+
+  void writeRow(Object[] values) throws IOException;
+
+}
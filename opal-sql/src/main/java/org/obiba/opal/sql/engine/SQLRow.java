@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.sql.engine;
+
+/**
+ * The values of the columns of a table row, by slot, and the aggregates of its group, if any.
+ */
+class SQLRow {
+
+  private final Object[] values;
+
+  private final Aggregate[] aggregates;
+
+  SQLRow(Object[] values, Aggregate[] aggregates) {
+    this.values = values;
+    this.aggregates = aggregates;
+  }
+
+  Object getValue(int slot) {
+    return values[slot];
+  }
+
+  Aggregate getAggregate(int slot) {
+    return aggregates[slot];
+  }
+
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.sql.engine;
+
+import java.util.List;
+
+/**
+ * A table queried by the SQL engine, read column by column for batches of rows, so that only the columns
+ * referred by the query are read, and only for the rows that satisfy its filter.
+ * Column values are null, Long, Double, Boolean or String.
+ */
+public interface SQLTable {
+
+  /**
+   * The column names, in the table order.
+   *
+   * @return
+   */
+  List<String> getColumnNames();
+
+  int getRowCount();
+
+  /**
+   * Read the values of some columns for some rows.
+   *
+   * @param columns column names
+   * @param rows    row positions, in ascending order
+   * @return the values by column and then by row
+   */
+  Object[][] getValues(List<String> columns, int[] rows);
+
+}
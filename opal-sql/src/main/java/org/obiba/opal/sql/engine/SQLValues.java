@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.sql.engine;
+
+import java.math.BigDecimal;
+import java.util.Comparator;
+
+/**
+ * Conversions and comparisons of the values, following the SQLite semantics: values are null, integers (Long),
+ * reals (Double), texts (String) or booleans (Boolean, handled as 0/1 integers). Nulls come first, then numbers,
+ * then texts; a text that looks like a number is compared as a number.
+ */
+final class SQLValues {
+
+  static final Comparator<Object> NULLS_FIRST = SQLValues::compareNullsFirst;
+
+  private SQLValues() {
+  }
+
+  static boolean isNumeric(Object value) {
+    return value instanceof Number || value instanceof Boolean;
+  }
+
+  /**
+   * @param value
+   * @return null, a Long or a Double
+   */
+  static Number toNumber(Object value) {
+    if (value == null) return null;
+    if (value instanceof Long) return (Long) value;
+    if (value instanceof Double) return (Double) value;
+    if (value instanceof Integer || value instanceof Short || value instanceof Byte) return ((Number) value).longValue();
+    if (value instanceof Number) return ((Number) value).doubleValue();
+    if (value instanceof Boolean) return (Boolean) value ? 1L : 0L;
+    Number number = parseNumber(value.toString());
+    return number == null ? 0L : number;
+  }
+
+  /**
+   * Parse a text as a number.
+   *
+   * @param text
+   * @return null if the text is not a number
+   */
+  static Number parseNumber(String text) {
+    String str = text.trim();
+    if (str.isEmpty()) return null;
+    try {
+      return Long.parseLong(str);
+    } catch (NumberFormatException e) {
+      // not an integer
+    }
+    try {
+      double dbl = Double.parseDouble(str);
+      // reject java specific notations (NaN, Infinity, 1d, 1f)
+      char last = str.charAt(str.length() - 1);
+      return Character.isDigit(last) || last == '.' ? dbl : null;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @param value
+   * @return null when unknown
+   */
+  static Boolean isTrue(Object value) {
+    if (value == null) return null;
+    if (value instanceof Boolean) return (Boolean) value;
+    return toNumber(value).doubleValue() != 0;
+  }
+
+  static Object fromBoolean(Boolean value) {
+    return value == null ? null : value ? 1L : 0L;
+  }
+
+  static String toText(Object value) {
+    if (value == null) return null;
+    if (value instanceof Boolean) return (Boolean) value ? "1" : "0";
+    if (value instanceof Double) return formatDouble((Double) value);
+    return value.toString();
+  }
+
+  static String formatDouble(double value) {
+    if (Double.isNaN(value) || Double.isInfinite(value)) return Double.toString(value);
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) return Long.toString((long) value);
+    return new BigDecimal(Double.toString(value)).stripTrailingZeros().toPlainString();
+  }
+
+  /**
+   * Compare two non null values.
+   *
+   * @param left
+   * @param right
+   * @return
+   */
+  static int compare(Object left, Object right) {
+    boolean leftNumeric = isNumeric(left);
+    boolean rightNumeric = isNumeric(right);
+    if (leftNumeric && rightNumeric) return compareNumbers(toNumber(left), toNumber(right));
+    if (leftNumeric) {
+      Number number = parseNumber(right.toString());
+      return number == null ? -1 : compareNumbers(toNumber(left), number);
+    }
+    if (rightNumeric) {
+      Number number = parseNumber(left.toString());
+      return number == null ? 1 : compareNumbers(number, toNumber(right));
+    }
+    return left.toString().compareTo(right.toString());
+  }
+
+  static int compareNullsFirst(Object left, Object right) {
+    if (left == null) return right == null ? 0 : -1;
+    if (right == null) return 1;
+    return compare(left, right);
+  }
+
+  /**
+   * Value used to group or deduplicate rows: equal numbers are equal whatever their type.
+   *
+   * @param value
+   * @return
+   */
+  static Object normalize(Object value) {
+    if (value == null || value instanceof String) return value;
+    Number number = toNumber(value);
+    if (number instanceof Double && number.doubleValue() == Math.rint(number.doubleValue())
+        && Math.abs(number.doubleValue()) < 1e15) return number.longValue();
+    return number;
+  }
+
+  private static int compareNumbers(Number left, Number right) {
+    if (left instanceof Long && right instanceof Long) return Long.compare(left.longValue(), right.longValue());
+    return Double.compare(left.doubleValue(), right.doubleValue());
+  }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2021 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.opal.sql.engine;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Assert;
+import org.junit.Test;
+import org.obiba.opal.sql.SQLParserException;
+import org.obiba.opal.sql.UnsupportedSQLException;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+
+public class SQLQueryTest {
+
+  private static final List<String> COLUMNS = ImmutableList.of("_id", "GENDER", "AGE", "HDL", "SMOKER");
+
+  private static final Object[][] ROWS = {
+      {"1", "M", 42L, 1.5, true},
+      {"2", "F", 35L, 2.25, false},
+      {"3", "F", null, 1.0, false},
+      {"4", "M", 60L, null, true},
+      {"5", "F", 28L, 3.0, null}
+  };
+
+  @Test
+  public void testSelectStar() throws IOException {
+    Assert.assertEquals("{\"columns\":[\"_id\",\"GENDER\",\"AGE\",\"HDL\",\"SMOKER\"],\"rows\":[" +
+            "[\"1\",\"M\",42,1.5,true],[\"2\",\"F\",35,2.25,false]]}",
+        toJSON("select * from CNSIM1 limit 2"));
+  }
+
+  @Test
+  public void testWhereAndProjection() throws IOException {
+    Assert.assertEquals("{\"columns\":[\"_id\",\"age\"],\"rows\":[[\"2\",35],[\"5\",28]]}",
+        toJSON("select _id, age from CNSIM1 where gender = 'F' and AGE is not null"));
+    Assert.assertEquals("{\"columns\":[\"_id\"],\"rows\":[[\"1\"],[\"4\"]]}",
+        toJSON("select t._id from `CNSIM1` as t where t.GENDER in ('M', 'X') and SMOKER"));
+    Assert.assertEquals("{\"columns\":[\"_id\"],\"rows\":[[\"2\"],[\"3\"]]}",
+        toJSON("select _id from CNSIM1 where HDL between 1 and 2.5 and GENDER like 'f%'"));
+  }
+
+  @Test
+  public void testAggregates() throws IOException {
+    Assert.assertEquals("{\"columns\":[\"n\",\"count(AGE)\",\"avg_age\",\"max(HDL)\"],\"rows\":[[5,4,41.25,3]]}",
+        toJSON("select count(*) as n, count(AGE), avg(AGE) avg_age, max(HDL) from CNSIM1"));
+    Assert.assertEquals("{\"columns\":[\"GENDER\",\"n\",\"total\"],\"rows\":[[\"F\",3,63],[\"M\",2,102]]}",
+        toJSON("select GENDER, count(*) as n, sum(AGE) as total from CNSIM1 group by GENDER"));
+    Assert.assertEquals("{\"columns\":[\"GENDER\",\"n\"],\"rows\":[[\"F\",3]]}",
+        toJSON("select GENDER, count(*) as n from CNSIM1 group by GENDER having count(*) > 2"));
+    Assert.assertEquals("{\"columns\":[\"count(*)\"],\"rows\":[[0]]}",
+        toJSON("select count(*) from CNSIM1 where AGE > 100"));
+  }
+
+  @Test
+  public void testOrderDistinctLimit() throws IOException {
+    Assert.assertEquals("{\"columns\":[\"_id\"],\"rows\":[[\"4\"],[\"1\"],[\"2\"]]}",
+        toJSON("select _id from CNSIM1 order by AGE desc limit 3"));
+    Assert.assertEquals("{\"columns\":[\"_id\"],\"rows\":[[\"3\"],[\"5\"]]}",
+        toJSON("select _id from CNSIM1 order by AGE limit 2"));
+    Assert.assertEquals("{\"columns\":[\"g\"],\"rows\":[[\"M\"],[\"F\"]]}",
+        toJSON("select distinct GENDER as g from CNSIM1 order by g desc"));
+    Assert.assertEquals("{\"columns\":[\"_id\"],\"rows\":[[\"3\"],[\"4\"]]}",
+        toJSON("select _id from CNSIM1 limit 2 offset 2"));
+  }
+
+  @Test
+  public void testExpressions() throws IOException {
+    Assert.assertEquals("{\"columns\":[\"id\",\"a\",\"c\"],\"rows\":[[\"id1\",84,\"old\"]]}",
+        toJSON("select 'id' || _id as id, AGE * 2 as a, case when AGE > 40 then 'old' else 'young' end as c " +
+            "from CNSIM1 where _id = 1"));
+  }
+
+  @Test
+  public void testCSV() throws IOException {
+    StringWriter writer = new StringWriter();
+    SQLQuery.parse("select _id, AGE, SMOKER from CNSIM1 where GENDER = 'M' or AGE is null")
+        .execute(new TestTable(), new CSVResultWriter(writer));
+    Assert.assertEquals("\"_id\",\"AGE\",\"SMOKER\"\n\"1\",42,TRUE\n\"3\",,FALSE\n\"4\",60,TRUE\n", writer.toString());
+  }
+
+  @Test(expected = UnsupportedSQLException.class)
+  public void testUnsupportedJoin() {
+    SQLQuery.parse("select * from CNSIM1 a join CNSIM2 b on a._id = b._id");
+  }
+
+  @Test(expected = UnsupportedSQLException.class)
+  public void testUnsupportedSubquery() {
+    SQLQuery.parse("select * from (select * from CNSIM1 union all select * from CNSIM2)");
+  }
+
+  @Test(expected = SQLParserException.class)
+  public void testNoSuchColumn() throws IOException {
+    toJSON("select FOO from CNSIM1");
+  }
+
+  private String toJSON(String sql) throws IOException {
+    StringWriter writer = new StringWriter();
+    SQLQuery query = SQLQuery.parse(sql);
+    query.execute(new TestTable(), new JSONResultWriter(writer));
+    return writer.toString();
+  }
+
+  private static class TestTable implements SQLTable {
+
+    @Override
+    public List<String> getColumnNames() {
+      return COLUMNS;
+    }
+
+    @Override
+    public int getRowCount() {
+      return ROWS.length;
+    }
+
+    @Override
+    public Object[][] getValues(List<String> columns, int[] rows) {
+      Object[][] values = new Object[columns.size()][rows.length];
+      for (int c = 0; c < columns.size(); c++) {
+        int position = COLUMNS.indexOf(columns.get(c));
+        for (int r = 0; r < rows.length; r++) values[c][r] = ROWS[rows[r]][position];
+      }
+      return values;
+    }
+  }
+
+}